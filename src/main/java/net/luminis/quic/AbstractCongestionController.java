@@ -32,12 +32,25 @@ public class AbstractCongestionController implements CongestionController {
     protected static final int initialWindowSize = 10 * 1200;
 
     protected final Logger log;
-    private final Object lock = new Object();
+    private final CongestionControlEventListener eventListener;
     protected volatile long bytesInFlight;
     protected volatile long congestionWindow;
+    // When set, slow start is ended by HyStart++; only used by congestion controllers that have a slow start phase.
+    protected volatile HyStart hyStart;
 
     public AbstractCongestionController(Logger logger) {
+        this(logger, null);
+    }
+
+    public AbstractCongestionController(Logger logger, CongestionControlEventListener eventListener) {
         this.log = logger;
+        this.eventListener = eventListener != null? eventListener: new CongestionControlEventListener() {
+            @Override
+            public void bytesInFlightIncreased(long bytesInFlight) {}
+
+            @Override
+            public void bytesInFlightDecreased(long bytesInFlight) {}
+        };
         congestionWindow = initialWindowSize;
     }
 
@@ -49,9 +62,7 @@ public class AbstractCongestionController implements CongestionController {
             if (bytesInFlight > congestionWindow) {
                 log.cc("Bytes in flight exceeds congestion window: " + bytesInFlight + " > " + congestionWindow);
             }
-            synchronized (lock) {
-                lock.notifyAll();
-            }
+            eventListener.bytesInFlightIncreased(bytesInFlight);
         }
     }
 
@@ -66,9 +77,7 @@ public class AbstractCongestionController implements CongestionController {
             bytesInFlight -= bytesInFlightAcked;
             checkBytesInFlight();
             log.debug("Bytes in flight decreased to " + bytesInFlight + " (" + acknowlegdedPackets.size() + " packets acked)");
-            synchronized (lock) {
-                lock.notifyAll();
-            }
+            eventListener.bytesInFlightDecreased(bytesInFlight);
         }
     }
 
@@ -83,6 +92,7 @@ public class AbstractCongestionController implements CongestionController {
         if (lostBytes > 0) {
             checkBytesInFlight();
             log.debug("Bytes in flight decreased to " + bytesInFlight + " (" + lostPackets.size() + " packets lost)");
+            eventListener.bytesInFlightDecreased(bytesInFlight);
         }
     }
 
@@ -97,9 +107,21 @@ public class AbstractCongestionController implements CongestionController {
         if (discardedBytes > 0) {
             checkBytesInFlight();
             log.debug("Bytes in flight decreased with " + discardedBytes + " to " + bytesInFlight + " (" + discardedPackets.size() + " packets RESET)");
+            eventListener.bytesInFlightDecreased(bytesInFlight);
         }
     }
 
+    /**
+     * Lets the congestion controller use HyStart++ to determine when to exit slow start.
+     */
+    public void setHyStart(HyStart hyStart) {
+        this.hyStart = hyStart;
+    }
+
+    public HyStart getHyStart() {
+        return hyStart;
+    }
+
     public synchronized boolean canSend(int bytes) {
         return bytesInFlight + bytes < congestionWindow;
     }
@@ -112,15 +134,10 @@ public class AbstractCongestionController implements CongestionController {
         return congestionWindow;
     }
 
-    public void waitForUpdate() throws InterruptedException {
-        synchronized (lock) {
-            lock.wait();
-        }
-    }
-
     public void reset() {
         log.debug("Resetting congestion controller.");
         bytesInFlight = 0;
+        eventListener.bytesInFlightDecreased(bytesInFlight);
     }
 
     private void checkBytesInFlight() {
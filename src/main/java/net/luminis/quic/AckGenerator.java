@@ -22,53 +22,191 @@ import net.luminis.quic.frame.AckFrame;
 import net.luminis.quic.frame.QuicFrame;
 import net.luminis.quic.packet.QuicPacket;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.TreeMap;
 
 
 /**
- * Listens for received packets and generates ack frames for them.
+ * Listens for received packets and generates ack frames for them, deciding when an acknowledgement must be sent.
+ * https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-13.2
  */
 public class AckGenerator {
 
+    // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-13.2.2
+    // "A receiver SHOULD send an ACK frame after receiving at least two ack-eliciting packets."
+    public static final int ACK_ELICITING_THRESHOLD = 2;
+    // Maximum number of ranges kept; when exceeded, the ranges with the smallest packet numbers are discarded (those
+    // are also the first to be left out when an ack frame would get too large).
+    public static final int MAX_RANGES = 64;
+    // Maximum number of sent acks that are remembered, for when the peer does not acknowledge the packets they were sent in.
+    private static final int MAX_ACKS_SENT_REGISTERED = 64;
+
     private Version quicVersion = Version.getDefault();
-    private List<Long> packetsToAcknowledge = new ArrayList<>();
-    private boolean newPacketsToAcknowledge;
-    private Map<Long, AckFrame> ackSentWithPacket = new HashMap<>();
+    private final int maxAckDelay;
+    // Received packet numbers, as pairs of (largest, smallest), in descending order.
+    private long[] ranges = new long[2 * 8];
+    private int rangeCount;
+    // Largest packet number received, also when it is no longer in the ranges because it does not need to be acked anymore.
+    private long largestReceived = -1;
+    private Instant largestReceivedTime;
+    private int ackElicitingSinceLastAck;
+    private boolean ackImmediately;
+    private Instant ackDeadline;
+    // Largest acknowledged of the ack frame sent, by packet number of the packet it was sent in.
+    private final TreeMap<Long, Long> ackSentWithPacket = new TreeMap<>();
+
+    public AckGenerator() {
+        this(25);
+    }
+
+    /**
+     * @param maxAckDelay  the max ack delay (in milliseconds) that was announced to the peer
+     */
+    public AckGenerator(int maxAckDelay) {
+        this.maxAckDelay = maxAckDelay;
+    }
 
     public synchronized boolean hasAckToSend() {
-        return !packetsToAcknowledge.isEmpty();
+        return rangeCount > 0;
     }
 
+    /**
+     * Returns whether an acknowledgement must be sent now, i.e. without waiting for other frames it can be sent with.
+     * @return
+     */
     public synchronized boolean hasNewAckToSend() {
-        return newPacketsToAcknowledge;
+        return ackImmediately || (ackDeadline != null && !Instant.now().isBefore(ackDeadline));
+    }
+
+    /**
+     * Returns the time at which an acknowledgement must be sent at the latest, or null if there is no acknowledgement
+     * waiting to be sent (or it must be sent immediately).
+     * @return
+     */
+    public synchronized Instant getAckDeadline() {
+        return ackImmediately? null: ackDeadline;
     }
 
     public synchronized void packetReceived(QuicPacket packet) {
+        packetReceived(packet, Instant.now());
+    }
+
+    public synchronized void packetReceived(QuicPacket packet, Instant timeReceived) {
         if (packet.canBeAcked()) {
-            packetsToAcknowledge.add(packet.getPacketNumber());
+            long packetNumber = packet.getPacketNumber();
+            long previousLargest = largestReceived;
+            if (packetNumber > largestReceived) {
+                largestReceived = packetNumber;
+            }
+            if (rangeCount == 0 || packetNumber > ranges[0]) {
+                largestReceivedTime = timeReceived;
+            }
+            addPacketNumber(packetNumber);
+
             if (packet.isAckEliciting()) {
-                newPacketsToAcknowledge = true;
+                ackElicitingSinceLastAck++;
+                if (packet.getEncryptionLevel() != EncryptionLevel.App) {
+                    // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-13.2.1
+                    // "An endpoint MUST acknowledge all ack-eliciting Initial and Handshake packets immediately"
+                    ackImmediately = true;
+                }
+                else if (previousLargest >= 0 && (packetNumber < previousLargest || packetNumber > previousLargest + 1)) {
+                    // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-13.2.1
+                    // "In order to assist loss detection at the sender, an endpoint SHOULD send an ACK frame immediately
+                    //  on receiving an ack-eliciting packet that is out of order."
+                    ackImmediately = true;
+                }
+                else if (ackElicitingSinceLastAck >= ACK_ELICITING_THRESHOLD) {
+                    ackImmediately = true;
+                }
+                else if (ackDeadline == null) {
+                    // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-13.2.1
+                    // "An endpoint MUST acknowledge all ack-eliciting 0-RTT and 1-RTT packets within its advertised
+                    //  max_ack_delay"
+                    ackDeadline = timeReceived.plusMillis(maxAckDelay);
+                }
             }
         }
     }
 
+    private void addPacketNumber(long pn) {
+        // Find first range (in descending order) whose smallest is not larger than pn; the range before it (if any) is above pn.
+        int index = 0;
+        while (index < rangeCount && ranges[2 * index + 1] > pn) {
+            index++;
+        }
+        if (index < rangeCount && ranges[2 * index] >= pn) {
+            return;  // Duplicate
+        }
+        boolean extendsAbove = index > 0 && ranges[2 * (index - 1) + 1] == pn + 1;
+        boolean extendsBelow = index < rangeCount && ranges[2 * index] == pn - 1;
+        if (extendsAbove && extendsBelow) {
+            // Fills the gap between two ranges: merge them.
+            ranges[2 * (index - 1) + 1] = ranges[2 * index + 1];
+            System.arraycopy(ranges, 2 * (index + 1), ranges, 2 * index, 2 * (rangeCount - index - 1));
+            rangeCount--;
+        }
+        else if (extendsAbove) {
+            ranges[2 * (index - 1) + 1] = pn;
+        }
+        else if (extendsBelow) {
+            ranges[2 * index] = pn;
+        }
+        else {
+            if (rangeCount == MAX_RANGES) {
+                if (index == rangeCount) {
+                    return;  // Smaller than all ranges kept, so would be discarded immediately.
+                }
+                rangeCount--;
+            }
+            if (2 * rangeCount == ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            System.arraycopy(ranges, 2 * index, ranges, 2 * (index + 1), 2 * (rangeCount - index));
+            ranges[2 * index] = pn;
+            ranges[2 * index + 1] = pn;
+            rangeCount++;
+        }
+    }
+
     /**
      * Process a received AckFrame.
      * @param receivedAck
      */
     public synchronized void process(QuicFrame receivedAck) {
+        AckFrame ack = (AckFrame) receivedAck;
         // Find max packet number that had an ack sent with it...
-        ((AckFrame) receivedAck).getAckedPacketNumbers().stream()
-                .filter(pn -> ackSentWithPacket.containsKey(pn))
-                .limit(1)
-                .forEach(pn -> {
-                    // ... and for that max pn, all packets that where acked by it don't need to be acked again.
-                    AckFrame ackSent = ackSentWithPacket.get(pn);
-                    ackSent.getAckedPacketNumbers().forEach((Long ackedPacket) -> packetsToAcknowledge.remove(ackedPacket));
-                });
+        Long maxAcked = null;
+        for (Long pn: ackSentWithPacket.descendingKeySet()) {
+            if (ack.acknowledges(pn)) {
+                maxAcked = pn;
+                break;
+            }
+        }
+        if (maxAcked != null) {
+            // ... and for that max pn, all packets that where acked by it don't need to be acked again.
+            // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-13.2.3
+            // "When a packet containing an ACK frame is acknowledged, the receiver can stop acknowledging packets less
+            //  than or equal to the largest acknowledged in the sent ACK frame."
+            removeUpTo(ackSentWithPacket.get(maxAcked));
+            // Acks sent in earlier packets are superseded by this one.
+            ackSentWithPacket.headMap(maxAcked, true).clear();
+        }
+    }
+
+    private void removeUpTo(long largestAcknowledged) {
+        int kept = 0;
+        while (kept < rangeCount && ranges[2 * kept + 1] > largestAcknowledged) {
+            kept++;
+        }
+        if (kept < rangeCount && ranges[2 * kept] > largestAcknowledged) {
+            // Range straddles the largest acknowledged, keep the upper part.
+            ranges[2 * kept + 1] = largestAcknowledged + 1;
+            kept++;
+        }
+        rangeCount = kept;
     }
 
     /**
@@ -77,10 +215,36 @@ public class AckGenerator {
      * @return
      */
     public synchronized AckFrame generateAckForPacket(long packetNumber) {
-        AckFrame ackFrame = new AckFrame(quicVersion, packetsToAcknowledge);
-        ackSentWithPacket.put(packetNumber, ackFrame);
-        newPacketsToAcknowledge = false;
+        AckFrame ackFrame = generateAck();
+        registerAckSendWithPacket(ackFrame, packetNumber);
         return ackFrame;
     }
-}
 
+    /**
+     * Generate an AckFrame for the packets received so far, without registering it as being sent. When the ack frame
+     * is actually sent, this must be registered with <code>registerAckSendWithPacket</code>.
+     * @return
+     */
+    public synchronized AckFrame generateAck() {
+        // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-13.2.5
+        // "An endpoint measures the delays intentionally introduced between the time the packet with the largest packet
+        //  number is received and the time an acknowledgment is sent."
+        long ackDelay = largestReceivedTime != null? Duration.between(largestReceivedTime, Instant.now()).toNanos() / 1000: 0;
+        return new AckFrame(quicVersion, Arrays.copyOf(ranges, 2 * rangeCount), (int) Long.min(Long.max(ackDelay, 0), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Registers that the given ack frame is sent with the packet with the given packet number.
+     * @param ackFrame
+     * @param packetNumber
+     */
+    public synchronized void registerAckSendWithPacket(AckFrame ackFrame, long packetNumber) {
+        ackSentWithPacket.put(packetNumber, ackFrame.getLargestAcknowledged());
+        if (ackSentWithPacket.size() > MAX_ACKS_SENT_REGISTERED) {
+            ackSentWithPacket.pollFirstEntry();
+        }
+        ackImmediately = false;
+        ackDeadline = null;
+        ackElicitingSinceLastAck = 0;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.log.Logger;
+import net.luminis.quic.packet.PacketInfo;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Experimental model based congestion controller, following BBR (version 1) as described in
+ * https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00
+ * The bottleneck bandwidth and round-trip propagation time are estimated from delivery rate samples; loss is not used
+ * as a congestion signal.
+ */
+public class BbrCongestionController extends AbstractCongestionController {
+
+    public enum State {
+        Startup,
+        Drain,
+        ProbeBW,
+        ProbeRTT
+    }
+
+    // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.2.1
+    // "BBRHighGain = 2/ln(2)"
+    private static final double HIGH_GAIN = 2 / Math.log(2);
+    // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.3.4.3
+    // "BBR's default pacing_gain cycle is [5/4, 3/4, 1, 1, 1, 1, 1, 1]"
+    private static final double[] PACING_GAIN_CYCLE = { 5.0 / 4, 3.0 / 4, 1, 1, 1, 1, 1, 1 };
+    // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.1.1.3
+    // "BtlBwFilterLen: A constant specifying the length of the BBR.BtlBw max filter window for BBR.BtlBwFilter,
+    //  BtlBwFilterLen is 10 packet-timed round trips."
+    private static final int BTL_BW_FILTER_LENGTH = 10;
+    // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.1.2.3
+    // "RTpropFilterLen: A constant specifying the length of the RTProp min filter window, RTpropFilterLen is 10 secs."
+    private static final Duration RT_PROP_FILTER_LENGTH = Duration.ofSeconds(10);
+    // "ProbeRTTDuration: A constant specifying the minimum duration for which ProbeRTT state holds inflight to
+    //  BBRMinPipeCwnd or fewer packets: 200 ms."
+    private static final Duration PROBE_RTT_DURATION = Duration.ofMillis(200);
+    private static final int MAX_DATAGRAM_SIZE = 1200;
+    // "BBRMinPipeCwnd: The minimal cwnd value BBR tries to target using: 4 packets, or 4 * SMSS"
+    private static final int MIN_PIPE_CWND = 4 * MAX_DATAGRAM_SIZE;
+
+    private final Clock clock;
+    private final RttEstimator rttEstimator;
+    private final Random random = new Random();
+    private volatile State state;
+    private double pacingGain;
+    private double cwndGain;
+    private volatile long pacingRate;
+    // Max filter for the bottleneck bandwidth, one (max) sample per round trip.
+    private final WindowedMaxFilter btlBwFilter = new WindowedMaxFilter(BTL_BW_FILTER_LENGTH);
+    private long btlBw;
+    private Duration rtProp;
+    private Instant rtPropStamp;
+    private boolean rtPropExpired;
+    private long roundCount;
+    private long nextRoundDelivered;
+    private boolean roundStart;
+    private boolean filledPipe;
+    private boolean appLimited;
+    private long fullBw;
+    private int fullBwCount;
+    private int cycleIndex;
+    private Instant cycleStamp;
+    private Instant probeRttDoneStamp;
+    private boolean probeRttRoundDone;
+    private long priorCwnd;
+
+    public BbrCongestionController(Logger logger) {
+        this(logger, null, null, Clock.systemUTC());
+    }
+
+    public BbrCongestionController(Logger logger, CongestionControlEventListener eventListener, RttEstimator rttEstimator) {
+        this(logger, eventListener, rttEstimator, Clock.systemUTC());
+    }
+
+    /**
+     * Creates a BBR congestion controller.
+     * @param rttEstimator  used to compute the initial pacing rate; when null, no pacing rate is set until the first
+     *                      rate sample is taken
+     * @param clock  the clock to take the time from
+     */
+    public BbrCongestionController(Logger logger, CongestionControlEventListener eventListener, RttEstimator rttEstimator, Clock clock) {
+        super(logger, eventListener);
+        this.clock = clock;
+        this.rttEstimator = rttEstimator;
+        rtPropStamp = clock.instant();
+        enterStartup();
+        initPacingRate();
+    }
+
+    @Override
+    public void registerAcked(List<? extends PacketInfo> acknowlegdedPackets) {
+        registerAcked(acknowlegdedPackets, null);
+    }
+
+    @Override
+    public synchronized void registerAcked(List<? extends PacketInfo> acknowlegdedPackets, RateSample rateSample) {
+        super.registerAcked(acknowlegdedPackets);
+        long bytesAcked = acknowlegdedPackets.stream().mapToInt(p -> p.packet().getSize()).sum();
+        if (bytesAcked == 0) {
+            return;
+        }
+
+        if (rateSample != null) {
+            updateModelAndState(rateSample);
+        }
+        else {
+            roundStart = false;
+        }
+        updateControlParameters(bytesAcked, rateSample != null? rateSample.getDelivered(): 0);
+    }
+
+    // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.5.3
+    // "BBRUpdateModelAndState():
+    //    BBRUpdateBtlBw()
+    //    BBRCheckCyclePhase()
+    //    BBRCheckFullPipe()
+    //    BBRCheckDrain()
+    //    BBRUpdateRTprop()
+    //    BBRCheckProbeRTT()"
+    private void updateModelAndState(RateSample rateSample) {
+        appLimited = rateSample.isAppLimited();
+        updateBtlBw(rateSample);
+        checkCyclePhase();
+        checkFullPipe();
+        checkDrain();
+        updateRtProp(rateSample);
+        checkProbeRtt(rateSample);
+    }
+
+    private void updateBtlBw(RateSample rateSample) {
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.1.1.3
+        // "BBR.round_count counts packet-timed round trips"
+        if (rateSample.getPriorDelivered() >= nextRoundDelivered) {
+            nextRoundDelivered = rateSample.getDelivered();
+            roundCount++;
+            roundStart = true;
+        }
+        else {
+            roundStart = false;
+        }
+
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.1.1.5
+        // "if (rs.delivery_rate >= BBR.BtlBw || ! rs.is_app_limited)
+        //     update_windowed_max_filter(...)"
+        long deliveryRate = rateSample.getDeliveryRate();
+        if (deliveryRate >= btlBw || !rateSample.isAppLimited()) {
+            btlBw = btlBwFilter.update(deliveryRate, roundCount);
+        }
+    }
+
+    private void checkCyclePhase() {
+        if (state == State.ProbeBW && isNextCyclePhase()) {
+            advanceCyclePhase();
+        }
+    }
+
+    // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.3.4.3
+    private boolean isNextCyclePhase() {
+        boolean isFullLength = Duration.between(cycleStamp, clock.instant()).compareTo(rtProp) > 0;
+        if (pacingGain == 1) {
+            return isFullLength;
+        }
+        if (pacingGain > 1) {
+            return isFullLength && bytesInFlight >= inflight(pacingGain);
+        }
+        else {
+            return isFullLength || bytesInFlight <= inflight(1.0);
+        }
+    }
+
+    private void advanceCyclePhase() {
+        cycleStamp = clock.instant();
+        cycleIndex = (cycleIndex + 1) % PACING_GAIN_CYCLE.length;
+        pacingGain = PACING_GAIN_CYCLE[cycleIndex];
+    }
+
+    private void checkFullPipe() {
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.3.2.2
+        // "if BBR.BtlBw still hasn't grown by 25% after three non-app-limited round trips, then BBR estimates that the
+        //  pipe is full"
+        if (filledPipe || !roundStart || appLimited) {
+            return;
+        }
+        if (btlBw >= fullBw * 5 / 4) {
+            fullBw = btlBw;
+            fullBwCount = 0;
+            return;
+        }
+        fullBwCount++;
+        if (fullBwCount >= 3) {
+            filledPipe = true;
+            log.cc("BBR: pipe filled, bottleneck bandwidth " + btlBw + " B/s");
+        }
+    }
+
+    private void checkDrain() {
+        if (state == State.Startup && filledPipe) {
+            // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.3.3
+            // "In Drain, BBR aims to quickly drain any queue created in Startup by switching to a pacing_gain well below
+            //  1.0, until any estimated queue has been drained."
+            state = State.Drain;
+            pacingGain = 1 / HIGH_GAIN;
+            cwndGain = HIGH_GAIN;
+        }
+        if (state == State.Drain && bytesInFlight <= inflight(1.0)) {
+            enterProbeBw();
+        }
+    }
+
+    private void updateRtProp(RateSample rateSample) {
+        Instant now = clock.instant();
+        rtPropExpired = now.isAfter(rtPropStamp.plus(RT_PROP_FILTER_LENGTH));
+        if (rtProp == null || rateSample.getRtt().compareTo(rtProp) <= 0 || rtPropExpired) {
+            rtProp = rateSample.getRtt();
+            rtPropStamp = now;
+        }
+    }
+
+    private void checkProbeRtt(RateSample rateSample) {
+        Instant now = clock.instant();
+        if (state != State.ProbeRTT && rtPropExpired) {
+            // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.3.5
+            // "Upon entering ProbeRTT, BBR reduces its cwnd to BBRMinPipeCwnd (4 packets)"
+            state = State.ProbeRTT;
+            pacingGain = 1;
+            cwndGain = 1;
+            priorCwnd = congestionWindow;
+            probeRttDoneStamp = null;
+            log.cc("BBR: entering ProbeRTT");
+        }
+        if (state == State.ProbeRTT) {
+            if (probeRttDoneStamp == null && bytesInFlight <= MIN_PIPE_CWND) {
+                probeRttDoneStamp = now.plus(PROBE_RTT_DURATION);
+                probeRttRoundDone = false;
+                nextRoundDelivered = rateSample.getDelivered();
+            }
+            else if (probeRttDoneStamp != null) {
+                if (roundStart) {
+                    probeRttRoundDone = true;
+                }
+                if (probeRttRoundDone && now.isAfter(probeRttDoneStamp)) {
+                    rtPropStamp = now;
+                    congestionWindow = Long.max(congestionWindow, priorCwnd);
+                    if (filledPipe) {
+                        enterProbeBw();
+                    }
+                    else {
+                        enterStartup();
+                    }
+                }
+            }
+        }
+    }
+
+    private void updateControlParameters(long bytesAcked, long totalDelivered) {
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.2.1
+        long rate = (long) (pacingGain * btlBw);
+        if (rate > 0 && (filledPipe || rate > pacingRate)) {
+            pacingRate = rate;
+        }
+
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.2.3.6
+        long previousCwnd = congestionWindow;
+        long targetCwnd = inflight(cwndGain) + 3 * MAX_DATAGRAM_SIZE;
+        if (filledPipe) {
+            congestionWindow = Long.min(congestionWindow + bytesAcked, targetCwnd);
+        }
+        else if (congestionWindow < targetCwnd || totalDelivered < initialWindowSize) {
+            congestionWindow = congestionWindow + bytesAcked;
+        }
+        congestionWindow = Long.max(congestionWindow, MIN_PIPE_CWND);
+        if (state == State.ProbeRTT) {
+            congestionWindow = Long.min(congestionWindow, MIN_PIPE_CWND);
+        }
+        if (congestionWindow != previousCwnd) {
+            log.cc("Cwnd: " + congestionWindow + " (" + state + "); inflight: " + bytesInFlight + "; pacing rate: " + pacingRate);
+        }
+    }
+
+    private long inflight(double gain) {
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.2.3.2
+        // "if (BBR.RTprop == Inf) return InitialCwnd /* no valid RTT samples yet */"
+        if (rtProp == null || btlBw == 0) {
+            return initialWindowSize;
+        }
+        long bdp = btlBw * rtProp.toNanos() / 1_000_000_000L;
+        return (long) (gain * bdp);
+    }
+
+    private void enterStartup() {
+        state = State.Startup;
+        pacingGain = HIGH_GAIN;
+        cwndGain = HIGH_GAIN;
+    }
+
+    private void enterProbeBw() {
+        state = State.ProbeBW;
+        pacingGain = 1;
+        cwndGain = 2;
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.3.4.4
+        // "BBR randomizes the starting phase of the gain cycle, except it does not start in the 3/4 phase"
+        cycleIndex = PACING_GAIN_CYCLE.length - 1 - random.nextInt(PACING_GAIN_CYCLE.length - 1);
+        advanceCyclePhase();
+        log.cc("BBR: entering ProbeBW");
+    }
+
+    private void initPacingRate() {
+        // https://tools.ietf.org/html/draft-cardwell-iccrg-bbr-congestion-control-00#section-4.2.1
+        // "nominal_bandwidth = InitialCwnd / (SRTT ? SRTT : 1ms)
+        //  BBR.pacing_rate =  BBRHighGain * nominal_bandwidth"
+        if (rttEstimator != null) {
+            pacingRate = (long) (HIGH_GAIN * congestionWindow * 1000 / Integer.max(rttEstimator.getSmoothedRtt(), 1));
+        }
+    }
+
+    @Override
+    public long getPacingRate() {
+        return pacingRate;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getBottleneckBandwidth() {
+        return btlBw;
+    }
+
+    public Duration getRtProp() {
+        return rtProp;
+    }
+}
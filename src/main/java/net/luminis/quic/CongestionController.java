@@ -29,17 +29,38 @@ public interface CongestionController {
 
     void registerAcked(List<? extends PacketInfo> acknowlegdedPackets);
 
+    /**
+     * Registers the packets acknowledged by one ack, together with the delivery rate sample taken for that ack, which
+     * is null when no valid sample could be taken.
+     */
+    default void registerAcked(List<? extends PacketInfo> acknowlegdedPackets, RateSample rateSample) {
+        registerAcked(acknowlegdedPackets);
+    }
+
     void registerLost(List<? extends PacketInfo> lostPackets);
 
+    /**
+     * Registers packets that were declared lost before (and registered with registerLost), but that are acknowledged
+     * after all; i.e. the loss was spurious, for example caused by reordering.
+     */
+    default void registerSpuriousLoss(List<? extends PacketInfo> spuriouslyLostPackets) {
+    }
+
     boolean canSend(int bytes);
 
     long getBytesInFlight();
 
     long getWindowSize();
 
-    void reset();
+    /**
+     * @return  the rate (in bytes per second) at which packets should be sent, or 0 when the congestion controller
+     * does not determine a pacing rate.
+     */
+    default long getPacingRate() {
+        return 0;
+    }
 
-    void waitForUpdate() throws InterruptedException;
+    void reset();
 
     void discard(List<? extends PacketInfo> packetStatusStream);
 }
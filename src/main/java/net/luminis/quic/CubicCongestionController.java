@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.log.Logger;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+// https://tools.ietf.org/html/rfc8312#section-1
+// "CUBIC is an extension to the current TCP standards. It differs from the current TCP standards only in the
+//  congestion window adjustment function in the sender side."
+// Slow start and the recovery period are shared with NewReno; only congestion avoidance and the window reduction on a
+// congestion event differ. Window computations are done in segments of kMaxDatagramSize bytes.
+public class CubicCongestionController extends NewRenoCongestionController {
+
+    // https://tools.ietf.org/html/rfc8312#section-5.1
+    // "Therefore, C SHOULD be set to 0.4."
+    private static final double C = 0.4;
+
+    // https://tools.ietf.org/html/rfc8312#section-4.5
+    // "Parameter beta_cubic SHOULD be set to 0.7."
+    private static final double BETA_CUBIC = 0.7;
+
+    private final RttEstimator rttEstimator;
+    private Instant epochStart;
+    private double wMax;
+    private double wLastMax;
+    private double k;
+    private double originPoint;
+    private double wEst;
+    private double windowIncrementRemainder;
+    private double priorWMax;
+    private double priorWLastMax;
+
+    public CubicCongestionController(Logger logger) {
+        this(logger, null, null, Clock.systemUTC());
+    }
+
+    public CubicCongestionController(Logger logger, CongestionControlEventListener eventListener, RttEstimator rttEstimator) {
+        this(logger, eventListener, rttEstimator, Clock.systemUTC());
+    }
+
+    /**
+     * Creates a CUBIC congestion controller.
+     * @param rttEstimator  used to look up the smoothed RTT when computing the target window; when null, the RTT is ignored
+     * @param clock  the clock to take the time from
+     */
+    public CubicCongestionController(Logger logger, CongestionControlEventListener eventListener, RttEstimator rttEstimator, Clock clock) {
+        super(logger, eventListener, clock);
+        this.rttEstimator = rttEstimator;
+    }
+
+    @Override
+    protected void increaseInCongestionAvoidance(int bytesAcked) {
+        Instant now = clock.instant();
+        double cwnd = (double) congestionWindow / kMaxDatagramSize;
+        if (epochStart == null) {
+            startEpoch(now, cwnd);
+        }
+
+        // https://tools.ietf.org/html/rfc8312#section-4.1
+        // "W_cubic(t) = C*(t-K)^3 + W_max (Eq. 1)"
+        // https://tools.ietf.org/html/rfc8312#section-4.3
+        // "CUBIC computes W_cubic(t+RTT) using Eq. 1, where RTT is the smoothed round-trip time"
+        double t = Duration.between(epochStart, now).toNanos() / 1_000_000_000.0 + smoothedRttInSeconds();
+        double target = originPoint + C * Math.pow(t - k, 3);
+        // Limit growth per RTT, to prevent a burst when the window has been application limited for a long time.
+        target = Math.min(target, 1.5 * cwnd);
+
+        // https://tools.ietf.org/html/rfc8312#section-4.2
+        // "W_est(t) = W_max*beta_cubic + [3*(1-beta_cubic)/(1+beta_cubic)] * (t/RTT) (Eq. 4)"
+        // Implemented as an increment per acknowledged segment, which is equivalent (and does not need the RTT).
+        wEst += 3 * (1 - BETA_CUBIC) / (1 + BETA_CUBIC) * bytesAcked / congestionWindow;
+
+        if (target < wEst) {
+            // https://tools.ietf.org/html/rfc8312#section-4.2
+            // "If W_cubic(t) is less than W_est(t), then the protocol is in the TCP friendly region and cwnd SHOULD be
+            //  set to W_est(t) at each reception of an ACK."
+            target = wEst;
+        }
+        if (target > cwnd) {
+            // https://tools.ietf.org/html/rfc8312#section-4.3
+            // "cwnd MUST be incremented by (W_cubic(t+RTT) - cwnd)/cwnd for each received ACK"
+            windowIncrementRemainder += (target - cwnd) / cwnd * bytesAcked;
+            long increment = (long) windowIncrementRemainder;
+            congestionWindow += increment;
+            windowIncrementRemainder -= increment;
+        }
+    }
+
+    @Override
+    protected long reduceWindow() {
+        double cwnd = (double) congestionWindow / kMaxDatagramSize;
+        priorWMax = wMax;
+        priorWLastMax = wLastMax;
+        // https://tools.ietf.org/html/rfc8312#section-4.6
+        // "if (W_max < W_last_max){ // should we make room for others
+        //      W_last_max = W_max;             // remember the last W_max
+        //      W_max = W_max*(1.0+beta_cubic)/2.0; // further reduce W_max
+        //  } else {
+        //      W_last_max = W_max              // remember the last W_max
+        //  }"
+        if (cwnd < wLastMax) {
+            wLastMax = cwnd;
+            wMax = cwnd * (1.0 + BETA_CUBIC) / 2.0;
+        }
+        else {
+            wLastMax = cwnd;
+            wMax = cwnd;
+        }
+        epochStart = null;
+        windowIncrementRemainder = 0;
+        // https://tools.ietf.org/html/rfc8312#section-4.5
+        // "ssthresh =  cwnd * beta_cubic; // new slow-start threshold
+        //  ssthresh =  max(ssthresh, 2);   // threshold is at least 2 MSS
+        //  cwnd = ssthresh;"
+        return (long) (congestionWindow * BETA_CUBIC);
+    }
+
+    @Override
+    protected void undoReduceWindow() {
+        wMax = priorWMax;
+        wLastMax = priorWLastMax;
+        // Start a new epoch from the restored window.
+        epochStart = null;
+        windowIncrementRemainder = 0;
+    }
+
+    private void startEpoch(Instant now, double cwnd) {
+        epochStart = now;
+        if (cwnd < wMax) {
+            // https://tools.ietf.org/html/rfc8312#section-4.1
+            // "K = cubic_root(W_max*(1-beta_cubic)/C) (Eq. 2)"
+            k = Math.cbrt((wMax - cwnd) / C);
+            originPoint = wMax;
+        }
+        else {
+            k = 0;
+            originPoint = cwnd;
+        }
+        wEst = cwnd;
+    }
+
+    private double smoothedRttInSeconds() {
+        return rttEstimator != null? rttEstimator.getSmoothedRtt() / 1000.0: 0;
+    }
+
+    double getK() {
+        return k;
+    }
+
+    double getWMax() {
+        return wMax * kMaxDatagramSize;
+    }
+}
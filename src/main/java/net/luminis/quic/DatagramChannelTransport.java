@@ -0,0 +1,314 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.concurrent.EventLoop;
+import net.luminis.quic.log.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Transport based on a (non-blocking) datagram channel that is connected to the peer.
+ * Receiving is done by one thread at a time (or by an event loop); sending can be done concurrently with receiving.
+ * When registered with an event loop, sending never blocks the event loop: datagrams that cannot be sent because the
+ * socket send buffer is full, are kept until the event loop finds the socket writable.
+ */
+public class DatagramChannelTransport implements Transport {
+
+    private final InetSocketAddress peerAddress;
+    private final Logger log;
+    private volatile DatagramChannel channel;
+    private volatile boolean closed;
+    // Created and used by receiving thread, only when receiving blocking.
+    private volatile Selector readSelector;
+    private DatagramChannel registeredChannel;
+    // Set when registered with an event loop.
+    private volatile EventLoop eventLoop;
+    private volatile Runnable readHandler;
+    private volatile Runnable writableHandler;
+    // Datagrams waiting for the socket to become writable, only when registered with an event loop.
+    private final Deque<ByteBuffer> pendingDatagrams = new ArrayDeque<>();
+    // Created and used by sending thread, only when needed.
+    private volatile Selector writeSelector;
+    private DatagramChannel writeRegisteredChannel;
+
+    public DatagramChannelTransport(InetSocketAddress peerAddress, Logger log) throws SocketException {
+        this.peerAddress = peerAddress;
+        this.log = log;
+        try {
+            channel = openChannel();
+        }
+        catch (SocketException socketError) {
+            throw socketError;
+        }
+        catch (IOException ioError) {
+            SocketException socketError = new SocketException("Cannot create datagram channel: " + ioError.getMessage());
+            socketError.initCause(ioError);
+            throw socketError;
+        }
+        try {
+            log.debug("Socket receive buffer size: " + channel.getOption(StandardSocketOptions.SO_RCVBUF));
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private DatagramChannel openChannel() throws IOException {
+        DatagramChannel newChannel = DatagramChannel.open();
+        newChannel.configureBlocking(false);
+        newChannel.connect(peerAddress);
+        return newChannel;
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException {
+        if (eventLoop != null) {
+            sendWithoutBlocking(datagram);
+            return;
+        }
+        while (!write(datagram)) {
+            // Socket send buffer is full
+            waitUntilWritable(channel);
+        }
+    }
+
+    private void sendWithoutBlocking(ByteBuffer datagram) throws IOException {
+        synchronized (pendingDatagrams) {
+            if (pendingDatagrams.isEmpty() && write(datagram)) {
+                return;
+            }
+            // Keep a copy, as the caller may reuse the buffer.
+            ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+            copy.put(datagram).flip();
+            pendingDatagrams.addLast(copy);
+            if (pendingDatagrams.size() == 1) {
+                eventLoop.registerForWrite(channel, this::sendPendingDatagrams);
+            }
+        }
+    }
+
+    /**
+     * Sends the datagrams that were kept because the socket send buffer was full; executed by the event loop.
+     */
+    private void sendPendingDatagrams() {
+        synchronized (pendingDatagrams) {
+            try {
+                while (!pendingDatagrams.isEmpty() && write(pendingDatagrams.peekFirst())) {
+                    pendingDatagrams.removeFirst();
+                }
+            }
+            catch (IOException sendError) {
+                // Most likely, the transport is closed. Datagrams that are not sent are just lost.
+                log.error("Sending datagram failed", sendError);
+                pendingDatagrams.clear();
+            }
+            if (!pendingDatagrams.isEmpty()) {
+                eventLoop.registerForWrite(channel, this::sendPendingDatagrams);
+                return;
+            }
+        }
+        Runnable handler = writableHandler;
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    /**
+     * Writes the datagram to the channel, without blocking.
+     * @return  whether the datagram is sent, false when the socket send buffer is full
+     */
+    private boolean write(ByteBuffer datagram) throws IOException {
+        while (true) {
+            DatagramChannel current = channel;
+            try {
+                // A datagram is written completely or not at all.
+                return current.write(datagram) > 0;
+            }
+            catch (PortUnreachableException unreachable) {
+                // Result of an earlier ICMP message being reported on the connected channel; ignore it (see receive())
+                // and retry sending, as an unconnected socket would not have reported it either.
+                log.debug("Ignoring port unreachable error on send");
+            }
+            catch (ClosedChannelException closedChannel) {
+                if (current == channel) {
+                    throw closedChannel;
+                }
+                // Otherwise, local address changed while sending; retry with new channel.
+            }
+        }
+    }
+
+    @Override
+    public boolean isSendBlocked() {
+        synchronized (pendingDatagrams) {
+            return !pendingDatagrams.isEmpty();
+        }
+    }
+
+    @Override
+    public void setWritableHandler(Runnable writableHandler) {
+        this.writableHandler = writableHandler;
+    }
+
+    private void waitUntilWritable(DatagramChannel current) throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+        }
+        if (current != writeRegisteredChannel) {
+            current.register(writeSelector, SelectionKey.OP_WRITE);
+            writeRegisteredChannel = current;
+        }
+        writeSelector.select(10);
+        writeSelector.selectedKeys().clear();
+    }
+
+    @Override
+    public int receive(ByteBuffer buffer) throws IOException {
+        if (eventLoop != null) {
+            throw new IllegalStateException("Transport is registered with event loop");
+        }
+        if (readSelector == null) {
+            readSelector = Selector.open();
+        }
+        while (! closed) {
+            DatagramChannel current = channel;
+            try {
+                if (current != registeredChannel) {
+                    // Registering the new channel implicitly stops receiving on the old one, as that one is closed.
+                    current.register(readSelector, SelectionKey.OP_READ);
+                    registeredChannel = current;
+                }
+                int read = current.read(buffer);
+                if (read > 0) {
+                    return read;
+                }
+            }
+            catch (PortUnreachableException unreachable) {
+                // Result of an ICMP message being reported on the connected channel. As the peer might still become
+                // reachable (or the ICMP message might be forged), just ignore it, just like an unconnected socket would.
+                log.debug("Ignoring port unreachable error on receive");
+                continue;
+            }
+            catch (ClosedChannelException closedChannel) {
+                if (current == channel && ! closed) {
+                    throw closedChannel;
+                }
+                // Otherwise, either the local address is changed or the transport is closed; both are checked in loop
+                continue;
+            }
+            catch (ClosedSelectorException selectorClosed) {
+                // Transport is closed
+                continue;
+            }
+            try {
+                readSelector.select();
+                readSelector.selectedKeys().clear();
+            }
+            catch (ClosedSelectorException selectorClosed) {
+                // Transport closed while waiting
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int tryReceive(ByteBuffer buffer) throws IOException {
+        while (! closed) {
+            DatagramChannel current = channel;
+            try {
+                return current.read(buffer);
+            }
+            catch (PortUnreachableException unreachable) {
+                // Ignore, see receive()
+                log.debug("Ignoring port unreachable error on receive");
+            }
+            catch (ClosedChannelException closedChannel) {
+                if (current == channel && ! closed) {
+                    throw closedChannel;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void register(EventLoop eventLoop, Runnable readHandler) {
+        this.readHandler = readHandler;
+        this.eventLoop = eventLoop;
+        eventLoop.registerForRead(channel, readHandler);
+    }
+
+    @Override
+    public void changeLocalAddress() throws IOException {
+        DatagramChannel oldChannel = channel;
+        DatagramChannel newChannel = openChannel();
+        channel = newChannel;
+        if (eventLoop != null) {
+            eventLoop.registerForRead(newChannel, readHandler);
+            synchronized (pendingDatagrams) {
+                if (!pendingDatagrams.isEmpty()) {
+                    // The registration for write ends with closing the old channel.
+                    eventLoop.registerForWrite(newChannel, this::sendPendingDatagrams);
+                }
+            }
+        }
+        else if (readSelector != null) {
+            // Wake up receiving thread, so it will start receiving on the new channel.
+            readSelector.wakeup();
+        }
+        oldChannel.close();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+            if (readSelector != null) {
+                readSelector.close();
+            }
+            if (writeSelector != null) {
+                writeSelector.close();
+            }
+        } catch (IOException e) {
+            // Ignore, closing anyway
+        }
+    }
+}
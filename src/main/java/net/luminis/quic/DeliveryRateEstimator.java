@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Estimates the delivery rate of a connection, following
+ * https://tools.ietf.org/html/draft-cheng-iccrg-delivery-rate-estimation-00
+ * Only in-flight packets should be registered with the estimator.
+ */
+public class DeliveryRateEstimator {
+
+    // Length of the window (in round trips) over which the max delivery rate is taken as bandwidth estimate.
+    private static final int BANDWIDTH_FILTER_LENGTH = 10;
+
+    private long delivered;
+    private Instant deliveredTime;
+    private Instant firstSentTime;
+    // https://tools.ietf.org/html/draft-cheng-iccrg-delivery-rate-estimation-00#section-3.1
+    // "C.app_limited: The index of the last transmitted packet marked as application-limited, or 0 if the connection
+    //  is not currently application-limited."
+    // As this implementation counts bytes, this is the number of bytes delivered at which the app-limited period ends.
+    private long appLimited;
+    private final WindowedMaxFilter bandwidthFilter = new WindowedMaxFilter(BANDWIDTH_FILTER_LENGTH);
+    private long roundCount;
+    private long nextRoundDelivered;
+
+    /**
+     * Registers a sent packet.
+     * @param bytesInFlight  the bytes in flight, before this packet was sent
+     * @return  the connection delivery state at the time the packet was sent, which must be passed to packetsAcked
+     * when the packet is acknowledged.
+     */
+    public synchronized SendState packetSent(Instant timeSent, int size, long bytesInFlight) {
+        // https://tools.ietf.org/html/draft-cheng-iccrg-delivery-rate-estimation-00#section-3.2
+        // "If there are no packets in flight yet, then we can start the delivery rate interval at the current time,
+        //  since we know that any ACKs after now indicate that the network was able to deliver those packets
+        //  completely in the sampling interval between now and the next ACK."
+        if (bytesInFlight == 0 || deliveredTime == null) {
+            firstSentTime = timeSent;
+            deliveredTime = timeSent;
+        }
+        return new SendState(timeSent, size, delivered, deliveredTime, firstSentTime, appLimited != 0);
+    }
+
+    /**
+     * Registers that the application has nothing more to send, while the congestion controller would allow sending
+     * more. Packets sent from now on are marked as application-limited, until the data in flight has been delivered.
+     * @param bytesInFlight  the bytes currently in flight
+     */
+    public synchronized void setAppLimited(long bytesInFlight) {
+        // https://tools.ietf.org/html/draft-cheng-iccrg-delivery-rate-estimation-00#section-3.4
+        // "C.app_limited = (C.delivered + packets_in_flight) ? : 1"
+        appLimited = Long.max(delivered + bytesInFlight, 1);
+    }
+
+    public synchronized boolean isAppLimited() {
+        return appLimited != 0;
+    }
+
+    /**
+     * Registers the packets acknowledged by one ack.
+     * @return  the rate sample for this ack, or null if no valid sample could be taken.
+     */
+    public synchronized RateSample packetsAcked(List<SendState> ackedPackets, Instant ackTime) {
+        SendState sampled = null;
+        for (SendState packet: ackedPackets) {
+            delivered += packet.size;
+            deliveredTime = ackTime;
+            // https://tools.ietf.org/html/draft-cheng-iccrg-delivery-rate-estimation-00#section-3.3
+            // "Update info using the newest packet"
+            if (sampled == null || packet.delivered > sampled.delivered
+                    || (packet.delivered == sampled.delivered && packet.timeSent.isAfter(sampled.timeSent))) {
+                sampled = packet;
+                firstSentTime = packet.timeSent;
+            }
+        }
+        if (sampled == null) {
+            return null;
+        }
+        // "if (C.app_limited and C.delivered > C.app_limited)
+        //      C.app_limited = 0"
+        if (appLimited != 0 && delivered > appLimited) {
+            appLimited = 0;
+        }
+
+        // https://tools.ietf.org/html/draft-cheng-iccrg-delivery-rate-estimation-00#section-3.3
+        // "Use the longer of the send_elapsed and ack_elapsed"
+        Duration sendElapsed = Duration.between(sampled.firstSentTime, sampled.timeSent);
+        Duration ackElapsed = Duration.between(sampled.deliveredTime, ackTime);
+        Duration interval = sendElapsed.compareTo(ackElapsed) > 0? sendElapsed: ackElapsed;
+        if (interval.isZero() || interval.isNegative()) {
+            return null;
+        }
+        RateSample rateSample = new RateSample(delivered, sampled.delivered, interval, Duration.between(sampled.timeSent, ackTime), sampled.appLimited);
+        updateBandwidthEstimate(rateSample);
+        return rateSample;
+    }
+
+    private void updateBandwidthEstimate(RateSample rateSample) {
+        if (rateSample.getPriorDelivered() >= nextRoundDelivered) {
+            nextRoundDelivered = rateSample.getDelivered();
+            roundCount++;
+        }
+        // App-limited samples underestimate the bandwidth, so only use them when they increase the estimate.
+        long deliveryRate = rateSample.getDeliveryRate();
+        if (deliveryRate >= bandwidthFilter.get() || !rateSample.isAppLimited()) {
+            bandwidthFilter.update(deliveryRate, roundCount);
+        }
+    }
+
+    /**
+     * @return  the estimated bandwidth in bytes per second, being the max delivery rate of the last 10 round trips, or
+     * 0 when no estimate is available yet.
+     */
+    public synchronized long getBandwidthEstimate() {
+        return bandwidthFilter.get();
+    }
+
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * The delivery state of the connection at the time a packet was sent.
+     */
+    public static class SendState {
+        private final Instant timeSent;
+        private final int size;
+        private final long delivered;
+        private final Instant deliveredTime;
+        private final Instant firstSentTime;
+        private final boolean appLimited;
+
+        private SendState(Instant timeSent, int size, long delivered, Instant deliveredTime, Instant firstSentTime, boolean appLimited) {
+            this.timeSent = timeSent;
+            this.size = size;
+            this.delivered = delivered;
+            this.deliveredTime = deliveredTime;
+            this.firstSentTime = firstSentTime;
+            this.appLimited = appLimited;
+        }
+
+        /**
+         * @return  whether the packet was sent while the connection was application limited
+         */
+        public boolean isAppLimited() {
+            return appLimited;
+        }
+    }
+}
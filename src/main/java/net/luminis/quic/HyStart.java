@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.packet.PacketInfo;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * HyStart++: exits slow start when the RTT increases, before the first loss, and continues with a conservative slow
+ * start to protect against exiting too early. See https://tools.ietf.org/html/draft-ietf-tcpm-hystartplusplus-04
+ * The RTT samples are taken from the RttEstimator; acks that did not produce a new RTT sample are not counted.
+ */
+public class HyStart {
+
+    public enum Phase {
+        SlowStart,
+        ConservativeSlowStart,
+        Finished
+    }
+
+    // https://tools.ietf.org/html/draft-ietf-tcpm-hystartplusplus-04#section-4.3
+    // "MIN_RTT_THRESH = 4 msec
+    //  MAX_RTT_THRESH = 16 msec
+    //  MIN_RTT_DIVISOR = 8
+    //  N_RTT_SAMPLE = 8
+    //  CSS_GROWTH_DIVISOR = 4
+    //  CSS_ROUNDS = 5
+    //  L = infinity if paced, L = 8 if non-paced"
+    private static final int MIN_RTT_THRESH = 4;
+    private static final int MAX_RTT_THRESH = 16;
+    private static final int MIN_RTT_DIVISOR = 8;
+    private static final int N_RTT_SAMPLE = 8;
+    private static final int CSS_GROWTH_DIVISOR = 4;
+    private static final int CSS_ROUNDS = 5;
+    private static final int L = 8;
+    private static final int MAX_DATAGRAM_SIZE = 1200;
+
+    private final RttEstimator rttEstimator;
+    private volatile boolean paced;
+    private volatile Phase phase = Phase.SlowStart;
+    private Phase phaseBeforeCongestionEvent;
+    private Instant roundStart;
+    private int lastRoundMinRtt = Integer.MAX_VALUE;
+    private int currentRoundMinRtt = Integer.MAX_VALUE;
+    private int rttSampleCount;
+    private long lastSampleCount;
+    private int cssBaselineMinRtt = Integer.MAX_VALUE;
+    private int cssRounds;
+
+    public HyStart(RttEstimator rttEstimator) {
+        this.rttEstimator = rttEstimator;
+    }
+
+    /**
+     * Processes an ack received in slow start and determines how much the congestion window may grow.
+     * @param ackedPackets  the (in-flight) packets acknowledged by the ack
+     * @param bytesAcked  the number of bytes acknowledged that count for window growth
+     * @param now  the current time
+     * @return  the number of bytes the congestion window may grow with
+     */
+    public synchronized long onAck(List<? extends PacketInfo> ackedPackets, long bytesAcked, Instant now) {
+        if (phase == Phase.Finished) {
+            return bytesAcked;
+        }
+
+        // https://tools.ietf.org/html/draft-ietf-tcpm-hystartplusplus-04#section-4.2
+        // "At the start of each round during standard slow start and CSS, initialize the variables used to compute the
+        //  last round's and current round's minimum RTT"
+        if (roundStart == null || ackedPackets.stream().anyMatch(p -> !p.timeSent().isBefore(roundStart))) {
+            startRound(now);
+        }
+
+        // "Keep track of the minimum observed RTT:
+        //  currentRoundMinRTT = min(currentRoundMinRTT, newRTT)
+        //  rttSampleCount += 1"
+        long sampleCount = rttEstimator.getSampleCount();
+        if (sampleCount != lastSampleCount) {
+            lastSampleCount = sampleCount;
+            currentRoundMinRtt = Integer.min(currentRoundMinRtt, rttEstimator.getLatestRtt());
+            rttSampleCount++;
+        }
+
+        long growthLimit = paced? Long.MAX_VALUE: L * MAX_DATAGRAM_SIZE;
+        long increase = Long.min(bytesAcked, growthLimit);
+        if (phase == Phase.SlowStart) {
+            // "For rounds where at least N_RTT_SAMPLE RTT samples have been obtained and currentRoundMinRTT and
+            //  lastRoundMinRTT are valid, check to see if delay increase triggers slow start exit"
+            if (rttSampleCount >= N_RTT_SAMPLE && currentRoundMinRtt != Integer.MAX_VALUE && lastRoundMinRtt != Integer.MAX_VALUE) {
+                int rttThresh = Integer.max(MIN_RTT_THRESH, Integer.min(lastRoundMinRtt / MIN_RTT_DIVISOR, MAX_RTT_THRESH));
+                if (currentRoundMinRtt >= lastRoundMinRtt + rttThresh) {
+                    cssBaselineMinRtt = currentRoundMinRtt;
+                    phase = Phase.ConservativeSlowStart;
+                    cssRounds = 0;
+                }
+            }
+            return increase;
+        }
+        else if (phase == Phase.ConservativeSlowStart) {
+            // "If the current round's minimum RTT drops below the baseline (cssBaselineMinRtt) as seen during slow
+            //  start exit, the flow resumes slow start."
+            if (rttSampleCount >= N_RTT_SAMPLE && currentRoundMinRtt < cssBaselineMinRtt) {
+                cssBaselineMinRtt = Integer.MAX_VALUE;
+                phase = Phase.SlowStart;
+                return increase;
+            }
+            // "cwnd = cwnd + (min(N, L * SMSS) / CSS_GROWTH_DIVISOR)"
+            return increase / CSS_GROWTH_DIVISOR;
+        }
+        else {
+            // Conservative slow start ended with the start of this round.
+            return 0;
+        }
+    }
+
+    private void startRound(Instant now) {
+        roundStart = now;
+        lastRoundMinRtt = currentRoundMinRtt;
+        currentRoundMinRtt = Integer.MAX_VALUE;
+        rttSampleCount = 0;
+        if (phase == Phase.ConservativeSlowStart) {
+            // "If CSS_ROUNDS rounds are complete, enter congestion avoidance by setting the ssthresh to the current cwnd."
+            cssRounds++;
+            if (cssRounds >= CSS_ROUNDS) {
+                phase = Phase.Finished;
+            }
+        }
+    }
+
+    /**
+     * Registers a congestion event (loss), which ends slow start.
+     */
+    public synchronized void onCongestionEvent() {
+        // https://tools.ietf.org/html/draft-ietf-tcpm-hystartplusplus-04#section-4.2
+        // "If loss or ECN-marking is observed anytime during standard slow start or CSS, enter congestion avoidance"
+        phaseBeforeCongestionEvent = phase;
+        phase = Phase.Finished;
+    }
+
+    /**
+     * Undoes the last congestion event, when its loss turned out to be spurious: slow start continues in the phase it
+     * was in before.
+     */
+    public synchronized void undoCongestionEvent() {
+        if (phaseBeforeCongestionEvent != null) {
+            phase = phaseBeforeCongestionEvent;
+            phaseBeforeCongestionEvent = null;
+        }
+    }
+
+    /**
+     * @return  whether slow start should be ended, i.e. whether ssthresh should be set to the current window.
+     */
+    public boolean slowStartFinished() {
+        return phase == Phase.Finished;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Sets whether sending is paced; when not, window growth per ack is limited to avoid bursts.
+     */
+    public void setPaced(boolean paced) {
+        this.paced = paced;
+    }
+}
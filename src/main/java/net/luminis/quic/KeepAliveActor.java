@@ -22,14 +22,13 @@ import net.luminis.quic.frame.Padding;
 import net.luminis.quic.frame.PingFrame;
 import net.luminis.quic.packet.QuicPacket;
 
+import net.luminis.quic.concurrent.HashedWheelTimer;
+
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Executor;
 
 
-import static java.time.temporal.ChronoUnit.SECONDS;
 import static net.luminis.quic.EncryptionLevel.App;
 
 
@@ -40,12 +39,25 @@ public class KeepAliveActor {
     private final int peerIdleTimeout;
     private final QuicConnectionImpl connection;
     private final Instant started;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final HashedWheelTimer.Timeout pingTimer;
     private final int pingInterval;
-    private volatile ScheduledFuture<?> scheduledTask;
+    private volatile boolean stopped;
 
+    /**
+     * @param keepAliveTime    time to keep the connection alive, in seconds
+     * @param peerIdleTimeout  idle timeout of the peer, in milliseconds
+     */
     public KeepAliveActor(Version quicVersion, int keepAliveTime, int peerIdleTimeout, QuicConnectionImpl connection) {
+        this(quicVersion, keepAliveTime, peerIdleTimeout, connection, HashedWheelTimer.shared(), null);
+    }
+
+    /**
+     * @param timer     (shared) timer to use for scheduling pings
+     * @param executor  executor to send pings with, or null to use the default of the timer
+     */
+    public KeepAliveActor(Version quicVersion, int keepAliveTime, int peerIdleTimeout, QuicConnectionImpl connection, HashedWheelTimer timer, Executor executor) {
         this.quicVersion = quicVersion;
+        pingTimer = timer.newTimeout(this::ping, executor);
         this.keepAliveTime = keepAliveTime;
         this.peerIdleTimeout = peerIdleTimeout;
         this.connection = connection;
@@ -56,6 +68,9 @@ public class KeepAliveActor {
     }
 
     private void ping() {
+        if (stopped) {
+            return;
+        }
         QuicPacket packet = connection.createPacket(App, new PingFrame(quicVersion));
         connection.send(packet, "ping");
 
@@ -63,18 +78,19 @@ public class KeepAliveActor {
     }
 
     public void notifyPacketSent() {
-        scheduledTask.cancel(false);
         scheduleNextPing();
     }
 
     private void scheduleNextPing() {
         Instant now = Instant.now();
-        if (Duration.between(started, now).compareTo(Duration.of(keepAliveTime - pingInterval, SECONDS)) < 0) {
-            scheduledTask = scheduler.schedule(() -> ping(), pingInterval, java.util.concurrent.TimeUnit.SECONDS);
+        if (!stopped && Duration.between(started, now).compareTo(Duration.ofSeconds(keepAliveTime).minusMillis(pingInterval)) < 0) {
+            // Re-arming replaces a ping that was scheduled before.
+            pingTimer.schedule(pingInterval);
         }
     }
 
     public void shutdown() {
-        scheduler.shutdown();
+        stopped = true;
+        pingTimer.cancel();
     }
 }
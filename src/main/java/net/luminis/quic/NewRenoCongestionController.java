@@ -22,9 +22,10 @@ import net.luminis.quic.log.Logger;
 import net.luminis.quic.packet.PacketInfo;
 import net.luminis.quic.packet.QuicPacket;
 
+import java.time.Clock;
 import java.time.Instant;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.stream.Collectors;
 
 // https://tools.ietf.org/html/draft-ietf-quic-recovery-23#section-6
 // "QUIC's congestion control is based on TCP NewReno [RFC6582]."
@@ -45,53 +46,140 @@ public class NewRenoCongestionController extends AbstractCongestionController im
 
     protected int kMaxDatagramSize = 1200;
 
+    protected final Clock clock;
     private long slowStartThreshold = Long.MAX_VALUE;
     private Instant congestionRecoveryStartTime;
+    // State before the last congestion event, to undo the window reduction when all losses of the event turn out to
+    // be spurious.
+    private boolean undoPossible;
+    private long priorCongestionWindow;
+    private long priorSlowStartThreshold;
+    private Instant priorRecoveryStartTime;
+    private int lostInRecovery;
 
     public NewRenoCongestionController(Logger logger) {
-        super(logger);
+        this(logger, null);
+    }
+
+    public NewRenoCongestionController(Logger logger, CongestionControlEventListener eventListener) {
+        this(logger, eventListener, Clock.systemUTC());
+    }
+
+    /**
+     * Creates a congestion controller that takes the time from the given clock, which makes it possible to run the
+     * controller in simulated time.
+     */
+    public NewRenoCongestionController(Logger logger, CongestionControlEventListener eventListener, Clock clock) {
+        super(logger, eventListener);
+        this.clock = clock;
         congestionRecoveryStartTime = Instant.MIN;
     }
 
     @Override
-    public synchronized void registerAcked(List<? extends PacketInfo> acknowlegdedPackets) {
+    public void registerAcked(List<? extends PacketInfo> acknowlegdedPackets) {
+        registerAcked(acknowlegdedPackets, null);
+    }
+
+    @Override
+    public synchronized void registerAcked(List<? extends PacketInfo> acknowlegdedPackets, RateSample rateSample) {
         super.registerAcked(acknowlegdedPackets);
 
         // https://tools.ietf.org/html/draft-ietf-quic-recovery-23#section-6.4
         // "QUIC defines the end of recovery as a packet sent after the start of recovery being acknowledged"
-        Stream<QuicPacket> notBeforeRecovery = acknowlegdedPackets.stream()
+        List<QuicPacket> notBeforeRecovery = acknowlegdedPackets.stream()
                 .filter(ackedPacket -> ackedPacket.timeSent().isAfter(congestionRecoveryStartTime))
-                .map(ackedPacket -> ackedPacket.packet());
+                .map(ackedPacket -> ackedPacket.packet())
+                .collect(Collectors.toList());
+        if (notBeforeRecovery.isEmpty()) {
+            return;
+        }
+        // https://tools.ietf.org/html/draft-ietf-quic-recovery-29#section-7.8
+        // "When bytes in flight is smaller than the congestion window and sending is not pacing limited, the congestion
+        //  window is under-utilized. (...) When this occurs, the congestion window SHOULD NOT be increased in either
+        //  slow start or congestion avoidance."
+        if (rateSample != null && rateSample.isAppLimited()) {
+            log.cc("Cwnd not increased, because sending is application limited");
+            return;
+        }
 
         long previousCwnd = congestionWindow;
-        notBeforeRecovery.forEach(p -> {
-            if (congestionWindow < slowStartThreshold) {
-                // i.e. mode is slow start
-                congestionWindow += p.getSize();
-            } else {
-                // i.e. mode is congestion avoidance
-                congestionWindow += kMaxDatagramSize * p.getSize() / congestionWindow;
+        if (congestionWindow < slowStartThreshold) {
+            // i.e. mode is slow start
+            long bytesAcked = notBeforeRecovery.stream().mapToInt(p -> p.getSize()).sum();
+            HyStart hyStart = this.hyStart;
+            if (hyStart != null) {
+                congestionWindow += hyStart.onAck(acknowlegdedPackets, bytesAcked, clock.instant());
+                if (hyStart.slowStartFinished()) {
+                    slowStartThreshold = congestionWindow;
+                    log.cc("HyStart++ ends slow start at cwnd " + congestionWindow);
+                }
             }
-        });
+            else {
+                congestionWindow += bytesAcked;
+            }
+        }
+        else {
+            // i.e. mode is congestion avoidance
+            notBeforeRecovery.forEach(p -> increaseInCongestionAvoidance(p.getSize()));
+        }
         if (congestionWindow != previousCwnd) {
             log.cc("Cwnd(+): " + congestionWindow + " (" + getMode() + "); inflight: " + bytesInFlight);
         }
     }
 
     @Override
-    public void registerLost(List<? extends PacketInfo> lostPackets) {
+    public synchronized void registerLost(List<? extends PacketInfo> lostPackets) {
         super.registerLost(lostPackets);
 
         if (! lostPackets.isEmpty()) {
             PacketInfo largest = lostPackets.stream().max((p1, p2) -> p1.packet().getPacketNumber().compareTo(p2.packet().getPacketNumber())).get();
             fireCongestionEvent(largest.timeSent());
+            lostInRecovery += lostPackets.stream().filter(p -> sentInLastRecoveryPeriod(p.timeSent())).count();
         }
     }
 
+    @Override
+    public synchronized void registerSpuriousLoss(List<? extends PacketInfo> spuriouslyLostPackets) {
+        // Undo the window reduction when all packets lost in the last congestion event turn out to be delivered after
+        // all, like the TCP Eifel response (https://tools.ietf.org/html/rfc4015) restores the congestion state.
+        long count = spuriouslyLostPackets.stream().filter(p -> sentInLastRecoveryPeriod(p.timeSent())).count();
+        if (undoPossible && count > 0) {
+            lostInRecovery -= count;
+            if (lostInRecovery <= 0) {
+                undoCongestionEvent();
+            }
+        }
+    }
+
+    private boolean sentInLastRecoveryPeriod(Instant timeSent) {
+        return undoPossible && timeSent.isAfter(priorRecoveryStartTime) && !timeSent.isAfter(congestionRecoveryStartTime);
+    }
+
+    private void undoCongestionEvent() {
+        undoPossible = false;
+        congestionWindow = Long.max(congestionWindow, priorCongestionWindow);
+        slowStartThreshold = Long.max(slowStartThreshold, priorSlowStartThreshold);
+        congestionRecoveryStartTime = priorRecoveryStartTime;
+        if (hyStart != null) {
+            // Otherwise, slow start would continue without HyStart++ to end it.
+            hyStart.undoCongestionEvent();
+        }
+        undoReduceWindow();
+        log.cc("Cwnd(+): " + congestionWindow + " (undo of congestion event caused by spurious loss); inflight: " + bytesInFlight);
+    }
+
     private void fireCongestionEvent(Instant timeSent) {
         if (timeSent.isAfter(congestionRecoveryStartTime)) {
-            congestionRecoveryStartTime = Instant.now();
-            congestionWindow /= kLossReductionFactor;
+            undoPossible = true;
+            priorCongestionWindow = congestionWindow;
+            priorSlowStartThreshold = slowStartThreshold;
+            priorRecoveryStartTime = congestionRecoveryStartTime;
+            lostInRecovery = 0;
+            congestionRecoveryStartTime = clock.instant();
+            if (hyStart != null) {
+                hyStart.onCongestionEvent();
+            }
+            congestionWindow = reduceWindow();
             if (congestionWindow < kMinimumWindow) {
                 congestionWindow = kMinimumWindow;
             }
@@ -100,6 +188,26 @@ public class NewRenoCongestionController extends AbstractCongestionController im
         }
     }
 
+    /**
+     * Increases the congestion window for the given number of acknowledged bytes when in congestion avoidance.
+     */
+    protected void increaseInCongestionAvoidance(int bytesAcked) {
+        congestionWindow += kMaxDatagramSize * bytesAcked / congestionWindow;
+    }
+
+    /**
+     * Computes the congestion window that should be used after a congestion event.
+     */
+    protected long reduceWindow() {
+        return congestionWindow / kLossReductionFactor;
+    }
+
+    /**
+     * Restores the state that was changed by reduceWindow, when a congestion event is undone.
+     */
+    protected void undoReduceWindow() {
+    }
+
     public Mode getMode() {
         if (congestionWindow < slowStartThreshold) {
             return Mode.SlowStart;
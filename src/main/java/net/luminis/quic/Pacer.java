@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Spreads the packets allowed by the congestion controller over the RTT, to avoid sending a full congestion window in
+ * one burst. The pacer is a token bucket that fills at the pacing rate and that holds at most the burst size, or, when
+ * the rate is so high that more than a burst is paced out within the resolution of the timer that wakes up the sender,
+ * what is paced out in two timer ticks (one tick for rounding the wait up, one for the timer expiring late). Otherwise,
+ * the timer resolution would cap the sending rate at one burst per tick.
+ * The pacing rate is the rate set by the congestion controller, or, if the congestion controller does not set one,
+ * derived from the congestion window and the smoothed RTT.
+ */
+public class Pacer {
+
+    // https://tools.ietf.org/html/draft-ietf-quic-recovery-29#section-7.7
+    // "interval = smoothed_rtt * packet_size / congestion_window / N
+    //  Using a value for "N" that is small, but at least 1 (for example, 1.25) ensures that variations in round-trip
+    //  time do not result in under-utilization of the congestion window."
+    private static final double N = 1.25;
+
+    // https://tools.ietf.org/html/draft-ietf-quic-recovery-29#section-7.7
+    // "Senders SHOULD limit bursts to the initial congestion window"
+    public static final int DEFAULT_BURST_SIZE = 10 * 1200;
+
+    private final CongestionController congestionController;
+    private final RttEstimator rttEstimator;
+    private final int burstSize;
+    private final long timerResolution;
+    private final Clock clock;
+    private double tokens;
+    private Instant lastUpdate;
+
+    public Pacer(CongestionController congestionController, RttEstimator rttEstimator, int burstSize) {
+        this(congestionController, rttEstimator, burstSize, 0, Clock.systemUTC());
+    }
+
+    /**
+     * @param timerResolution  resolution (in nanoseconds) of the timer used to wait until a packet may be sent
+     */
+    public Pacer(CongestionController congestionController, RttEstimator rttEstimator, int burstSize, long timerResolution) {
+        this(congestionController, rttEstimator, burstSize, timerResolution, Clock.systemUTC());
+    }
+
+    public Pacer(CongestionController congestionController, RttEstimator rttEstimator, int burstSize, Clock clock) {
+        this(congestionController, rttEstimator, burstSize, 0, clock);
+    }
+
+    public Pacer(CongestionController congestionController, RttEstimator rttEstimator, int burstSize, long timerResolution, Clock clock) {
+        if (burstSize < 1) {
+            throw new IllegalArgumentException("Burst size must be positive");
+        }
+        if (timerResolution < 0) {
+            throw new IllegalArgumentException("Timer resolution must not be negative");
+        }
+        this.congestionController = congestionController;
+        this.rttEstimator = rttEstimator;
+        this.burstSize = burstSize;
+        this.timerResolution = timerResolution;
+        this.clock = clock;
+        tokens = burstSize;
+        lastUpdate = clock.instant();
+    }
+
+    /**
+     * Determines how long the sender must wait before a packet of the given size may be sent.
+     * @return  the time to wait in nanoseconds, 0 when the packet can be sent immediately
+     */
+    public synchronized long timeUntilSend(int bytes) {
+        long rate = getRate();
+        refill(rate);
+        double needed = Double.min(bytes, capacity(rate)) - tokens;
+        if (needed <= 0) {
+            return 0;
+        }
+        return Long.max((long) (needed * 1_000_000_000L / rate), 1);
+    }
+
+    /**
+     * Registers that a packet of the given size was sent; the packet size is subtracted from the tokens, even when
+     * this makes the number of tokens negative (e.g. because a probe was sent).
+     */
+    public synchronized void packetSent(int bytes) {
+        refill(getRate());
+        tokens -= bytes;
+    }
+
+    /**
+     * @return  the current pacing rate in bytes per second
+     */
+    public long getRate() {
+        long rate = congestionController.getPacingRate();
+        if (rate > 0) {
+            return rate;
+        }
+        int smoothedRtt = Integer.max(rttEstimator.getSmoothedRtt(), 1);
+        return Long.max((long) (N * congestionController.getWindowSize() * 1000 / smoothedRtt), 1);
+    }
+
+    public int getBurstSize() {
+        return burstSize;
+    }
+
+    private void refill(long rate) {
+        Instant now = clock.instant();
+        long elapsed = Duration.between(lastUpdate, now).toNanos();
+        if (elapsed > 0) {
+            tokens = Double.min(tokens + (double) rate * elapsed / 1_000_000_000L, capacity(rate));
+            lastUpdate = now;
+        }
+    }
+
+    /**
+     * @return  the maximum number of tokens in the bucket at the given rate
+     */
+    private double capacity(long rate) {
+        return Double.max(burstSize, (double) rate * 2 * timerResolution / 1_000_000_000L);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.frame.QuicFrame;
+import net.luminis.quic.packet.QuicPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+
+/**
+ * Assembles a packet from the frames waiting in the send request queues, adding as many frames as fit in a packet of
+ * the given maximum size. Frames from the control queue (i.e. frames that should not be delayed, like flow control
+ * updates) take precedence over frames from the (data) request queue.
+ */
+public class PacketAssembler {
+
+    private final SendRequestQueue controlQueue;
+    private final SendRequestQueue requestQueue;
+    private final Consumer<SendRequest> controlFrameListener;
+
+    public PacketAssembler(SendRequestQueue requestQueue) {
+        this(new SendRequestQueue(), requestQueue, request -> {});
+    }
+
+    /**
+     * @param controlQueue  queue with frames that must be sent first
+     * @param requestQueue  queue with other frames
+     * @param controlFrameListener  called for each control frame that is added to a packet
+     */
+    public PacketAssembler(SendRequestQueue controlQueue, SendRequestQueue requestQueue, Consumer<SendRequest> controlFrameListener) {
+        this.controlQueue = controlQueue;
+        this.requestQueue = requestQueue;
+        this.controlFrameListener = controlFrameListener;
+    }
+
+    /**
+     * Adds queued frames to the given packet, until the packet is full or no more frames are waiting. The first queued
+     * frame is always added, even if it is larger than the maximum packet size would allow, to guarantee progress.
+     * @param packet  the packet to add frames to; may already contain (e.g. ack) frames
+     * @param maxPacketSize  the maximum size of the (encrypted) packet
+     * @return  the callback that must be called when the packet is lost
+     */
+    public Consumer<QuicPacket> assemble(QuicPacket packet, int maxPacketSize) {
+        return assemble(packet, maxPacketSize, true);
+    }
+
+    /**
+     * Adds queued frames to the given packet, as far as they fit in a packet of the given maximum size. Used for
+     * packets that already have content, like probes.
+     * @param packet  the packet to add frames to
+     * @param maxPacketSize  the maximum size of the (encrypted) packet
+     * @return  the callback that must be called when the packet is lost
+     */
+    public Consumer<QuicPacket> fill(QuicPacket packet, int maxPacketSize) {
+        return assemble(packet, maxPacketSize, false);
+    }
+
+    private Consumer<QuicPacket> assemble(QuicPacket packet, int maxPacketSize, boolean mustAddFrame) {
+        List<SendRequest> requests = new ArrayList<>();
+        int packetSize = packet.estimateLength();
+
+        Optional<SendRequest> next;
+        while ((next = controlQueue.next(requests.isEmpty() && mustAddFrame? Integer.MAX_VALUE: maxPacketSize - packetSize)).isPresent()) {
+            packet.addFrame(next.get().getFrame());
+            packetSize += next.get().getEstimatedSize();
+            requests.add(next.get());
+            controlFrameListener.accept(next.get());
+        }
+        while ((next = requestQueue.next(requests.isEmpty() && mustAddFrame? Integer.MAX_VALUE: maxPacketSize - packetSize)).isPresent()) {
+            packet.addFrame(next.get().getFrame());
+            packetSize += next.get().getEstimatedSize();
+            requests.add(next.get());
+        }
+
+        return lostPacket -> requests.forEach(request -> request.getLostCallback().accept(request.getFrame()));
+    }
+
+    public boolean hasFramesToSend() {
+        return controlQueue.hasRequests() || requestQueue.hasRequests();
+    }
+
+    public boolean hasControlFramesToSend() {
+        return controlQueue.hasRequests();
+    }
+
+    /**
+     * Returns the size of the frame that will be added first when the next packet is assembled.
+     * @return
+     */
+    public int nextFrameSize() {
+        return controlQueue.hasRequests()? controlQueue.peekSize(): requestQueue.peekSize();
+    }
+}
@@ -21,6 +21,8 @@ package net.luminis.quic;
 import net.luminis.quic.cid.ConnectionIdInfo;
 import net.luminis.quic.cid.DestinationConnectionIdRegistry;
 import net.luminis.quic.cid.SourceConnectionIdRegistry;
+import net.luminis.quic.concurrent.EventLoop;
+import net.luminis.quic.concurrent.HashedWheelTimer;
 import net.luminis.quic.frame.*;
 import net.luminis.quic.log.Logger;
 import net.luminis.quic.packet.*;
@@ -74,7 +76,14 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
     private final int port;
     private final QuicSessionTicket sessionTicket;
     private final TlsState tlsState;
-    private final DatagramSocket socket;
+    private final Transport transport;
+    private final QuicRuntime runtime;
+    private final HashedWheelTimer timer;
+    private final EventLoop eventLoop;
+    private final HashedWheelTimer.Timeout idleTimer;
+    private volatile long idleTimeout;
+    // Only accessed by the thread (or event loop) processing received datagrams.
+    private int receivedPacketCounter;
     private final InetAddress serverAddress;
     private final Sender sender;
     private final Receiver receiver;
@@ -106,7 +115,7 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
     private List<QuicFrame> queuedZeroRttFrames = new ArrayList<>();
 
 
-    private QuicConnectionImpl(String host, int port, QuicSessionTicket sessionTicket, Version quicVersion, Logger log, String proxyHost, Path secretsFile, Integer initialRtt, Integer cidLength) throws UnknownHostException, SocketException {
+    private QuicConnectionImpl(String host, int port, QuicSessionTicket sessionTicket, Version quicVersion, Logger log, String proxyHost, Path secretsFile, Integer initialRtt, Integer cidLength, QuicRuntime runtime, CongestionControlAlgorithm congestionControlAlgorithm, Boolean pacing, Integer pacingBurstSize, StreamScheduler.Policy streamSchedulingPolicy) throws UnknownHostException, SocketException {
         log.info("Creating connection with " + host + ":" + port + " with " + quicVersion);
         this.host = host;
         this.port = port;
@@ -115,9 +124,25 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         this.quicVersion = quicVersion;
         this.log = log;
 
-        socket = new DatagramSocket();
-        sender = new Sender(socket, 1500, log, serverAddress, port, this, initialRtt);
-        receiver = new Receiver(this, socket, 1500, log);
+        this.runtime = runtime;
+        transport = new DatagramChannelTransport(new InetSocketAddress(serverAddress, port), log);
+        if (runtime != null) {
+            timer = runtime.getTimer();
+            eventLoop = runtime.nextEventLoop();
+            sender = new Sender(transport, 1500, log, this, initialRtt, eventLoop, timer, congestionControlAlgorithm);
+            receiver = new Receiver(this, transport, 1500, log, eventLoop, this::processDatagram);
+        }
+        else {
+            timer = HashedWheelTimer.shared();
+            eventLoop = null;
+            sender = new Sender(transport, 1500, log, this, initialRtt, null, null, congestionControlAlgorithm);
+            receiver = new Receiver(this, transport, 1500, log);
+        }
+        if (pacing != null || pacingBurstSize != null) {
+            sender.setPacing(pacing != null? pacing: sender.isPacing(), pacingBurstSize != null? pacingBurstSize: Pacer.DEFAULT_BURST_SIZE);
+        }
+        sender.getStreamScheduler().setPolicy(streamSchedulingPolicy);
+        idleTimer = timer.newTimeout(this::idleTimeoutExpired, eventLoop);
         streamManager = new StreamManager(this, log);
         tlsState = sessionTicket == null? new QuicTlsState(quicVersion): new QuicTlsState(quicVersion, sessionTicket);
         connectionSecrets = new ConnectionSecrets(quicVersion, secretsFile, log);
@@ -174,7 +199,9 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
 
         receiver.start();
         sender.start(connectionSecrets);
-        startReceiverLoop();
+        if (runtime == null) {
+            startReceiverLoop();
+        }
 
         startHandshake(applicationProtocol, !earlyData.isEmpty());
 
@@ -242,7 +269,7 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
             throw new IllegalStateException("keep alive can only be set when connected");
         }
 
-        keepAliveActor = new KeepAliveActor(quicVersion, seconds, (int) peerTransportParams.getMaxIdleTimeout(), this);
+        keepAliveActor = new KeepAliveActor(quicVersion, seconds, (int) peerTransportParams.getMaxIdleTimeout(), this, timer, eventLoop);
     }
 
     public void ping() {
@@ -263,17 +290,12 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
 
     private void receiveAndProcessPackets() {
         Thread currentThread = Thread.currentThread();
-        int receivedPacketCounter = 0;
 
         try {
             while (! currentThread.isInterrupted()) {
                 RawPacket rawPacket = receiver.get(15);
                 if (rawPacket != null) {
-                    Duration processDelay = Duration.between(rawPacket.getTimeReceived(), Instant.now());
-                    log.raw("Start processing packet " + ++receivedPacketCounter + " (" + rawPacket.getLength() + " bytes)", rawPacket.getData(), 0, rawPacket.getLength());
-                    log.debug("Processing delay for packet #" + receivedPacketCounter + ": " + processDelay.toMillis() + " ms");
-
-                    parsePackets(receivedPacketCounter, rawPacket.getTimeReceived(), rawPacket.getData());
+                    processDatagram(rawPacket);
                 }
             }
         }
@@ -286,6 +308,47 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         }
     }
 
+    private void processDatagram(RawPacket rawPacket) {
+        Duration processDelay = Duration.between(rawPacket.getTimeReceived(), Instant.now());
+        log.raw("Start processing packet " + ++receivedPacketCounter + " (" + rawPacket.getLength() + " bytes)", rawPacket.getData(), 0, rawPacket.getLength());
+        log.debug("Processing delay for packet #" + receivedPacketCounter + ": " + processDelay.toMillis() + " ms");
+
+        boolean processed;
+        try {
+            processed = parsePackets(receivedPacketCounter, rawPacket.getTimeReceived(), rawPacket.getData());
+        }
+        finally {
+            // Parsing copies all data that must be retained, so the buffer can be reused.
+            receiver.release(rawPacket);
+        }
+        if (processed) {
+            restartIdleTimer();
+        }
+    }
+
+    private void restartIdleTimer() {
+        // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-10.2
+        // "An endpoint restarts its idle timer when a packet from its peer is received and processed successfully."
+        // "To avoid excessively small idle timeout periods, endpoints MUST increase the idle timeout period to be at
+        //  least three times the current Probe Timeout (PTO)."
+        long timeout = idleTimeout;
+        if (timeout > 0) {
+            idleTimer.schedule(Math.max(timeout, 3 * sender.getPto()));
+        }
+    }
+
+    private void idleTimeoutExpired() {
+        if (connectionState == Status.Closing || connectionState == Status.Draining) {
+            return;
+        }
+        // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-10.2
+        // "If the idle timeout is enabled by either peer, a connection is silently closed and its state is discarded
+        //  when it remains idle for longer than the minimum of the max_idle_timeouts (see Section 18.2) and three
+        //  times the current Probe Timeout (PTO)."
+        log.info("Idle timeout expired: closing connection silently");
+        abortConnection(null);
+    }
+
     private void generateInitialKeys() {
         connectionSecrets.computeInitialKeys(destConnectionIds.getCurrent());
     }
@@ -295,9 +358,8 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         tlsState.clientHelloSend(privateKey, clientHello);
         connectionSecrets.computeEarlySecrets(tlsState);
 
+        // No need to pad the initial packet to 1200 bytes here: the sender pads all datagrams containing an initial packet.
         InitialPacket clientHelloPacket = (InitialPacket) createPacket(EncryptionLevel.Initial, new CryptoFrame(quicVersion, clientHello));
-        // Initial packet should at least be 1200 bytes (https://tools.ietf.org/html/draft-ietf-quic-transport-18#section-14)
-        clientHelloPacket.ensureSize(1200);
 
         connectionState = Status.Handshaking;
         sender.send(clientHelloPacket, "client hello", p -> {});
@@ -369,10 +431,15 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         return packet;
     }
 
-    void parsePackets(int datagram, Instant timeReceived, ByteBuffer data) {
+    /**
+     * Parses and processes all packets in the given datagram.
+     * @return  whether at least one packet was processed successfully
+     */
+    boolean parsePackets(int datagram, Instant timeReceived, ByteBuffer data) {
         int packetStart = data.position();
         int packetSize = 0;
         EncryptionLevel highestEncryptionLevelInPacket = null;
+        boolean processed = false;
 
         QuicPacket packet;
         try {
@@ -385,6 +452,7 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
             log.received(timeReceived, datagram, packet);
             log.debug("Parsed packet with size " + (data.position() - packetStart) + "; " + data.remaining() + " bytes left.");
             processPacket(timeReceived, packet);
+            processed = true;
         }
         catch (DecryptionException | MissingKeysException cannotParse) {
             packetSize = data.position() - packetStart;
@@ -399,13 +467,14 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         }
 
         if (packetSize > 0 && data.position() < data.limit()) {  
-            parsePackets(datagram, timeReceived, data.slice());
+            processed |= parsePackets(datagram, timeReceived, data.slice());
         }
         else {
             // Processed all packets in the datagram. Select the "highest" level for ack.
             if (highestEncryptionLevelInPacket != null)
                 sender.packetProcessed(highestEncryptionLevelInPacket);
         }
+        return processed;
     }
 
     QuicPacket parsePacket(ByteBuffer data) throws MissingKeysException, DecryptionException, InvalidPacketException {
@@ -515,7 +584,7 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         // "A packet MUST NOT be acknowledged until packet protection has been
         //   successfully removed and all frames contained in the packet have been
         //   processed."
-        sender.processPacketReceived(packet);
+        sender.processPacketReceived(packet, timeReceived);
         packet.accept(this, timeReceived);
     }
 
@@ -778,14 +847,36 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
     }
 
     private void terminate() {
+        idleTimer.cancel();
+        if (keepAliveActor != null) {
+            keepAliveActor.shutdown();
+        }
         sender.shutdown();
         receiver.shutdown();
-        socket.close();
+        transport.close();
     }
 
     public void send(QuicFrame frame, Consumer<QuicFrame> lostFrameCallback) {
-        QuicPacket packet = createPacket(App, frame);
-        sender.send(packet, "application data", p -> lostFrameCallback.accept(p.getFrames().get(0)));
+        sender.send(frame, App, lostFrameCallback);
+    }
+
+    /**
+     * Sets the scheduling priority of the given stream; see StreamScheduler for how the parameters are used.
+     * @param streamId
+     * @param urgency
+     * @param incremental
+     * @param weight
+     */
+    public void setStreamPriority(int streamId, int urgency, boolean incremental, int weight) {
+        sender.getStreamScheduler().setPriority(streamId, urgency, incremental, weight);
+    }
+
+    /**
+     * Releases the priority of a stream that finished sending.
+     * @param streamId
+     */
+    public void removeStreamPriority(int streamId) {
+        sender.getStreamScheduler().removeStream(streamId);
     }
 
     void send(QuicPacket packet, String logMessage) {
@@ -837,12 +928,10 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
 
     public void changeAddress() {
         try {
-            DatagramSocket newSocket = new DatagramSocket();
-            sender.changeAddress(newSocket);
-            receiver.changeAddress(newSocket);
-            log.info("Changed local address to " + newSocket.getLocalPort());
-        } catch (SocketException e) {
-            // Fairly impossible, as we created a socket on an ephemeral port
+            transport.changeLocalAddress();
+            log.info("Changed local address to " + transport.getLocalAddress().getPort());
+        } catch (IOException e) {
+            // Fairly impossible, as the new channel is bound to an ephemeral port
             log.error("Changing local address failed", e);
         }
     }
@@ -870,6 +959,16 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         ;
     }
 
+    /**
+     * Creates a (not yet scheduled) timeout on the connection's timer, whose task is executed on the connection's
+     * event loop (when the connection runs on one).
+     * @param task
+     * @return
+     */
+    public HashedWheelTimer.Timeout newTimeout(Runnable task) {
+        return timer.newTimeout(task, eventLoop);
+    }
+
     public TransportParameters getTransportParameters() {
         return transportParams;
     }
@@ -899,6 +998,8 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         streamManager.setInitialMaxStreamsUni(peerTransportParams.getInitialMaxStreamsUni());
 
         sender.setReceiverMaxAckDelay(peerTransportParams.getMaxAckDelay());
+        idleTimeout = effectiveIdleTimeout(transportParams.getMaxIdleTimeout(), peerTransportParams.getMaxIdleTimeout());
+        restartIdleTimer();
         sourceConnectionIds.setActiveLimit(peerTransportParams.getActiveConnectionIdLimit());
 
         if (processedRetryPacket) {
@@ -914,6 +1015,17 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         }
     }
 
+    static long effectiveIdleTimeout(long localIdleTimeout, long peerIdleTimeout) {
+        // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-18.2
+        // "Idle timeout is disabled when both endpoints omit this transport parameter or specify a value of 0."
+        if (localIdleTimeout == 0 || peerIdleTimeout == 0) {
+            return Math.max(localIdleTimeout, peerIdleTimeout);
+        }
+        else {
+            return Math.min(localIdleTimeout, peerIdleTimeout);
+        }
+    }
+
     void signalConnectionError(QuicConstants.TransportErrorCode transportError) {
         log.info("ConnectionError " + transportError);
         // TODO: close connection with a frame type of 0x1c
@@ -1124,6 +1236,41 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         Builder connectionIdLength(int length);
 
         Builder initialRtt(int initialRtt);
+
+        /**
+         * Lets the connection use the (shared) threads of the given runtime, instead of threads of its own.
+         * @param runtime
+         * @return
+         */
+        Builder runtime(QuicRuntime runtime);
+
+        /**
+         * Sets the congestion control algorithm to use; default is NewReno.
+         * @param algorithm
+         * @return
+         */
+        Builder congestionControl(CongestionControlAlgorithm algorithm);
+
+        /**
+         * Enables or disables pacing; by default, pacing is enabled for all congestion control algorithms except NewReno.
+         * @param enabled
+         * @return
+         */
+        Builder pacing(boolean enabled);
+
+        /**
+         * Sets the number of bytes the pacer allows to be sent in one burst; default is the initial congestion window.
+         * @param bytes
+         * @return
+         */
+        Builder pacingBurstSize(int bytes);
+
+        /**
+         * Sets the policy that determines which stream's data is sent first; default is round robin.
+         * @param policy
+         * @return
+         */
+        Builder streamScheduling(StreamScheduler.Policy policy);
     }
 
     private static class BuilderImpl implements Builder {
@@ -1136,6 +1283,11 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
         private Path secretsFile;
         private Integer initialRtt;
         private Integer connectionIdLength;
+        private QuicRuntime runtime;
+        private CongestionControlAlgorithm congestionControlAlgorithm = CongestionControlAlgorithm.NewReno;
+        private Boolean pacing;
+        private Integer pacingBurstSize;
+        private StreamScheduler.Policy streamSchedulingPolicy = StreamScheduler.Policy.RoundRobin;
 
         @Override
         public QuicConnectionImpl build() throws SocketException, UnknownHostException {
@@ -1148,7 +1300,7 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
             if (initialRtt != null && initialRtt < 1) {
                 throw new IllegalArgumentException("Initial RTT must be larger than 0.");
             }
-            return new QuicConnectionImpl(host, port, sessionTicket, quicVersion, log, proxyHost, secretsFile, initialRtt, connectionIdLength);
+            return new QuicConnectionImpl(host, port, sessionTicket, quicVersion, log, proxyHost, secretsFile, initialRtt, connectionIdLength, runtime, congestionControlAlgorithm, pacing, pacingBurstSize, streamSchedulingPolicy);
         }
 
         @Override
@@ -1207,5 +1359,38 @@ public class QuicConnectionImpl implements QuicConnection, PacketProcessor {
             this.initialRtt = initialRtt;
             return this;
         }
+
+        @Override
+        public Builder runtime(QuicRuntime runtime) {
+            this.runtime = runtime;
+            return this;
+        }
+
+        @Override
+        public Builder congestionControl(CongestionControlAlgorithm algorithm) {
+            congestionControlAlgorithm = algorithm;
+            return this;
+        }
+
+        @Override
+        public Builder pacing(boolean enabled) {
+            pacing = enabled;
+            return this;
+        }
+
+        @Override
+        public Builder pacingBurstSize(int bytes) {
+            if (bytes < 1200) {
+                throw new IllegalArgumentException("Pacing burst size must be at least 1200 bytes.");
+            }
+            pacingBurstSize = bytes;
+            return this;
+        }
+
+        @Override
+        public Builder streamScheduling(StreamScheduler.Policy policy) {
+            streamSchedulingPolicy = policy;
+            return this;
+        }
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.concurrent.EventLoop;
+import net.luminis.quic.concurrent.HashedWheelTimer;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads that can be shared by many connections. Without a runtime, each connection uses a few threads of its own
+ * (for sending, receiving and timers); connections that are created with a runtime are served by the (fixed number of)
+ * event loops and the timer thread of the runtime. Each connection is bound to one event loop, which does all receiving,
+ * packet processing and sending for that connection.
+ */
+public class QuicRuntime {
+
+    private final EventLoop[] eventLoops;
+    private final HashedWheelTimer timer;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * Creates a runtime with one event loop per available processor.
+     * @throws IOException
+     */
+    public QuicRuntime() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public QuicRuntime(int eventLoopThreads) throws IOException {
+        if (eventLoopThreads < 1) {
+            throw new IllegalArgumentException("Number of event loop threads must be at least 1");
+        }
+        eventLoops = new EventLoop[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            eventLoops[i] = new EventLoop("quic-event-loop-" + (i + 1));
+        }
+        // Expired timeouts are run on the event loop of the connection that owns them, so the timer thread only ticks.
+        timer = new HashedWheelTimer("quic-timer");
+    }
+
+    /**
+     * Returns the event loop for a new connection; connections are distributed round robin over the event loops.
+     * @return
+     */
+    EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Stops all threads of this runtime. Connections using the runtime should be closed first.
+     */
+    public void shutdown() {
+        for (EventLoop eventLoop: eventLoops) {
+            eventLoop.shutdown();
+        }
+        timer.shutdown();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import java.time.Duration;
+
+/**
+ * A delivery rate sample, taken when an ack is received.
+ * See https://tools.ietf.org/html/draft-cheng-iccrg-delivery-rate-estimation-00
+ */
+public class RateSample {
+
+    private final long delivered;
+    private final long priorDelivered;
+    private final Duration interval;
+    private final Duration rtt;
+    private final boolean appLimited;
+
+    public RateSample(long delivered, long priorDelivered, Duration interval, Duration rtt) {
+        this(delivered, priorDelivered, interval, rtt, false);
+    }
+
+    public RateSample(long delivered, long priorDelivered, Duration interval, Duration rtt, boolean appLimited) {
+        this.delivered = delivered;
+        this.priorDelivered = priorDelivered;
+        this.interval = interval;
+        this.rtt = rtt;
+        this.appLimited = appLimited;
+    }
+
+    /**
+     * @return  the total number of bytes delivered on the connection, including the packets acked by this ack.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return  the total number of bytes delivered at the time the most recently sent packet that is acked, was sent.
+     */
+    public long getPriorDelivered() {
+        return priorDelivered;
+    }
+
+    /**
+     * @return  the number of bytes delivered in the sample interval
+     */
+    public long getDeliveredInInterval() {
+        return delivered - priorDelivered;
+    }
+
+    public Duration getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return  the RTT of the most recently sent packet that is acked
+     */
+    public Duration getRtt() {
+        return rtt;
+    }
+
+    /**
+     * @return  whether the most recently sent packet that is acked was sent while the connection was application
+     * limited, in which case the delivery rate is likely to underestimate the available bandwidth.
+     */
+    public boolean isAppLimited() {
+        return appLimited;
+    }
+
+    /**
+     * @return  the delivery rate in bytes per second
+     */
+    public long getDeliveryRate() {
+        return getDeliveredInInterval() * 1_000_000_000L / Long.max(interval.toNanos(), 1);
+    }
+
+    @Override
+    public String toString() {
+        return "RateSample[" + getDeliveryRate() + " B/s, " + getDeliveredInInterval() + " bytes in " + interval.toMillis() + " ms" + (appLimited? ", app-limited": "") + "]";
+    }
+}
@@ -18,7 +18,6 @@
  */
 package net.luminis.quic;
 
-import java.net.DatagramPacket;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 
@@ -27,17 +26,19 @@ import java.time.Instant;
  */
 public class RawPacket {
 
-    private final DatagramPacket receivedPacket;
     private final Instant timeReceived;
     private final int number;
     private final ByteBuffer data;
 
-    public RawPacket(DatagramPacket receivedPacket, Instant timeReceived, int number) {
-        this.receivedPacket = receivedPacket;
+    /**
+     * @param data  buffer containing the datagram, from position 0 to limit
+     * @param timeReceived
+     * @param number
+     */
+    public RawPacket(ByteBuffer data, Instant timeReceived, int number) {
         this.timeReceived = timeReceived;
         this.number = number;
-
-        data = ByteBuffer.wrap(receivedPacket.getData(), 0, receivedPacket.getLength());
+        this.data = data;
     }
 
     public Instant getTimeReceived() {
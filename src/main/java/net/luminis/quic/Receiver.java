@@ -18,56 +18,79 @@
  */
 package net.luminis.quic;
 
+import net.luminis.quic.concurrent.EventLoop;
 import net.luminis.quic.log.Logger;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
- * Receives UDP datagrams on separate thread and queues them for asynchronous processing.
+ * Receives UDP datagrams on separate thread and queues them for asynchronous processing, or, when an event loop is
+ * given, receives datagrams on the event loop and passes them to the packet handler directly.
+ * The datagrams are received in pooled buffers; consumers should release each packet (obtained with <code>get</code>
+ * or passed to the packet handler) once it has been processed.
  */
 public class Receiver {
 
+    private static final int MAX_POOLED_BUFFERS = 128;
+    // Limits the time spent on one connection, so the event loop can serve other connections too.
+    private static final int MAX_DATAGRAMS_PER_READ = 64;
+
     private final QuicConnectionImpl connection;
-    private volatile DatagramSocket socket;
+    private final Transport transport;
     private final int maxPacketSize;
     private final Logger log;
     private final Thread receiverThread;
     private final BlockingQueue<RawPacket> receivedPacketsQueue;
+    private final BufferPool bufferPool;
+    private final EventLoop eventLoop;
+    private final Consumer<RawPacket> packetHandler;
     private volatile boolean isClosing = false;
-    private volatile boolean changing = false;
+    private int counter;
+
+    public Receiver(QuicConnectionImpl connection, Transport transport, int initialMaxPacketSize, Logger log) {
+        this(connection, transport, initialMaxPacketSize, log, null, null);
+    }
 
-    public Receiver(QuicConnectionImpl connection, DatagramSocket socket, int initialMaxPacketSize, Logger log) {
+    public Receiver(QuicConnectionImpl connection, Transport transport, int initialMaxPacketSize, Logger log, EventLoop eventLoop, Consumer<RawPacket> packetHandler) {
         this.connection = connection;
-        this.socket = socket;
+        this.transport = transport;
         this.maxPacketSize = initialMaxPacketSize;
         this.log = log;
+        this.eventLoop = eventLoop;
+        this.packetHandler = packetHandler;
 
-        receiverThread = new Thread(() -> run(), "receiver");
-        receiverThread.setDaemon(true);
-        receivedPacketsQueue = new LinkedBlockingQueue<>();
-
-        try {
-            log.debug("Socket receive buffer size: " + socket.getReceiveBufferSize());
-        } catch (SocketException e) {
-            // Ignore
+        if (eventLoop == null) {
+            receiverThread = new Thread(() -> run(), "receiver");
+            receiverThread.setDaemon(true);
         }
+        else {
+            receiverThread = null;
+        }
+        receivedPacketsQueue = new LinkedBlockingQueue<>();
+        // One byte more than max packet size, to detect packets that are too large.
+        bufferPool = new BufferPool(maxPacketSize + 1, MAX_POOLED_BUFFERS);
     }
 
     public void start() {
-        receiverThread.start();
+        if (eventLoop != null) {
+            transport.register(eventLoop, this::receiveAvailable);
+        }
+        else {
+            receiverThread.start();
+        }
     }
 
     public void shutdown() {
         isClosing = true;
-        receiverThread.interrupt();
+        if (receiverThread != null) {
+            receiverThread.interrupt();
+        }
     }
 
     public RawPacket get() throws InterruptedException {
@@ -84,33 +107,29 @@ public class Receiver {
         return receivedPacketsQueue.poll(timeout, TimeUnit.SECONDS);
     }
 
-    private void run() {
-        int counter = 0;
+    /**
+     * Returns the buffer of a received packet to the pool. The packet (and its data) must not be used anymore after
+     * calling this method.
+     * @param packet
+     */
+    public void release(RawPacket packet) {
+        bufferPool.release(packet.getData());
+    }
 
+    private void run() {
         try {
             while (! isClosing) {
-                byte[] receiveBuffer = new byte[maxPacketSize + 1];
-                DatagramPacket receivedPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                try {
-                    socket.receive(receivedPacket);
-
-                    Instant timeReceived = Instant.now();
-                    RawPacket rawPacket = new RawPacket(receivedPacket, timeReceived, counter++);
-                    receivedPacketsQueue.add(rawPacket);
-                }
-                catch (SocketTimeoutException timeout) {
-                    // Impossible, as no socket timeout set
-                }
-                catch (SocketException socketError) {
-                    if (changing) {
-                        // Expected
-                        log.debug("Ignoring socket closed exception, because changing socket", socketError);
-                        changing = false;  // Don't do it again.
-                    }
-                    else {
-                        throw socketError;
-                    }
+                ByteBuffer receiveBuffer = bufferPool.acquire();
+                int length = transport.receive(receiveBuffer);
+                if (length < 0) {
+                    // Transport closed
+                    bufferPool.release(receiveBuffer);
+                    break;
                 }
+                Instant timeReceived = Instant.now();
+                receiveBuffer.flip();
+                RawPacket rawPacket = new RawPacket(receiveBuffer, timeReceived, counter++);
+                receivedPacketsQueue.add(rawPacket);
             }
 
             log.debug("Terminating receive loop");
@@ -131,10 +150,28 @@ public class Receiver {
         }
     }
 
-    public void changeAddress(DatagramSocket newSocket) {
-        DatagramSocket oldSocket = socket;
-        socket = newSocket;
-        changing = true;
-        oldSocket.close();
+    /**
+     * Receives the datagrams that are available, without blocking; called by event loop.
+     */
+    private void receiveAvailable() {
+        try {
+            for (int i = 0; i < MAX_DATAGRAMS_PER_READ && ! isClosing; i++) {
+                ByteBuffer receiveBuffer = bufferPool.acquire();
+                int length = transport.tryReceive(receiveBuffer);
+                if (length <= 0) {
+                    bufferPool.release(receiveBuffer);
+                    return;
+                }
+                Instant timeReceived = Instant.now();
+                receiveBuffer.flip();
+                packetHandler.accept(new RawPacket(receiveBuffer, timeReceived, counter++));
+            }
+        }
+        catch (IOException e) {
+            if (! isClosing) {
+                log.error("IOException while receiving datagrams", e);
+                connection.abortConnection(e);
+            }
+        }
     }
 }
@@ -33,6 +33,7 @@ public class RttEstimator {
     private int smoothedRtt = 0;
     private int rttVar;
     private int latestRtt;
+    private volatile long sampleCount;
 
 
     public RttEstimator(Logger log) {
@@ -59,6 +60,7 @@ public class RttEstimator {
 
         int rttSample = Duration.between(timeSent, timeReceived).getNano() / 1_000_000 - ackDelay;
         latestRtt = rttSample;
+        sampleCount++;
         if (rttSample < minRtt)
             minRtt = rttSample;
         // Adjust for ack delay if it's plausible.
@@ -108,4 +110,11 @@ public class RttEstimator {
     public int getLatestRtt() {
         return latestRtt;
     }
+
+    /**
+     * @return  the number of RTT samples taken so far, which tells whether the latest RTT is a new sample
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
 }
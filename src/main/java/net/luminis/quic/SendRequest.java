@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.frame.QuicFrame;
+
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * A frame that is waiting to be sent, together with the callback that must be called when the packet carrying the
+ * frame is lost.
+ */
+public class SendRequest {
+
+    private final QuicFrame frame;
+    private final int estimatedSize;
+    private final Consumer<QuicFrame> lostCallback;
+    private final Instant queuedTime;
+
+    public SendRequest(QuicFrame frame, Consumer<QuicFrame> lostCallback) {
+        this.frame = frame;
+        this.estimatedSize = frame.getBytes().length;
+        this.lostCallback = lostCallback;
+        this.queuedTime = Instant.now();
+    }
+
+    public QuicFrame getFrame() {
+        return frame;
+    }
+
+    public int getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public Consumer<QuicFrame> getLostCallback() {
+        return lostCallback;
+    }
+
+    public Instant getQueuedTime() {
+        return queuedTime;
+    }
+}
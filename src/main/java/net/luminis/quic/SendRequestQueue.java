@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.frame.QuicFrame;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+
+/**
+ * Queue of frames waiting to be sent. Frames are taken from the queue in order of arrival, but a frame that does not
+ * fit in the space that is left in a packet is skipped in favour of a smaller one that does.
+ */
+public class SendRequestQueue {
+
+    private final Deque<SendRequest> requestQueue = new ArrayDeque<>();
+
+    public synchronized void addRequest(QuicFrame frame, Consumer<QuicFrame> lostCallback) {
+        requestQueue.addLast(new SendRequest(frame, lostCallback));
+    }
+
+    public synchronized boolean hasRequests() {
+        return !requestQueue.isEmpty();
+    }
+
+    /**
+     * Returns the estimated size of the first request in the queue, or 0 when the queue is empty.
+     * @return
+     */
+    public synchronized int peekSize() {
+        SendRequest first = requestQueue.peekFirst();
+        return first != null? first.getEstimatedSize(): 0;
+    }
+
+    /**
+     * Removes and returns the first request whose (estimated) frame size does not exceed the given maximum.
+     * @param maxFrameSize
+     * @return
+     */
+    public synchronized Optional<SendRequest> next(int maxFrameSize) {
+        Iterator<SendRequest> iterator = requestQueue.iterator();
+        while (iterator.hasNext()) {
+            SendRequest request = iterator.next();
+            if (request.getEstimatedSize() <= maxFrameSize) {
+                iterator.remove();
+                return Optional.of(request);
+            }
+        }
+        return Optional.empty();
+    }
+
+    public synchronized void clear() {
+        requestQueue.clear();
+    }
+}
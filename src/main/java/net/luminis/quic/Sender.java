@@ -18,212 +18,610 @@
  */
 package net.luminis.quic;
 
-import net.luminis.quic.concurrent.DaemonThreadFactory;
-import net.luminis.quic.frame.AckFrame;
-import net.luminis.quic.frame.Padding;
-import net.luminis.quic.frame.PingFrame;
-import net.luminis.quic.frame.QuicFrame;
+import net.luminis.quic.concurrent.EventLoop;
+import net.luminis.quic.concurrent.HashedWheelTimer;
+import net.luminis.quic.frame.*;
 import net.luminis.quic.log.Logger;
 import net.luminis.quic.packet.QuicPacket;
-import net.luminis.quic.packet.ZeroRttPacket;
 import net.luminis.quic.recovery.RecoveryManager;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 
-public class Sender implements ProbeSender, FrameProcessor {
+public class Sender implements ProbeSender, FrameProcessor, CongestionControlEventListener {
 
-    private DatagramSocket socket;
+    private static final int MAX_DATAGRAM_SIZE = 1500;
+    private static final int MAX_DATAGRAMS_PER_EVENT_LOOP_TASK = 16;
+
+    private final Transport transport;
     private final int maxPacketSize;
     private final Logger log;
     private final Thread senderThread;
-    private InetAddress serverAddress;
-    private int port;
     private volatile boolean running;
     private BlockingQueue<WaitingPacket> incomingPacketQueue;
-    private final Map<PacketId, PacketAckStatus> packetSentLog;
     private final CongestionController congestionController;
     private ConnectionSecrets connectionSecrets;
     private final RttEstimator rttEstimater;
     private QuicConnectionImpl connection;
     private EncryptionLevel lastReceivedMessageLevel = EncryptionLevel.Initial;
     private AckGenerator[] ackGenerators;
+    private final HashedWheelTimer.Timeout ackTimer;
+    // When set, sending is paced; when null, packets are sent as soon as the congestion controller allows.
+    private volatile Pacer pacer;
+    private HyStart hyStart;
+    private final HashedWheelTimer.Timeout pacingTimer;
+    private final long pacingTimerResolution;
     private final long[] lastPacketNumber = new long[PnSpace.values().length];
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new DaemonThreadFactory("sender-scheduler"));
     private RecoveryManager recoveryManager;
     private int receiverMaxAckDelay;
     private volatile long sent;
-    private volatile boolean mustSendProbe = false;
+    // Control frame statistics, only updated by sender thread; wait times in microseconds.
+    private volatile long controlFramesSent;
+    private volatile long totalControlFrameWaitTime;
+    private volatile long maxControlFrameWaitTime;
+    // Probes are sent before anything else, regardless of congestion control and pacing.
+    private final Queue<WaitingPacket> probeQueue = new ConcurrentLinkedQueue<>();
+    private final Object wakeupCondition = new Object();
+    private boolean signalled;
+    // When set, sending is done by event loop instead of by the sender thread.
+    private final EventLoop eventLoop;
+    private final AtomicBoolean sendScheduled = new AtomicBoolean();
+    private final SendRequestQueue[] sendRequestQueue = new SendRequestQueue[EncryptionLevel.values().length];
+    private final SendRequestQueue[] controlFrameQueue = new SendRequestQueue[EncryptionLevel.values().length];
+    private final PacketAssembler[] packetAssembler = new PacketAssembler[EncryptionLevel.values().length];
+    private final StreamScheduler streamScheduler = new StreamScheduler();
+    // Buffer that datagrams are encoded and encrypted into; only used by sender thread.
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+    public Sender(Transport transport, int maxPacketSize, Logger log, QuicConnectionImpl connection, Integer initialRtt) {
+        this(transport, maxPacketSize, log, connection, initialRtt, null, null);
+    }
+
+    /**
+     * Creates a sender that, if an event loop is given, does its sending on that event loop instead of on a thread of
+     * its own; if a timer is given, it is used for the loss detection timer instead of the process wide shared timer.
+     */
+    public Sender(Transport transport, int maxPacketSize, Logger log, QuicConnectionImpl connection, Integer initialRtt,
+                  EventLoop eventLoop, HashedWheelTimer timer) {
+        this(transport, maxPacketSize, log, connection, initialRtt, eventLoop, timer, CongestionControlAlgorithm.NewReno);
+    }
 
-    public Sender(DatagramSocket socket, int maxPacketSize, Logger log, InetAddress serverAddress, int port, QuicConnectionImpl connection, Integer initialRtt) {
-        this.socket = socket;
+    public Sender(Transport transport, int maxPacketSize, Logger log, QuicConnectionImpl connection, Integer initialRtt,
+                  EventLoop eventLoop, HashedWheelTimer timer, CongestionControlAlgorithm congestionControlAlgorithm) {
+        this.transport = transport;
         this.maxPacketSize = maxPacketSize;
         this.log = log;
-        this.serverAddress = serverAddress;
-        this.port = port;
         this.connection = connection;
+        this.eventLoop = eventLoop;
 
-        senderThread = new Thread(() -> run(), "sender");
-        senderThread.setDaemon(true);
+        if (eventLoop == null) {
+            senderThread = new Thread(() -> run(), "sender");
+            senderThread.setDaemon(true);
+        }
+        else {
+            senderThread = null;
+            transport.setWritableHandler(this::wakeup);
+        }
 
         incomingPacketQueue = new LinkedBlockingQueue<>();
-        packetSentLog = new ConcurrentHashMap<>();
-        congestionController = new NewRenoCongestionController(log);
         if (initialRtt == null) {
             rttEstimater = new RttEstimator(log);
         }
         else {
             rttEstimater = new RttEstimator(log, initialRtt);
         }
-        recoveryManager = new RecoveryManager(rttEstimater, congestionController, this, log);
+        if (congestionControlAlgorithm == CongestionControlAlgorithm.Cubic) {
+            congestionController = new CubicCongestionController(log, this, rttEstimater);
+        }
+        else if (congestionControlAlgorithm == CongestionControlAlgorithm.BBR) {
+            congestionController = new BbrCongestionController(log, this, rttEstimater);
+        }
+        else {
+            congestionController = new NewRenoCongestionController(log, this);
+        }
+        if (congestionController instanceof NewRenoCongestionController) {
+            // Loss-based controllers exit slow start on rtt increase, to avoid the massive loss at the end of slow start.
+            hyStart = new HyStart(rttEstimater);
+            ((NewRenoCongestionController) congestionController).setHyStart(hyStart);
+        }
+        if (timer == null) {
+            timer = HashedWheelTimer.shared();
+        }
+        recoveryManager = new RecoveryManager(rttEstimater, congestionController, this, log, timer, eventLoop);
+        ackTimer = timer.newTimeout(this::ackDelayExpired);
+        pacingTimer = timer.newTimeout(this::wakeup);
+        pacingTimerResolution = timer.getTickNanos();
+        if (congestionControlAlgorithm != CongestionControlAlgorithm.NewReno) {
+            pacer = new Pacer(congestionController, rttEstimater, Pacer.DEFAULT_BURST_SIZE, pacingTimerResolution);
+        }
+        if (hyStart != null) {
+            hyStart.setPaced(pacer != null);
+        }
         connection.addHandshakeStateListener(recoveryManager);
 
         ackGenerators = new AckGenerator[PnSpace.values().length];
         Arrays.setAll(ackGenerators, i -> new AckGenerator());
+        Arrays.setAll(sendRequestQueue, i -> new SendRequestQueue());
+        // Stream data is only sent at App level
+        sendRequestQueue[EncryptionLevel.App.ordinal()] = streamScheduler;
+        Arrays.setAll(controlFrameQueue, i -> new SendRequestQueue());
+        Arrays.setAll(packetAssembler, i -> new PacketAssembler(controlFrameQueue[i], sendRequestQueue[i], this::controlFrameSent));
     }
 
     public void send(QuicPacket packet, String logMessage, Consumer<QuicPacket> packetLostCallback) {
         log.debug("queing " + packet);
         incomingPacketQueue.add(new WaitingPacket(packet, logMessage, packetLostCallback));
+        wakeup();
+    }
+
+    /**
+     * Queues a frame for sending. Queued frames are combined into as few packets as possible; when the packet that
+     * carries the frame is lost, the callback is called with the frame.
+     * @param frame
+     * @param level
+     * @param frameLostCallback
+     */
+    public void send(QuicFrame frame, EncryptionLevel level, Consumer<QuicFrame> frameLostCallback) {
+        log.debug("queing " + frame);
+        if (isControlFrame(frame)) {
+            controlFrameQueue[level.ordinal()].addRequest(frame, frameLostCallback);
+        }
+        else {
+            sendRequestQueue[level.ordinal()].addRequest(frame, frameLostCallback);
+        }
+        wakeup();
+    }
+
+    private boolean isControlFrame(QuicFrame frame) {
+        return frame instanceof MaxDataFrame
+                || frame instanceof MaxStreamDataFrame
+                || frame instanceof MaxStreamsFrame
+                || frame instanceof PathResponseFrame;
+    }
+
+    private void controlFrameSent(SendRequest request) {
+        long waitTime = Duration.between(request.getQueuedTime(), Instant.now()).toNanos() / 1000;
+        controlFramesSent++;
+        totalControlFrameWaitTime += waitTime;
+        if (waitTime > maxControlFrameWaitTime) {
+            maxControlFrameWaitTime = waitTime;
+        }
     }
 
     public void stop() {
         // Stop sending packets, so discard any packet waiting to be send.
         incomingPacketQueue.clear();
+        Arrays.stream(sendRequestQueue).forEach(queue -> queue.clear());
+        Arrays.stream(controlFrameQueue).forEach(queue -> queue.clear());
         // No more retransmissions either.
         recoveryManager.stopRecovery();
     }
 
+    /**
+     * Enables or disables pacing. By default, pacing is enabled for all congestion control algorithms except NewReno.
+     * @param enabled
+     * @param burstSize  the number of bytes that may be sent in one burst
+     */
+    public void setPacing(boolean enabled, int burstSize) {
+        pacer = enabled? new Pacer(congestionController, rttEstimater, burstSize, pacingTimerResolution): null;
+        if (hyStart != null) {
+            hyStart.setPaced(enabled);
+        }
+    }
+
+    public boolean isPacing() {
+        return pacer != null;
+    }
+
     public int getPto() {
         return rttEstimater.getSmoothedRtt() + 4 * rttEstimater.getRttVar() + receiverMaxAckDelay;
     }
 
     public void start(ConnectionSecrets secrets) {
         connectionSecrets = secrets;
-        senderThread.start();
+        if (eventLoop != null) {
+            running = true;
+            wakeup();  // Ensure packets queued before start are sent.
+        }
+        else {
+            signalled = true;  // Ensure packets queued before start are sent.
+            senderThread.start();
+        }
     }
 
     private void run() {
         running = true;
         try {
             while (running) {
+                waitForWakeup();
+
+                // Send as much as the congestion controller allows, before waiting again.
+                List<PreparedPacket> datagram;
+                boolean sentAny = false;
+                while (running && !(datagram = assembleDatagram()).isEmpty()) {
+                    sendDatagram(datagram);
+                    sentAny = true;
+                }
+                if (sentAny) {
+                    checkAppLimited();
+                }
+            }
+        }
+        catch (IOException ioError) {
+            // This is probably fatal.
+            log.error("IOException while sending datagrams", ioError);
+            connection.abortConnection(ioError);
+        }
+        catch (Throwable fatal) {
+            log.error("Sender thread aborted with exception", fatal);
+            connection.abortConnection(fatal);
+        }
+    }
 
+    /**
+     * Sends what can be sent; executed by the event loop.
+     */
+    private void sendOnEventLoop() {
+        sendScheduled.set(false);
+        try {
+            // Limit the number of datagrams sent in one go, so other connections on the same event loop are not held up.
+            List<PreparedPacket> datagram;
+            int count = 0;
+            // When the socket send buffer is full, the transport keeps the datagram and calls wakeup when it is sent.
+            while (running && !transport.isSendBlocked() && !(datagram = assembleDatagram()).isEmpty()) {
+                sendDatagram(datagram);
+                if (++count == MAX_DATAGRAMS_PER_EVENT_LOOP_TASK) {
+                    wakeup();
+                    return;
+                }
+            }
+            if (count > 0 && !transport.isSendBlocked()) {
+                checkAppLimited();
+            }
+        }
+        catch (IOException ioError) {
+            // This is probably fatal.
+            log.error("IOException while sending datagrams", ioError);
+            connection.abortConnection(ioError);
+        }
+        catch (Throwable fatal) {
+            log.error("Sending aborted with exception", fatal);
+            connection.abortConnection(fatal);
+        }
+    }
+
+    /**
+     * Marks sending as application limited when there is nothing left to send, while the congestion controller would
+     * allow sending more. Acks for packets sent from now on will not increase the congestion window, nor lower the
+     * bandwidth estimate.
+     */
+    private void checkAppLimited() {
+        if (incomingPacketQueue.isEmpty() && levelWithFramesWaiting() == null && levelWithControlFramesWaiting() == null
+                && congestionController.canSend(MAX_DATAGRAM_SIZE)) {
+            recoveryManager.setAppLimited(congestionController.getBytesInFlight());
+        }
+    }
+
+    /**
+     * Wakes up the sender loop, to reconsider whether anything can be sent.
+     */
+    public void wakeup() {
+        if (eventLoop != null) {
+            if (running && sendScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this::sendOnEventLoop);
+            }
+        }
+        else {
+            synchronized (wakeupCondition) {
+                signalled = true;
+                wakeupCondition.notify();
+            }
+        }
+    }
+
+    private void waitForWakeup() {
+        synchronized (wakeupCondition) {
+            while (!signalled && running) {
                 try {
-                    QuicPacket packet = null;
-                    String logMessage = null;
-                    EncryptionLevel level = null;
-                    long packetNumber = -1;
-                    Consumer<QuicPacket> packetLostCallback = p -> {};
-
-                    boolean packetWaiting = incomingPacketQueue.peek() != null;
-                    boolean ackWaiting = false;
-                    if (!packetWaiting) {
-                        level = lastReceivedMessageLevel;
-                        AckGenerator ackGenerator = ackGenerators[level.relatedPnSpace().ordinal()];
-                        ackWaiting = ackGenerator.hasNewAckToSend();
-                    }
-                    if (packetWaiting || !ackWaiting) {
-                        WaitingPacket queued = incomingPacketQueue.take();
-                        packet = queued.packet;
-                        level = packet.getEncryptionLevel();
-                        logMessage = queued.logMessage;
-                        packetLostCallback = queued.packetLostCallback;
-                    }
+                    wakeupCondition.wait();
+                }
+                catch (InterruptedException interrupted) {
+                    log.debug("Sender wait interrupted...");
+                }
+            }
+            signalled = false;
+        }
+    }
+
+    /**
+     * Assembles the next datagram to send, if anything can be sent.
+     * @return  the packets that make up the datagram, or an empty list when there is nothing to send (or the
+     * congestion controller does not allow it)
+     */
+    private List<PreparedPacket> assembleDatagram() {
+        List<PreparedPacket> datagram = new ArrayList<>();
+        PreparedPacket first = prepareNextPacket();
+        if (first != null) {
+            datagram.add(first);
+            addCoalescedPackets(datagram);
+        }
+        return datagram;
+    }
+
+    /**
+     * Prepares a packet for what should be sent first: queued control frames, a queued packet, queued frames or an
+     * acknowledgement.
+     * @return  the packet to send, or null when there is nothing to send (or the congestion controller does not allow it).
+     */
+    private PreparedPacket prepareNextPacket() {
+        // A probe must be sent even when the congestion controller would not allow it.
+        WaitingPacket probe = probeQueue.poll();
+        if (probe != null) {
+            return prepareProbe(probe);
+        }
 
-                    Keys keys = connectionSecrets.getClientSecrets(level);// Assuming client role
-                    packetNumber = generatePacketNumber(level.relatedPnSpace());
-                    int estimatedPacketLength;
-                    if (packet == null) {
-                        // i.e. ack waiting
-                        estimatedPacketLength = 0;
+        // Control frames (flow control credit updates and the like) get the first opportunity to use the congestion
+        // window, so they are never queued behind data. Acks are added to every packet sent, and are sent in an ack-only
+        // packet when the congestion controller does not allow sending anything else.
+        EncryptionLevel controlLevel = levelWithControlFramesWaiting();
+        if (controlLevel != null) {
+            PreparedPacket packet = prepareFramesPacket(controlLevel);
+            if (packet != null) {
+                return packet;
+            }
+        }
+        else {
+            WaitingPacket queued = incomingPacketQueue.peek();
+            if (queued != null) {
+                int estimatedPacketLength = queued.packet.estimateLength();
+                if (canSend(estimatedPacketLength)) {
+                    incomingPacketQueue.poll();
+                    EncryptionLevel level = queued.packet.getEncryptionLevel();
+                    AckFrame ack = pendingAck(level);
+                    if (ack != null) {
+                        queued.packet.addFrame(ack);
                     }
-                    else {
-                        estimatedPacketLength = packet.estimateLength();
+                    return preparePacket(queued.packet, level, connectionSecrets.getClientSecrets(level), ack, queued.logMessage, queued.packetLostCallback);
+                }
+                else {
+                    log.cc("Congestion controller will not allow sending queued packet " + queued.packet + " (in-flight: " + congestionController.getBytesInFlight() + ", packet length: " + estimatedPacketLength + ")");
+                }
+            }
+            else {
+                EncryptionLevel level = levelWithFramesWaiting();
+                if (level != null) {
+                    PreparedPacket packet = prepareFramesPacket(level);
+                    if (packet != null) {
+                        return packet;
                     }
+                }
+            }
+        }
 
-                    boolean hasBeenWaiting = false;
-                    if (packet != null) {   // Ack-only is not congestion controller, neither is probe.
-                        while (!mustSendProbe && !congestionController.canSend(estimatedPacketLength)) {  // mustSendProbe can change while in wait loop
-                            log.cc("Congestion controller will not allow sending queued packet " + packet + " (in-flight: " + congestionController.getBytesInFlight() + ", packet length: " + estimatedPacketLength + ")");
-                            hasBeenWaiting = true;
-                            try {
-                                congestionController.waitForUpdate();
-                            } catch (InterruptedException interrupted) {
-                                log.debug("Wait for CC update is interrupted");
-                            }
-                            log.debug("re-evaluating CC");
-                        }
-
-                        if (hasBeenWaiting) {
-                            log.debug("Congestion controller now does allow sending the packet.");
-                        }
-                    }
+        // Ack-only is not congestion controlled.
+        EncryptionLevel level = lastReceivedMessageLevel;
+        if (ackGenerators[level.relatedPnSpace().ordinal()].hasNewAckToSend()) {
+            AckFrame ack = pendingAck(level);
+            return preparePacket(connection.createPacket(level, ack), level, connectionSecrets.getClientSecrets(level), ack, "ack", p -> {});
+        }
+        return null;
+    }
 
-                    if (mustSendProbe) {
-                        mustSendProbe = false;
-                        if (!congestionController.canSend(estimatedPacketLength)) {
-                            log.cc("Exceeding cc window because a probe must be sent.");
-                        }
-                    }
+    /**
+     * Prepares a probe packet. When the probe has room left, it is filled with waiting frames, as new data is as useful
+     * in a probe as retransmitted data.
+     */
+    private PreparedPacket prepareProbe(WaitingPacket probe) {
+        EncryptionLevel level = probe.packet.getEncryptionLevel();
+        if (!congestionController.canSend(probe.packet.estimateLength())) {
+            log.cc("Exceeding cc window because a probe must be sent.");
+        }
+        AckFrame ack = pendingAck(level);
+        if (ack != null) {
+            probe.packet.addFrame(ack);
+        }
+        Consumer<QuicPacket> packetLostCallback = packetAssembler[level.ordinal()].fill(probe.packet, connection.getMaxPacketSize());
+        return preparePacket(probe.packet, level, connectionSecrets.getClientSecrets(level), ack, probe.logMessage, packetLostCallback);
+    }
+
+    private PreparedPacket prepareFramesPacket(EncryptionLevel level) {
+        int estimatedPacketLength = connection.getMaxShortHeaderPacketOverhead() + packetAssembler[level.ordinal()].nextFrameSize();
+        if (canSend(estimatedPacketLength)) {
+            AckFrame ack = pendingAck(level);
+            QuicPacket packet = connection.createPacket(level, ack);
+            // Fill the packet with waiting frames, but do not exceed the congestion window (unless the
+            // packet would not contain any frame otherwise).
+            int maxPacketSize = (int) Long.min(connection.getMaxPacketSize(), congestionWindowLeft());
+            Consumer<QuicPacket> packetLostCallback = packetAssembler[level.ordinal()].assemble(packet, maxPacketSize);
+            return preparePacket(packet, level, connectionSecrets.getClientSecrets(level), ack, "application data", packetLostCallback);
+        }
+        else {
+            log.cc("Congestion controller will not allow sending queued frames (in-flight: " + congestionController.getBytesInFlight() + ", packet length: " + estimatedPacketLength + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Determines whether a packet of the given size may be sent now, according to the congestion controller and (if
+     * enabled) the pacer. When the pacer does not allow it, the sender is woken up when it will.
+     */
+    private boolean canSend(int packetLength) {
+        if (!congestionController.canSend(packetLength)) {
+            return false;
+        }
+        Pacer currentPacer = pacer;
+        if (currentPacer != null) {
+            long delay = currentPacer.timeUntilSend(packetLength);
+            if (delay > 0) {
+                log.cc("Pacer delays sending for " + delay / 1000 + " us");
+                pacingTimer.schedule(delay, TimeUnit.NANOSECONDS);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-12.2
+    // "Coalescing packets in order of increasing encryption levels (Initial, 0-RTT, Handshake, 1-RTT) makes it more
+    //  likely the receiver will be able to process all the packets in a single pass."
+    private static final List<EncryptionLevel> coalescingOrder = List.of(EncryptionLevel.Initial, EncryptionLevel.ZeroRTT, EncryptionLevel.Handshake, EncryptionLevel.App);
+
+    /**
+     * Adds packets for other encryption levels to the datagram, as long as they fit in it. Candidates are (in this
+     * order) a queued packet, queued frames and a pending acknowledgement.
+     * @param datagram
+     */
+    private void addCoalescedPackets(List<PreparedPacket> datagram) {
+        int maxDatagramSize = connection.getMaxPacketSize();
+        int datagramSize = datagram.get(0).packet.estimateLength();
+
+        for (EncryptionLevel level: coalescingOrder) {
+            if (datagramSize >= maxDatagramSize) {
+                break;
+            }
+            if (datagram.stream().anyMatch(p -> p.packet.getEncryptionLevel() == level)) {
+                continue;
+            }
+            Keys keys = connectionSecrets.getClientSecrets(level);
+            if (keys == null) {
+                continue;
+            }
 
-                    // Ah, here we are, allowed to send a packet. Before doing so, we should check whether there is
-                    // an ack frame that should be coalesced with it.
-
-                    if (packet == null || ! (packet instanceof ZeroRttPacket)) {
-                        AckGenerator ackGenerator = ackGenerators[level.relatedPnSpace().ordinal()];
-                        if (ackGenerator.hasAckToSend()) {
-                            AckFrame ackToSend = ackGenerator.generateAckForPacket(packetNumber);
-                            if (packet == null) {
-                                packet = connection.createPacket(level, ackToSend);
-                            } else {
-                                packet.addFrame(ackToSend);
-                            }
-                        }
+            PreparedPacket coalesced = null;
+            int spaceLeft = maxDatagramSize - datagramSize;
+            AckFrame ack = pendingAck(level);
+            int ackLength = ack != null? ack.getBytes().length: 0;
+            WaitingPacket queued = incomingPacketQueue.peek();
+            if (queued != null && queued.packet.getEncryptionLevel() == level) {
+                int packetLength = queued.packet.estimateLength();
+                if (packetLength + ackLength <= spaceLeft && canSend(packetLength)) {
+                    incomingPacketQueue.poll();
+                    if (ack != null) {
+                        queued.packet.addFrame(ack);
                     }
-                    byte[] packetData = packet.generatePacketBytes(packetNumber, keys);
-
-                    DatagramPacket datagram = new DatagramPacket(packetData, packetData.length, serverAddress, port);
-                    Instant sent = Instant.now();
-                    socket.send(datagram);
-                    logSent(packet, sent, packetLostCallback);
-                    log.raw("packet sent (" + logMessage + "), pn: " + packet.getPacketNumber(), packetData);
-                    log.sent(sent, packet);
+                    coalesced = preparePacket(queued.packet, level, keys, ack, queued.logMessage, queued.packetLostCallback);
                 }
-                catch (InterruptedException interrupted) {
-                    // Someone interrupted, maybe because an Ack has to be sent.
-                    log.debug("Sender wait interrupted...");
+            }
+            if (coalesced == null && packetAssembler[level.ordinal()].hasFramesToSend()) {
+                QuicPacket packet = connection.createPacket(level, ack);
+                int minimumLength = packet.estimateLength() + packetAssembler[level.ordinal()].nextFrameSize();
+                if (minimumLength <= spaceLeft && canSend(minimumLength)) {
+                    Consumer<QuicPacket> packetLostCallback = packetAssembler[level.ordinal()].assemble(packet, (int) Long.min(spaceLeft, congestionWindowLeft()));
+                    coalesced = preparePacket(packet, level, keys, ack, "application data", packetLostCallback);
                 }
             }
+            if (coalesced == null && ack != null && ackGenerators[level.relatedPnSpace().ordinal()].hasNewAckToSend()) {
+                QuicPacket packet = connection.createPacket(level, ack);
+                if (packet.estimateLength() <= spaceLeft) {
+                    coalesced = preparePacket(packet, level, keys, ack, "ack", p -> {});
+                }
+            }
+
+            if (coalesced != null) {
+                datagram.add(coalesced);
+                datagramSize += coalesced.packet.estimateLength();
+            }
         }
-        catch (IOException ioError) {
-            // This is probably fatal.
-            log.error("IOException while sending datagrams", ioError);
-            connection.abortConnection(ioError);
+    }
+
+    private AckFrame pendingAck(EncryptionLevel level) {
+        if (level != EncryptionLevel.ZeroRTT) {
+            AckGenerator ackGenerator = ackGenerators[level.relatedPnSpace().ordinal()];
+            if (ackGenerator.hasAckToSend()) {
+                return ackGenerator.generateAck();
+            }
         }
-        catch (Throwable fatal) {
-            log.error("Sender thread aborted with exception", fatal);
-            connection.abortConnection(fatal);
+        return null;
+    }
+
+    private PreparedPacket preparePacket(QuicPacket packet, EncryptionLevel level, Keys keys, AckFrame ack, String logMessage, Consumer<QuicPacket> packetLostCallback) {
+        long packetNumber = generatePacketNumber(level.relatedPnSpace());
+        if (ack != null) {
+            ackGenerators[level.relatedPnSpace().ordinal()].registerAckSendWithPacket(ack, packetNumber);
+        }
+        return new PreparedPacket(packet, packetNumber, keys, logMessage, packetLostCallback);
+    }
+
+    private void sendDatagram(List<PreparedPacket> datagram) throws IOException {
+        datagram.sort(Comparator.comparingInt(p -> coalescingOrder.indexOf(p.packet.getEncryptionLevel())));
+
+        sendBuffer.clear();
+        int[] packetStart = new int[datagram.size()];
+        for (int i = 0; i < datagram.size(); i++) {
+            PreparedPacket prepared = datagram.get(i);
+            packetStart[i] = sendBuffer.position();
+            prepared.packet.generatePacketBytes(prepared.packetNumber, prepared.keys, sendBuffer);
+        }
+
+        // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-14
+        // "A client MUST expand the payload of all UDP datagrams carrying Initial packets to at least 1200 bytes, by
+        //  adding PADDING frames to the Initial packet or by coalescing the Initial packet;"
+        boolean containsInitial = datagram.stream().anyMatch(p -> p.packet.getEncryptionLevel() == EncryptionLevel.Initial);
+        if (containsInitial && sendBuffer.position() < 1200) {
+            int last = datagram.size() - 1;
+            PreparedPacket lastPacket = datagram.get(last);
+            lastPacket.packet.addFrame(new Padding(1200 - sendBuffer.position()));
+            sendBuffer.position(packetStart[last]);
+            lastPacket.packet.generatePacketBytes(lastPacket.packetNumber, lastPacket.keys, sendBuffer);
+        }
+        int datagramLength = sendBuffer.position();
+
+        sendBuffer.flip();
+        Instant sent = Instant.now();
+        transport.send(sendBuffer);
+        Pacer currentPacer = pacer;
+        if (currentPacer != null && datagram.stream().anyMatch(p -> p.packet.isInflightPacket())) {
+            currentPacer.packetSent(datagramLength);
+        }
+
+        for (int i = 0; i < datagram.size(); i++) {
+            PreparedPacket prepared = datagram.get(i);
+            int packetEnd = i < datagram.size() - 1? packetStart[i + 1]: datagramLength;
+            logSent(prepared.packet, sent, prepared.packetLostCallback);
+            log.raw("packet sent (" + prepared.logMessage + "), pn: " + prepared.packet.getPacketNumber(), sendBuffer, packetStart[i], packetEnd - packetStart[i]);
+            log.sent(sent, prepared.packet);
         }
     }
 
+    private long congestionWindowLeft() {
+        return Long.max(congestionController.getWindowSize() - congestionController.getBytesInFlight(), 0);
+    }
+
+    private EncryptionLevel levelWithControlFramesWaiting() {
+        for (EncryptionLevel level: EncryptionLevel.values()) {
+            if (packetAssembler[level.ordinal()].hasControlFramesToSend()) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    private EncryptionLevel levelWithFramesWaiting() {
+        for (EncryptionLevel level: EncryptionLevel.values()) {
+            if (packetAssembler[level.ordinal()].hasFramesToSend()) {
+                return level;
+            }
+        }
+        return null;
+    }
+
     public void packetProcessed(EncryptionLevel encryptionLevel) {
         lastReceivedMessageLevel = encryptionLevel;
         // Notify sender loop: might need to send an acknowledge packet.
-        senderThread.interrupt();
+        wakeup();
     }
 
     private long generatePacketNumber(PnSpace pnSpace) {
@@ -234,18 +632,57 @@ public class Sender implements ProbeSender, FrameProcessor {
 
     void shutdown() {
         running = false;
-        senderThread.interrupt();
+        // Release the loss detection timer, as the (shared) timer outlives this connection.
+        recoveryManager.stopRecovery();
+        ackTimer.cancel();
+        pacingTimer.cancel();
+        wakeup();
         logStatistics();
-        scheduler.shutdownNow();
     }
 
-    private List<QuicPacket> getNonAcknowlegded() {
-        return packetSentLog.values().stream().filter(p -> !p.acked).map(o -> o.packet).collect(Collectors.toList());
+    public void processPacketReceived(QuicPacket packet) {
+        processPacketReceived(packet, Instant.now());
     }
 
-    public void processPacketReceived(QuicPacket packet) {
+    public void processPacketReceived(QuicPacket packet, Instant timeReceived) {
         if (packet.canBeAcked()) {
-            ackGenerators[packet.getPnSpace().ordinal()].packetReceived(packet);
+            AckGenerator ackGenerator = ackGenerators[packet.getPnSpace().ordinal()];
+            ackGenerator.packetReceived(packet, timeReceived);
+            Instant ackDeadline = ackGenerator.getAckDeadline();
+            if (ackDeadline != null) {
+                scheduleAckTimer(ackDeadline);
+            }
+        }
+    }
+
+    private void scheduleAckTimer(Instant ackDeadline) {
+        ackTimer.schedule(Long.max(Duration.between(Instant.now(), ackDeadline).toNanos(), 0), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * When the ack delay expires, the sender loop must reconsider sending an ack.
+     */
+    private void ackDelayExpired() {
+        Instant now = Instant.now();
+        Instant nextDeadline = null;
+        boolean expired = false;
+        for (AckGenerator ackGenerator: ackGenerators) {
+            Instant ackDeadline = ackGenerator.getAckDeadline();
+            if (ackDeadline != null) {
+                if (now.isBefore(ackDeadline)) {
+                    // The timer and Instant use different clocks, so the timer might expire just a bit early.
+                    nextDeadline = nextDeadline == null || ackDeadline.isBefore(nextDeadline)? ackDeadline: nextDeadline;
+                }
+                else {
+                    expired = true;
+                }
+            }
+        }
+        if (nextDeadline != null) {
+            scheduleAckTimer(nextDeadline);
+        }
+        if (expired) {
+            wakeup();
         }
     }
 
@@ -267,39 +704,21 @@ public class Sender implements ProbeSender, FrameProcessor {
     private void processAck(AckFrame ackFrame, PnSpace pnSpace, Instant timeReceived) {
         ackGenerators[pnSpace.ordinal()].process(ackFrame);
 
-        computeRttSample(ackFrame, pnSpace, timeReceived);
-
-        recoveryManager.onAckReceived(ackFrame, pnSpace);
-
-        ackFrame.getAckedPacketNumbers().stream().forEach(pn -> {
-            PacketId id = new PacketId(pnSpace, pn);
-            if (packetSentLog.containsKey(id)) {
-                Duration ackDuration = Duration.between(Instant.now(), packetSentLog.get(id).timeSent);
-                log.debug("Ack duration for " + id + ": " + ackDuration);
-                packetSentLog.get(id).acked = true;
-            }
-        });
-    }
-
-    private void computeRttSample(AckFrame ack, PnSpace pnSpace, Instant timeReceived) {
-        PacketId largestPnPacket = new PacketId(pnSpace, ack.getLargestAcknowledged());
-        PacketAckStatus packetStatus = packetSentLog.get(largestPnPacket);
-        if (packetStatus != null) {
-            rttEstimater.addSample(timeReceived, packetStatus.timeSent, ack.getAckDelay());
-        }
+        // The recovery manager keeps track of the packets sent, so it also takes the rtt sample.
+        recoveryManager.onAckReceived(ackFrame, pnSpace, timeReceived);
     }
 
     private void logSent(QuicPacket packet, Instant sendTime, Consumer<QuicPacket> packetLostCallback) {
         recoveryManager.packetSent(packet, sendTime, packetLostCallback);
-        packetSentLog.put(packet.getId(), new PacketAckStatus(sendTime, packet));
         sent++;
     }
 
     void logStatistics() {
-        log.stats("Acknowledgement statistics (sent packets):");
-        packetSentLog.entrySet().stream().sorted(Map.Entry.comparingByKey()).map(e -> e.getValue()).forEach(e -> {
-            log.stats(e.packet.getId() + "\t" + e.status() + "\t" + e.packet);
-        });
+        log.stats("Packets sent: " + sent + ", lost: " + recoveryManager.getLost());
+    }
+
+    public StreamScheduler getStreamScheduler() {
+        return streamScheduler;
     }
 
     public CongestionController getCongestionController() {
@@ -315,6 +734,13 @@ public class Sender implements ProbeSender, FrameProcessor {
         Statistics stats = new Statistics();
         stats.setSent(sent);
         stats.setLost(recoveryManager.getLost());
+        stats.setSpuriousRetransmissions(recoveryManager.getSpuriouslyLost());
+        stats.setPacketReorderingThreshold(recoveryManager.getPacketThreshold());
+        stats.setTimeReorderingThreshold(recoveryManager.getTimeThreshold());
+        stats.setControlFramesSent(controlFramesSent);
+        stats.setAverageControlFrameWaitTime(controlFramesSent > 0? totalControlFrameWaitTime / controlFramesSent: 0);
+        stats.setMaxControlFrameWaitTime(maxControlFrameWaitTime);
+        stats.setBandwidthEstimate(recoveryManager.getBandwidthEstimate());
         return stats;
     }
 
@@ -322,9 +748,7 @@ public class Sender implements ProbeSender, FrameProcessor {
     public void sendProbe() {
         QuicPacket packet = connection.createPacket(EncryptionLevel.App, new PingFrame());
         packet.addFrame(new Padding(3));
-        mustSendProbe = true;
-        send(packet, "probe with ping", f -> {});
-        senderThread.interrupt();
+        sendProbe(packet, "probe with ping");
     }
 
     @Override
@@ -333,41 +757,46 @@ public class Sender implements ProbeSender, FrameProcessor {
         for (int i = 1; i < frames.size(); i++) {
             packet.addFrame(frames.get(i));
         }
-        mustSendProbe = true;  // TODO: when two probes are sent in quick succession, the first might reset this flag, so the second might be stopped by the congestion controller
-        send(packet, "probe with data", f -> {});
-        senderThread.interrupt();
+        sendProbe(packet, "probe with data");
     }
 
-    public void stopRecovery(PnSpace level) {
-        recoveryManager.stopRecovery(level);
+    /**
+     * Sends the probe right away, i.e. before queued packets and frames.
+     */
+    private void sendProbe(QuicPacket packet, String logMessage) {
+        log.debug("queing probe " + packet);
+        probeQueue.add(new WaitingPacket(packet, logMessage, f -> {}));
+        wakeup();
+    }
+
+    @Override
+    public void bytesInFlightIncreased(long bytesInFlight) {
+    }
+
+    @Override
+    public void bytesInFlightDecreased(long bytesInFlight) {
+        // Congestion controller might allow sending more now.
+        wakeup();
     }
 
-    public void changeAddress(DatagramSocket newSocket) {
-        this.socket = newSocket;
+    public void stopRecovery(PnSpace level) {
+        recoveryManager.stopRecovery(level);
     }
 
 
-    private static class PacketAckStatus {
-        final Instant timeSent;
+    private static class PreparedPacket {
         final QuicPacket packet;
-        public boolean resent;
-        boolean acked;
+        final long packetNumber;
+        final Keys keys;
+        final String logMessage;
+        final Consumer<QuicPacket> packetLostCallback;
 
-        public PacketAckStatus(Instant sent, QuicPacket packet) {
-            this.timeSent = sent;
+        public PreparedPacket(QuicPacket packet, long packetNumber, Keys keys, String logMessage, Consumer<QuicPacket> packetLostCallback) {
             this.packet = packet;
-        }
-
-        public String status() {
-            if (acked) {
-                return "Acked";
-            }
-            else if (resent) {
-                return "Resent";
-            }
-            else {
-                return "-";
-            }
+            this.packetNumber = packetNumber;
+            this.keys = keys;
+            this.logMessage = logMessage;
+            this.packetLostCallback = packetLostCallback;
         }
     }
 
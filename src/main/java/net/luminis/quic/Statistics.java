@@ -4,6 +4,13 @@ public class Statistics {
 
     long lost;
     private long sent;
+    private long spuriousRetransmissions;
+    private int packetReorderingThreshold;
+    private float timeReorderingThreshold;
+    private long controlFramesSent;
+    private long averageControlFrameWaitTime;
+    private long maxControlFrameWaitTime;
+    private long bandwidthEstimate;
 
     public long getLost() {
         return lost;
@@ -15,7 +22,10 @@ public class Statistics {
 
     @Override
     public String toString() {
-        return "Sent: " + sent + "; lost: " + lost;
+        return "Sent: " + sent + "; lost: " + lost + " (spurious: " + spuriousRetransmissions + ")"
+                + "; reordering threshold: " + packetReorderingThreshold + " packets / " + timeReorderingThreshold + " rtt"
+                + "; control frames sent: " + controlFramesSent + " (wait avg/max: " + averageControlFrameWaitTime + "/" + maxControlFrameWaitTime + " us)"
+                + "; bandwidth estimate: " + bandwidthEstimate + " B/s";
     }
 
     public void setSent(long sent) {
@@ -25,4 +35,80 @@ public class Statistics {
     public long getSent() {
         return sent;
     }
+
+    /**
+     * @return  the number of packets that were declared lost (and thus retransmitted), but were acknowledged later on
+     */
+    public long getSpuriousRetransmissions() {
+        return spuriousRetransmissions;
+    }
+
+    public void setSpuriousRetransmissions(long spuriousRetransmissions) {
+        this.spuriousRetransmissions = spuriousRetransmissions;
+    }
+
+    /**
+     * @return  the number of later packets that must be acknowledged before a packet is declared lost
+     */
+    public int getPacketReorderingThreshold() {
+        return packetReorderingThreshold;
+    }
+
+    public void setPacketReorderingThreshold(int packetReorderingThreshold) {
+        this.packetReorderingThreshold = packetReorderingThreshold;
+    }
+
+    /**
+     * @return  the time (as a multiple of the rtt) after which a packet is declared lost when a later packet is
+     * acknowledged
+     */
+    public float getTimeReorderingThreshold() {
+        return timeReorderingThreshold;
+    }
+
+    public void setTimeReorderingThreshold(float timeReorderingThreshold) {
+        this.timeReorderingThreshold = timeReorderingThreshold;
+    }
+
+    public long getControlFramesSent() {
+        return controlFramesSent;
+    }
+
+    public void setControlFramesSent(long controlFramesSent) {
+        this.controlFramesSent = controlFramesSent;
+    }
+
+    /**
+     * @return  average time (in microseconds) control frames (e.g. flow control updates) were waiting to be sent
+     */
+    public long getAverageControlFrameWaitTime() {
+        return averageControlFrameWaitTime;
+    }
+
+    public void setAverageControlFrameWaitTime(long averageControlFrameWaitTime) {
+        this.averageControlFrameWaitTime = averageControlFrameWaitTime;
+    }
+
+    /**
+     * @return  maximum time (in microseconds) a control frame was waiting to be sent
+     */
+    public long getMaxControlFrameWaitTime() {
+        return maxControlFrameWaitTime;
+    }
+
+    public void setMaxControlFrameWaitTime(long maxControlFrameWaitTime) {
+        this.maxControlFrameWaitTime = maxControlFrameWaitTime;
+    }
+
+    /**
+     * @return  the estimated bandwidth of the connection (in bytes per second), based on the delivery rate of recently
+     * acknowledged packets; 0 when no estimate is available yet.
+     */
+    public long getBandwidthEstimate() {
+        return bandwidthEstimate;
+    }
+
+    public void setBandwidthEstimate(long bandwidthEstimate) {
+        this.bandwidthEstimate = bandwidthEstimate;
+    }
 }
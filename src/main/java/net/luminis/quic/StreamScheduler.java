@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.frame.QuicFrame;
+import net.luminis.quic.frame.StreamFrame;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+
+/**
+ * Send request queue that decides which stream's data is sent next, so that one stream sending large amounts of data
+ * cannot starve the others. Frames that do not belong to a stream are sent first, in order of arrival. Stream frames
+ * are queued per stream; the stream to take the next frame from is selected according to the scheduling policy:
+ * - round robin: streams take turns, one frame per turn;
+ * - weighted fair: streams get a share of the bandwidth proportional to their weight;
+ * - priority: as in HTTP/3 extensible priorities (RFC 9218): streams with the lowest urgency value are served first;
+ *   within the same urgency, non-incremental streams are served one at a time in order of stream id, incremental
+ *   streams take turns.
+ */
+public class StreamScheduler extends SendRequestQueue {
+
+    public enum Policy {
+        RoundRobin,
+        WeightedFair,
+        Priority
+    }
+
+    public static final int DEFAULT_URGENCY = 3;
+    public static final int MAX_URGENCY = 7;
+    public static final int DEFAULT_WEIGHT = 16;
+    public static final int MAX_WEIGHT = 256;
+
+    private final Deque<SendRequest> otherFrames = new ArrayDeque<>();
+    private final Map<Integer, StreamQueue> streams = new HashMap<>();
+    private final Map<Integer, StreamPriority> priorities = new HashMap<>();
+    private Policy policy;
+    private Comparator<StreamQueue> order;
+    private long sequence;
+    private long virtualTime;
+
+    public StreamScheduler() {
+        this(Policy.RoundRobin);
+    }
+
+    public StreamScheduler(Policy policy) {
+        setPolicy(policy);
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+        switch (policy) {
+            case RoundRobin:
+                order = Comparator.comparingLong(queue -> queue.lastServed);
+                break;
+            case WeightedFair:
+                order = Comparator.<StreamQueue>comparingLong(queue -> queue.startTag).thenComparingLong(queue -> queue.lastServed);
+                break;
+            case Priority:
+                order = Comparator.<StreamQueue>comparingInt(queue -> queue.priority.urgency)
+                        .thenComparing(queue -> queue.priority.incremental)
+                        .thenComparingLong(queue -> queue.priority.incremental? queue.lastServed: queue.streamId);
+                break;
+        }
+    }
+
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets the priority parameters of the given stream.
+     * @param streamId
+     * @param urgency  0 (most urgent) to 7 (least urgent); only used by the priority policy
+     * @param incremental  whether the stream's data can be interleaved with other streams with the same urgency;
+     *                     only used by the priority policy
+     * @param weight  1 to 256; only used by the weighted fair policy
+     */
+    public synchronized void setPriority(int streamId, int urgency, boolean incremental, int weight) {
+        if (urgency < 0 || urgency > MAX_URGENCY || weight < 1 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException();
+        }
+        StreamPriority priority = new StreamPriority(urgency, incremental, weight);
+        priorities.put(streamId, priority);
+        StreamQueue queue = streams.get(streamId);
+        if (queue != null) {
+            queue.priority = priority;
+        }
+    }
+
+    /**
+     * Removes priority information of a stream that will not send any more data. Frames of the stream that are still
+     * queued are sent with the priority they had; frames queued later (e.g. retransmissions) get the default priority.
+     * @param streamId
+     */
+    public synchronized void removeStream(int streamId) {
+        priorities.remove(streamId);
+    }
+
+    @Override
+    public synchronized void addRequest(QuicFrame frame, Consumer<QuicFrame> lostCallback) {
+        SendRequest request = new SendRequest(frame, lostCallback);
+        if (frame instanceof StreamFrame) {
+            int streamId = ((StreamFrame) frame).getStreamId();
+            StreamQueue queue = streams.get(streamId);
+            if (queue == null) {
+                queue = new StreamQueue(streamId, priorities.getOrDefault(streamId, StreamPriority.DEFAULT));
+                // A stream that (re)starts sending, joins at the end of the line.
+                queue.lastServed = ++sequence;
+                queue.startTag = virtualTime;
+                streams.put(streamId, queue);
+            }
+            queue.requests.addLast(request);
+        }
+        else {
+            otherFrames.addLast(request);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasRequests() {
+        return !otherFrames.isEmpty() || !streams.isEmpty();
+    }
+
+    @Override
+    public synchronized int peekSize() {
+        if (!otherFrames.isEmpty()) {
+            return otherFrames.peekFirst().getEstimatedSize();
+        }
+        StreamQueue next = selectStream(Integer.MAX_VALUE);
+        return next != null? next.requests.peekFirst().getEstimatedSize(): 0;
+    }
+
+    @Override
+    public synchronized Optional<SendRequest> next(int maxFrameSize) {
+        Iterator<SendRequest> iterator = otherFrames.iterator();
+        while (iterator.hasNext()) {
+            SendRequest request = iterator.next();
+            if (request.getEstimatedSize() <= maxFrameSize) {
+                iterator.remove();
+                return Optional.of(request);
+            }
+        }
+
+        StreamQueue queue = selectStream(maxFrameSize);
+        if (queue == null) {
+            return Optional.empty();
+        }
+        SendRequest request = queue.requests.removeFirst();
+        queue.lastServed = ++sequence;
+        virtualTime = queue.startTag;
+        queue.startTag += (long) request.getEstimatedSize() * MAX_WEIGHT / queue.priority.weight;
+        if (queue.requests.isEmpty()) {
+            streams.remove(queue.streamId);
+        }
+        return Optional.of(request);
+    }
+
+    @Override
+    public synchronized void clear() {
+        otherFrames.clear();
+        streams.clear();
+        priorities.clear();
+    }
+
+    /**
+     * Selects the stream to send from next, i.e. the first stream (according to the policy) whose first frame fits.
+     */
+    private StreamQueue selectStream(int maxFrameSize) {
+        StreamQueue selected = null;
+        for (StreamQueue queue: streams.values()) {
+            if (queue.requests.peekFirst().getEstimatedSize() <= maxFrameSize) {
+                if (selected == null || order.compare(queue, selected) < 0) {
+                    selected = queue;
+                }
+            }
+        }
+        return selected;
+    }
+
+    private static class StreamPriority {
+        static final StreamPriority DEFAULT = new StreamPriority(DEFAULT_URGENCY, false, DEFAULT_WEIGHT);
+
+        final int urgency;
+        final boolean incremental;
+        final int weight;
+
+        StreamPriority(int urgency, boolean incremental, int weight) {
+            this.urgency = urgency;
+            this.incremental = incremental;
+            this.weight = weight;
+        }
+    }
+
+    private static class StreamQueue {
+        final int streamId;
+        final Deque<SendRequest> requests = new ArrayDeque<>();
+        StreamPriority priority;
+        long lastServed;
+        long startTag;
+
+        StreamQueue(int streamId, StreamPriority priority) {
+            this.streamId = streamId;
+            this.priority = priority;
+        }
+    }
+}
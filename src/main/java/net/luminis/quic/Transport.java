@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.concurrent.EventLoop;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram transport for a single connection, i.e. for sending datagrams to and receiving datagrams from one peer.
+ */
+public interface Transport {
+
+    /**
+     * Sends the datagram contained in the given buffer, i.e. the bytes between position and limit. When the socket send
+     * buffer is full, blocks until the datagram can be sent; except when the transport is registered with an event
+     * loop: then the datagram is kept and sent as soon as the socket is writable (see <code>isSendBlocked</code>).
+     * @param datagram
+     * @throws IOException
+     */
+    void send(ByteBuffer datagram) throws IOException;
+
+    /**
+     * @return  whether (for a transport registered with an event loop) datagrams are kept because the socket send buffer
+     *          was full; if so, no more datagrams should be sent until the writable handler is called
+     */
+    boolean isSendBlocked();
+
+    /**
+     * Sets the handler that is called (on the event loop) when all datagrams that were kept because the socket send
+     * buffer was full, are sent.
+     * @param writableHandler
+     */
+    void setWritableHandler(Runnable writableHandler);
+
+    /**
+     * Receives a datagram into the given buffer, starting at the buffer's position. Blocks until a datagram is
+     * received or the transport is closed.
+     * @param buffer
+     * @return  the length of the received datagram, or -1 when the transport is closed
+     * @throws IOException
+     */
+    int receive(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Receives a datagram into the given buffer, if one is available; does not block.
+     * @param buffer
+     * @return  the length of the received datagram, 0 when no datagram is available, or -1 when the transport is closed
+     * @throws IOException
+     */
+    int tryReceive(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Registers the transport with the given event loop, which will call the read handler whenever datagrams can be
+     * received (with <code>tryReceive</code>). A registered transport must not be used for blocking receives.
+     * @param eventLoop
+     * @param readHandler
+     */
+    void register(EventLoop eventLoop, Runnable readHandler);
+
+    /**
+     * Switches to a new local address (port), while keeping the same peer. Datagrams sent after this method returns
+     * are sent from the new local address; datagrams arriving at the old local address are no longer received.
+     * @throws IOException
+     */
+    void changeLocalAddress() throws IOException;
+
+    InetSocketAddress getLocalAddress();
+
+    void close();
+}
@@ -186,6 +186,26 @@ public class VariableLengthInteger {
         }
     }
 
+    /**
+     * Returns the number of bytes the variable-length encoding of the given value takes.
+     * @param value
+     * @return
+     */
+    public static int bytesNeeded(long value) {
+        if (value <= 63) {
+            return 1;
+        }
+        else if (value <= 16383) {
+            return 2;
+        }
+        else if (value <= 1073741823) {
+            return 4;
+        }
+        else {
+            return 8;
+        }
+    }
+
     public static void main(String[] args) throws InvalidIntegerEncodingException {
         for (int i = 0; i < args.length; i++) {
             long value = parseLong(ByteBuffer.wrap(ByteUtils.hexToBytes(args[i])));
@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+/**
+ * Max filter over a window of (packet-timed) round trips, keeping one (max) sample per round trip.
+ */
+class WindowedMaxFilter {
+
+    private final int length;
+    private final long[] samples;
+    private final long[] sampleRounds;
+    private long max;
+
+    /**
+     * @param length  the length of the window, in round trips
+     */
+    WindowedMaxFilter(int length) {
+        this.length = length;
+        samples = new long[length];
+        sampleRounds = new long[length];
+    }
+
+    /**
+     * Adds a sample taken in the given round and returns the (updated) max of the window.
+     */
+    long update(long sample, long round) {
+        int slot = (int) (round % length);
+        if (sampleRounds[slot] != round) {
+            sampleRounds[slot] = round;
+            samples[slot] = sample;
+        }
+        else if (sample > samples[slot]) {
+            samples[slot] = sample;
+        }
+        max = 0;
+        for (int i = 0; i < length; i++) {
+            if (round - sampleRounds[i] < length && samples[i] > max) {
+                max = samples[i];
+            }
+        }
+        return max;
+    }
+
+    long get() {
+        return max;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.concurrent;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Single (daemon) thread that waits for channels to become readable (or writable) and executes submitted tasks.
+ * Read handlers and tasks of one event loop never run concurrently; they must not block, as that would hold up all
+ * other channels and tasks of the loop.
+ */
+public class EventLoop implements Executor {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Executes the given task on the event loop thread.
+     * @param task
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers the channel with this event loop; the read handler will be called (on the event loop thread) whenever
+     * the channel is readable. The registration ends when the channel is closed.
+     * @param channel    a non-blocking channel
+     * @param readHandler
+     */
+    public void registerForRead(SelectableChannel channel, Runnable readHandler) {
+        execute(() -> register(channel, SelectionKey.OP_READ, readHandler));
+    }
+
+    /**
+     * Registers the channel with this event loop for a single write: the write handler will be called once (on the
+     * event loop thread), as soon as the channel is writable. Does not affect a registration for read.
+     * @param channel    a non-blocking channel
+     * @param writeHandler
+     */
+    public void registerForWrite(SelectableChannel channel, Runnable writeHandler) {
+        execute(() -> register(channel, SelectionKey.OP_WRITE, writeHandler));
+    }
+
+    private void register(SelectableChannel channel, int operation, Runnable handler) {
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                ((Handlers) key.attachment()).set(operation, handler);
+                key.interestOps(key.interestOps() | operation);
+            }
+            else {
+                Handlers handlers = new Handlers();
+                handlers.set(operation, handler);
+                channel.register(selector, operation, handlers);
+            }
+        }
+        catch (ClosedChannelException | CancelledKeyException closed) {
+            // Channel closed before it could be registered, nothing to do.
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                }
+                else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    if (key.isValid()) {
+                        Handlers handlers = (Handlers) key.attachment();
+                        int ready = key.readyOps();
+                        if ((ready & SelectionKey.OP_WRITE) != 0) {
+                            // Write handlers are called only once
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            Runnable writeHandler = handlers.writeHandler;
+                            handlers.writeHandler = null;
+                            runSafely(writeHandler);
+                        }
+                        if ((ready & SelectionKey.OP_READ) != 0 && key.isValid()) {
+                            runSafely(handlers.readHandler);
+                        }
+                    }
+                }
+
+                Runnable task;
+                while (running && (task = tasks.poll()) != null) {
+                    runSafely(task);
+                }
+            }
+        }
+        catch (IOException | ClosedSelectorException selectorError) {
+            // Fatal for this event loop, so stop it.
+        }
+        finally {
+            running = false;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore, closing anyway
+            }
+        }
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        }
+        catch (Throwable error) {
+            // A failing task (or handler) must not terminate the event loop, as other channels or tasks depend on it.
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, error);
+        }
+    }
+
+    // Only accessed by the event loop thread.
+    private static class Handlers {
+        Runnable readHandler;
+        Runnable writeHandler;
+
+        void set(int operation, Runnable handler) {
+            if (operation == SelectionKey.OP_READ) {
+                readHandler = handler;
+            }
+            else {
+                writeHandler = handler;
+            }
+        }
+    }
+}
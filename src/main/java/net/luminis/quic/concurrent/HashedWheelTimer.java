@@ -0,0 +1,372 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer for the many short timeouts of QUIC connections (loss detection, probe timeout, idle timeout, keep alive), that
+ * are (re)armed and cancelled far more often than they expire. Timeouts are kept in a hashed timing wheel: a ring of
+ * buckets that is advanced by a single (daemon) thread, so (re)scheduling and cancelling is just unlinking and linking a
+ * list node, and any number of connections can share one timer thread. The thread does not wake up every tick, but
+ * sleeps until the first tick that has a non-empty bucket.
+ * A timeout never expires before its deadline, but may expire up to one tick later.
+ */
+public class HashedWheelTimer {
+
+    public static final long DEFAULT_TICK_MILLIS = 1;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static volatile HashedWheelTimer sharedTimer;
+
+    private final Object lock = new Object();
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startTime;
+    private final Executor defaultExecutor;
+    private final Thread thread;
+    // Guarded by lock
+    private long currentTick;
+    private int pending;
+    private boolean running = true;
+    // The tick the timer thread is waiting for, or 0 when it is not waiting.
+    private long wakeupTick;
+    private long wakeups;
+
+    /**
+     * Creates a timer with a resolution of one millisecond that executes expired tasks that have no executor of their
+     * own directly on the timer thread.
+     * @param threadName
+     */
+    public HashedWheelTimer(String threadName) {
+        this(threadName, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, Runnable::run);
+    }
+
+    /**
+     * @param threadName
+     * @param tickMillis       the duration of one tick, which is the resolution of the timer
+     * @param wheelSize        number of buckets, will be rounded up to a power of two
+     * @param defaultExecutor  executor for expired tasks that have no executor of their own
+     */
+    public HashedWheelTimer(String threadName, long tickMillis, int wheelSize, Executor defaultExecutor) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tick must be at least 1 ms");
+        }
+        if (wheelSize < 1 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("invalid wheel size");
+        }
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        wheel = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = wheel.length - 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.defaultExecutor = defaultExecutor;
+        startTime = System.nanoTime();
+
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the process wide timer that is used by connections that are not created with a QuicRuntime, so there are
+     * no timer threads per connection. Its expired tasks are executed on the timer thread, so tasks never run
+     * concurrently with each other; hence they must not block.
+     * @return
+     */
+    public static HashedWheelTimer shared() {
+        if (sharedTimer == null) {
+            synchronized (HashedWheelTimer.class) {
+                if (sharedTimer == null) {
+                    sharedTimer = new HashedWheelTimer("kwik-timer");
+                }
+            }
+        }
+        return sharedTimer;
+    }
+
+    /**
+     * Creates a (not yet scheduled) timeout for the given task, that will be executed with the default executor of
+     * this timer.
+     * @param task
+     * @return
+     */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(task, defaultExecutor);
+    }
+
+    /**
+     * Creates a (not yet scheduled) timeout for the given task, that will be executed with the given executor.
+     * @param task
+     * @param executor
+     * @return
+     */
+    public Timeout newTimeout(Runnable task, Executor executor) {
+        return new Timeout(task, executor != null? executor: defaultExecutor);
+    }
+
+    /**
+     * Stops the timer thread; pending timeouts will not expire anymore.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return  the resolution of this timer in nanoseconds; a timeout may expire up to this much after its deadline
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    int pending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    long wakeups() {
+        synchronized (lock) {
+            return wakeups;
+        }
+    }
+
+    private void run() {
+        List<Expired> expired = new ArrayList<>();
+        while (true) {
+            synchronized (lock) {
+                while (running && expired.isEmpty()) {
+                    advance(expired);
+                    if (expired.isEmpty()) {
+                        waitForNextBucket();
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+            }
+
+            for (Expired timeout: expired) {
+                timeout.submit();
+            }
+            expired.clear();
+        }
+    }
+
+    private void advance(List<Expired> expired) {
+        // Bring the current tick up to date, collecting what has expired in the buckets passed. When the timer has been
+        // asleep for a while, visiting each bucket once is enough to find everything that is due.
+        wakeups++;
+        long lastTick = (System.nanoTime() - startTime) / tickNanos;
+        for (long tick = Math.max(currentTick + 1, lastTick - mask); tick <= lastTick && pending > 0; tick++) {
+            wheel[(int) (tick & mask)].expire(lastTick, expired);
+        }
+        currentTick = Math.max(currentTick, lastTick);
+    }
+
+    private void waitForNextBucket() {
+        // Sleep until the first tick that has a non-empty bucket (which might hold only timeouts of a later revolution),
+        // or until a timeout is scheduled for an earlier tick.
+        long nextTick = Long.MAX_VALUE;
+        if (pending > 0) {
+            for (long tick = currentTick + 1; tick <= currentTick + wheel.length; tick++) {
+                if (wheel[(int) (tick & mask)].head != null) {
+                    nextTick = tick;
+                    break;
+                }
+            }
+        }
+        wakeupTick = nextTick;
+        try {
+            if (nextTick == Long.MAX_VALUE) {
+                lock.wait();
+            }
+            else {
+                long sleep = nextTick * tickNanos - (System.nanoTime() - startTime);
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, sleep);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            running = false;
+        }
+        wakeupTick = 0;
+    }
+
+    /**
+     * Handle for a task that can be (re)scheduled and cancelled any number of times. Rescheduling replaces the current
+     * deadline; when a timeout is cancelled or rescheduled, a previous expiration that has not yet started running
+     * will not run.
+     */
+    public class Timeout {
+
+        private final Runnable task;
+        private final Executor executor;
+        // Guarded by the timer lock
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+        private long deadlineTick;
+        private long generation;
+
+        private Timeout(Runnable task, Executor executor) {
+            this.task = task;
+            this.executor = executor;
+        }
+
+        /**
+         * (Re)schedules this timeout to expire after the given delay; a delay of zero (or less) lets it expire on the
+         * next tick.
+         * @param delayMillis
+         */
+        public void schedule(long delayMillis) {
+            schedule(delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public void schedule(long delay, TimeUnit unit) {
+            long deadline = System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0);
+            // Round up, to guarantee the timeout does not expire before the deadline.
+            long tick = (deadline + tickNanos - 1) / tickNanos;
+            synchronized (lock) {
+                if (!running) {
+                    return;
+                }
+                unlink();
+                generation++;
+                deadlineTick = Math.max(tick, currentTick + 1);
+                bucket = wheel[(int) (deadlineTick & mask)];
+                bucket.add(this);
+                pending++;
+                if (deadlineTick < wakeupTick) {
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        public void cancel() {
+            synchronized (lock) {
+                unlink();
+                generation++;
+            }
+        }
+
+        public boolean isScheduled() {
+            synchronized (lock) {
+                return bucket != null;
+            }
+        }
+
+        private void unlink() {
+            if (bucket != null) {
+                bucket.remove(this);
+                bucket = null;
+                pending--;
+            }
+        }
+    }
+
+    private class Expired implements Runnable {
+        private final Timeout timeout;
+        private final long generation;
+
+        Expired(Timeout timeout) {
+            this.timeout = timeout;
+            this.generation = timeout.generation;
+        }
+
+        void submit() {
+            try {
+                timeout.executor.execute(this);
+            }
+            catch (RuntimeException rejected) {
+                // Executor is shut down, so the owner of the timeout is gone.
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (timeout.generation != generation || timeout.bucket != null) {
+                    // Cancelled or rescheduled after it expired.
+                    return;
+                }
+            }
+            try {
+                timeout.task.run();
+            }
+            catch (Throwable error) {
+                // A failing task must not terminate the timer thread, as other tasks depend on it.
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, error);
+            }
+        }
+    }
+
+    private class Bucket {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.previous = null;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        void expire(long tick, List<Expired> expired) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                // Timeouts that are more than one revolution ahead share the bucket, but are not yet due.
+                if (timeout.deadlineTick <= tick) {
+                    remove(timeout);
+                    timeout.bucket = null;
+                    pending--;
+                    expired.add(new Expired(timeout));
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -25,12 +25,13 @@ import net.luminis.quic.log.Logger;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * https://tools.ietf.org/html/draft-ietf-quic-transport-17#section-19.3.1
+ * The acknowledged packet numbers are kept as ranges: pairs of (largest, smallest) packet number, ordered from the
+ * range containing the largest acknowledged to the range containing the smallest.
  */
 public class AckFrame extends QuicFrame {
 
@@ -39,11 +40,11 @@ public class AckFrame extends QuicFrame {
     private byte[] frameBytes;
     private long largestAcknowledged;
     private int ackDelay;
-    private List<Long> acknowledgedPacketNumbers;
+    private long[] ackRanges;
+    private int rangeCount;
     // https://tools.ietf.org/html/draft-ietf-quic-transport-18#section-19.3
     // "The "ack_delay_exponent" defaults to 3, or a multiplier of 8"
     private int delayScale = 8;
-    private String stringRepresentation = "";
 
     public AckFrame() {
     }
@@ -53,21 +54,7 @@ public class AckFrame extends QuicFrame {
     }
 
     public AckFrame(Version quicVersion, long packetNumber) {
-        largestAcknowledged = (int) packetNumber;
-        acknowledgedPacketNumbers = List.of(largestAcknowledged);
-        stringRepresentation = String.valueOf(largestAcknowledged);
-
-        ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME_SIZE);
-        buffer.put((byte) 0x02);
-
-        VariableLengthInteger.encode(packetNumber, buffer);
-        VariableLengthInteger.encode(0, buffer);
-        VariableLengthInteger.encode(0, buffer);
-        VariableLengthInteger.encode(0, buffer);
-
-        frameBytes = new byte[buffer.position()];
-        buffer.flip();
-        buffer.get(frameBytes);
+        this(quicVersion, new long[] { packetNumber, packetNumber });
     }
 
     public AckFrame(List<Long> packetNumbers) {
@@ -75,39 +62,68 @@ public class AckFrame extends QuicFrame {
     }
 
     public AckFrame(Version quicVersion, List<Long> packetNumbers) {
-        if (packetNumbers.isEmpty()) {
+        this(quicVersion, toRanges(packetNumbers));
+    }
+
+    /**
+     * Creates an ack frame for the given ranges.
+     * @param quicVersion
+     * @param ackRanges  pairs of (largest, smallest) packet number of each range, in descending order and not adjacent
+     *                   or overlapping; when not all ranges fit in the frame, the ranges with the smallest packet
+     *                   numbers are left out.
+     */
+    public AckFrame(Version quicVersion, long[] ackRanges) {
+        this(quicVersion, ackRanges, 0);
+    }
+
+    /**
+     * Creates an ack frame for the given ranges, with the given ack delay.
+     * @param quicVersion
+     * @param ackRanges  pairs of (largest, smallest) packet number of each range, see above
+     * @param ackDelay   ack delay in microseconds; it is encoded with the default ack delay exponent, as that is the
+     *                   one the peer assumes.
+     */
+    public AckFrame(Version quicVersion, long[] ackRanges, int ackDelay) {
+        if (ackRanges.length < 2 || ackRanges.length % 2 != 0) {
             throw new IllegalArgumentException();
         }
-        acknowledgedPacketNumbers = packetNumbers.stream().sorted(Comparator.reverseOrder()).collect(Collectors.toList());
-        largestAcknowledged = acknowledgedPacketNumbers.get(0);
+        largestAcknowledged = ackRanges[0];
+        // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-19.3
+        // "ACK Delay:  A variable-length integer representing the time delta in microseconds between when this ACK was
+        //  sent and when the largest acknowledged packet, as indicated in the Largest Acknowledged field, was received
+        //  by this peer.  The value of the ACK Delay field is scaled by multiplying the encoded value by 2 to the power
+        //  of the value of the ack_delay_exponent transport parameter set by the sender of the ACK frame"
+        this.ackDelay = ackDelay / delayScale;
 
         ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME_SIZE);
         buffer.put((byte) 0x02);
-
         VariableLengthInteger.encode(largestAcknowledged, buffer);
-        VariableLengthInteger.encode(ackDelay, buffer);
-        ArrayList<List<Long>> ranges = split(acknowledgedPacketNumbers);
-        VariableLengthInteger.encode(ranges.size() - 1, buffer);
-        VariableLengthInteger.encode(ranges.get(0).size() - 1, buffer);
-
-        for (int i = 1; i < ranges.size(); i++) {
-            long prev = getLastElement(ranges.get(i-1));
-            long next = ranges.get(i).get(0);
-            int gap = (int) (prev - next - 2);
-            int block = ranges.get(i).size() - 1;
-            VariableLengthInteger.encode(gap, buffer);
-            VariableLengthInteger.encode(block, buffer);
-        }
-
-        if (!ranges.isEmpty()) {
-            stringRepresentation = ranges.stream().map(range ->
-                    range.size() == 1 ?
-                            range.get(0).toString() :
-                            range.get(0).toString() + "-" + range.get(range.size() - 1).toString())
-                    .collect(Collectors.joining(","));
+        VariableLengthInteger.encode(this.ackDelay, buffer);
+
+        // The ack range count precedes the ranges, so determine how many ranges fit before encoding them.
+        int count = 1;
+        int length = buffer.position() + 8 + VariableLengthInteger.bytesNeeded(ackRanges[0] - ackRanges[1]);
+        while (count < ackRanges.length / 2) {
+            long gap = ackRanges[2 * count - 1] - ackRanges[2 * count] - 2;
+            long block = ackRanges[2 * count] - ackRanges[2 * count + 1];
+            int rangeLength = VariableLengthInteger.bytesNeeded(gap) + VariableLengthInteger.bytesNeeded(block);
+            if (length + rangeLength > MAX_FRAME_SIZE) {
+                break;
+            }
+            length += rangeLength;
+            count++;
         }
-        else {
-            stringRepresentation = String.valueOf(largestAcknowledged);
+        this.ackRanges = count == ackRanges.length / 2? ackRanges: Arrays.copyOf(ackRanges, 2 * count);
+        rangeCount = count;
+
+        VariableLengthInteger.encode(rangeCount - 1, buffer);
+        VariableLengthInteger.encode(ackRanges[0] - ackRanges[1], buffer);
+        for (int i = 1; i < rangeCount; i++) {
+            // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-19.3.1
+            // "Gap (i) = smallest(i-1) - largest(i) - 2"
+            // "ACK Range (i) = largest(i) - smallest(i)"
+            VariableLengthInteger.encode(ackRanges[2 * i - 1] - ackRanges[2 * i] - 2, buffer);
+            VariableLengthInteger.encode(ackRanges[2 * i] - ackRanges[2 * i + 1], buffer);
         }
 
         frameBytes = new byte[buffer.position()];
@@ -115,91 +131,176 @@ public class AckFrame extends QuicFrame {
         buffer.get(frameBytes);
     }
 
-    private ArrayList<List<Long>> split(List<Long> packetNumbers) {
-        return packetNumbers.stream().collect(
-                ArrayList::new,
-                (result, element) -> {
-                    if (result.isEmpty()) {
-                        result.add(new ArrayList<>());
-                        getLastElement(result).add(element);
-                    }
-                    else if (getLastElement(getLastElement(result)) == element + 1) {
-                        getLastElement(result).add(element);
-                    }
-                    else {
-                        result.add(new ArrayList<>());
-                        getLastElement(result).add(element);
-                    }
-                },
-                ArrayList::addAll
-                );
-    }
-
-    private static <E> E getLastElement(List<E> list) {
-        return list.get(list.size()-1);
+    private static long[] toRanges(List<Long> packetNumbers) {
+        if (packetNumbers.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        long[] sorted = new long[packetNumbers.size()];
+        int index = 0;
+        for (Long packetNumber: packetNumbers) {
+            sorted[index++] = packetNumber;
+        }
+        Arrays.sort(sorted);
+
+        long[] ranges = new long[2 * sorted.length];
+        int count = 0;
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            long pn = sorted[i];
+            if (count > 0 && (pn == ranges[2 * count - 1] || pn == ranges[2 * count - 1] - 1)) {
+                // Extends current range (or is a duplicate)
+                ranges[2 * count - 1] = pn;
+            }
+            else {
+                ranges[2 * count] = pn;
+                ranges[2 * count + 1] = pn;
+                count++;
+            }
+        }
+        return Arrays.copyOf(ranges, 2 * count);
     }
 
     public AckFrame parse(ByteBuffer buffer, Logger log) throws InvalidIntegerEncodingException {
         log.debug("Parsing AckFrame");
-        acknowledgedPacketNumbers = new ArrayList<>();
 
         buffer.get();  // Eat type.
 
-        largestAcknowledged = VariableLengthInteger.parse(buffer);
+        largestAcknowledged = VariableLengthInteger.parseLong(buffer);
 
         ackDelay = VariableLengthInteger.parse(buffer);
 
         int ackBlockCount = VariableLengthInteger.parse(buffer);
 
-        long currentSmallest = largestAcknowledged;
+        // Each range takes at least two bytes, so a (bogus) large count cannot make us allocate more than the buffer holds.
+        ackRanges = new long[2 * (1 + Integer.min(ackBlockCount, buffer.remaining() / 2))];
+        rangeCount = 0;
+
         // The smallest of the first block is the largest - (rangeSize - 1).
-        currentSmallest -= addAcknowledgeRange(largestAcknowledged, 1 + VariableLengthInteger.parse(buffer)) - 1;
+        long currentSmallest = addAcknowledgeRange(largestAcknowledged, 1 + VariableLengthInteger.parseLong(buffer));
 
         for (int i = 0; i < ackBlockCount; i++) {
             // https://tools.ietf.org/html/draft-ietf-quic-transport-17#section-19.3.1:
             // "Each Gap indicates a range of packets that are not being
             //   acknowledged.  The number of packets in the gap is one higher than
             //   the encoded value of the Gap Field."
-            int gapSize = VariableLengthInteger.parse(buffer) + 1;
+            long gapSize = VariableLengthInteger.parseLong(buffer) + 1;
             // https://tools.ietf.org/html/draft-ietf-quic-transport-17#section-19.3.1:
             // "Each ACK Block acknowledges a contiguous range of packets by
             //   indicating the number of acknowledged packets that precede the
             //   largest packet number in that block.  A value of zero indicates that
             //   only the largest packet number is acknowledged."
-            int contiguousPacketsPreceding = VariableLengthInteger.parse(buffer) + 1;
+            long contiguousPacketsPreceding = VariableLengthInteger.parseLong(buffer) + 1;
             // The largest of the next range is the current smallest - (gap size + 1), because the gap size counts the
             // ones not being present, and we need the first (below) being present.
-            // The new current smallest is largest of the next range - (range size - 1)
-            //                             == current smallest - (gap size + 1) - (range size - 1)
-            //                             == current smallest - gap size - range size
-            currentSmallest -= (gapSize + addAcknowledgeRange(currentSmallest - gapSize - 1, contiguousPacketsPreceding));
+            currentSmallest = addAcknowledgeRange(currentSmallest - gapSize - 1, contiguousPacketsPreceding);
         }
 
         return this;
     }
 
-    private int addAcknowledgeRange(long largestOfRange, int rangeSize) {
-        for (int i = 0; i < rangeSize; i++) {
-            acknowledgedPacketNumbers.add(largestOfRange - i);
+    private long addAcknowledgeRange(long largestOfRange, long rangeSize) {
+        if (rangeCount * 2 == ackRanges.length) {
+            ackRanges = Arrays.copyOf(ackRanges, ackRanges.length * 2);
         }
+        long smallestOfRange = largestOfRange - rangeSize + 1;
+        ackRanges[2 * rangeCount] = largestOfRange;
+        ackRanges[2 * rangeCount + 1] = smallestOfRange;
+        rangeCount++;
+        return smallestOfRange;
+    }
+
+    /**
+     * Returns the number of ack ranges in this frame.
+     * @return
+     */
+    public int getAckRangeCount() {
+        return rangeCount;
+    }
 
-        if (! stringRepresentation.isEmpty()) {
-            stringRepresentation += ",";
+    /**
+     * Returns the largest packet number of the given range; range 0 is the range with the largest acknowledged.
+     * @param index
+     * @return
+     */
+    public long getAckRangeLargest(int index) {
+        return ackRanges[2 * checkIndex(index)];
+    }
+
+    /**
+     * Returns the smallest packet number of the given range; range 0 is the range with the largest acknowledged.
+     * @param index
+     * @return
+     */
+    public long getAckRangeSmallest(int index) {
+        return ackRanges[2 * checkIndex(index) + 1];
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= rangeCount) {
+            throw new IndexOutOfBoundsException(index);
         }
-        stringRepresentation += rangeSize > 1?
-                largestOfRange + "-" + (largestOfRange - rangeSize + 1):
-                largestOfRange;
+        return index;
+    }
 
-        return rangeSize;
+    /**
+     * Returns the smallest packet number acknowledged by this frame.
+     * @return
+     */
+    public long getSmallestAcknowledged() {
+        return ackRanges[2 * rangeCount - 1];
     }
 
+    /**
+     * Returns whether the given packet number is acknowledged by this frame.
+     * @param packetNumber
+     * @return
+     */
+    public boolean acknowledges(long packetNumber) {
+        // Binary search for the range with the smallest "largest" that is still greater than or equal to the packet number.
+        int low = 0;
+        int high = rangeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ackRanges[2 * mid] < packetNumber) {
+                high = mid - 1;
+            }
+            else if (ackRanges[2 * mid + 1] > packetNumber) {
+                low = mid + 1;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns all acknowledged packet numbers, in descending order. As the number of packet numbers can be (very) large,
+     * consumers should iterate the ack ranges instead.
+     * @return
+     */
     public List<Long> getAckedPacketNumbers() {
-        return acknowledgedPacketNumbers;
+        List<Long> packetNumbers = new ArrayList<>();
+        for (int i = 0; i < rangeCount; i++) {
+            for (long pn = ackRanges[2 * i]; pn >= ackRanges[2 * i + 1]; pn--) {
+                packetNumbers.add(pn);
+            }
+        }
+        return packetNumbers;
     }
 
     @Override
     public String toString() {
-        return "AckFrame[" + stringRepresentation + "|\u0394" + (ackDelay * delayScale) / 1000  + "]";
+        StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < rangeCount; i++) {
+            if (i > 0) {
+                ranges.append(',');
+            }
+            ranges.append(ackRanges[2 * i]);
+            if (ackRanges[2 * i + 1] != ackRanges[2 * i]) {
+                ranges.append('-').append(ackRanges[2 * i + 1]);
+            }
+        }
+        return "AckFrame[" + ranges + "|\u0394" + (ackDelay * delayScale) / 1000  + "]";
     }
 
     @Override
@@ -62,6 +62,18 @@ public class Padding extends QuicFrame {
         return new byte[length];
     }
 
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) 0x00);
+        }
+    }
+
+    @Override
+    public int getFrameLength() {
+        return length;
+    }
+
     public boolean isAckEliciting() {
         return false;
     }
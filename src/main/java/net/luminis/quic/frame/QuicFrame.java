@@ -18,11 +18,29 @@
  */
 package net.luminis.quic.frame;
 
+import java.nio.ByteBuffer;
+
 
 public abstract class QuicFrame {
 
     public abstract byte[] getBytes();
 
+    /**
+     * Writes the serialized frame into the given buffer.
+     * @param buffer
+     */
+    public void serialize(ByteBuffer buffer) {
+        buffer.put(getBytes());
+    }
+
+    /**
+     * Returns the number of bytes the serialized frame takes.
+     * @return
+     */
+    public int getFrameLength() {
+        return getBytes().length;
+    }
+
     public boolean isAckEliciting() {
         return true;
     }
@@ -65,7 +65,7 @@ public class StreamFrame extends QuicFrame {
         this.length = dataLength;
         isFinal = fin;
 
-        ByteBuffer buffer = ByteBuffer.allocate(1 + 3 * 4 + applicationData.length);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 3 * 4 + dataLength);
         byte baseType = (byte) 0x08;
         byte frameType = (byte) (baseType | 0x04 | 0x02 | 0x00);  // OFF-bit, LEN-bit, (no) FIN-bit
         if (fin) {
@@ -243,6 +243,13 @@ public abstract class BaseLogger implements Logger {
         }
     }
 
+    @Override
+    public void decrypted(String message, ByteBuffer data, int offset, int length) {
+        if (logDecrypted) {
+            logWithHexDump(message + " (" + length + "): ", data, offset, length);
+        }
+    }
+
     @Override
     public void decrypted(String message) {
         if (logDecrypted) {
@@ -323,7 +330,6 @@ public abstract class BaseLogger implements Logger {
     }
 
     protected String byteToHexBlock(ByteBuffer data, int offset, int length) {
-        data.rewind();
         String result = "";
         for (int i = 0; i < length; ) {
             result += String.format("%02x ", data.get(offset + i));
@@ -144,6 +144,10 @@ public class NullLogger implements Logger {
     public void decrypted(String message, byte[] data, int length) {
     }
 
+    @Override
+    public void decrypted(String message, ByteBuffer data, int offset, int length) {
+    }
+
     @Override
     public void decrypted(String message) {
     }
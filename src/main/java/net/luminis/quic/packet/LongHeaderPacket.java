@@ -20,6 +20,7 @@ package net.luminis.quic.packet;
 
 
 import net.luminis.quic.*;
+import net.luminis.quic.frame.Padding;
 import net.luminis.quic.frame.QuicFrame;
 import net.luminis.quic.log.Logger;
 
@@ -77,35 +78,49 @@ public abstract class LongHeaderPacket extends QuicPacket {
     }
 
     public byte[] generatePacketBytes(long packetNumber, Keys keys) {
+        return generatePacketBytesViaBuffer(packetNumber, keys);
+    }
+
+    @Override
+    public int generatePacketBytes(long packetNumber, Keys keys, ByteBuffer packetBuffer) {
         this.packetNumber = packetNumber;
+        int packetStart = packetBuffer.position();
 
-        ByteBuffer frameBytes = ByteBuffer.allocate(MAX_PACKET_SIZE);
-        frames.stream().forEachOrdered(frame -> frameBytes.put(frame.getBytes()));
-        frameBytes.flip();
+        int encodedPacketNumberLength = encodedPacketNumberLength(packetNumber);
+        int payloadLength = 0;
+        for (QuicFrame frame: frames) {
+            payloadLength += frame.getFrameLength();
+        }
+        // https://tools.ietf.org/html/draft-ietf-quic-tls-27#section-5.4.2
+        // "To ensure that sufficient data is available for sampling, packets are
+        //   padded so that the combined lengths of the encoded packet number and
+        //   protected payload is at least 4 bytes longer than the sample required
+        //   for header protection."
+        if (encodedPacketNumberLength + payloadLength < 4) {
+            Padding padding = new Padding(4 - encodedPacketNumberLength - payloadLength);
+            frames.add(padding);
+            payloadLength += padding.getFrameLength();
+        }
 
-        ByteBuffer packetBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
         generateFrameHeaderInvariant(packetBuffer);
         generateAdditionalFields(packetBuffer);
-        byte[] encodedPacketNumber = encodePacketNumber(packetNumber);
-        addLength(packetBuffer, encodedPacketNumber.length, frameBytes.limit());
-        packetBuffer.put(encodedPacketNumber);
-
-        protectPacketNumberAndPayload(packetBuffer, encodedPacketNumber.length, frameBytes, 0, keys);
+        addLength(packetBuffer, encodedPacketNumberLength, payloadLength);
+        encodePacketNumber(packetNumber, packetBuffer);
 
-        packetBuffer.limit(packetBuffer.position());
-        packetSize = packetBuffer.limit();
+        int payloadStart = packetBuffer.position();
+        for (QuicFrame frame: frames) {
+            frame.serialize(packetBuffer);
+        }
 
-        byte[] packetBytes = new byte[packetBuffer.position()];
-        packetBuffer.rewind();
-        packetBuffer.get(packetBytes);
+        protectPacketNumberAndPayload(packetBuffer, packetStart, encodedPacketNumberLength, payloadStart, keys);
 
-        packetSize = packetBytes.length;
-        return packetBytes;
+        packetSize = packetBuffer.position() - packetStart;
+        return packetSize;
     }
 
     @Override
     public int estimateLength() {
-        int payloadLength = getFrames().stream().mapToInt(f -> f.getBytes().length).sum();   // TODO: f.getBytes
+        int payloadLength = getFrames().stream().mapToInt(f -> f.getFrameLength()).sum();
         return 1
                 + 4
                 + 1 + destinationConnectionId.length
@@ -119,7 +134,6 @@ public abstract class LongHeaderPacket extends QuicPacket {
                 + 16;
     }
 
-
     protected void generateFrameHeaderInvariant(ByteBuffer packetBuffer) {
         // Packet type
         byte packetType = getPacketType();
@@ -66,6 +66,38 @@ abstract public class QuicPacket {
         }
     }
 
+    /**
+     * Writes the encoded packet number into the given buffer.
+     * @param packetNumber
+     * @param buffer
+     * @return  the number of bytes used to encode the packet number
+     */
+    static int encodePacketNumber(long packetNumber, ByteBuffer buffer) {
+        int length = encodedPacketNumberLength(packetNumber);
+        for (int i = length - 1; i >= 0; i--) {
+            buffer.put((byte) (packetNumber >> (8 * i)));
+        }
+        return length;
+    }
+
+    static int encodedPacketNumberLength(long packetNumber) {
+        if (packetNumber <= 0xff) {
+            return 1;
+        }
+        else if (packetNumber <= 0xffff) {
+            return 2;
+        }
+        else if (packetNumber <= 0xffffff) {
+            return 3;
+        }
+        else if (packetNumber <= 0xffffffffL) {
+            return 4;
+        }
+        else {
+            throw new NotYetImplementedException("cannot encode pn > 4 bytes");
+        }
+    }
+
     /**
      * Updates the given flags byte to encode the packet number length that is used for encoding the given packet number.
      * @param flags
@@ -106,22 +138,16 @@ abstract public class QuicPacket {
         //   the length of the Packet Number field.  In sampling the packet
         //   ciphertext, the Packet Number field is assumed to be 4 bytes long
         //   (its maximum possible encoded length)."
-        if (buffer.remaining() < 4) {
-            throw new InvalidPacketException();
-        }
-        buffer.position(currentPosition + 4);
         // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.4.2:
         // "This algorithm samples 16 bytes from the packet ciphertext."
-        if (buffer.remaining() < 16) {
+        if (buffer.remaining() < 4 + 16) {
             throw new InvalidPacketException();
         }
-        byte[] sample = new byte[16];
-        buffer.get(sample);
         // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.4.1:
         // "Header protection is applied after packet protection is applied (see
         //   Section 5.3).  The ciphertext of the packet is sampled and used as
         //   input to an encryption algorithm."
-        byte[] mask = createHeaderProtectionMask(sample, serverSecrets);
+        byte[] mask = createHeaderProtectionMask(buffer, currentPosition + 4, serverSecrets);
         // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.4.1
         // "The output of this algorithm is a 5 byte mask which is applied to the
         //   protected header fields using exclusive OR.  The least significant
@@ -137,40 +163,33 @@ abstract public class QuicPacket {
             decryptedFlags = (byte) (flags ^ mask[0] & 0x1f);
         }
         setUnprotectedHeader(decryptedFlags);
-        buffer.position(currentPosition);
+        // Header protection is removed in place, as the unprotected header is the associated data for decryption.
+        buffer.put(0, decryptedFlags);
 
         // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.4.1:
         // "pn_length = (packet[0] & 0x03) + 1"
         int protectedPackageNumberLength = (decryptedFlags & 0x03) + 1;
-        byte[] protectedPackageNumber = new byte[protectedPackageNumberLength];
-        buffer.get(protectedPackageNumber);
-
-        byte[] unprotectedPacketNumber = new byte[protectedPackageNumberLength];
+        long truncatedPacketNumber = 0;
         for (int i = 0; i < protectedPackageNumberLength; i++) {
             // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.4.1:
             // " ...and the packet number is
             //   masked with the remaining bytes.  Any unused bytes of mask that might
             //   result from a shorter packet number encoding are unused."
-            unprotectedPacketNumber[i] = (byte) (protectedPackageNumber[i] ^ mask[1+i]);
+            byte unprotectedByte = (byte) (buffer.get(currentPosition + i) ^ mask[1+i]);
+            buffer.put(currentPosition + i, unprotectedByte);
+            truncatedPacketNumber = (truncatedPacketNumber << 8) | (unprotectedByte & 0xff);
         }
-        packetNumber = bytesToInt(unprotectedPacketNumber);
-        packetNumber = decodePacketNumber(packetNumber, largestPacketNumber, protectedPackageNumberLength * 8);
+        packetNumber = decodePacketNumber(truncatedPacketNumber, largestPacketNumber, protectedPackageNumberLength * 8);
         log.decrypted("Unprotected packet number: " + packetNumber);
 
-        currentPosition = buffer.position();
         // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.3
         // "The associated data, A, for the AEAD is the contents of the QUIC
         //   header, starting from the flags byte in either the short or long
         //   header, up to and including the unprotected packet number."
-        byte[] frameHeader = new byte[buffer.position()];
-        buffer.position(0);
-        buffer.get(frameHeader);
-        frameHeader[0] = decryptedFlags;
-        buffer.position(currentPosition);
-
-        // Copy unprotected (decrypted) packet number in frame header, before decrypting payload.
-        System.arraycopy(unprotectedPacketNumber, 0, frameHeader, frameHeader.length - (protectedPackageNumberLength), protectedPackageNumberLength);
-        log.encrypted("Frame header", frameHeader);
+        int payloadStart = currentPosition + protectedPackageNumberLength;
+        ByteBuffer associatedData = buffer.duplicate();
+        associatedData.limit(payloadStart);
+        associatedData.position(0);
 
         // "The input plaintext, P, for the AEAD is the payload of the QUIC
         //   packet, as described in [QUIC-TRANSPORT]."
@@ -179,13 +198,21 @@ abstract public class QuicPacket {
         if (encryptedPayloadLength < 1) {
             throw new InvalidPacketException();
         }
-        byte[] payload = new byte[encryptedPayloadLength];
-        buffer.get(payload, 0, encryptedPayloadLength);
-        log.encrypted("Encrypted payload", payload);
-
-        byte[] frameBytes = decryptPayload(payload, frameHeader, packetNumber, serverSecrets);
-        log.decrypted("Decrypted payload", frameBytes);
-
+        int payloadEnd = payloadStart + encryptedPayloadLength;
+        ByteBuffer encryptedPayload = buffer.duplicate();
+        encryptedPayload.limit(payloadEnd);
+        encryptedPayload.position(payloadStart);
+        ByteBuffer decryptedPayload = buffer.duplicate();
+        decryptedPayload.limit(payloadEnd);
+        decryptedPayload.position(payloadStart);
+        buffer.position(payloadEnd);
+
+        int decryptedLength = decryptPayload(encryptedPayload, associatedData, packetNumber, serverSecrets, decryptedPayload);
+        log.decrypted("Decrypted payload", buffer, payloadStart, decryptedLength);
+
+        ByteBuffer frameBytes = buffer.duplicate();
+        frameBytes.limit(payloadStart + decryptedLength);
+        frameBytes.position(payloadStart);
         frames = new ArrayList<>();
         try {
             parseFrames(frameBytes, log);
@@ -196,50 +223,38 @@ abstract public class QuicPacket {
 
     protected void setUnprotectedHeader(byte decryptedFlags) {}
 
-    byte[] createHeaderProtectionMask(byte[] sample, Keys secrets) {
-        return createHeaderProtectionMask(sample, 4, secrets);
-    }
-
-    byte[] createHeaderProtectionMask(byte[] ciphertext, int encodedPacketNumberLength, Keys secrets) {
-        // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.4
-        // "The same number of bytes are always sampled, but an allowance needs
-        //   to be made for the endpoint removing protection, which will not know
-        //   the length of the Packet Number field.  In sampling the packet
-        //   ciphertext, the Packet Number field is assumed to be 4 bytes long
-        //   (its maximum possible encoded length)."
-        int sampleOffset = 4 - encodedPacketNumberLength;
-        byte[] sample = new byte[16];
-        System.arraycopy(ciphertext, sampleOffset, sample, 0, 16);
-
+    byte[] createHeaderProtectionMask(ByteBuffer packetBuffer, int sampleOffset, Keys secrets) {
+        ByteBuffer sample = packetBuffer.duplicate();
+        sample.limit(sampleOffset + 16);
+        sample.position(sampleOffset);
+        byte[] mask = new byte[16];
         Cipher hpCipher = secrets.getHeaderProtectionCipher();
-        byte[] mask;
         try {
-            mask = hpCipher.doFinal(sample);
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            hpCipher.doFinal(sample, ByteBuffer.wrap(mask));
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
             // Programming error
             throw new RuntimeException();
         }
         return mask;
     }
 
-    byte[] encryptPayload(byte[] message, byte[] associatedData, long packetNumber, Keys secrets) {
-
-        // From https://tools.ietf.org/html/draft-ietf-quic-tls-16#section-5.3:
-        // "The nonce, N, is formed by combining the packet
-        //   protection IV with the packet number.  The 64 bits of the
-        //   reconstructed QUIC packet number in network byte order are left-
-        //   padded with zeros to the size of the IV.  The exclusive OR of the
-        //   padded packet number and the IV forms the AEAD nonce"
-        byte[] writeIV = secrets.getWriteIV();
-        ByteBuffer nonceInput = ByteBuffer.allocate(writeIV.length);
-        for (int i = 0; i < nonceInput.capacity() - 8; i++)
-            nonceInput.put((byte) 0x00);
-        nonceInput.putLong(packetNumber);
-
-        byte[] nonce = new byte[12];
-        int i = 0;
-        for (byte b : nonceInput.array())
-            nonce[i] = (byte) (b ^ writeIV[i++]);
+    /**
+     * Encrypts the message into the output buffer; the output buffer may share its content with the message buffer,
+     * i.e. encryption can be done in place.
+     * @param message
+     * @param associatedData
+     * @param packetNumber
+     * @param secrets
+     * @param output
+     */
+    void encryptPayload(ByteBuffer message, ByteBuffer associatedData, long packetNumber, Keys secrets, ByteBuffer output) {
+        // https://tools.ietf.org/html/draft-ietf-quic-tls-27#section-5.3
+        // "The 62 bits of the reconstructed QUIC packet number in network byte order are left-padded with zeros to the
+        //  size of the IV. The exclusive OR of the padded packet number and the IV forms the AEAD nonce."
+        byte[] nonce = secrets.getWriteIV().clone();
+        for (int i = 0; i < 8; i++) {
+            nonce[nonce.length - 1 - i] ^= (byte) (packetNumber >> (8 * i));
+        }
 
         Cipher aeadCipher = secrets.getWriteCipher();
         SecretKeySpec secretKey = secrets.getWriteKeySpec();
@@ -247,24 +262,29 @@ abstract public class QuicPacket {
             GCMParameterSpec parameterSpec = new GCMParameterSpec(128, nonce);   // https://tools.ietf.org/html/rfc5116#section-5.3: "the tag length t is 16"
             aeadCipher.init(Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
             aeadCipher.updateAAD(associatedData);
-            byte[] cipherText = aeadCipher.doFinal(message);
-            return cipherText;
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+            aeadCipher.doFinal(message, output);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
             // Programming error
             throw new RuntimeException();
         }
     }
 
-    byte[] decryptPayload(byte[] message, byte[] associatedData, long packetNumber, Keys secrets) throws DecryptionException {
-        ByteBuffer nonceInput = ByteBuffer.allocate(12);
-        nonceInput.putInt(0);
-        nonceInput.putLong(packetNumber);
-
-        byte[] writeIV = secrets.getWriteIV();
-        byte[] nonce = new byte[12];
-        int i = 0;
-        for (byte b : nonceInput.array())
-            nonce[i] = (byte) (b ^ writeIV[i++]);
+    /**
+     * Decrypts the message into the output buffer; the output buffer may share its content with the message buffer,
+     * i.e. decryption can be done in place.
+     * @param message
+     * @param associatedData
+     * @param packetNumber
+     * @param secrets
+     * @param output
+     * @return  the length of the decrypted message
+     * @throws DecryptionException
+     */
+    int decryptPayload(ByteBuffer message, ByteBuffer associatedData, long packetNumber, Keys secrets, ByteBuffer output) throws DecryptionException {
+        byte[] nonce = secrets.getWriteIV().clone();
+        for (int i = 0; i < 8; i++) {
+            nonce[nonce.length - 1 - i] ^= (byte) (packetNumber >> (8 * i));
+        }
 
         SecretKeySpec secretKey = secrets.getWriteKeySpec();
         Cipher aeadCipher = secrets.getWriteCipher();
@@ -272,10 +292,10 @@ abstract public class QuicPacket {
             GCMParameterSpec parameterSpec = new GCMParameterSpec(128, nonce);   // https://tools.ietf.org/html/rfc5116#section-5.3: "the tag length t is 16"
             aeadCipher.init(Cipher.DECRYPT_MODE, secretKey, parameterSpec);
             aeadCipher.updateAAD(associatedData);
-            return aeadCipher.doFinal(message);
+            return aeadCipher.doFinal(message, output);
         } catch (AEADBadTagException decryptError) {
             throw new DecryptionException();
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
             // Programming error
             throw new RuntimeException();
         }
@@ -298,9 +318,7 @@ abstract public class QuicPacket {
         return candidatePn;
     }
 
-    protected void parseFrames(byte[] frameBytes, Logger log) throws InvalidIntegerEncodingException {
-        ByteBuffer buffer = ByteBuffer.wrap(frameBytes);
-
+    protected void parseFrames(ByteBuffer buffer, Logger log) throws InvalidIntegerEncodingException {
         while (buffer.remaining() > 0) {
             // https://tools.ietf.org/html/draft-ietf-quic-transport-16#section-12.4
             // "Each frame begins with a Frame Type, indicating its type, followed by additional type-dependent fields"
@@ -391,34 +409,47 @@ abstract public class QuicPacket {
         }
     }
 
-    protected void protectPacketNumberAndPayload(ByteBuffer packetBuffer, int packetNumberSize, ByteBuffer payload, int paddingSize, Keys clientSecrets) {
-        int packetNumberPosition = packetBuffer.position() - packetNumberSize;
-
+    /**
+     * Applies packet protection to the packet in the given buffer: encrypts the payload in place and then applies header
+     * protection. The packet starts at <code>packetStart</code>, the (unprotected) payload runs from
+     * <code>payloadStart</code> to the current position of the buffer. On return, the buffer position is at the end of
+     * the protected packet (i.e. after the authentication tag).
+     * @param packetBuffer
+     * @param packetStart
+     * @param packetNumberSize
+     * @param payloadStart
+     * @param clientSecrets
+     */
+    protected void protectPacketNumberAndPayload(ByteBuffer packetBuffer, int packetStart, int packetNumberSize, int payloadStart, Keys clientSecrets) {
         // From https://tools.ietf.org/html/draft-ietf-quic-tls-16#section-5.3:
         // "The associated data, A, for the AEAD is the contents of the QUIC
         //   header, starting from the flags octet in either the short or long
         //   header, up to and including the unprotected packet number."
-        int additionalDataSize = packetBuffer.position();
-        byte[] additionalData = new byte[additionalDataSize];
-        packetBuffer.flip();  // Prepare for reading from start
-        packetBuffer.get(additionalData);  // Position is now where it was at start of this method.
-        packetBuffer.limit(packetBuffer.capacity());  // Ensure we can continue writing
+        ByteBuffer additionalData = packetBuffer.duplicate();
+        additionalData.limit(payloadStart);
+        additionalData.position(packetStart);
 
-        byte[] paddedPayload = new byte[payload.limit() + paddingSize];
-        payload.get(paddedPayload, 0, payload.limit());
-        byte[] encryptedPayload = encryptPayload(paddedPayload, additionalData, packetNumber, clientSecrets);
-        packetBuffer.put(encryptedPayload);
+        ByteBuffer payload = packetBuffer.duplicate();
+        payload.limit(packetBuffer.position());
+        payload.position(payloadStart);
 
-        byte[] protectedPacketNumber;
-        byte[] encodedPacketNumber = encodePacketNumber(packetNumber);
-        byte[] mask = createHeaderProtectionMask(encryptedPayload, encodedPacketNumber.length, clientSecrets);
+        ByteBuffer encryptedPayload = packetBuffer.duplicate();
+        encryptedPayload.limit(packetBuffer.limit());
+        encryptedPayload.position(payloadStart);
+        encryptPayload(payload, additionalData, packetNumber, clientSecrets, encryptedPayload);
+        packetBuffer.position(encryptedPayload.position());
+
+        // https://tools.ietf.org/html/draft-ietf-quic-tls-17#section-5.4
+        // "In sampling the packet ciphertext, the Packet Number field is assumed to be 4 bytes long
+        //   (its maximum possible encoded length)."
+        byte[] mask = createHeaderProtectionMask(packetBuffer, payloadStart + 4 - packetNumberSize, clientSecrets);
 
-        protectedPacketNumber = new byte[encodedPacketNumber.length];
-        for (int i = 0; i < encodedPacketNumber.length; i++) {
-            protectedPacketNumber[i] = (byte) (encodedPacketNumber[i] ^ mask[1+i]);
+        int packetNumberPosition = payloadStart - packetNumberSize;
+        for (int i = 0; i < packetNumberSize; i++) {
+            packetBuffer.put(packetNumberPosition + i, (byte) (packetBuffer.get(packetNumberPosition + i) ^ mask[1+i]));
         }
 
-        byte flags = packetBuffer.get(0);
+        byte flags = packetBuffer.get(packetStart);
         if ((flags & 0x80) == 0x80) {
             // Long header: 4 bits masked
             flags ^= mask[0] & 0x0f;
@@ -427,12 +458,22 @@ abstract public class QuicPacket {
             // Short header: 5 bits masked
             flags ^= mask[0] & 0x1f;
         }
-        packetBuffer.put(0, flags);
+        packetBuffer.put(packetStart, flags);
+    }
 
-        int currentPosition = packetBuffer.position();
-        packetBuffer.position(packetNumberPosition);
-        packetBuffer.put(protectedPacketNumber);
-        packetBuffer.position(currentPosition);
+    /**
+     * Generates the protected packet by writing it into a newly allocated buffer.
+     * @param packetNumber
+     * @param keys
+     * @return
+     */
+    protected byte[] generatePacketBytesViaBuffer(long packetNumber, Keys keys) {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        int length = generatePacketBytes(packetNumber, keys, buffer);
+        byte[] packetBytes = new byte[length];
+        buffer.flip();
+        buffer.get(packetBytes);
+        return packetBytes;
     }
 
     static int bytesToInt(byte[] data) {
@@ -465,6 +506,22 @@ abstract public class QuicPacket {
 
     public abstract byte[] generatePacketBytes(long packetNumber, Keys keys);
 
+    /**
+     * Generates the protected packet into the given buffer, starting at the current position of the buffer. On return,
+     * the position of the buffer is right after the packet.
+     * This default implementation copies the result of <code>generatePacketBytes(long, Keys)</code>; packet types that
+     * are sent often override it to encode and encrypt directly in the given buffer.
+     * @param packetNumber
+     * @param keys
+     * @param buffer
+     * @return  the number of bytes written
+     */
+    public int generatePacketBytes(long packetNumber, Keys keys, ByteBuffer buffer) {
+        byte[] packetBytes = generatePacketBytes(packetNumber, keys);
+        buffer.put(packetBytes);
+        return packetBytes.length;
+    }
+
     public abstract void parse(ByteBuffer data, Keys keys, long largestPacketNumber, Logger log, int sourceConnectionIdLength) throws DecryptionException, InvalidPacketException;
 
     public List<QuicFrame> getFrames() {
@@ -31,7 +31,6 @@ import java.util.stream.Collectors;
 
 public class ShortHeaderPacket extends QuicPacket {
 
-    private byte[] packetBytes;
     private short keyPhaseBit;
 
     /**
@@ -113,9 +112,14 @@ public class ShortHeaderPacket extends QuicPacket {
 
     @Override
     public byte[] generatePacketBytes(long packetNumber, Keys keys) {
+        return generatePacketBytesViaBuffer(packetNumber, keys);
+    }
+
+    @Override
+    public int generatePacketBytes(long packetNumber, Keys keys, ByteBuffer buffer) {
         this.packetNumber = packetNumber;
+        int packetStart = buffer.position();
 
-        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
         byte flags;
         // https://tools.ietf.org/html/draft-ietf-quic-transport-17#section-17.3
         // "|0|1|S|R|R|K|P P|"
@@ -128,35 +132,28 @@ public class ShortHeaderPacket extends QuicPacket {
         buffer.put(flags);
         buffer.put(destinationConnectionId);
 
-        byte[] encodedPacketNumber = encodePacketNumber(packetNumber);
-        buffer.put(encodedPacketNumber);
+        int encodedPacketNumberLength = encodePacketNumber(packetNumber, buffer);
 
-        ByteBuffer frameBytes = ByteBuffer.allocate(MAX_PACKET_SIZE);
-        frames.stream().forEachOrdered(frame -> frameBytes.put(frame.getBytes()));
-        int serializeFramesLength = frameBytes.position();
+        int payloadStart = buffer.position();
+        for (QuicFrame frame: frames) {
+            frame.serialize(buffer);
+        }
+        int serializeFramesLength = buffer.position() - payloadStart;
         // https://tools.ietf.org/html/draft-ietf-quic-tls-27#section-5.4.2
         // "To ensure that sufficient data is available for sampling, packets are
         //   padded so that the combined lengths of the encoded packet number and
         //   protected payload is at least 4 bytes longer than the sample required
         //   for header protection."
-        if (encodedPacketNumber.length + serializeFramesLength < 4) {
-            Padding padding = new Padding(4 - encodedPacketNumber.length - frameBytes.position());
+        if (encodedPacketNumberLength + serializeFramesLength < 4) {
+            Padding padding = new Padding(4 - encodedPacketNumberLength - serializeFramesLength);
             frames.add(padding);
-            frameBytes.put(padding.getBytes());
+            padding.serialize(buffer);
         }
-        frameBytes.flip();
-
-        protectPacketNumberAndPayload(buffer, encodedPacketNumber.length, frameBytes, 0, keys);
-
-        buffer.limit(buffer.position());
-        packetSize = buffer.limit();
-        packetBytes = new byte[packetSize];
-        buffer.rewind();
-        buffer.get(packetBytes);
 
-        packetSize = packetBytes.length;
+        protectPacketNumberAndPayload(buffer, packetStart, encodedPacketNumberLength, payloadStart, keys);
 
-        return packetBytes;
+        packetSize = buffer.position() - packetStart;
+        return packetSize;
     }
 
     @Override
@@ -19,16 +19,17 @@
 package net.luminis.quic.recovery;
 
 import net.luminis.quic.CongestionController;
+import net.luminis.quic.DeliveryRateEstimator;
+import net.luminis.quic.RateSample;
 import net.luminis.quic.RttEstimator;
 import net.luminis.quic.frame.AckFrame;
 import net.luminis.quic.packet.PacketInfo;
 import net.luminis.quic.packet.QuicPacket;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -38,55 +39,179 @@ public class LossDetector {
     private final RecoveryManager recoveryManager;
     private final RttEstimator rttEstimater;
     private final CongestionController congestionController;
-    private float kTimeThreshold = 9f/8f;
-    private int kPacketThreshold = 3;
-    private final Map<Long, PacketStatus> packetSentLog;
+    private final DeliveryRateEstimator deliveryRateEstimator;
+    // Number of round trips during which an ack for a packet declared lost is recognized as a spurious loss.
+    private static final int SPURIOUS_LOSS_DETECTION_RTTS = 4;
+
+    // https://tools.ietf.org/html/draft-ietf-quic-recovery-29#section-6.1.1
+    // "The RECOMMENDED initial value for the packet reordering threshold (kPacketThreshold) is 3"
+    // "Implementations SHOULD NOT use a packet threshold less than 3"
+    static final int DEFAULT_PACKET_THRESHOLD = 3;
+    static final int MAX_PACKET_THRESHOLD = 20;
+    // https://tools.ietf.org/html/draft-ietf-quic-recovery-29#section-6.1.2
+    // "The RECOMMENDED time threshold (kTimeThreshold), expressed as a round-trip time multiplier, is 9/8."
+    static final float DEFAULT_TIME_THRESHOLD = 9f/8f;
+    static final float MAX_TIME_THRESHOLD = 2f;
+    // Like RACK's reo_wnd_persist (https://tools.ietf.org/html/draft-ietf-tcpm-rack-10#section-7.2), the thresholds
+    // return to their defaults after this number of loss events without a spurious loss.
+    static final int REORDERING_THRESHOLD_PERSIST = 16;
+
+    // https://tools.ietf.org/html/draft-ietf-quic-recovery-29#section-6.1
+    // "Implementers MAY use algorithms developed for TCP, such as TCP-NCR [RFC4653], to improve QUIC's reordering
+    //  resilience."
+    // Both thresholds are widened when spurious losses are detected, like RACK adapts its reordering window.
+    private volatile float kTimeThreshold = DEFAULT_TIME_THRESHOLD;
+    private volatile int kPacketThreshold = DEFAULT_PACKET_THRESHOLD;
+    private int reorderingThresholdPersist;
+    // Only holds packets that are not yet acknowledged nor declared lost.
+    private final SentPacketStore sentPackets;
+    // Packets recently declared lost, to detect spurious losses when they are acknowledged after all.
+    private final ConcurrentSkipListMap<Long, PacketStatus> recentlyLost = new ConcurrentSkipListMap<>();
     private volatile long largestAcked = -1;
     private volatile long lost;
+    private volatile long spuriouslyLost;
     private volatile Instant lossTime;
     private volatile Instant lastAckElicitingSent;
 
 
     public LossDetector(RecoveryManager recoveryManager, RttEstimator rttEstimator, CongestionController congestionController) {
+        this(recoveryManager, rttEstimator, congestionController, new DeliveryRateEstimator());
+    }
+
+    /**
+     * Creates a loss detector that registers sent and acked packets with the given delivery rate estimator, which
+     * should be shared by all loss detectors of one connection.
+     */
+    public LossDetector(RecoveryManager recoveryManager, RttEstimator rttEstimator, CongestionController congestionController,
+                        DeliveryRateEstimator deliveryRateEstimator) {
         this.recoveryManager = recoveryManager;
         this.rttEstimater = rttEstimator;
         this.congestionController = congestionController;
-        packetSentLog = new ConcurrentHashMap<>();
+        this.deliveryRateEstimator = deliveryRateEstimator;
+        sentPackets = new SentPacketStore();
     }
 
     public void packetSent(QuicPacket packet, Instant sent, Consumer<QuicPacket> lostPacketCallback) {
+        DeliveryRateEstimator.SendState sendState = null;
         if (packet.isInflightPacket()) {
+            sendState = deliveryRateEstimator.packetSent(sent, packet.getSize(), congestionController.getBytesInFlight());
             congestionController.registerInFlight(packet);
         }
 
         if (packet.isAckEliciting()) {
             lastAckElicitingSent = sent;
         }
-        packetSentLog.put(packet.getPacketNumber(), new PacketStatus(sent, packet, lostPacketCallback));
+        sentPackets.add(new PacketStatus(sent, packet, lostPacketCallback, sendState));
     }
 
     public void onAckReceived(AckFrame ackFrame) {
+        onAckReceived(ackFrame, Instant.now());
+    }
+
+    public void onAckReceived(AckFrame ackFrame, Instant timeReceived) {
         largestAcked = Long.max(largestAcked, ackFrame.getLargestAcknowledged());
 
-        List<PacketStatus> newlyAcked = ackFrame.getAckedPacketNumbers().stream()
-                .filter(pn -> packetSentLog.containsKey(pn) && !packetSentLog.get(pn).acked())
-                .map(pn -> packetSentLog.get(pn))
-                .filter(packetStatus -> packetStatus != null)      // Could be null when reset is executed concurrently.
-                .filter(packetStatus -> packetStatus.setAcked())   // Only keep the ones that actually got set to acked
-                .collect(Collectors.toList());
+        // Only packet numbers that are still in the store can be newly acked, so the (old) parts of the ack ranges
+        // outside the store window are skipped; the work depends on what is newly acked, not on the size of the ranges.
+        long smallestStored = sentPackets.getSmallest();
+        long largestStored = sentPackets.getLargest();
+        List<PacketStatus> newlyAcked = new ArrayList<>();
+        PacketStatus largestNewlyAcked = null;
+        boolean ackElicitingNewlyAcked = false;
+        for (int i = 0; i < ackFrame.getAckRangeCount() && ackFrame.getAckRangeLargest(i) >= smallestStored; i++) {
+            long largest = Long.min(ackFrame.getAckRangeLargest(i), largestStored);
+            long smallest = Long.max(ackFrame.getAckRangeSmallest(i), smallestStored);
+            for (long pn = largest; pn >= smallest; pn--) {
+                PacketStatus packetStatus = sentPackets.get(pn);       // Could be null when reset is executed concurrently.
+                if (packetStatus != null && packetStatus.setAcked()) {  // Only keep the ones that actually got set to acked
+                    sentPackets.remove(pn);
+                    newlyAcked.add(packetStatus);
+                    if (pn == ackFrame.getLargestAcknowledged()) {
+                        largestNewlyAcked = packetStatus;
+                    }
+                    ackElicitingNewlyAcked |= packetStatus.packet().isAckEliciting();
+                }
+            }
+        }
+
+        // https://tools.ietf.org/html/draft-ietf-quic-recovery-27#section-4.1
+        // "An endpoint generates an RTT sample on receiving an ACK frame that meets the following two conditions:
+        //   - the largest acknowledged packet number is newly acknowledged, and
+        //   - at least one of the newly acknowledged packets was ack-eliciting."
+        if (largestNewlyAcked != null && ackElicitingNewlyAcked) {
+            rttEstimater.addSample(timeReceived, largestNewlyAcked.timeSent(), ackFrame.getAckDelay());
+        }
+
+        List<PacketStatus> spuriouslyLostPackets = findRecentlyLost(ackFrame);
+        if (!spuriouslyLostPackets.isEmpty()) {
+            spuriouslyLost += spuriouslyLostPackets.size();
+            widenReorderingThresholds(spuriouslyLostPackets);
+            congestionController.registerSpuriousLoss(filterInFlight(spuriouslyLostPackets));
+        }
 
-        congestionController.registerAcked(filterInFlight(newlyAcked));
+        List<PacketStatus> ackedInFlight = filterInFlight(newlyAcked);
+        RateSample rateSample = deliveryRateEstimator.packetsAcked(ackedInFlight.stream()
+                .map(PacketStatus::sendState)
+                .collect(Collectors.toList()), timeReceived);
+        congestionController.registerAcked(ackedInFlight, rateSample);
 
         detectLostPackets();
 
         recoveryManager.setLossDetectionTimer();
     }
 
+    /**
+     * Finds (and removes) the packets acknowledged by the given ack frame that were declared lost before, i.e. that
+     * were declared lost spuriously.
+     */
+    private List<PacketStatus> findRecentlyLost(AckFrame ackFrame) {
+        List<PacketStatus> acked = new ArrayList<>();
+        Long smallestLost = recentlyLost.isEmpty()? null: recentlyLost.firstKey();
+        for (int i = 0; smallestLost != null && i < ackFrame.getAckRangeCount() && ackFrame.getAckRangeLargest(i) >= smallestLost; i++) {
+            for (Long pn: recentlyLost.subMap(ackFrame.getAckRangeSmallest(i), true, ackFrame.getAckRangeLargest(i), true).keySet()) {
+                PacketStatus packetStatus = recentlyLost.remove(pn);
+                if (packetStatus != null) {
+                    acked.add(packetStatus);
+                }
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * Adapts the reordering thresholds to the reordering that caused the given packets to be declared lost spuriously.
+     */
+    private synchronized void widenReorderingThresholds(List<PacketStatus> spuriouslyLostPackets) {
+        // The reordering distance observed is (at most) the distance to the largest packet acked.
+        long smallest = spuriouslyLostPackets.stream().mapToLong(p -> p.packet().getPacketNumber()).min().getAsLong();
+        long reorderingDistance = largestAcked - smallest + 1;
+        kPacketThreshold = (int) Long.min(Long.max(kPacketThreshold, reorderingDistance), MAX_PACKET_THRESHOLD);
+        // Like RACK, increase the time threshold with a step of (1/8 rtt) for each reordering event.
+        kTimeThreshold = Float.min(kTimeThreshold + 1f/8f, MAX_TIME_THRESHOLD);
+        reorderingThresholdPersist = REORDERING_THRESHOLD_PERSIST;
+    }
+
+    private synchronized void decayReorderingThresholds() {
+        if (reorderingThresholdPersist > 0) {
+            reorderingThresholdPersist--;
+            if (reorderingThresholdPersist == 0) {
+                kPacketThreshold = DEFAULT_PACKET_THRESHOLD;
+                kTimeThreshold = DEFAULT_TIME_THRESHOLD;
+            }
+        }
+    }
+
     void detectLostPackets() {
         lossTime = null;
 
-        int lossDelay = (int) (kTimeThreshold * Integer.max(rttEstimater.getSmoothedRtt(), rttEstimater.getLatestRtt()));
-        Instant lostSendTime = Instant.now().minusMillis(lossDelay);
+        int rtt = Integer.max(rttEstimater.getSmoothedRtt(), rttEstimater.getLatestRtt());
+        int lossDelay = (int) (kTimeThreshold * rtt);
+        Instant now = Instant.now();
+        Instant lostSendTime = now.minusMillis(lossDelay);
+
+        // An ack for a lost packet is not to be expected much later than a few round trips after it was sent.
+        Instant forgetLostSendTime = now.minusMillis(SPURIOUS_LOSS_DETECTION_RTTS * rtt);
+        recentlyLost.values().removeIf(p -> p.timeSent().isBefore(forgetLostSendTime));
 
         // https://tools.ietf.org/html/draft-ietf-quic-recovery-20#section-6.1
         // "A packet is declared lost if it meets all the following conditions:
@@ -99,24 +224,36 @@ public class LossDetector {
         // "In-flight:  Packets are considered in-flight when they have been sent
         //      and neither acknowledged nor declared lost, and they are not ACK-
         //      only."
-        List<PacketStatus> lostPackets = packetSentLog.values().stream()
-                .filter(p -> p.inFlight())
-                .filter(p -> pnTooOld(p) || sentTimeTooLongAgo(p, lostSendTime))
-                .filter(p -> !p.packet().isAckOnly())
-                .collect(Collectors.toList());
+        // The store only holds packets that are neither acknowledged nor declared lost, and as the loss conditions require
+        // the packet number to be not larger than the largest acked, there is no need to look beyond it.
+        List<PacketStatus> lostPackets = new ArrayList<>();
+        Instant earliestSentTime = null;
+        for (PacketStatus p: sentPackets.getAll()) {
+            if (p.packet().getPacketNumber() > largestAcked) {
+                break;
+            }
+            if (pnTooOld(p) || sentTimeTooLongAgo(p, lostSendTime)) {
+                if (p.packet().isAckOnly()) {
+                    // Ack-only packets cannot be lost; as they might never be acked, just forget them.
+                    sentPackets.remove(p.packet().getPacketNumber());
+                }
+                else {
+                    lostPackets.add(p);
+                }
+            }
+            else if (!p.packet().isAckOnly() && p.inFlight()) {
+                if (earliestSentTime == null || p.timeSent().isBefore(earliestSentTime)) {
+                    earliestSentTime = p.timeSent();
+                }
+            }
+        }
         if (!lostPackets.isEmpty()) {
             declareLost(lostPackets);
+            decayReorderingThresholds();
         }
 
-        Optional<Instant> earliestSentTime = packetSentLog.values().stream()
-                .filter(p -> p.inFlight())
-                .filter(p -> p.packet().getPacketNumber() <= largestAcked)
-                .filter(p -> !p.packet().isAckOnly())
-                .map(p -> p.timeSent())
-                .min(Instant::compareTo);
-
-        if (earliestSentTime.isPresent() && earliestSentTime.get().isAfter(lostSendTime)) {
-            lossTime = earliestSentTime.get().plusMillis(lossDelay);
+        if (earliestSentTime != null && earliestSentTime.isAfter(lostSendTime)) {
+            lossTime = earliestSentTime.plusMillis(lossDelay);
         }
     }
 
@@ -129,16 +266,11 @@ public class LossDetector {
     }
 
     boolean ackElicitingInFlight() {
-        boolean inflight = packetSentLog.values().stream()
-                    .filter(p -> p.packet().isAckEliciting())
-                    .filter(p -> p.inFlight())
-                    .findFirst()
-                    .isPresent();
-        return inflight;
+        return sentPackets.hasAckEliciting();
     }
 
     List<QuicPacket> unAcked() {
-        return packetSentLog.values().stream()
+        return sentPackets.getAll().stream()
                 .filter(p -> p.inFlight())
                 .filter(p -> !p.packet().isAckOnly())
                 .map(p -> p.packet())
@@ -147,7 +279,7 @@ public class LossDetector {
 
     // For debugging
     List<PacketInfo> getInFlight() {
-        return packetSentLog.values().stream()
+        return sentPackets.getAll().stream()
                 .filter(p -> !p.packet().isAckOnly())
                 .filter(p -> p.inFlight())
                 .collect(Collectors.toList());
@@ -163,26 +295,29 @@ public class LossDetector {
     }
 
     private void declareLost(List<PacketStatus> lostPacketsInfo) {
-        lostPacketsInfo = lostPacketsInfo.stream()
-                .filter(packetStatus -> packetStatus.setLost())   // Only keep the ones that actually were set to lost
-                .collect(Collectors.toList());
+        List<PacketStatus> declaredLost = new ArrayList<>();
+        for (PacketStatus packetStatus: lostPacketsInfo) {
+            if (packetStatus.setLost()) {   // Only keep the ones that actually were set to lost
+                sentPackets.remove(packetStatus.packet().getPacketNumber());
+                recentlyLost.put(packetStatus.packet().getPacketNumber(), packetStatus);
+                declaredLost.add(packetStatus);
+            }
+        }
 
-        lostPacketsInfo.stream()
-                .forEach(packetStatus -> {
-                    packetStatus.lostPacketCallback().accept(packetStatus.packet());
-                    lost++;
-                });
+        declaredLost.forEach(packetStatus -> {
+            packetStatus.lostPacketCallback().accept(packetStatus.packet());
+            lost++;
+        });
 
-        congestionController.registerLost(filterInFlight(lostPacketsInfo));
+        congestionController.registerLost(filterInFlight(declaredLost));
     }
 
     public void reset() {
-        List<PacketStatus> inflightPackets = packetSentLog.values().stream()
-                .filter(packet -> packet.inFlight())
+        List<PacketStatus> inflightPackets = sentPackets.clear().stream()
                 .filter(packetStatus -> packetStatus.setLost())   // Only keep the ones that actually were set to lost
                 .collect(Collectors.toList());
         congestionController.discard(inflightPackets);
-        packetSentLog.clear();
+        recentlyLost.clear();
         lossTime = null;
         lastAckElicitingSent = null;
     }
@@ -191,6 +326,28 @@ public class LossDetector {
         return lost;
     }
 
+    /**
+     * @return  the current packet reordering threshold: the number of packets acked after a packet, before it is
+     * declared lost
+     */
+    public int getPacketThreshold() {
+        return kPacketThreshold;
+    }
+
+    /**
+     * @return  the current time reordering threshold, as a multiplier of the rtt
+     */
+    public float getTimeThreshold() {
+        return kTimeThreshold;
+    }
+
+    /**
+     * @return  the number of packets that were declared lost, but were acknowledged later on
+     */
+    public long getSpuriouslyLost() {
+        return spuriouslyLost;
+    }
+
     private List<PacketStatus> filterInFlight(List<PacketStatus> packets) {
         return packets.stream()
                 .filter(packetInfo -> packetInfo.packet().isInflightPacket())
@@ -18,6 +18,7 @@
  */
 package net.luminis.quic.recovery;
 
+import net.luminis.quic.DeliveryRateEstimator;
 import net.luminis.quic.packet.PacketInfo;
 import net.luminis.quic.packet.QuicPacket;
 
@@ -29,9 +30,26 @@ class PacketStatus extends PacketInfo {
 
     private boolean lost;
     private boolean acked;
+    private final DeliveryRateEstimator.SendState sendState;
 
     public PacketStatus(Instant sent, QuicPacket packet, Consumer<QuicPacket> lostPacketCallback) {
+        this(sent, packet, lostPacketCallback, null);
+    }
+
+    public PacketStatus(Instant sent, QuicPacket packet, Consumer<QuicPacket> lostPacketCallback, DeliveryRateEstimator.SendState sendState) {
         super(sent, packet, lostPacketCallback);
+        this.sendState = sendState;
+    }
+
+    public DeliveryRateEstimator.SendState sendState() {
+        return sendState;
+    }
+
+    /**
+     * @return  whether the packet was sent while the connection was application limited
+     */
+    public boolean appLimited() {
+        return sendState != null && sendState.isAppLimited();
     }
 
     public synchronized boolean acked() {
@@ -19,7 +19,7 @@
 package net.luminis.quic.recovery;
 
 import net.luminis.quic.*;
-import net.luminis.quic.concurrent.DaemonThreadFactory;
+import net.luminis.quic.concurrent.HashedWheelTimer;
 import net.luminis.quic.frame.AckFrame;
 import net.luminis.quic.frame.Padding;
 import net.luminis.quic.frame.PingFrame;
@@ -33,10 +33,11 @@ import java.time.Instant;
 import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.*;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -44,38 +45,48 @@ import java.util.stream.Stream;
 
 public class RecoveryManager implements HandshakeStateListener {
 
+    // Max size of the retransmitted frames in one probe, leaving room for packet overhead and an ack frame.
+    private static final int MAX_PROBE_FRAMES_SIZE = 1100;
+
     private final RttEstimator rttEstimater;
     private final LossDetector[] lossDetectors = new LossDetector[PnSpace.values().length];
+    private final DeliveryRateEstimator deliveryRateEstimator;
     private final ProbeSender sender;
     private final Logger log;
-    private final ScheduledExecutorService scheduler;
+    private final HashedWheelTimer.Timeout lossDetectionTimer;
     private int receiverMaxAckDelay;
-    private volatile ScheduledFuture<?> lossDetectionTimer;
     private volatile int ptoCount;
-    private volatile Instant timerExpiration;
     private volatile HandshakeState handshakeState = HandshakeState.Initial;
     private volatile boolean firstHandshakeSent = false;
     private volatile boolean hasBeenReset = false;
 
     public RecoveryManager(RttEstimator rttEstimater, CongestionController congestionController, ProbeSender sender, Logger logger) {
+        this(rttEstimater, congestionController, sender, logger, HashedWheelTimer.shared(), null);
+    }
+
+    /**
+     * Creates a recovery manager that uses the given (shared) timer for the loss detection timer.
+     * @param timer
+     * @param executor  executor for running the loss detection timeout, or null to use the default of the timer
+     */
+    public RecoveryManager(RttEstimator rttEstimater, CongestionController congestionController, ProbeSender sender, Logger logger, HashedWheelTimer timer, Executor executor) {
         this.rttEstimater = rttEstimater;
+        deliveryRateEstimator = new DeliveryRateEstimator();
         for (PnSpace pnSpace: PnSpace.values()) {
-            lossDetectors[pnSpace.ordinal()] = new LossDetector(this, rttEstimater, congestionController);
+            lossDetectors[pnSpace.ordinal()] = new LossDetector(this, rttEstimater, congestionController, deliveryRateEstimator);
         }
         this.sender = sender;
         log = logger;
 
-        scheduler = Executors.newScheduledThreadPool(1, new DaemonThreadFactory("loss-detection"));
-        lossDetectionTimer = new NullScheduledFuture();
+        lossDetectionTimer = timer.newTimeout(this::lossDetectionTimeout, executor);
     }
 
     void setLossDetectionTimer() {
         PnSpaceTime earliestLossTime = getEarliestLossTime(LossDetector::getLossTime);
         Instant lossTime = earliestLossTime != null? earliestLossTime.lossTime: null;
         if (lossTime != null) {
-            lossDetectionTimer.cancel(false);
             int timeout = (int) Duration.between(Instant.now(), lossTime).toMillis();
-            lossDetectionTimer = reschedule(() -> lossDetectionTimeout(), timeout);
+            reschedule(timeout);
         }
         else {
             boolean ackElicitingInFlight = ackElicitingInFlight();
@@ -112,8 +123,7 @@ public class RecoveryManager implements HandshakeStateListener {
                         + (ackElicitingInFlight ? "ackElicitingInFlight ": "")
                         + "| RTT:" + rttEstimater.getSmoothedRtt() + "/" + rttEstimater.getRttVar(), earliestLastAckElicitingSentTime.lossTime);
 
-                lossDetectionTimer.cancel(false);
-                lossDetectionTimer = reschedule(() -> lossDetectionTimeout(), timeout);
+                reschedule(timeout);
             }
             else {
                 log.recovery("cancelling loss detection timer (no loss time set, no ack eliciting in flight, peer not awaiting address validation)");
@@ -131,34 +141,18 @@ public class RecoveryManager implements HandshakeStateListener {
     }
 
     private void lossDetectionTimeout() {
-        // Because cancelling the ScheduledExecutor task quite often fails, double check whether the timer should expire.
-        Instant expiration = timerExpiration;
-        if (expiration == null) {
-            // Timer was cancelled, but it still fired; ignore
-            log.warn("Loss detection timeout: Timer was cancelled.");
+        if (hasBeenReset) {
             return;
         }
-        else if (Instant.now().isBefore(expiration)) {
-            // Old timer task was cancelled, but it still fired; just ignore.
-            log.warn("Scheduled task running early: " + Duration.between(Instant.now(), expiration) + "(" + expiration + ")");
-            try {
-                Thread.sleep(Duration.between(Instant.now(), expiration).toMillis() + 1);   // Apparently, sleep is less precise than time measurement; and adding an extra ms is necessary
-            } catch (InterruptedException e) {
-            }
-            expiration = timerExpiration;
-            if (expiration == null) {
-                log.warn("Delayed task: timer expiration is now null, cancelled");
-                return;
-            }
-            else if (Instant.now().isBefore(expiration)) {
-                log.warn("Delayed task is now still before timer expiration, probably rescheduled in the meantime; " + Duration.between(Instant.now(), timerExpiration) + "(" + timerExpiration + ")");
-                return;
-            }
-            else {
-                log.warn("Delayed task running now");
-            }
+        try {
+            onLossDetectionTimeout();
         }
+        catch (Exception error) {
+            log.error("Runtime exception occurred while processing loss detection timeout", error);
+        }
+    }
 
+    private void onLossDetectionTimeout() {
         PnSpaceTime earliestLossTime = getEarliestLossTime(LossDetector::getLossTime);
         Instant lossTime = earliestLossTime != null? earliestLossTime.lossTime: null;
         if (lossTime != null) {
@@ -210,11 +204,10 @@ public class RecoveryManager implements HandshakeStateListener {
             // "SendOneAckElicitingHandshakePacket"
 
             // Client role: find ack eliciting handshake packet that is not acked and retransmit its contents.
-            List<QuicFrame> framesToRetransmit = getFramesToRetransmit(PnSpace.Handshake);
-            if (!framesToRetransmit.isEmpty()) {
+            List<List<QuicFrame>> probeFrames = getProbeFrames(PnSpace.Handshake, nrOfProbes);
+            if (!probeFrames.isEmpty()) {
                 log.recovery("(Probe is a handshake retransmit)");
-                repeatSend(nrOfProbes, () ->
-                        sender.sendProbe(framesToRetransmit, EncryptionLevel.Handshake));
+                sendProbes(nrOfProbes, probeFrames, EncryptionLevel.Handshake);
             }
             else {
                 // https://tools.ietf.org/html/draft-ietf-quic-transport-27#section-8.1
@@ -232,11 +225,14 @@ public class RecoveryManager implements HandshakeStateListener {
         else if (earliestLastAckElicitingSentTime != null) {
             // SendOneOrTwoAckElicitingPackets(pn_space)
             EncryptionLevel probeLevel = earliestLastAckElicitingSentTime.pnSpace.relatedEncryptionLevel();
-            List<QuicFrame> framesToRetransmit = getFramesToRetransmit(earliestLastAckElicitingSentTime.pnSpace);
-            if (!framesToRetransmit.isEmpty()) {
+            // https://tools.ietf.org/html/draft-ietf-quic-recovery-29#section-6.2.4
+            // Probe packets may carry new or previously sent (unacknowledged) data. The probes are filled with the
+            // oldest unacknowledged data, so a probe repairs a tail loss right away (instead of a ping, that only
+            // leads to the loss being detected); the sender adds new data when there is room left.
+            List<List<QuicFrame>> probeFrames = getProbeFrames(earliestLastAckElicitingSentTime.pnSpace, nrOfProbes);
+            if (!probeFrames.isEmpty()) {
                 log.recovery(("(Probe is retransmit on level " + probeLevel + ")"));
-                repeatSend(nrOfProbes, () ->
-                        sender.sendProbe(framesToRetransmit, probeLevel));
+                sendProbes(nrOfProbes, probeFrames, probeLevel);
             }
             else {
                 log.recovery(("(Probe is ping on level " + probeLevel + ")"));
@@ -250,20 +246,49 @@ public class RecoveryManager implements HandshakeStateListener {
     }
 
     List<QuicFrame> getFramesToRetransmit(PnSpace pnSpace) {
-        List<QuicPacket> unAckedPackets = lossDetectors[pnSpace.ordinal()].unAcked();
-        Optional<QuicPacket> ackEliciting = unAckedPackets.stream()
-                .filter(p -> p.isAckEliciting())
-                // Filter out Ping packets, ie. packets consisting of PingFrame's, padding and AckFrame's only.
-                .filter(p -> ! p.getFrames().stream().allMatch(frame -> frame instanceof PingFrame || frame instanceof Padding || frame instanceof AckFrame))
-                .findFirst();
-        if (ackEliciting.isPresent()) {
-            List<QuicFrame> framesToRetransmit = ackEliciting.get().getFrames().stream()
-                    .filter(frame -> !(frame instanceof AckFrame))
+        List<List<QuicFrame>> probeFrames = getProbeFrames(pnSpace, 1);
+        return probeFrames.isEmpty()? Collections.emptyList(): probeFrames.get(0);
+    }
+
+    /**
+     * Collects the frames of the oldest unacknowledged packets, packed in (at most) the given number of probes.
+     * @return  the frames for each probe; empty when there is no data to retransmit
+     */
+    List<List<QuicFrame>> getProbeFrames(PnSpace pnSpace, int nrOfProbes) {
+        List<List<QuicFrame>> probes = new ArrayList<>();
+        List<QuicFrame> probe = new ArrayList<>();
+        int probeSize = 0;
+        for (QuicPacket unAcked: lossDetectors[pnSpace.ordinal()].unAcked()) {
+            // Ping packets, ie. packets consisting of PingFrame's, padding and AckFrame's only, are not worth retransmitting.
+            List<QuicFrame> frames = unAcked.getFrames().stream()
+                    .filter(frame -> !(frame instanceof PingFrame || frame instanceof Padding || frame instanceof AckFrame))
                     .collect(Collectors.toList());
-            return framesToRetransmit;
+            for (QuicFrame frame: frames) {
+                int frameLength = frame.getFrameLength();
+                if (!probe.isEmpty() && probeSize + frameLength > MAX_PROBE_FRAMES_SIZE) {
+                    probes.add(probe);
+                    if (probes.size() == nrOfProbes) {
+                        return probes;
+                    }
+                    probe = new ArrayList<>();
+                    probeSize = 0;
+                }
+                probe.add(frame);
+                probeSize += frameLength;
+            }
         }
-        else {
-            return Collections.emptyList();
+        if (!probe.isEmpty()) {
+            probes.add(probe);
+        }
+        return probes;
+    }
+
+    /**
+     * Sends the given number of probes; when there is less data than probes, the last one is repeated.
+     */
+    private void sendProbes(int nrOfProbes, List<List<QuicFrame>> probeFrames, EncryptionLevel level) {
+        for (int i = 0; i < nrOfProbes; i++) {
+            sender.sendProbe(probeFrames.get(Integer.min(i, probeFrames.size() - 1)), level);
         }
     }
 
@@ -284,29 +309,24 @@ public class RecoveryManager implements HandshakeStateListener {
         return earliestLossTime;
     }
 
-    ScheduledFuture<?> reschedule(Runnable runnable, int timeout) {
-        if (! lossDetectionTimer.cancel(false)) {
-            log.warn("Cancelling loss detection timer failed");
-        }
-        timerExpiration = Instant.now().plusMillis(timeout);
-        return scheduler.schedule(() -> {
-            try {
-                runnable.run();
-            } catch (Exception error) {
-                log.error("Runtime exception occurred while processing scheduled task", error);
-            }
-        }, timeout, TimeUnit.MILLISECONDS);
+    void reschedule(int timeout) {
+        // Re-arming the timeout replaces the previous deadline; an expiration that was already due but has not yet run
+        // is discarded, so the timeout never fires for an outdated deadline.
+        lossDetectionTimer.schedule(timeout);
     }
 
     void unschedule() {
-        lossDetectionTimer.cancel(true);
-        timerExpiration = null;
+        lossDetectionTimer.cancel();
     }
 
     public void onAckReceived(AckFrame ackFrame, PnSpace pnSpace) {
+        onAckReceived(ackFrame, pnSpace, Instant.now());
+    }
+
+    public void onAckReceived(AckFrame ackFrame, PnSpace pnSpace, Instant timeReceived) {
         if (! hasBeenReset) {
             ptoCount = 0;
-            lossDetectors[pnSpace.ordinal()].onAckReceived(ackFrame);
+            lossDetectors[pnSpace.ordinal()].onAckReceived(ackFrame, timeReceived);
         }
     }
 
@@ -354,6 +374,39 @@ public class RecoveryManager implements HandshakeStateListener {
         return Stream.of(lossDetectors).mapToLong(ld -> ld.getLost()).sum();
     }
 
+    public long getSpuriouslyLost() {
+        return Stream.of(lossDetectors).mapToLong(ld -> ld.getSpuriouslyLost()).sum();
+    }
+
+    /**
+     * @return  the packet reordering threshold currently used for detecting loss of application data packets
+     */
+    public int getPacketThreshold() {
+        return lossDetectors[PnSpace.App.ordinal()].getPacketThreshold();
+    }
+
+    /**
+     * @return  the time reordering threshold (rtt multiplier) currently used for detecting loss of application data packets
+     */
+    public float getTimeThreshold() {
+        return lossDetectors[PnSpace.App.ordinal()].getTimeThreshold();
+    }
+
+    /**
+     * Registers that sending is application limited: everything there was to send has been sent, while the congestion
+     * window would allow sending more.
+     */
+    public void setAppLimited(long bytesInFlight) {
+        deliveryRateEstimator.setAppLimited(bytesInFlight);
+    }
+
+    /**
+     * @return  the estimated bandwidth in bytes per second, or 0 when no estimate is available yet.
+     */
+    public long getBandwidthEstimate() {
+        return deliveryRateEstimator.getBandwidthEstimate();
+    }
+
     @Override
     public void handshakeStateChangedEvent(HandshakeState newState) {
         if (! hasBeenReset) {
@@ -365,50 +418,11 @@ public class RecoveryManager implements HandshakeStateListener {
         }
     }
 
-    private static class NullScheduledFuture implements ScheduledFuture<Void> {
-        @Override
-        public int compareTo(Delayed o) {
-            return 0;
-        }
-
-        @Override
-        public long getDelay(TimeUnit unit) {
-            return 0;
-        }
-
-        @Override
-        public boolean cancel(boolean mayInterruptIfRunning) {
-            return false;
-        }
-
-        @Override
-        public boolean isCancelled() {
-            return false;
-        }
-
-        @Override
-        public boolean isDone() {
-            return false;
-        }
-
-        @Override
-        public Void get() throws InterruptedException, ExecutionException {
-            return null;
-        }
-
-        @Override
-        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            return null;
-        }
-    }
-
     private void repeatSend(int count, Runnable task) {
+        // Sending a probe only queues it for the sender, so there is no need to wait in between (which would block
+        // the timer thread).
         for (int i = 0; i < count; i++) {
             task.run();
-            try {
-                Thread.sleep(1);  // Use a small delay when sending multiple packets
-            } catch (InterruptedException e) {
-            }
         }
     }
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.recovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packets sent in one packet number space that are still of interest for loss detection, i.e. that are not yet
+ * acknowledged nor declared lost. The packets are kept in a ring buffer indexed by packet number, covering the window
+ * from the smallest to the largest packet number stored, so lookup by packet number is constant time and scanning for
+ * lost packets only touches the packets that are still in flight. Entries are released as soon as a packet is
+ * acknowledged or declared lost.
+ * Thread safe.
+ */
+class SentPacketStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private PacketStatus[] packets = new PacketStatus[INITIAL_CAPACITY];
+    // Packet number window: smallest <= pn < end; all stored packets are in this window.
+    private long smallest;
+    private long end;
+    private int size;
+    private int ackElicitingCount;
+
+    synchronized void add(PacketStatus packetStatus) {
+        long pn = packetStatus.packet().getPacketNumber();
+        if (size == 0) {
+            smallest = pn;
+            end = pn;
+        }
+        long newSmallest = Long.min(smallest, pn);
+        long newEnd = Long.max(end, pn + 1);
+        if (newEnd - newSmallest > packets.length) {
+            resize(newEnd - newSmallest);
+        }
+        PacketStatus previous = packets[index(pn)];
+        if (previous != null && previous.packet().getPacketNumber() == pn) {
+            release(previous);
+        }
+        smallest = newSmallest;
+        end = newEnd;
+        packets[index(pn)] = packetStatus;
+        size++;
+        if (packetStatus.packet().isAckEliciting()) {
+            ackElicitingCount++;
+        }
+    }
+
+    synchronized PacketStatus get(long pn) {
+        if (pn < smallest || pn >= end) {
+            return null;
+        }
+        return packets[index(pn)];
+    }
+
+    /**
+     * Removes the packet with the given packet number, if it is stored.
+     * @param pn
+     * @return  the removed packet, or null if not present.
+     */
+    synchronized PacketStatus remove(long pn) {
+        PacketStatus packetStatus = get(pn);
+        if (packetStatus != null) {
+            packets[index(pn)] = null;
+            release(packetStatus);
+            // Shrink the window from below, so it does not cover packet numbers that are done with.
+            while (smallest < end && packets[index(smallest)] == null) {
+                smallest++;
+            }
+        }
+        return packetStatus;
+    }
+
+    /**
+     * Returns all packets stored, in packet number order.
+     * @return
+     */
+    synchronized List<PacketStatus> getAll() {
+        List<PacketStatus> result = new ArrayList<>(size);
+        for (long pn = smallest; pn < end && result.size() < size; pn++) {
+            PacketStatus packetStatus = packets[index(pn)];
+            if (packetStatus != null) {
+                result.add(packetStatus);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all packets.
+     * @return  the packets that were stored, in packet number order.
+     */
+    synchronized List<PacketStatus> clear() {
+        List<PacketStatus> all = getAll();
+        Arrays.fill(packets, null);
+        size = 0;
+        ackElicitingCount = 0;
+        smallest = end;
+        return all;
+    }
+
+    synchronized boolean hasAckEliciting() {
+        return ackElicitingCount > 0;
+    }
+
+    /**
+     * Returns the smallest packet number that can be stored, or -1 if the store is empty.
+     * @return
+     */
+    synchronized long getSmallest() {
+        return size > 0? smallest: -1;
+    }
+
+    /**
+     * Returns the largest packet number that can be stored, or -1 if the store is empty.
+     * @return
+     */
+    synchronized long getLargest() {
+        return size > 0? end - 1: -1;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void release(PacketStatus packetStatus) {
+        size--;
+        if (packetStatus.packet().isAckEliciting()) {
+            ackElicitingCount--;
+        }
+    }
+
+    private void resize(long minimumCapacity) {
+        if (minimumCapacity > (1 << 30)) {
+            throw new IllegalStateException("too many packets in flight");
+        }
+        int capacity = packets.length;
+        while (capacity < minimumCapacity) {
+            capacity *= 2;
+        }
+        PacketStatus[] old = packets;
+        packets = new PacketStatus[capacity];
+        for (PacketStatus packetStatus: old) {
+            if (packetStatus != null) {
+                packets[index(packetStatus.packet().getPacketNumber())] = packetStatus;
+            }
+        }
+    }
+
+    private int index(long pn) {
+        return (int) (pn & (packets.length - 1));
+    }
+}
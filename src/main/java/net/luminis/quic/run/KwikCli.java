@@ -67,6 +67,7 @@ public class KwikCli {
         cmdLineOptions.addOption(null, "secrets", true, "write secrets to file (Wireshark format)");
         cmdLineOptions.addOption("v", "version", false, "show Kwik version");
         cmdLineOptions.addOption(null, "initialRtt", true, "custom initial RTT value (default is 500)");
+        cmdLineOptions.addOption(null, "cc", true, "congestion control algorithm: newreno (default), cubic or bbr (experimental)");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -318,6 +319,22 @@ public class KwikCli {
                 System.exit(1);
             }
         }
+        if (cmd.hasOption("cc")) {
+            String algorithm = cmd.getOptionValue("cc").toLowerCase();
+            if (algorithm.equals("newreno")) {
+                builder.congestionControl(CongestionControlAlgorithm.NewReno);
+            }
+            else if (algorithm.equals("cubic")) {
+                builder.congestionControl(CongestionControlAlgorithm.Cubic);
+            }
+            else if (algorithm.equals("bbr")) {
+                builder.congestionControl(CongestionControlAlgorithm.BBR);
+            }
+            else {
+                System.err.println("Unknown congestion control algorithm: " + algorithm);
+                System.exit(1);
+            }
+        }
 
         try {
             if (interactiveMode) {
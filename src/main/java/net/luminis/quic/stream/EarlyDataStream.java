@@ -58,6 +58,10 @@ public class EarlyDataStream extends QuicStream {
         if (earlyDataLength == earlyData.length && earlyDataIsFinalInStream) {
             getOutputStream().close();
         }
+        else {
+            // Make sure the data is sent as early data before sendingEarlyData is switched off.
+            getOutputStream().flush();
+        }
         sendingEarlyData = false;
         remainingData = Arrays.copyOfRange(earlyData, earlyDataLength, earlyData.length);
     }
@@ -75,6 +79,9 @@ public class EarlyDataStream extends QuicStream {
             if (earlyDataIsFinalInStream) {
                 getOutputStream().close();
             }
+            else {
+                getOutputStream().flush();
+            }
         }
     }
 
@@ -26,7 +26,9 @@ import net.luminis.quic.log.Logger;
 import net.luminis.quic.log.NullLogger;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -56,6 +58,7 @@ public class FlowControl implements FrameProcessor {
     private long maxDataAssigned;
     private Map<Integer, Long> maxStreamDataAllowed;
     private Map<Integer, Long> maxStreamDataAssigned;
+    private Map<QuicStream, Runnable> creditsAvailableCallbacks;
     private final Logger log;
 
 
@@ -74,6 +77,7 @@ public class FlowControl implements FrameProcessor {
         maxDataAssigned = 0;
         maxStreamDataAllowed = new HashMap<>();
         maxStreamDataAssigned = new HashMap<>();
+        creditsAvailableCallbacks = new HashMap<>();
     }
 
     /**
@@ -141,6 +145,26 @@ public class FlowControl implements FrameProcessor {
         }
     }
 
+    /**
+     * Registers a callback that is called (once) when flow control credits are available for the given stream; when
+     * credits are available already, the callback is called immediately. In contrast to waitForFlowControlCredits,
+     * this method never blocks.
+     * @param stream
+     * @param callback
+     */
+    public void whenCreditsAvailable(QuicStream stream, Runnable callback) {
+        boolean creditsAvailable;
+        synchronized (this) {
+            creditsAvailable = currentStreamCredits(stream) > 0;
+            if (!creditsAvailable) {
+                creditsAvailableCallbacks.put(stream, callback);
+            }
+        }
+        if (creditsAvailable) {
+            callback.run();
+        }
+    }
+
     public synchronized void updateInitialValues(TransportParameters transportParameters) {
         if (transportParameters.getInitialMaxData() > initialMaxData) {
             log.info("Increasing initial max data from " + initialMaxData + " to " + transportParameters.getInitialMaxData());
@@ -249,9 +273,19 @@ public class FlowControl implements FrameProcessor {
         else {
             throw new ImplementationError();
         }
+        List<Runnable> callbacks = new ArrayList<>();
         synchronized (this) {
             this.notifyAll();
+            creditsAvailableCallbacks.entrySet().removeIf(entry -> {
+                if (currentStreamCredits(entry.getKey()) > 0) {
+                    callbacks.add(entry.getValue());
+                    return true;
+                }
+                return false;
+            });
         }
+        // Call outside synchronized block, as callbacks will most likely call back into this object
+        callbacks.forEach(Runnable::run);
     }
 
     private void process(MaxDataFrame frame) {
@@ -19,7 +19,9 @@
 package net.luminis.quic.stream;
 
 import net.luminis.quic.QuicConnectionImpl;
+import net.luminis.quic.StreamScheduler;
 import net.luminis.quic.Version;
+import net.luminis.quic.concurrent.HashedWheelTimer;
 import net.luminis.quic.frame.MaxStreamDataFrame;
 import net.luminis.quic.frame.QuicFrame;
 import net.luminis.quic.frame.StreamFrame;
@@ -32,11 +34,17 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 
@@ -44,25 +52,30 @@ public class QuicStream {
 
     protected static long waitForNextFrameTimeout = Long.MAX_VALUE;
     protected static final float receiverMaxDataIncrementFactor = 0.10f;
+    public static final int DEFAULT_SEND_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_FLUSH_DELAY_MILLIS = 5;
 
-    private Object addMonitor = new Object();
+    private final Object addMonitor = new Object();
     protected final Version quicVersion;
     protected final int streamId;
     protected final QuicConnectionImpl connection;
     protected final FlowControl flowController;
     protected final Logger log;
-    private final BlockingQueue<StreamFrame> queuedFrames;
-    private StreamFrame currentFrame;
-    private int currentOffset;
-    private int expectingOffset;
-    private Map<Integer, StreamFrame> receivedFrames;
+    private final ReceiveBuffer receiveBuffer;
     private StreamInputStream inputStream;
     private StreamOutputStream outputStream;
+    private volatile StreamPublisher publisher;
     private volatile boolean aborted;
     private volatile Thread blocking;
     private long receiverMaxData;
     private long lastCommunicatedMaxData;
     private final long receiverMaxDataIncrement;
+    private volatile int urgency = StreamScheduler.DEFAULT_URGENCY;
+    private volatile boolean incremental;
+    private volatile int weight = StreamScheduler.DEFAULT_WEIGHT;
+    // Guarded by this
+    private boolean prioritySet;
+    private boolean sendingFinished;
 
 
     public QuicStream(int streamId, QuicConnectionImpl connection, FlowControl flowController) {
@@ -79,8 +92,7 @@ public class QuicStream {
         this.connection = connection;
         this.flowController = flowController;
         this.log = log;
-        queuedFrames = new LinkedBlockingQueue<>();  // Queued frames are the ones eligible for reading, because they are contiguous
-        receivedFrames = new ConcurrentHashMap<>();  // Received frames are the ones not (yet) eligible for reading, because they are non-contiguous
+        receiveBuffer = new ReceiveBuffer();
         inputStream = new StreamInputStream();
         outputStream = new StreamOutputStream();
 
@@ -93,10 +105,71 @@ public class QuicStream {
         return inputStream;
     }
 
+    /**
+     * Reads stream data into the given buffer; blocks until at least one byte is available.
+     * @param buffer
+     * @return  the number of bytes read, or -1 when end of stream is reached
+     * @throws IOException
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        return inputStream.read(buffer);
+    }
+
+    /**
+     * Returns a publisher for the data received on this stream, as a non-blocking alternative for the input stream (the
+     * two should not be mixed). The publisher accepts one subscriber only. Flow control credit is only granted for data
+     * that is delivered to the subscriber, so a subscriber that does not request more data will eventually stop the
+     * peer from sending. Data is delivered on the connection's receiver thread, or on the thread that requests data
+     * when that data was already received; subscribers should therefore never block.
+     * @return
+     */
+    public synchronized Flow.Publisher<ByteBuffer> getPublisher() {
+        if (publisher == null) {
+            publisher = new StreamPublisher();
+        }
+        return publisher;
+    }
+
     public OutputStream getOutputStream() {
         return outputStream;
     }
 
+    /**
+     * Writes data to this stream without blocking, as a non-blocking alternative for the output stream (the two should
+     * not be mixed). The returned future completes when all data is accepted in the send buffer; when fin is true,
+     * when the final frame has been queued for sending as well. Until the future completes, the given buffer must not
+     * be modified. Writes complete in order; completion happens on the writing thread or on one of the connection's
+     * threads.
+     * @param data
+     * @param fin  whether this is the last data of the stream
+     * @return
+     */
+    public CompletableFuture<Void> writeAsync(ByteBuffer data, boolean fin) {
+        return outputStream.writeAsync(data, fin);
+    }
+
+    /**
+     * Configures the send buffer of the output stream. Writers block when the amount of buffered data reaches the
+     * high watermark, until the buffer has drained to the low watermark.
+     * @param bufferSize
+     * @param highWatermark  must be larger than 0 and not larger than buffer size
+     * @param lowWatermark  must be smaller than the high watermark
+     */
+    public void setSendBuffer(int bufferSize, int highWatermark, int lowWatermark) {
+        if (highWatermark <= 0 || highWatermark > bufferSize || lowWatermark < 0 || lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException();
+        }
+        outputStream.configure(bufferSize, highWatermark, lowWatermark);
+    }
+
+    /**
+     * Sets the maximum time written data is held back in order to coalesce it with subsequent writes.
+     * @param millis
+     */
+    public void setFlushDelay(int millis) {
+        outputStream.flushDelay = millis;
+    }
+
     /**
      * Adds a newly received frame to the stream.
      *
@@ -107,35 +180,76 @@ public class QuicStream {
         String logMessage = null;
 
         synchronized (addMonitor) {
-            if (frame.getOffset() == expectingOffset) {
-                queuedFrames.add(frame);
-                expectingOffset += frame.getLength();
-                while (receivedFrames.containsKey(expectingOffset)) {
-                    // Next frame was already received; move it to the incoming queue
-                    StreamFrame nextFrame = receivedFrames.remove(expectingOffset);
-                    queuedFrames.add(nextFrame);
-                    expectingOffset += nextFrame.getLength();
-                }
+            if (receiveBuffer.add(frame)) {
+                addMonitor.notifyAll();
             }
             else {
-                // Store frame for later use
-                if (! receivedFrames.containsKey(frame.getOffset())) {
-                    receivedFrames.put(frame.getOffset(), frame);
-                }
-                else {
-                    logMessage = "Received duplicate frame " + frame;
-                }
+                logMessage = "Received duplicate frame " + frame;
             }
         }
         if (logMessage != null) {
             log.debug(logMessage);
         }
+        if (publisher != null) {
+            publisher.deliver();
+        }
     }
 
     public int getStreamId() {
         return streamId;
     }
 
+    /**
+     * Sets the priority of this stream, used when the connection schedules streams by priority. Can be changed at any
+     * time; it applies to data that is not sent yet.
+     * @param urgency  0 (most urgent) to 7 (least urgent), default is 3
+     * @param incremental  whether data of this stream can be interleaved with data of other streams with the same urgency
+     */
+    public synchronized void setPriority(int urgency, boolean incremental) {
+        if (!sendingFinished) {
+            connection.setStreamPriority(streamId, urgency, incremental, weight);
+        }
+        this.urgency = urgency;
+        this.incremental = incremental;
+        prioritySet = true;
+    }
+
+    /**
+     * Sets the weight of this stream, used when the connection schedules streams with weighted fair queuing: the
+     * bandwidth is shared by streams in proportion to their weights.
+     * @param weight  1 to 256, default is 16
+     */
+    public synchronized void setWeight(int weight) {
+        if (!sendingFinished) {
+            connection.setStreamPriority(streamId, urgency, incremental, weight);
+        }
+        this.weight = weight;
+        prioritySet = true;
+    }
+
+    /**
+     * Releases the priority registration of this stream, as it will not send any more data (except for retransmissions,
+     * which are sent with the default priority).
+     */
+    private synchronized void sendingFinished() {
+        if (prioritySet && !sendingFinished) {
+            connection.removeStreamPriority(streamId);
+        }
+        sendingFinished = true;
+    }
+
+    public int getUrgency() {
+        return urgency;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
     public boolean isUnidirectional() {
         // https://tools.ietf.org/html/draft-ietf-quic-transport-23#section-2.1
         // "The second least significant bit (0x2) of the stream ID distinguishes
@@ -163,61 +277,105 @@ public class QuicStream {
 
         @Override
         public int available() throws IOException {
-            if (currentFrame == null || !(currentOffset < currentFrame.getOffset() + currentFrame.getLength()) && !currentFrame.isFinal()) {
-                currentFrame = queuedFrames.poll();  // Does not block
+            synchronized (addMonitor) {
+                return receiveBuffer.bytesAvailable();
             }
-            if (currentFrame != null) {
-                return currentFrame.getOffset() + currentFrame.getLength() - currentOffset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            int bytesRead = read(data, 0, 1);
+            return bytesRead > 0? data[0] & 0xff: -1;
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            Objects.checkFromIndexSize(offset, length, buffer.length);
+            if (length == 0) {
+                return 0;
             }
-            else {
+            int[] position = { offset };
+            return read(length, (data, dataOffset, count) -> {
+                System.arraycopy(data, dataOffset, buffer, position[0], count);
+                position[0] += count;
+            });
+        }
+
+        int read(ByteBuffer buffer) throws IOException {
+            if (! buffer.hasRemaining()) {
                 return 0;
             }
+            return read(buffer.remaining(), buffer::put);
         }
 
-        @Override
-        public int read() throws IOException {
+        /**
+         * Reads at most maxLength bytes; blocks until at least one byte is available (or end of stream is reached),
+         * after that, only data that is available without blocking is read. Flow control credit for all bytes read
+         * is granted at once.
+         * @return  the number of bytes read, or -1 when end of stream is reached
+         */
+        private int read(int maxLength, ReceiveBuffer.DataSink sink) throws IOException {
+            int bytesRead;
+            synchronized (addMonitor) {
+                if (! waitForData()) {
+                    return -1;
+                }
+                bytesRead = receiveBuffer.read(maxLength, sink);
+            }
+            updateFlowControl(bytesRead);
+            return bytesRead;
+        }
+
+        /**
+         * Blocks until there is data to read or end of stream is reached. Must be called while holding the addMonitor.
+         * @return  false when end of stream is reached
+         */
+        private boolean waitForData() throws IOException {
             if (aborted)
                 throw new ProtocolException("Connection aborted");
 
+            // Because the read method is supposed to block, the timeout should be (nearly) infinite.
+            long timeout = TimeUnit.SECONDS.toMillis(waitForNextFrameTimeout);
+            long waitStart = System.currentTimeMillis();
             blocking = Thread.currentThread();  // TODO: this works for one blocking reader thread only
-            if (currentFrame == null) {
-                try {
-                    // Because the read method is supposed to block, the timeout should be (nearly) infinite.
-                    currentFrame = queuedFrames.poll(waitForNextFrameTimeout, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    if (aborted) {
-                        blocking = null;
-                        throw new ProtocolException("Connection aborted");
+            try {
+                while (receiveBuffer.bytesAvailable() == 0 && !receiveBuffer.allRead()) {
+                    long remaining = timeout - (System.currentTimeMillis() - waitStart);
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException();
+                    }
+                    try {
+                        addMonitor.wait(remaining);
+                    }
+                    catch (InterruptedException e) {
+                        if (aborted) {
+                            throw new ProtocolException("Connection aborted");
+                        }
+                        throw new SocketTimeoutException();
                     }
-                    /* Nothing to do, currentFrame will stay null. */ }
-                if (currentFrame == null) {
-                    blocking = null;
-                    throw new SocketTimeoutException();
                 }
             }
-            blocking = null;
-            if (currentOffset < currentFrame.getOffset() + currentFrame.getLength()) {
-                byte data = currentFrame.getStreamData()[currentOffset - currentFrame.getOffset()];
-                currentOffset++;
-                // Flow control
-                receiverMaxData += 1;  // Slide flow control window forward (which as much bytes as are read)
-                connection.slideFlowControlWindow(1);
+            finally {
+                blocking = null;
+            }
+            return receiveBuffer.bytesAvailable() > 0;
+        }
+
+        private void updateFlowControl(int bytesRead) {
+            if (bytesRead > 0) {
+                receiverMaxData += bytesRead;  // Slide flow control window forward (which as much bytes as are read)
+                connection.slideFlowControlWindow(bytesRead);
                 if (receiverMaxData - lastCommunicatedMaxData > receiverMaxDataIncrement) {
                     // Avoid sending updates which every single byte read...
                     connection.send(new MaxStreamDataFrame(streamId, receiverMaxData), this::retransmitMaxData);
                     lastCommunicatedMaxData = receiverMaxData;
                 }
-
-                return data & 0xff;
-            }
-            else {
-                if (currentFrame.isFinal()) {
-                    return -1;
-                }
-                else {
-                    currentFrame = null;
-                    return read();
-                }
             }
         }
 
@@ -227,8 +385,23 @@ public class QuicStream {
         }
     }
 
+    /**
+     * Output stream that buffers written data, so that small writes are coalesced into (fewer) larger stream frames.
+     * Buffered data is sent as soon as a frame's worth of data is available, when the stream is flushed or closed,
+     * or when the flush delay expires, whichever comes first. When the buffer fills up beyond the high watermark
+     * (because flow control does not allow sending), writers block until it has drained to the low watermark.
+     */
     private class StreamOutputStream extends OutputStream {
         int currentOffset;
+        private byte[] buffer = new byte[DEFAULT_SEND_BUFFER_SIZE];
+        private int highWatermark = DEFAULT_SEND_BUFFER_SIZE;
+        private int lowWatermark = DEFAULT_SEND_BUFFER_SIZE / 2;
+        private volatile int flushDelay = DEFAULT_FLUSH_DELAY_MILLIS;
+        private int start;
+        private int buffered;
+        private final HashedWheelTimer.Timeout flushTimer = connection.newTimeout(() -> sendPendingData(true));
+        private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+        private CompletableFuture<Void> pendingFinalFrame;
 
         @Override
         public void write(byte[] data) throws IOException {
@@ -237,22 +410,20 @@ public class QuicStream {
 
         @Override
         public void write(byte[] data, int off, int len) throws IOException {
-            long flowControlLimit = flowController.increaseFlowControlLimit(QuicStream.this, currentOffset + len);
-            if (currentOffset + len <= flowControlLimit) {
-                sendData(data, off, len);
-            }
-            else {
-                int sizeOfFirstWrite = (int) (flowControlLimit - currentOffset);
-                sendData(data, off, sizeOfFirstWrite);
-
-                try {
-                    flowController.waitForFlowControlCredits(QuicStream.this);
-                } catch (InterruptedException e) {
-                    throw new InterruptedIOException();
+            Objects.checkFromIndexSize(off, len, data.length);
+            int written = 0;
+            while (written < len) {
+                boolean full;
+                synchronized (this) {
+                    written += copyToBuffer(data, off + written, len - written);
+                    sendBufferedData(0, false);
+                    full = buffered >= highWatermark;
+                }
+                if (full) {
+                    drain(lowWatermark);
                 }
-
-                write(data, off + sizeOfFirstWrite, len - sizeOfFirstWrite);    // TODO: refactor recursion to while
             }
+            scheduleFlush();
         }
 
         @Override
@@ -260,27 +431,222 @@ public class QuicStream {
             write(new byte[] { (byte) dataByte }, 0, 1);
         }
 
+        /**
+         * Sends all buffered data; blocks when flow control does not allow to send all data.
+         * @throws IOException
+         */
         @Override
         public void flush() throws IOException {
-            // No-op, this implementation flushes immediately.
+            drain(0);
         }
 
         @Override
         public void close() throws IOException {
-            send(new StreamFrame(quicVersion, streamId, currentOffset, new byte[0], true), this::retransmitStreamFrame);
+            flush();
+            synchronized (this) {
+                flushTimer.cancel();
+                send(new StreamFrame(quicVersion, streamId, currentOffset, new byte[0], true), this::retransmitStreamFrame);
+            }
+            sendingFinished();
+        }
+
+        synchronized void configure(int bufferSize, int highWatermark, int lowWatermark) {
+            if (bufferSize < buffered) {
+                throw new IllegalStateException("buffer contains more data than new size");
+            }
+            byte[] newBuffer = new byte[bufferSize];
+            System.arraycopy(buffer, start, newBuffer, 0, buffered);
+            buffer = newBuffer;
+            start = 0;
+            this.highWatermark = highWatermark;
+            this.lowWatermark = lowWatermark;
+        }
+
+        synchronized void reset() {
+            flushTimer.cancel();
+            currentOffset = 0;
+            start = 0;
+            buffered = 0;
+        }
+
+        CompletableFuture<Void> writeAsync(ByteBuffer data, boolean fin) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            synchronized (this) {
+                if (aborted) {
+                    future.completeExceptionally(new ProtocolException("Connection aborted"));
+                    return future;
+                }
+                pendingWrites.addLast(new PendingWrite(data, fin, future));
+            }
+            sendPendingData(false);
+            return future;
+        }
+
+        /**
+         * Fails all writes that are not yet completed, as their data will never be sent.
+         */
+        void abort() {
+            List<CompletableFuture<Void>> failed = new ArrayList<>();
+            synchronized (this) {
+                flushTimer.cancel();
+                pendingWrites.forEach(write -> failed.add(write.future));
+                pendingWrites.clear();
+                if (pendingFinalFrame != null) {
+                    failed.add(pendingFinalFrame);
+                    pendingFinalFrame = null;
+                }
+            }
+            failed.forEach(future -> future.completeExceptionally(new ProtocolException("Connection aborted")));
+        }
+
+        private int copyToBuffer(byte[] data, int off, int len) {
+            int count = Integer.min(len, buffer.length - buffered);
+            makeRoom(count);
+            System.arraycopy(data, off, buffer, start + buffered, count);
+            buffered += count;
+            return count;
+        }
+
+        private int copyToBuffer(ByteBuffer data, int maxBuffered) {
+            int count = Integer.max(Integer.min(data.remaining(), maxBuffered - buffered), 0);
+            makeRoom(count);
+            data.get(buffer, start + buffered, count);
+            buffered += count;
+            return count;
         }
 
-        private void sendData(byte[] data, int off, int len) {
+        private void makeRoom(int count) {
+            if (start + buffered + count > buffer.length) {
+                System.arraycopy(buffer, start, buffer, 0, buffered);
+                start = 0;
+            }
+        }
+
+        /**
+         * Moves data of pending (asynchronous) writes into the buffer, as far as it fits below the high watermark.
+         * Must be called while holding the lock on this.
+         * @param completed  collects the futures of writes that are completely accepted
+         * @return  whether any data was accepted
+         */
+        private boolean acceptPendingWrites(List<CompletableFuture<Void>> completed) {
+            boolean accepted = false;
+            while (!pendingWrites.isEmpty()) {
+                PendingWrite write = pendingWrites.peekFirst();
+                accepted |= copyToBuffer(write.data, highWatermark) > 0;
+                if (write.data.hasRemaining()) {
+                    break;
+                }
+                pendingWrites.removeFirst();
+                if (write.fin) {
+                    pendingFinalFrame = write.future;
+                }
+                else {
+                    completed.add(write.future);
+                }
+            }
+            return accepted;
+        }
+
+        /**
+         * Blocks until at most the given number of bytes is left in the buffer.
+         * @param target
+         * @throws InterruptedIOException
+         */
+        private void drain(int target) throws InterruptedIOException {
+            while (true) {
+                synchronized (this) {
+                    if (! sendBufferedData(target, true)) {
+                        if (buffered == 0) {
+                            flushTimer.cancel();
+                        }
+                        return;
+                    }
+                }
+                // Wait without holding the lock, as flow control credits can only be processed when not blocked by this.
+                try {
+                    flowController.waitForFlowControlCredits(QuicStream.this);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        /**
+         * Sends buffered data, as far as flow control allows, until at most the given number of bytes is left in the buffer.
+         * Must be called while holding the lock on this.
+         * @param target  the number of bytes that can remain in the buffer
+         * @param partialFrames  whether to send frames that are smaller than the max frame size
+         * @return  true when blocked by flow control before target was reached
+         */
+        private boolean sendBufferedData(int target, boolean partialFrames) {
             int maxDataPerFrame = connection.getMaxPacketSize() - StreamFrame.maxOverhead() - connection.getMaxShortHeaderPacketOverhead();
-            int remaining = len;
-            int offsetInDataArray = off;
-            while (remaining > 0) {
-                int bytesInFrame = Math.min(maxDataPerFrame, remaining);
-                StreamFrame frame = new StreamFrame(quicVersion, streamId, currentOffset, data, offsetInDataArray, bytesInFrame, false);
-                send(frame, this::retransmitStreamFrame);
-                remaining -= bytesInFrame;
-                offsetInDataArray += bytesInFrame;
-                currentOffset += bytesInFrame;
+            while (buffered > target) {
+                int frameSize = Integer.min(maxDataPerFrame, buffered);
+                if (frameSize < maxDataPerFrame && !partialFrames) {
+                    return false;
+                }
+                long flowControlLimit = flowController.increaseFlowControlLimit(QuicStream.this, currentOffset + frameSize);
+                int allowed = (int) Long.min(flowControlLimit - currentOffset, frameSize);
+                if (allowed > 0) {
+                    StreamFrame frame = new StreamFrame(quicVersion, streamId, currentOffset, buffer, start, allowed, false);
+                    send(frame, this::retransmitStreamFrame);
+                    start += allowed;
+                    buffered -= allowed;
+                    currentOffset += allowed;
+                    if (buffered == 0) {
+                        start = 0;
+                    }
+                }
+                if (allowed < frameSize) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void scheduleFlush() {
+            if (buffered > 0 && !flushTimer.isScheduled()) {
+                flushTimer.schedule(flushDelay);
+            }
+        }
+
+        /**
+         * Accepts data of pending writes and sends buffered data, without blocking; when blocked by flow control,
+         * sending is resumed when credits become available.
+         * @param partialFrames  whether to send all data, or only full frames
+         */
+        private void sendPendingData(boolean partialFrames) {
+            List<CompletableFuture<Void>> completed = new ArrayList<>();
+            boolean blocked;
+            boolean finished = false;
+            synchronized (this) {
+                while (true) {
+                    boolean accepted = acceptPendingWrites(completed);
+                    int bufferedBefore = buffered;
+                    // No use waiting for more data when the stream is finished or the buffer is full.
+                    blocked = sendBufferedData(0, partialFrames || pendingFinalFrame != null || !pendingWrites.isEmpty());
+                    boolean sent = buffered < bufferedBefore;
+                    if (blocked || pendingWrites.isEmpty() || !(accepted || sent)) {
+                        break;
+                    }
+                }
+                if (pendingFinalFrame != null && buffered == 0) {
+                    flushTimer.cancel();
+                    send(new StreamFrame(quicVersion, streamId, currentOffset, new byte[0], true), this::retransmitStreamFrame);
+                    completed.add(pendingFinalFrame);
+                    pendingFinalFrame = null;
+                    finished = true;
+                }
+            }
+            if (finished) {
+                sendingFinished();
+            }
+            completed.forEach(future -> future.complete(null));
+            if (blocked) {
+                flowController.whenCreditsAvailable(QuicStream.this, () -> sendPendingData(true));
+            }
+            else {
+                scheduleFlush();
             }
         }
 
@@ -290,8 +656,27 @@ public class QuicStream {
         }
     }
 
+    private static class PendingWrite {
+        final ByteBuffer data;
+        final boolean fin;
+        final CompletableFuture<Void> future;
+
+        PendingWrite(ByteBuffer data, boolean fin, CompletableFuture<Void> future) {
+            this.data = data;
+            this.fin = fin;
+            this.future = future;
+        }
+    }
+
     protected void resetOutputStream() {
-        outputStream.currentOffset = 0;
+        outputStream.reset();
+        synchronized (this) {
+            // All data will be sent again.
+            if (prioritySet && sendingFinished) {
+                connection.setStreamPriority(streamId, urgency, incremental, weight);
+            }
+            sendingFinished = false;
+        }
     }
 
     protected void send(StreamFrame frame, Consumer<QuicFrame> lostFrameCallback) {
@@ -300,9 +685,119 @@ public class QuicStream {
 
     void abort() {
         aborted = true;
+        outputStream.abort();
+        sendingFinished();
         if (blocking != null) {
             blocking.interrupt();
         }
+        if (publisher != null) {
+            publisher.deliver();
+        }
+    }
+
+    /**
+     * Delivers received data to the (single) subscriber, as far as demand allows.
+     */
+    private class StreamPublisher implements Flow.Publisher<ByteBuffer>, Flow.Subscription {
+
+        // Only set when onSubscribe has returned, so no other signal can precede onSubscribe.
+        private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+        private boolean subscribed;
+        private final AtomicLong demand = new AtomicLong();
+        // Guarantees that only one thread delivers at a time, without blocking other threads.
+        private final AtomicInteger deliveryRequests = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable requestError;
+        private boolean done;
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            boolean accepted;
+            synchronized (this) {
+                accepted = !subscribed;
+                subscribed = true;
+            }
+            if (!accepted) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {}
+
+                    @Override
+                    public void cancel() {}
+                });
+                subscriber.onError(new IllegalStateException("Stream data can only be published to one subscriber"));
+                return;
+            }
+            subscriber.onSubscribe(this);
+            this.subscriber = subscriber;
+            deliver();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // Signalled by the delivering thread, so it cannot interleave with other signals.
+                requestError = new IllegalArgumentException("non-positive request");
+                deliver();
+                return;
+            }
+            demand.getAndUpdate(current -> current + n < 0? Long.MAX_VALUE: current + n);
+            deliver();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        void deliver() {
+            if (subscriber == null || deliveryRequests.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                deliverAvailableData();
+            }
+            while (deliveryRequests.decrementAndGet() != 0);
+        }
+
+        private void deliverAvailableData() {
+            while (!cancelled && !done) {
+                if (requestError != null) {
+                    done = true;
+                    subscriber.onError(requestError);
+                    return;
+                }
+                ByteBuffer data = null;
+                boolean endOfStream = false;
+                synchronized (addMonitor) {
+                    int available = receiveBuffer.bytesAvailable();
+                    if (available > 0 && demand.get() > 0) {
+                        data = ByteBuffer.allocate(available);
+                        receiveBuffer.read(available, data::put);
+                        data.flip();
+                    }
+                    else if (available == 0) {
+                        endOfStream = receiveBuffer.allRead();
+                    }
+                }
+                if (data != null) {
+                    demand.decrementAndGet();
+                    inputStream.updateFlowControl(data.remaining());
+                    subscriber.onNext(data);
+                }
+                else {
+                    if (endOfStream) {
+                        done = true;
+                        subscriber.onComplete();
+                    }
+                    else if (aborted) {
+                        done = true;
+                        subscriber.onError(new ProtocolException("Connection aborted"));
+                    }
+                    return;
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.stream;
+
+import net.luminis.quic.frame.StreamFrame;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reassembly buffer for received stream data. Data that is received but not yet read, is kept as non-overlapping
+ * segments, ordered by stream offset. Frames that (partly) overlap with data already received, for example
+ * retransmissions that are split at different boundaries, are trimmed on arrival, so each byte is stored only once.
+ * Segments are released as soon as they are read.
+ * Not thread-safe: callers must synchronize access.
+ */
+class ReceiveBuffer {
+
+    interface DataSink {
+        void put(byte[] data, int offset, int length);
+    }
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private int readOffset;
+    private int contiguousUpTo;
+    private int finalSize = -1;
+    private long bufferedBytes;
+
+    /**
+     * Adds the data of a received frame to the buffer, skipping all data that was already received.
+     * @param frame
+     * @return  whether the frame contained any new data (or the end of stream)
+     */
+    boolean add(StreamFrame frame) {
+        boolean added = false;
+        int start = frame.getOffset();
+        int end = start + frame.getLength();
+        if (frame.isFinal() && finalSize < 0) {
+            finalSize = end;
+            added = true;
+        }
+        if (finalSize >= 0 && end > finalSize) {
+            // Data beyond the final size cannot be valid
+            end = finalSize;
+        }
+
+        // All data before contiguousUpTo is already received
+        int position = Math.max(start, contiguousUpTo);
+        while (position < end) {
+            Map.Entry<Integer, Segment> floor = segments.floorEntry(position);
+            if (floor != null && floor.getValue().end() > position) {
+                // Already received
+                position = floor.getValue().end();
+                continue;
+            }
+            Integer nextStart = segments.higherKey(position);
+            int segmentEnd = nextStart != null? Math.min(end, nextStart): end;
+            segments.put(position, new Segment(position, frame.getStreamData(), position - start, segmentEnd - position));
+            bufferedBytes += segmentEnd - position;
+            added = true;
+            position = segmentEnd;
+        }
+
+        Segment next;
+        while ((next = segments.get(contiguousUpTo)) != null) {
+            contiguousUpTo = next.end();
+        }
+        return added;
+    }
+
+    /**
+     * Reads (at most maxLength bytes of) contiguous data that is available.
+     * @return  the number of bytes read
+     */
+    int read(int maxLength, DataSink sink) {
+        int bytesRead = 0;
+        while (bytesRead < maxLength && readOffset < contiguousUpTo) {
+            Segment segment = segments.firstEntry().getValue();
+            int count = Math.min(segment.end() - readOffset, maxLength - bytesRead);
+            sink.put(segment.data, segment.dataOffset + (readOffset - segment.offset), count);
+            readOffset += count;
+            bytesRead += count;
+            if (readOffset == segment.end()) {
+                segments.pollFirstEntry();
+                bufferedBytes -= segment.length;
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * @return  the number of bytes that can be read without waiting for more data to arrive
+     */
+    int bytesAvailable() {
+        return contiguousUpTo - readOffset;
+    }
+
+    boolean allRead() {
+        return finalSize >= 0 && readOffset >= finalSize;
+    }
+
+    int readOffset() {
+        return readOffset;
+    }
+
+    /**
+     * @return  the number of bytes received but not yet read, including data that is not contiguous
+     */
+    long bufferedBytes() {
+        return bufferedBytes;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    private static class Segment {
+        final int offset;
+        final byte[] data;
+        final int dataOffset;
+        final int length;
+
+        Segment(int offset, byte[] data, int dataOffset, int length) {
+            this.offset = offset;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.length = length;
+        }
+
+        int end() {
+            return offset + length;
+        }
+    }
+}
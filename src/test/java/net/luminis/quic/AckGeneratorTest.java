@@ -24,6 +24,8 @@ import net.luminis.quic.packet.VersionNegotiationPacket;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Instant;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -143,4 +145,95 @@ class AckGeneratorTest {
         ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.Initial, new AckFrame()));
         assertThat(ackGenerator.hasNewAckToSend()).isEqualTo(false);
     }
+
+    @Test
+    void singleAckElicitingAppPacketShouldBeAckedWithinMaxAckDelay() throws Exception {
+        Instant received = Instant.now();
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App), received);
+
+        assertThat(ackGenerator.hasAckToSend()).isTrue();
+        assertThat(ackGenerator.hasNewAckToSend()).isFalse();
+        assertThat(ackGenerator.getAckDeadline()).isEqualTo(received.plusMillis(25));
+    }
+
+    @Test
+    void whenMaxAckDelayHasPassedAckShouldBeSent() throws Exception {
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App), Instant.now().minusMillis(30));
+
+        assertThat(ackGenerator.hasNewAckToSend()).isTrue();
+    }
+
+    @Test
+    void secondAckElicitingPacketShouldBeAckedImmediately() throws Exception {
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App));
+        ackGenerator.packetReceived(new MockPacket(1, 83, EncryptionLevel.App));
+
+        assertThat(ackGenerator.hasNewAckToSend()).isTrue();
+    }
+
+    @Test
+    void outOfOrderPacketShouldBeAckedImmediately() throws Exception {
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App));
+        ackGenerator.generateAckForPacket(0);
+
+        ackGenerator.packetReceived(new MockPacket(2, 83, EncryptionLevel.App));
+
+        assertThat(ackGenerator.hasNewAckToSend()).isTrue();
+    }
+
+    @Test
+    void packetFollowingNonAckElicitingPacketIsNotOutOfOrder() throws Exception {
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App));
+        ackGenerator.generateAckForPacket(0);
+
+        ackGenerator.packetReceived(new MockPacket(1, 83, EncryptionLevel.App, new AckFrame()));
+        ackGenerator.packetReceived(new MockPacket(2, 83, EncryptionLevel.App));
+
+        assertThat(ackGenerator.hasNewAckToSend()).isFalse();
+    }
+
+    @Test
+    void packetPrecedingLargestNonAckElicitingPacketIsOutOfOrder() throws Exception {
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App));
+        ackGenerator.generateAckForPacket(0);
+
+        ackGenerator.packetReceived(new MockPacket(2, 83, EncryptionLevel.App, new AckFrame()));
+        ackGenerator.packetReceived(new MockPacket(1, 83, EncryptionLevel.App));
+
+        assertThat(ackGenerator.hasNewAckToSend()).isTrue();
+    }
+
+    @Test
+    void ackDelayShouldBeTimeSinceLargestWasReceived() throws Exception {
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App), Instant.now().minusMillis(20));
+
+        AckFrame ack = ackGenerator.generateAckForPacket(0);
+
+        assertThat(ack.getAckDelay()).isBetween(20, 100);
+    }
+
+    @Test
+    void numberOfRangesShouldBeBounded() throws Exception {
+        for (int pn = 0; pn < 4 * AckGenerator.MAX_RANGES; pn += 2) {
+            ackGenerator.packetReceived(new MockPacket(pn, 83, EncryptionLevel.App));
+        }
+
+        AckFrame ack = ackGenerator.generateAck();
+
+        assertThat(ack.getAckRangeCount()).isEqualTo(AckGenerator.MAX_RANGES);
+        assertThat(ack.getLargestAcknowledged()).isEqualTo(4 * AckGenerator.MAX_RANGES - 2);
+    }
+
+    @Test
+    void packetFillingGapShouldMergeRanges() throws Exception {
+        ackGenerator.packetReceived(new MockPacket(0, 83, EncryptionLevel.App));
+        ackGenerator.packetReceived(new MockPacket(2, 83, EncryptionLevel.App));
+        ackGenerator.packetReceived(new MockPacket(1, 83, EncryptionLevel.App));
+        ackGenerator.packetReceived(new MockPacket(1, 83, EncryptionLevel.App));
+
+        AckFrame ack = ackGenerator.generateAck();
+
+        assertThat(ack.getAckRangeCount()).isEqualTo(1);
+        assertThat(ack.getAckedPacketNumbers()).containsExactly(2L, 1L, 0L);
+    }
 }
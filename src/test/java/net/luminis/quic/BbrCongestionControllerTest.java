@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.log.Logger;
+import net.luminis.quic.log.NullLogger;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+import static org.mockito.Mockito.mock;
+
+class BbrCongestionControllerTest {
+
+    private static final long BANDWIDTH = 12_000_000;
+    private static final Duration RTT = Duration.ofMillis(100);
+    private static final long BDP = 1_200_000;
+
+    @Test
+    void initiallyStateIsStartup() {
+        BbrCongestionController congestionController = new BbrCongestionController(mock(Logger.class));
+
+        assertThat(congestionController.getState()).isEqualTo(BbrCongestionController.State.Startup);
+        assertThat(congestionController.getWindowSize()).isEqualTo(12_000);
+    }
+
+    @Test
+    void initialPacingRateIsBasedOnInitialWindowAndRtt() {
+        RttEstimator rttEstimator = new RttEstimator(mock(Logger.class), 100);
+        BbrCongestionController congestionController = new BbrCongestionController(mock(Logger.class), null, rttEstimator);
+
+        // 2/ln(2) * 12000 bytes / 0.1 s
+        assertThat(congestionController.getPacingRate()).isCloseTo(346_246, withinPercentage(1));
+    }
+
+    @Test
+    void bottleneckBandwidthAndMinRttAreEstimatedFromRateSamples() {
+        CongestionControlSimulator simulator = new CongestionControlSimulator(BANDWIDTH, RTT, BDP);
+        BbrCongestionController congestionController = new BbrCongestionController(new NullLogger(), null, null, simulator.getClock());
+
+        simulator.run(congestionController, Duration.ofSeconds(3));
+
+        assertThat(congestionController.getBottleneckBandwidth()).isCloseTo(BANDWIDTH, withinPercentage(5));
+        assertThat(congestionController.getRtProp()).isBetween(RTT, RTT.plusMillis(5));
+    }
+
+    @Test
+    void whenPipeIsFilledControllerLeavesStartupAndPacesAtBottleneckBandwidth() {
+        CongestionControlSimulator simulator = new CongestionControlSimulator(BANDWIDTH, RTT, BDP);
+        BbrCongestionController congestionController = new BbrCongestionController(new NullLogger(), null, null, simulator.getClock());
+
+        simulator.run(congestionController, Duration.ofSeconds(3));
+
+        assertThat(congestionController.getState()).isEqualTo(BbrCongestionController.State.ProbeBW);
+        assertThat(congestionController.getPacingRate()).isBetween(BANDWIDTH * 3 / 4, BANDWIDTH * 5 / 4 + 1);
+        // In ProbeBW, cwnd is 2 * BDP
+        assertThat(congestionController.getWindowSize()).isCloseTo(2 * BDP, withinPercentage(10));
+    }
+
+    @Test
+    void withRandomLossThroughputStaysCloseToBottleneckBandwidth() {
+        CongestionControlSimulator bbrSimulator = new CongestionControlSimulator(BANDWIDTH, RTT, BDP);
+        bbrSimulator.setLossRate(0.01);
+        BbrCongestionController bbr = new BbrCongestionController(new NullLogger(), null, null, bbrSimulator.getClock());
+        bbrSimulator.run(bbr, Duration.ofSeconds(3));
+        long bbrThroughput = bbrSimulator.run(bbr, Duration.ofSeconds(10)).getThroughput();
+
+        CongestionControlSimulator renoSimulator = new CongestionControlSimulator(BANDWIDTH, RTT, BDP);
+        renoSimulator.setLossRate(0.01);
+        CongestionController newReno = new NewRenoCongestionController(new NullLogger(), null, renoSimulator.getClock());
+        renoSimulator.run(newReno, Duration.ofSeconds(3));
+        long renoThroughput = renoSimulator.run(newReno, Duration.ofSeconds(10)).getThroughput();
+
+        assertThat(bbrThroughput).isGreaterThan(BANDWIDTH * 9 / 10);
+        assertThat(bbrThroughput).isGreaterThan(renoThroughput * 10);
+    }
+
+    @Test
+    void queueingDelayIsMuchLowerThanWithLossBasedControl() {
+        CongestionControlSimulator bbrSimulator = new CongestionControlSimulator(BANDWIDTH, RTT, BDP);
+        BbrCongestionController bbr = new BbrCongestionController(new NullLogger(), null, null, bbrSimulator.getClock());
+        bbrSimulator.run(bbr, Duration.ofSeconds(3));
+        CongestionControlSimulator.Result bbrResult = bbrSimulator.run(bbr, Duration.ofSeconds(10));
+
+        CongestionControlSimulator cubicSimulator = new CongestionControlSimulator(BANDWIDTH, RTT, BDP);
+        CongestionController cubic = new CubicCongestionController(new NullLogger(), null, null, cubicSimulator.getClock());
+        cubicSimulator.run(cubic, Duration.ofSeconds(3));
+        CongestionControlSimulator.Result cubicResult = cubicSimulator.run(cubic, Duration.ofSeconds(10));
+
+        assertThat(bbrResult.getThroughput()).isGreaterThan(BANDWIDTH * 9 / 10);
+        assertThat(bbrResult.getAverageRtt()).isLessThan(RTT.plusMillis(10));
+        assertThat(cubicResult.getAverageRtt()).isGreaterThan(RTT.plusMillis(30));
+    }
+}
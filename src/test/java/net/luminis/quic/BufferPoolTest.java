@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+class BufferPoolTest {
+
+    @Test
+    void releasedBufferShouldBeReused() {
+        BufferPool pool = new BufferPool(1500, 4);
+        ByteBuffer buffer = pool.acquire();
+        pool.release(buffer);
+
+        assertThat(pool.acquire()).isSameAs(buffer);
+    }
+
+    @Test
+    void acquiredBufferShouldBeCleared() {
+        BufferPool pool = new BufferPool(1500, 4);
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(new byte[100]);
+        buffer.limit(200);
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire();
+        assertThat(reused.position()).isEqualTo(0);
+        assertThat(reused.limit()).isEqualTo(1500);
+    }
+
+    @Test
+    void numberOfPooledBuffersShouldBeLimited() {
+        BufferPool pool = new BufferPool(1500, 2);
+        ByteBuffer buffer1 = pool.acquire();
+        ByteBuffer buffer2 = pool.acquire();
+        ByteBuffer buffer3 = pool.acquire();
+        pool.release(buffer1);
+        pool.release(buffer2);
+        pool.release(buffer3);
+
+        assertThat(pool.available()).isEqualTo(2);
+    }
+
+    @Test
+    void bufferWithDifferentSizeShouldNotBePooled() {
+        BufferPool pool = new BufferPool(1500, 2);
+        pool.release(ByteBuffer.allocate(100));
+
+        assertThat(pool.available()).isEqualTo(0);
+        assertThat(pool.acquire().capacity()).isEqualTo(1500);
+    }
+}
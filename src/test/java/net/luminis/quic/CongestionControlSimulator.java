@@ -0,0 +1,256 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.log.NullLogger;
+import net.luminis.quic.packet.PacketInfo;
+import net.luminis.quic.packet.QuicPacket;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates a bulk transfer over a path with a bottleneck link of fixed bandwidth, a drop tail buffer in front of the
+ * bottleneck and a fixed propagation delay. Each packet is acked individually; a lost packet is declared lost at the time
+ * its ack would have arrived. When the congestion controller returns a pacing rate, sending is paced; alternatively, a
+ * Pacer can be set to pace sending. Rtt samples are fed into the rtt estimator returned by getRttEstimator().
+ * Time is simulated, so the congestion controller under test must take its time from the clock returned by getClock().
+ */
+public class CongestionControlSimulator {
+
+    public static final int PACKET_SIZE = 1200;
+
+    private final SimulatedClock clock = new SimulatedClock();
+    private final DeliveryRateEstimator deliveryRateEstimator = new DeliveryRateEstimator();
+    private final PriorityQueue<Event> events = new PriorityQueue<>(Comparator.comparingLong((Event e) -> e.time).thenComparingLong(e -> e.sequence));
+    private final RttEstimator rttEstimator;
+    private final long rtt;
+    private long bandwidth;
+    private long bufferSize;
+    private double lossRate;
+    private final Random random = new Random(0);
+    private long linkFreeAt;
+    private long nextSendTime;
+    private long sequence;
+    private Pacer pacer;
+
+    /**
+     * @param bandwidth  the bandwidth of the bottleneck, in bytes per second
+     * @param rtt  the round trip time of the path, without queueing delay
+     * @param bufferSize  the size of the buffer in front of the bottleneck, in bytes
+     */
+    public CongestionControlSimulator(long bandwidth, Duration rtt, long bufferSize) {
+        this.bandwidth = bandwidth;
+        this.rtt = rtt.toNanos();
+        this.bufferSize = bufferSize;
+        rttEstimator = new RttEstimator(new NullLogger(), (int) rtt.toMillis());
+    }
+
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public void setBufferSize(long bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the probability that a packet that passed the bottleneck is lost (nevertheless).
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    public void setPacer(Pacer pacer) {
+        this.pacer = pacer;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return  the rtt estimator that is fed with an rtt sample for each acked packet
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * Continues the simulation for the given (simulated) duration.
+     */
+    public Result run(CongestionController congestionController, Duration duration) {
+        Result result = new Result(duration);
+        long end = clock.nanos + duration.toNanos();
+        while (true) {
+            while (nextSendTime <= clock.nanos && congestionController.canSend(PACKET_SIZE) && pacerDelay() == 0) {
+                send(congestionController);
+            }
+            long next = events.isEmpty()? Long.MAX_VALUE: events.peek().time;
+            if (congestionController.canSend(PACKET_SIZE)) {
+                next = Long.min(next, Long.max(nextSendTime, clock.nanos + pacerDelay()));
+            }
+            if (next > end) {
+                clock.nanos = end;
+                return result;
+            }
+            clock.nanos = next;
+            while (!events.isEmpty() && events.peek().time <= clock.nanos) {
+                process(events.poll(), congestionController, result);
+            }
+        }
+    }
+
+    private void send(CongestionController congestionController) {
+        QuicPacket packet = new MockPacket((int) sequence, PACKET_SIZE, EncryptionLevel.App);
+        Instant now = clock.instant();
+        DeliveryRateEstimator.SendState sendState = deliveryRateEstimator.packetSent(now, PACKET_SIZE, congestionController.getBytesInFlight());
+        congestionController.registerInFlight(packet);
+
+        long queueDelay = Long.max(linkFreeAt - clock.nanos, 0);
+        long queued = queueDelay * bandwidth / 1_000_000_000L;
+        long arrival;
+        boolean lost;
+        if (queued + PACKET_SIZE > bufferSize) {
+            lost = true;
+            arrival = clock.nanos + queueDelay + rtt;
+        }
+        else {
+            linkFreeAt = Long.max(linkFreeAt, clock.nanos) + PACKET_SIZE * 1_000_000_000L / bandwidth;
+            arrival = linkFreeAt + rtt;
+            lost = random.nextDouble() < lossRate;
+        }
+        events.add(new Event(arrival, sequence++, clock.nanos, new PacketInfo(now, packet, p -> {}), sendState, lost));
+
+        if (pacer != null) {
+            pacer.packetSent(PACKET_SIZE);
+        }
+        else {
+            long pacingRate = congestionController.getPacingRate();
+            nextSendTime = pacingRate > 0? clock.nanos + PACKET_SIZE * 1_000_000_000L / pacingRate: clock.nanos;
+        }
+    }
+
+    private long pacerDelay() {
+        return pacer != null? pacer.timeUntilSend(PACKET_SIZE): 0;
+    }
+
+    private void process(Event event, CongestionController congestionController, Result result) {
+        if (event.lost) {
+            congestionController.registerLost(List.of(event.packetInfo));
+            result.lostPackets++;
+        }
+        else {
+            rttEstimator.addSample(clock.instant(), event.packetInfo.timeSent(), 0);
+            RateSample rateSample = deliveryRateEstimator.packetsAcked(List.of(event.sendState), clock.instant());
+            congestionController.registerAcked(List.of(event.packetInfo), rateSample);
+            result.deliveredBytes += PACKET_SIZE;
+            result.rttSum += clock.nanos - event.timeSent;
+            result.ackedPackets++;
+        }
+    }
+
+    public static class Result {
+        private final Duration duration;
+        private long deliveredBytes;
+        private long ackedPackets;
+        private long lostPackets;
+        private long rttSum;
+
+        private Result(Duration duration) {
+            this.duration = duration;
+        }
+
+        public long getDeliveredBytes() {
+            return deliveredBytes;
+        }
+
+        public long getLostPackets() {
+            return lostPackets;
+        }
+
+        /**
+         * @return  the average throughput in bytes per second
+         */
+        public long getThroughput() {
+            return deliveredBytes * 1000 / duration.toMillis();
+        }
+
+        /**
+         * @return  the average RTT of all acked packets (including queueing delay)
+         */
+        public Duration getAverageRtt() {
+            return Duration.ofNanos(ackedPackets > 0? rttSum / ackedPackets: 0);
+        }
+
+        @Override
+        public String toString() {
+            return "Result[throughput: " + getThroughput() + " B/s, lost: " + lostPackets + ", average RTT: " + getAverageRtt().toMillis() + " ms]";
+        }
+    }
+
+    private static class Event {
+        final long time;
+        final long sequence;
+        final long timeSent;
+        final PacketInfo packetInfo;
+        final DeliveryRateEstimator.SendState sendState;
+        final boolean lost;
+
+        Event(long time, long sequence, long timeSent, PacketInfo packetInfo, DeliveryRateEstimator.SendState sendState, boolean lost) {
+            this.time = time;
+            this.sequence = sequence;
+            this.timeSent = timeSent;
+            this.packetInfo = packetInfo;
+            this.sendState = sendState;
+            this.lost = lost;
+        }
+    }
+
+    static class SimulatedClock extends Clock {
+
+        private long nanos;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.EPOCH.plusNanos(nanos);
+        }
+
+        void advance(Duration duration) {
+            nanos += duration.toNanos();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.frame.Padding;
+import net.luminis.quic.log.Logger;
+import net.luminis.quic.log.NullLogger;
+import net.luminis.quic.packet.PacketInfo;
+import net.luminis.quic.packet.QuicPacket;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+import static org.mockito.Mockito.mock;
+
+class CubicCongestionControllerTest {
+
+    // Arbitrary Instant value, used by tests to indicate the value does not matter for the test
+    private Instant whenever = Instant.now();
+
+    @Test
+    void whenInSlowStartCwndIncreasesByNumberOfBytesAcked() {
+        CongestionController congestionController = new CubicCongestionController(mock(Logger.class));
+        long initialCwnd = congestionController.getWindowSize();
+        QuicPacket packet = new MockPacket(new Padding(800));
+        congestionController.registerInFlight(packet);
+        congestionController.registerAcked(List.of(new PacketInfo(whenever, packet, p -> {})));
+
+        assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd + packet.getSize());
+    }
+
+    @Test
+    void whenPacketLostCongestionWindowIsReducedWithBetaCubic() {
+        CongestionController congestionController = new CubicCongestionController(mock(Logger.class));
+        long initialCwnd = congestionController.getWindowSize();
+        QuicPacket packet = new MockPacket(new Padding(800));
+        congestionController.registerInFlight(packet);
+        congestionController.registerLost(List.of(new PacketInfo(whenever, packet, p -> {})));
+
+        assertThat(congestionController.getWindowSize()).isEqualTo((long) (initialCwnd * 0.7));
+    }
+
+    @Test
+    void secondLossBeforeReachingPreviousMaximumTriggersFastConvergence() {
+        CongestionControlSimulator simulator = new CongestionControlSimulator(100_000_000, Duration.ofMillis(100), 100_000_000);
+        CubicCongestionController congestionController = new CubicCongestionController(new NullLogger(), null, null, simulator.getClock());
+        simulator.run(congestionController, Duration.ofMillis(600));
+        loseOnePacket(congestionController, simulator.getClock());
+        double firstWMax = congestionController.getWMax();
+
+        simulator.run(congestionController, Duration.ofMillis(300));
+        long cwnd = congestionController.getWindowSize();
+        assertThat((double) cwnd).isLessThan(firstWMax);
+        loseOnePacket(congestionController, simulator.getClock());
+
+        // https://tools.ietf.org/html/rfc8312#section-4.6
+        // "W_max = W_max*(1.0+beta_cubic)/2.0; // further reduce W_max"
+        assertThat(congestionController.getWMax()).isCloseTo(cwnd * (1 + 0.7) / 2, withinPercentage(1));
+    }
+
+    @Test
+    void windowFollowsCubicFunctionBackToPreviousMaximum() {
+        CongestionControlSimulator simulator = new CongestionControlSimulator(100_000_000, Duration.ofMillis(100), 100_000_000);
+        CubicCongestionController congestionController = new CubicCongestionController(new NullLogger(), null, null, simulator.getClock());
+        simulator.run(congestionController, Duration.ofMillis(600));
+        loseOnePacket(congestionController, simulator.getClock());
+        double wMax = congestionController.getWMax();
+
+        // The epoch starts with the first ack for a packet sent after the loss
+        simulator.run(congestionController, Duration.ofMillis(250));
+        long k = (long) (congestionController.getK() * 1000);
+        assertThat(k).isGreaterThan(1000);
+
+        // Concave region: at K/2, the window is still clearly below W_max
+        simulator.run(congestionController, Duration.ofMillis(k / 2 - 250));
+        assertThat((double) congestionController.getWindowSize()).isLessThan(wMax * 0.98);
+
+        // After K seconds (since the start of the epoch), the window is (almost) back at W_max
+        simulator.run(congestionController, Duration.ofMillis(k - k / 2 + 250));
+        assertThat((double) congestionController.getWindowSize()).isCloseTo(wMax, withinPercentage(1));
+    }
+
+    @Test
+    void afterLossCubicRecoversThroughputMuchFasterThanNewReno() {
+        // Path with a bandwidth delay product of 1000 packets and a buffer that is small compared to the BDP
+        long bandwidth = 12_000_000;
+        Duration rtt = Duration.ofMillis(100);
+        long bufferSize = 240_000;
+
+        CongestionControlSimulator renoSimulator = new CongestionControlSimulator(bandwidth, rtt, bufferSize);
+        CongestionController newReno = new NewRenoCongestionController(new NullLogger(), null, renoSimulator.getClock());
+        renoSimulator.run(newReno, Duration.ofSeconds(5));
+        long renoThroughput = renoSimulator.run(newReno, Duration.ofSeconds(20)).getThroughput();
+
+        CongestionControlSimulator cubicSimulator = new CongestionControlSimulator(bandwidth, rtt, bufferSize);
+        CongestionController cubic = new CubicCongestionController(new NullLogger(), null, null, cubicSimulator.getClock());
+        cubicSimulator.run(cubic, Duration.ofSeconds(5));
+        long cubicThroughput = cubicSimulator.run(cubic, Duration.ofSeconds(20)).getThroughput();
+
+        assertThat(cubicThroughput).isGreaterThan(renoThroughput * 13 / 10);
+        assertThat(cubicThroughput).isGreaterThan(bandwidth * 9 / 10);
+    }
+
+    private void loseOnePacket(CongestionController congestionController, Clock clock) {
+        QuicPacket packet = new MockPacket(0, 1200, EncryptionLevel.App);
+        congestionController.registerInFlight(packet);
+        congestionController.registerLost(List.of(new PacketInfo(clock.instant(), packet, p -> {})));
+    }
+}
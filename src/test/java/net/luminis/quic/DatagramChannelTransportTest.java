@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.concurrent.EventLoop;
+import net.luminis.quic.log.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+
+class DatagramChannelTransportTest {
+
+    private DatagramChannel peer;
+    private DatagramChannelTransport transport;
+
+    @BeforeEach
+    void createTransportAndPeer() throws Exception {
+        peer = DatagramChannel.open();
+        peer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        transport = new DatagramChannelTransport((InetSocketAddress) peer.getLocalAddress(), mock(Logger.class));
+    }
+
+    @AfterEach
+    void closeTransportAndPeer() throws Exception {
+        transport.close();
+        peer.close();
+    }
+
+    @Test
+    void sentDatagramShouldArriveAtPeer() throws Exception {
+        transport.send(ByteBuffer.wrap(new byte[] { 0x01, 0x02, 0x03 }));
+
+        ByteBuffer received = ByteBuffer.allocate(1500);
+        peer.receive(received);
+        assertThat(received.position()).isEqualTo(3);
+    }
+
+    @Test
+    void receiveShouldReturnDatagramFromPeer() throws Exception {
+        transport.send(ByteBuffer.wrap(new byte[] { 0x01 }));
+        SocketAddress transportAddress = peer.receive(ByteBuffer.allocate(1500));
+
+        peer.send(ByteBuffer.wrap(new byte[] { 0x01, 0x02, 0x03, 0x04 }), transportAddress);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1500);
+        assertThat(transport.receive(buffer)).isEqualTo(4);
+        assertThat(buffer.get(3)).isEqualTo((byte) 0x04);
+    }
+
+    @Test
+    void afterChangingLocalAddressDatagramsShouldBeSentFromNewAddress() throws Exception {
+        transport.send(ByteBuffer.wrap(new byte[] { 0x01 }));
+        SocketAddress oldAddress = peer.receive(ByteBuffer.allocate(1500));
+
+        transport.changeLocalAddress();
+        transport.send(ByteBuffer.wrap(new byte[] { 0x02 }));
+        SocketAddress newAddress = peer.receive(ByteBuffer.allocate(1500));
+
+        assertThat(newAddress).isNotEqualTo(oldAddress);
+        assertThat(newAddress).isEqualTo(new InetSocketAddress(InetAddress.getLoopbackAddress(), transport.getLocalAddress().getPort()));
+    }
+
+    @Test
+    void blockedReceiveShouldContinueOnNewAddressWhenLocalAddressIsChanged() throws Exception {
+        CompletableFuture<Integer> receiveResult = CompletableFuture.supplyAsync(() -> {
+            try {
+                return transport.receive(ByteBuffer.allocateDirect(1500));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+
+        transport.changeLocalAddress();
+        transport.send(ByteBuffer.wrap(new byte[] { 0x01 }));
+        SocketAddress newAddress = peer.receive(ByteBuffer.allocate(1500));
+        peer.send(ByteBuffer.wrap(new byte[] { 0x01, 0x02 }), newAddress);
+
+        assertThat(receiveResult.get(1, TimeUnit.SECONDS)).isEqualTo(2);
+    }
+
+    @Test
+    void blockedReceiveShouldReturnWhenTransportIsClosed() throws Exception {
+        CompletableFuture<Integer> receiveResult = CompletableFuture.supplyAsync(() -> {
+            try {
+                return transport.receive(ByteBuffer.allocateDirect(1500));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+
+        transport.close();
+
+        assertThat(receiveResult.get(1, TimeUnit.SECONDS)).isEqualTo(-1);
+    }
+
+    @Test
+    void transportRegisteredWithEventLoopShouldSendWithoutKeepingDatagrams() throws Exception {
+        EventLoop eventLoop = new EventLoop("test-loop");
+        try {
+            transport.register(eventLoop, () -> {});
+            ByteBuffer datagram = ByteBuffer.wrap(new byte[] { 0x01, 0x02, 0x03 });
+            transport.send(datagram);
+
+            assertThat(transport.isSendBlocked()).isFalse();
+            ByteBuffer received = ByteBuffer.allocate(1500);
+            peer.receive(received);
+            assertThat(received.position()).isEqualTo(3);
+        }
+        finally {
+            eventLoop.shutdown();
+        }
+    }
+
+    @Test
+    void sendShouldIgnorePortUnreachableError() throws Exception {
+        // Closing the peer makes its port unreachable, so sending to it will trigger an ICMP port unreachable message.
+        InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalAddress();
+        peer.close();
+        transport.close();
+        transport = new DatagramChannelTransport(peerAddress, mock(Logger.class));
+
+        transport.send(ByteBuffer.wrap(new byte[] { 0x01 }));
+        Thread.sleep(50);
+        transport.send(ByteBuffer.wrap(new byte[] { 0x02 }));
+        transport.send(ByteBuffer.wrap(new byte[] { 0x03 }));
+    }
+}
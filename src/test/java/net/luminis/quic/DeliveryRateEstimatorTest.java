@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeliveryRateEstimatorTest {
+
+    private DeliveryRateEstimator estimator;
+    private Instant start;
+
+    @BeforeEach
+    void initObjectUnderTest() {
+        estimator = new DeliveryRateEstimator();
+        start = Instant.now();
+    }
+
+    @Test
+    void whenFlightIsAckedAtOnceRateIsDeliveredDividedByAckElapsed() {
+        List<DeliveryRateEstimator.SendState> sent = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sent.add(estimator.packetSent(start, 1200, i * 1200));
+        }
+
+        RateSample rateSample = estimator.packetsAcked(sent, start.plusMillis(100));
+
+        assertThat(rateSample.getDeliveredInInterval()).isEqualTo(12000);
+        assertThat(rateSample.getInterval()).isEqualTo(Duration.ofMillis(100));
+        assertThat(rateSample.getDeliveryRate()).isEqualTo(120_000);
+        assertThat(rateSample.getRtt()).isEqualTo(Duration.ofMillis(100));
+    }
+
+    @Test
+    void intervalIsTheLongerOfSendAndAckElapsed() {
+        DeliveryRateEstimator.SendState first = estimator.packetSent(start, 1200, 0);
+        DeliveryRateEstimator.SendState second = estimator.packetSent(start.plusMillis(150), 1200, 1200);
+
+        RateSample rateSample = estimator.packetsAcked(List.of(first, second), start.plusMillis(200));
+
+        // Send elapsed is 150 ms, ack elapsed is 200 ms
+        assertThat(rateSample.getInterval()).isEqualTo(Duration.ofMillis(200));
+        assertThat(rateSample.getRtt()).isEqualTo(Duration.ofMillis(50));
+    }
+
+    @Test
+    void sampleIsTakenOverIntervalSinceDeliveryOfPriorPacket() {
+        DeliveryRateEstimator.SendState first = estimator.packetSent(start, 1200, 0);
+        estimator.packetsAcked(List.of(first), start.plusMillis(100));
+
+        DeliveryRateEstimator.SendState second = estimator.packetSent(start.plusMillis(100), 1200, 0);
+        DeliveryRateEstimator.SendState third = estimator.packetSent(start.plusMillis(150), 1200, 1200);
+        RateSample rateSample = estimator.packetsAcked(List.of(second, third), start.plusMillis(200));
+
+        assertThat(rateSample.getPriorDelivered()).isEqualTo(1200);
+        assertThat(rateSample.getDelivered()).isEqualTo(3600);
+        assertThat(rateSample.getInterval()).isEqualTo(Duration.ofMillis(100));
+        assertThat(rateSample.getDeliveryRate()).isEqualTo(24_000);
+    }
+
+    @Test
+    void whenNothingIsAckedThereIsNoSample() {
+        estimator.packetSent(start, 1200, 0);
+
+        assertThat(estimator.packetsAcked(List.of(), start.plusMillis(100))).isNull();
+    }
+
+    @Test
+    void packetsSentWhenAppLimitedAreMarked() {
+        DeliveryRateEstimator.SendState first = estimator.packetSent(start, 1200, 0);
+        estimator.setAppLimited(1200);
+        DeliveryRateEstimator.SendState second = estimator.packetSent(start.plusMillis(10), 1200, 1200);
+
+        assertThat(first.isAppLimited()).isFalse();
+        assertThat(second.isAppLimited()).isTrue();
+        assertThat(estimator.packetsAcked(List.of(first), start.plusMillis(100)).isAppLimited()).isFalse();
+        assertThat(estimator.packetsAcked(List.of(second), start.plusMillis(110)).isAppLimited()).isTrue();
+    }
+
+    @Test
+    void appLimitedPeriodEndsWhenDataInFlightAtStartOfPeriodIsDelivered() {
+        DeliveryRateEstimator.SendState first = estimator.packetSent(start, 1200, 0);
+        estimator.setAppLimited(1200);
+        DeliveryRateEstimator.SendState second = estimator.packetSent(start.plusMillis(10), 1200, 1200);
+        estimator.packetsAcked(List.of(first), start.plusMillis(100));
+        assertThat(estimator.isAppLimited()).isTrue();
+
+        estimator.packetsAcked(List.of(second), start.plusMillis(110));
+
+        assertThat(estimator.isAppLimited()).isFalse();
+        assertThat(estimator.packetSent(start.plusMillis(120), 1200, 0).isAppLimited()).isFalse();
+    }
+
+    @Test
+    void appLimitedSamplesDoNotLowerBandwidthEstimate() {
+        // 10 packets in 100 ms
+        List<DeliveryRateEstimator.SendState> sent = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sent.add(estimator.packetSent(start, 1200, i * 1200));
+        }
+        estimator.packetsAcked(sent, start.plusMillis(100));
+        assertThat(estimator.getBandwidthEstimate()).isEqualTo(120_000);
+
+        // Then many round trips with just one packet each, while application limited
+        Instant time = start.plusMillis(100);
+        for (int i = 0; i < 20; i++) {
+            estimator.setAppLimited(0);
+            DeliveryRateEstimator.SendState packet = estimator.packetSent(time, 1200, 0);
+            time = time.plusMillis(100);
+            estimator.packetsAcked(List.of(packet), time);
+        }
+
+        assertThat(estimator.getBandwidthEstimate()).isEqualTo(120_000);
+    }
+
+    @Test
+    void bandwidthEstimateIsMaxDeliveryRateOfRecentRoundTrips() {
+        Instant time = start;
+        for (int i = 0; i < 20; i++) {
+            DeliveryRateEstimator.SendState packet = estimator.packetSent(time, 1200, 0);
+            time = time.plusMillis(i < 5? 10: 100);
+            estimator.packetsAcked(List.of(packet), time);
+        }
+
+        // The high samples (taken in the first 5 round trips) have expired
+        assertThat(estimator.getBandwidthEstimate()).isEqualTo(12_000);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.log.NullLogger;
+import net.luminis.quic.packet.PacketInfo;
+import net.luminis.quic.packet.QuicPacket;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HyStartTest {
+
+    private RttEstimator rttEstimator;
+    private HyStart hyStart;
+    private Instant start;
+    private int round;
+
+    @BeforeEach
+    void initObjectUnderTest() {
+        rttEstimator = new RttEstimator(new NullLogger(), 100);
+        hyStart = new HyStart(rttEstimator);
+        hyStart.setPaced(true);
+        start = Instant.now();
+    }
+
+    @Test
+    void whenRttIsStableSlowStartContinues() {
+        for (int i = 0; i < 10; i++) {
+            assertThat(ackRound(100, 10)).isEqualTo(10 * 1200);
+        }
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.SlowStart);
+    }
+
+    @Test
+    void whenRttIncreasesConservativeSlowStartIsEntered() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        // Threshold is max(4, min(100 / 8, 16)) = 12 ms
+        ackRound(113, 10);
+
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.ConservativeSlowStart);
+    }
+
+    @Test
+    void smallRttIncreaseDoesNotEndSlowStart() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        ackRound(110, 10);
+
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.SlowStart);
+    }
+
+    @Test
+    void rttIncreaseIsOnlyDetectedWithEnoughSamples() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        ackRound(130, 7);
+
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.SlowStart);
+    }
+
+    @Test
+    void acksWithoutNewRttSampleAreNotCountedAsSamples() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        Instant timeSent = start.plusSeconds(round++);
+        Instant timeAcked = timeSent.plusMillis(130);
+        rttEstimator.addSample(timeAcked, timeSent, 0);
+        for (int i = 0; i < 10; i++) {
+            hyStart.onAck(List.of(packetInfo(timeSent)), 1200, timeAcked);
+        }
+
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.SlowStart);
+    }
+
+    @Test
+    void inConservativeSlowStartWindowGrowsSlower() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        ackRound(130, 10);
+
+        assertThat(ackRound(130, 10)).isEqualTo(10 * 1200 / 4);
+    }
+
+    @Test
+    void whenRttDecreasesInConservativeSlowStartSlowStartIsResumed() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        ackRound(130, 10);
+        ackRound(100, 10);
+
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.SlowStart);
+    }
+
+    @Test
+    void afterConservativeSlowStartRoundsSlowStartIsFinished() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        ackRound(130, 10);
+        for (int i = 0; i < 4; i++) {
+            ackRound(130, 10);
+        }
+        assertThat(hyStart.slowStartFinished()).isFalse();
+
+        ackRound(130, 10);
+        assertThat(hyStart.slowStartFinished()).isTrue();
+    }
+
+    @Test
+    void congestionEventFinishesSlowStart() {
+        ackRound(100, 10);
+        hyStart.onCongestionEvent();
+
+        assertThat(hyStart.slowStartFinished()).isTrue();
+    }
+
+    @Test
+    void undoOfCongestionEventRestoresPhase() {
+        ackRound(100, 10);
+        ackRound(100, 10);
+        ackRound(130, 10);
+        hyStart.onCongestionEvent();
+
+        hyStart.undoCongestionEvent();
+
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.ConservativeSlowStart);
+        assertThat(ackRound(130, 10)).isEqualTo(10 * 1200 / 4);
+    }
+
+    @Test
+    void whenNotPacedGrowthPerAckIsLimited() {
+        hyStart.setPaced(false);
+        Instant timeSent = start;
+        rttEstimator.addSample(timeSent.plusMillis(100), timeSent, 0);
+        long increase = hyStart.onAck(List.of(packetInfo(timeSent)), 20 * 1200, timeSent.plusMillis(100));
+
+        assertThat(increase).isEqualTo(8 * 1200);
+    }
+
+    @Test
+    void withHyStartSlowStartCausesLessLossOnPathWithLargeBuffer() {
+        long bandwidth = 12_000_000;
+        Duration rtt = Duration.ofMillis(100);
+        long bufferSize = bandwidth / 10;
+
+        CongestionControlSimulator simulator = new CongestionControlSimulator(bandwidth, rtt, bufferSize);
+        NewRenoCongestionController newReno = new NewRenoCongestionController(new NullLogger(), null, simulator.getClock());
+        CongestionControlSimulator.Result plain = simulator.run(newReno, Duration.ofSeconds(3));
+
+        CongestionControlSimulator hyStartSimulator = new CongestionControlSimulator(bandwidth, rtt, bufferSize);
+        NewRenoCongestionController withHyStart = new NewRenoCongestionController(new NullLogger(), null, hyStartSimulator.getClock());
+        withHyStart.setHyStart(new HyStart(hyStartSimulator.getRttEstimator()));
+        CongestionControlSimulator.Result result = hyStartSimulator.run(withHyStart, Duration.ofSeconds(3));
+
+        assertThat(result.getLostPackets()).isLessThan(plain.getLostPackets() / 2);
+        assertThat(result.getThroughput()).isGreaterThan(plain.getThroughput() * 9 / 10);
+    }
+
+    /**
+     * Simulates a round trip in which the given number of packets is acked, each with the given rtt.
+     * @return  the total window increase
+     */
+    private long ackRound(int rtt, int count) {
+        Instant timeSent = start.plusSeconds(round++);
+        long increase = 0;
+        for (int i = 0; i < count; i++) {
+            Instant timeAcked = timeSent.plusMillis(rtt);
+            rttEstimator.addSample(timeAcked, timeSent, 0);
+            increase += hyStart.onAck(List.of(packetInfo(timeSent)), 1200, timeAcked);
+        }
+        return increase;
+    }
+
+    private PacketInfo packetInfo(Instant timeSent) {
+        QuicPacket packet = new MockPacket(0, 1200, EncryptionLevel.App);
+        return new PacketInfo(timeSent, packet, p -> {});
+    }
+}
@@ -25,6 +25,7 @@ import net.luminis.quic.packet.QuicPacket;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 
@@ -63,6 +64,18 @@ class NewRenoCongestionControllerTest {
         assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd + packet.getSize());
     }
 
+    @Test
+    void whenSendingIsAppLimitedCwndIsNotIncreased() {
+        long initialCwnd = congestionController.getWindowSize();
+        QuicPacket packet = new MockPacket(new Padding(800));
+        congestionController.registerInFlight(packet);
+        RateSample appLimitedSample = new RateSample(800, 0, Duration.ofMillis(100), Duration.ofMillis(100), true);
+        congestionController.registerAcked(List.of(new PacketInfo(whenever, packet, this::noOp)), appLimitedSample);
+
+        assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd);
+        assertThat(congestionController.getBytesInFlight()).isEqualTo(0);
+    }
+
     @Test
     void modeIsSlowStartUntilPacketLost() {
         QuicPacket packet = new MockPacket(new Padding(800));
@@ -92,6 +105,61 @@ class NewRenoCongestionControllerTest {
         assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd / 2);
     }
 
+    @Test
+    void whenAllLostPacketsTurnOutToBeSpuriouslyLostCongestionWindowIsRestored() {
+        long initialCwnd = congestionController.getWindowSize();
+        QuicPacket packet1 = new MockPacket(new Padding(800));
+        QuicPacket packet2 = new MockPacket(new Padding(800));
+        congestionController.registerInFlight(packet1);
+        congestionController.registerInFlight(packet2);
+        // Packets are sent before the congestion event
+        PacketInfo lost1 = new PacketInfo(whenever.minusMillis(2), packet1, this::noOp);
+        PacketInfo lost2 = new PacketInfo(whenever.minusMillis(1), packet2, this::noOp);
+        congestionController.registerLost(List.of(lost1, lost2));
+        assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd / 2);
+
+        congestionController.registerSpuriousLoss(List.of(lost1));
+        assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd / 2);
+        congestionController.registerSpuriousLoss(List.of(lost2));
+
+        assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd);
+        assertThat(((NewRenoCongestionController) congestionController).getMode()).isEqualTo(NewRenoCongestionController.Mode.SlowStart);
+    }
+
+    @Test
+    void whenSpuriousLossIsUndoneHyStartContinues() {
+        RttEstimator rttEstimator = new RttEstimator(mock(Logger.class), 100);
+        HyStart hyStart = new HyStart(rttEstimator);
+        ((NewRenoCongestionController) congestionController).setHyStart(hyStart);
+        QuicPacket packet = new MockPacket(new Padding(800));
+        congestionController.registerInFlight(packet);
+        PacketInfo lost = new PacketInfo(whenever.minusMillis(1), packet, this::noOp);
+        congestionController.registerLost(List.of(lost));
+        assertThat(hyStart.slowStartFinished()).isTrue();
+
+        congestionController.registerSpuriousLoss(List.of(lost));
+
+        assertThat(hyStart.getPhase()).isEqualTo(HyStart.Phase.SlowStart);
+        assertThat(((NewRenoCongestionController) congestionController).getMode()).isEqualTo(NewRenoCongestionController.Mode.SlowStart);
+    }
+
+    @Test
+    void spuriousLossOfPacketFromEarlierCongestionEventDoesNotRestoreCongestionWindow() {
+        long initialCwnd = congestionController.getWindowSize();
+        QuicPacket packet1 = new MockPacket(new Padding(800));
+        congestionController.registerInFlight(packet1);
+        PacketInfo lost1 = new PacketInfo(whenever, packet1, this::noOp);
+        congestionController.registerLost(List.of(lost1));
+
+        QuicPacket packet2 = new MockPacket(new Padding(800));
+        congestionController.registerInFlight(packet2);
+        congestionController.registerLost(List.of(new PacketInfo(Instant.now().plusMillis(1), packet2, this::noOp)));
+        assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd / 4);
+
+        congestionController.registerSpuriousLoss(List.of(lost1));
+        assertThat(congestionController.getWindowSize()).isEqualTo(initialCwnd / 4);
+    }
+
     @Test
     void lossOfPacketSentBeforeCongestionRecoveryDoesNotChangeCongestionWindow() {
         long initialCwnd = congestionController.getWindowSize();
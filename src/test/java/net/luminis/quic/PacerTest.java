@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.log.Logger;
+import net.luminis.quic.log.NullLogger;
+import net.luminis.quic.concurrent.HashedWheelTimer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PacerTest {
+
+    private CongestionControlSimulator.SimulatedClock clock;
+    private CongestionController congestionController;
+    private RttEstimator rttEstimator;
+
+    @BeforeEach
+    void initDependencies() {
+        clock = new CongestionControlSimulator.SimulatedClock();
+        congestionController = mock(CongestionController.class);
+        when(congestionController.getWindowSize()).thenReturn(12_000L);
+        rttEstimator = new RttEstimator(mock(Logger.class), 100);
+    }
+
+    @Test
+    void burstCanBeSentAtOnce() {
+        Pacer pacer = new Pacer(congestionController, rttEstimator, 3600, clock);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(pacer.timeUntilSend(1200)).isEqualTo(0);
+            pacer.packetSent(1200);
+        }
+        assertThat(pacer.timeUntilSend(1200)).isGreaterThan(0);
+    }
+
+    @Test
+    void rateIsDerivedFromCongestionWindowAndSmoothedRtt() {
+        Pacer pacer = new Pacer(congestionController, rttEstimator, 1200, clock);
+
+        // 1.25 * 12000 bytes / 0.1 s
+        assertThat(pacer.getRate()).isEqualTo(150_000);
+    }
+
+    @Test
+    void whenBurstIsUsedNextPacketMustWaitForPacingInterval() {
+        Pacer pacer = new Pacer(congestionController, rttEstimator, 1200, clock);
+        pacer.packetSent(1200);
+
+        // 1200 bytes at 150_000 bytes/s
+        assertThat(pacer.timeUntilSend(1200)).isEqualTo(Duration.ofMillis(8).toNanos());
+
+        clock.advance(Duration.ofMillis(8));
+        assertThat(pacer.timeUntilSend(1200)).isEqualTo(0);
+    }
+
+    @Test
+    void tokensDoNotAccumulateBeyondBurstSize() {
+        Pacer pacer = new Pacer(congestionController, rttEstimator, 2400, clock);
+        clock.advance(Duration.ofSeconds(1));
+
+        pacer.packetSent(1200);
+        pacer.packetSent(1200);
+
+        assertThat(pacer.timeUntilSend(1200)).isGreaterThan(0);
+    }
+
+    @Test
+    void pacingRateOfCongestionControllerTakesPrecedence() {
+        when(congestionController.getPacingRate()).thenReturn(1_200_000L);
+        Pacer pacer = new Pacer(congestionController, rttEstimator, 1200, clock);
+        pacer.packetSent(1200);
+
+        assertThat(pacer.timeUntilSend(1200)).isEqualTo(Duration.ofMillis(1).toNanos());
+    }
+
+    @Test
+    void atHighRateBucketHoldsWhatIsPacedOutInTwoTimerTicks() {
+        when(congestionController.getPacingRate()).thenReturn(100_000_000L);
+        Pacer pacer = new Pacer(congestionController, rttEstimator, 12_000, Duration.ofMillis(1).toNanos(), clock);
+        clock.advance(Duration.ofSeconds(1));
+
+        pacer.packetSent(199_000);
+
+        assertThat(pacer.timeUntilSend(1000)).isEqualTo(0);
+        pacer.packetSent(1000);
+        assertThat(pacer.timeUntilSend(1000)).isGreaterThan(0);
+    }
+
+    @Test
+    void timerResolutionDoesNotLimitPacingRate() throws Exception {
+        long rate = 100_000_000;
+        // Not a mock, as recording millions of invocations would limit the rate
+        CongestionController congestionController = new FixedWindowCongestionController(new NullLogger()) {
+            @Override
+            public long getPacingRate() {
+                return rate;
+            }
+        };
+        HashedWheelTimer timer = new HashedWheelTimer("pacer-test");
+        try {
+            Pacer pacer = new Pacer(congestionController, rttEstimator, Pacer.DEFAULT_BURST_SIZE, timer.getTickNanos());
+            Semaphore wakeup = new Semaphore(0);
+            HashedWheelTimer.Timeout pacingTimer = timer.newTimeout(wakeup::release);
+
+            long sent = 0;
+            long start = System.nanoTime();
+            long end = start + Duration.ofMillis(300).toNanos();
+            while (System.nanoTime() < end) {
+                long delay = pacer.timeUntilSend(1200);
+                if (delay == 0) {
+                    pacer.packetSent(1200);
+                    sent += 1200;
+                }
+                else {
+                    pacingTimer.schedule(delay, TimeUnit.NANOSECONDS);
+                    wakeup.acquire();
+                }
+            }
+            long achievedRate = sent * 1_000_000_000L / (System.nanoTime() - start);
+
+            // Without taking the timer resolution into account, this would be limited to one burst per tick (12 MB/s).
+            assertThat(achievedRate).isGreaterThan(rate / 2);
+            assertThat(achievedRate).isLessThan(rate * 3 / 2);
+        }
+        finally {
+            timer.shutdown();
+        }
+    }
+
+    @Test
+    void withShallowBufferPacingPreventsPrematureExitFromSlowStart() {
+        long bandwidth = 12_000_000;
+        Duration rtt = Duration.ofMillis(100);
+        int bufferSize = 50 * 1200;
+
+        CongestionControlSimulator unpacedSimulator = new CongestionControlSimulator(bandwidth, rtt, bufferSize);
+        CongestionController unpaced = new NewRenoCongestionController(new NullLogger(), null, unpacedSimulator.getClock());
+        long unpacedThroughput = unpacedSimulator.run(unpaced, Duration.ofSeconds(10)).getThroughput();
+
+        CongestionControlSimulator pacedSimulator = new CongestionControlSimulator(bandwidth, rtt, bufferSize);
+        CongestionController paced = new NewRenoCongestionController(new NullLogger(), null, pacedSimulator.getClock());
+        pacedSimulator.setPacer(new Pacer(paced, new RttEstimator(new NullLogger(), 100), Pacer.DEFAULT_BURST_SIZE, pacedSimulator.getClock()));
+        long pacedThroughput = pacedSimulator.run(paced, Duration.ofSeconds(10)).getThroughput();
+
+        assertThat(pacedThroughput).isGreaterThan(unpacedThroughput * 2);
+    }
+}
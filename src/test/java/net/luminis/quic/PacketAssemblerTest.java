@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.frame.MaxDataFrame;
+import net.luminis.quic.frame.QuicFrame;
+import net.luminis.quic.frame.StreamFrame;
+import net.luminis.quic.packet.QuicPacket;
+import net.luminis.quic.packet.ShortHeaderPacket;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PacketAssemblerTest {
+
+    private SendRequestQueue sendRequestQueue;
+    private PacketAssembler packetAssembler;
+
+    @BeforeEach
+    void initObjectUnderTest() {
+        sendRequestQueue = new SendRequestQueue();
+        packetAssembler = new PacketAssembler(sendRequestQueue);
+    }
+
+    @Test
+    void multipleSmallFramesShouldBeAssembledIntoOnePacket() {
+        sendRequestQueue.addRequest(new MaxDataFrame(100_000), f -> {});
+        sendRequestQueue.addRequest(new StreamFrame(0, new byte[100], false), f -> {});
+        sendRequestQueue.addRequest(new StreamFrame(4, new byte[100], false), f -> {});
+
+        QuicPacket packet = createPacket();
+        packetAssembler.assemble(packet, 1232);
+
+        assertThat(packet.getFrames()).hasSize(3);
+        assertThat(packetAssembler.hasFramesToSend()).isFalse();
+    }
+
+    @Test
+    void packetShouldNotExceedMaxPacketSize() {
+        sendRequestQueue.addRequest(new StreamFrame(0, new byte[1000], false), f -> {});
+        sendRequestQueue.addRequest(new StreamFrame(4, new byte[1000], false), f -> {});
+
+        QuicPacket packet = createPacket();
+        packetAssembler.assemble(packet, 1232);
+
+        assertThat(packet.getFrames()).hasSize(1);
+        assertThat(packet.estimateLength()).isLessThanOrEqualTo(1232);
+        assertThat(packetAssembler.hasFramesToSend()).isTrue();
+    }
+
+    @Test
+    void smallerFrameThatFitsShouldBeAddedWhenNextFrameIsTooLarge() {
+        sendRequestQueue.addRequest(new StreamFrame(0, new byte[1000], false), f -> {});
+        sendRequestQueue.addRequest(new StreamFrame(4, new byte[1000], false), f -> {});
+        sendRequestQueue.addRequest(new MaxDataFrame(100_000), f -> {});
+
+        QuicPacket packet = createPacket();
+        packetAssembler.assemble(packet, 1232);
+
+        assertThat(packet.getFrames()).hasSize(2);
+        assertThat(packet.getFrames().get(1)).isInstanceOf(MaxDataFrame.class);
+    }
+
+    @Test
+    void firstFrameShouldAlwaysBeAddedEvenWhenItExceedsMaxPacketSize() {
+        sendRequestQueue.addRequest(new StreamFrame(0, new byte[1000], false), f -> {});
+
+        QuicPacket packet = createPacket();
+        packetAssembler.assemble(packet, 200);
+
+        assertThat(packet.getFrames()).hasSize(1);
+        assertThat(packetAssembler.hasFramesToSend()).isFalse();
+    }
+
+    @Test
+    void fillShouldOnlyAddFramesThatFit() {
+        sendRequestQueue.addRequest(new StreamFrame(4, new byte[1000], false), f -> {});
+        sendRequestQueue.addRequest(new MaxDataFrame(100_000), f -> {});
+
+        QuicPacket packet = new ShortHeaderPacket(Version.getDefault(), new byte[] { 0x0e, 0x0e, 0x0e, 0x0e, 0x0e, 0x0e, 0x0e, 0x0e }, new StreamFrame(0, new byte[600], false));
+        packetAssembler.fill(packet, 1232);
+
+        assertThat(packet.getFrames()).hasSize(2);
+        assertThat(packet.getFrames().get(1)).isInstanceOf(MaxDataFrame.class);
+        assertThat(packet.estimateLength()).isLessThanOrEqualTo(1232);
+        assertThat(packetAssembler.hasFramesToSend()).isTrue();
+    }
+
+    @Test
+    void fillShouldNotAddFrameToEmptyPacketWhenItExceedsMaxPacketSize() {
+        sendRequestQueue.addRequest(new StreamFrame(0, new byte[1000], false), f -> {});
+
+        QuicPacket packet = createPacket();
+        packetAssembler.fill(packet, 200);
+
+        assertThat(packet.getFrames()).isEmpty();
+        assertThat(packetAssembler.hasFramesToSend()).isTrue();
+    }
+
+    @Test
+    void whenPacketIsLostLostCallbackShouldBeCalledForEachFrame() {
+        List<QuicFrame> lostFrames = new ArrayList<>();
+        StreamFrame streamFrame = new StreamFrame(0, new byte[100], false);
+        MaxDataFrame maxDataFrame = new MaxDataFrame(100_000);
+        sendRequestQueue.addRequest(streamFrame, lostFrames::add);
+        sendRequestQueue.addRequest(maxDataFrame, lostFrames::add);
+
+        QuicPacket packet = createPacket();
+        Consumer<QuicPacket> packetLostCallback = packetAssembler.assemble(packet, 1232);
+        packetLostCallback.accept(packet);
+
+        assertThat(lostFrames).containsExactly(streamFrame, maxDataFrame);
+    }
+
+    @Test
+    void controlFramesShouldBeAddedBeforeOtherFrames() {
+        SendRequestQueue controlQueue = new SendRequestQueue();
+        List<SendRequest> controlFramesSent = new ArrayList<>();
+        packetAssembler = new PacketAssembler(controlQueue, sendRequestQueue, controlFramesSent::add);
+        sendRequestQueue.addRequest(new StreamFrame(0, new byte[1100], false), f -> {});
+        controlQueue.addRequest(new MaxDataFrame(100_000), f -> {});
+
+        QuicPacket packet = createPacket();
+        packetAssembler.assemble(packet, 1232);
+
+        assertThat(packet.getFrames()).hasSize(2);
+        assertThat(packet.getFrames().get(0)).isInstanceOf(MaxDataFrame.class);
+        assertThat(controlFramesSent).hasSize(1);
+    }
+
+    private QuicPacket createPacket() {
+        return new ShortHeaderPacket(Version.getDefault(), new byte[] { 0x0e, 0x0e, 0x0e, 0x0e, 0x0e, 0x0e, 0x0e, 0x0e }, null);
+    }
+}
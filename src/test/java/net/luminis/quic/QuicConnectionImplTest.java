@@ -296,16 +296,16 @@ class QuicConnectionImplTest {
         long flowControlIncrement = (long) new FieldReader(connection, connection.getClass().getDeclaredField("flowControlIncrement")).read();
 
         connection.slideFlowControlWindow(10);
-        verify(sender, never()).send(any(QuicPacket.class), anyString(), any(Consumer.class));  // No initial update, value is advertised in transport parameters.
+        verify(sender, never()).send(any(MaxDataFrame.class), any(EncryptionLevel.class), any(Consumer.class));  // No initial update, value is advertised in transport parameters.
 
         connection.slideFlowControlWindow((int) flowControlIncrement);
-        verify(sender, times(1)).send(any(QuicPacket.class), anyString(), any(Consumer.class));
+        verify(sender, times(1)).send(any(MaxDataFrame.class), any(EncryptionLevel.class), any(Consumer.class));
 
         connection.slideFlowControlWindow((int) (flowControlIncrement * 0.8));
-        verify(sender, times(1)).send(any(QuicPacket.class), anyString(), any(Consumer.class));
+        verify(sender, times(1)).send(any(MaxDataFrame.class), any(EncryptionLevel.class), any(Consumer.class));
 
         connection.slideFlowControlWindow((int) (flowControlIncrement * 0.21));
-        verify(sender, times(2)).send(any(QuicPacket.class), anyString(), any(Consumer.class));
+        verify(sender, times(2)).send(any(MaxDataFrame.class), any(EncryptionLevel.class), any(Consumer.class));
     }
 
     @Test
@@ -382,7 +382,7 @@ class QuicConnectionImplTest {
                 new ShortHeaderPacket(Version.getDefault(), destinationConnectionId,
                         new ConnectionCloseFrame(Version.getDefault())), Instant.now());
 
-        verify(sender).send(argThat(new PacketMatcherByFrameClass(ConnectionCloseFrame.class)), anyString(), any(Consumer.class));
+        verify(sender).send(any(ConnectionCloseFrame.class), any(EncryptionLevel.class), any(Consumer.class));
     }
 
     @Test
@@ -401,7 +401,7 @@ class QuicConnectionImplTest {
                 new ShortHeaderPacket(Version.getDefault(), destinationConnectionId,
                         new ConnectionCloseFrame(Version.getDefault())), Instant.now());
 
-        verify(sender, times(1)).send(argThat(new PacketMatcherByFrameClass(ConnectionCloseFrame.class)), anyString(), any(Consumer.class));
+        verify(sender, times(1)).send(any(ConnectionCloseFrame.class), any(EncryptionLevel.class), any(Consumer.class));
     }
 
     @Test
@@ -412,7 +412,7 @@ class QuicConnectionImplTest {
 
         connection.close();
 
-        verify(sender).send(argThat(new PacketMatcherByFrameClass(ConnectionCloseFrame.class)), anyString(), any(Consumer.class));
+        verify(sender).send(any(ConnectionCloseFrame.class), any(EncryptionLevel.class), any(Consumer.class));
     }
 
     @Test
@@ -504,12 +504,11 @@ class QuicConnectionImplTest {
         NewConnectionIdFrame newConnectionIdFrame = new NewConnectionIdFrame(Version.getDefault(), 1, 1, new byte[]{ 0x0c, 0x0f, 0x0d, 0x0e });
         connection.process(new ShortHeaderPacket(Version.getDefault(), connection.getSourceConnectionId(), newConnectionIdFrame), Instant.now());
 
-        ArgumentCaptor<QuicPacket> captor = ArgumentCaptor.forClass(QuicPacket.class);
-        verify(sender, times(1)).send(captor.capture(), anyString(), any(Consumer.class));
-        QuicPacket packetSent = captor.getValue();
+        ArgumentCaptor<QuicFrame> captor = ArgumentCaptor.forClass(QuicFrame.class);
+        verify(sender, times(1)).send(captor.capture(), any(EncryptionLevel.class), any(Consumer.class));
 
-        assertThat(((ShortHeaderPacket) packetSent).getDestinationConnectionId()).isEqualTo(new byte[]{ 0x0c, 0x0f, 0x0d, 0x0e });
-        assertThat(packetSent.getFrames()).contains(new RetireConnectionIdFrame(Version.getDefault(), 0));
+        assertThat(connection.getDestinationConnectionId()).isEqualTo(new byte[]{ 0x0c, 0x0f, 0x0d, 0x0e });
+        assertThat(captor.getValue()).isEqualTo(new RetireConnectionIdFrame(Version.getDefault(), 0));
     }
 
     @Test
@@ -524,20 +523,19 @@ class QuicConnectionImplTest {
         // When
         connection.retireDestinationConnectionId(0);
 
-        ArgumentCaptor<QuicPacket> packetCaptor = ArgumentCaptor.forClass(QuicPacket.class);
+        ArgumentCaptor<QuicFrame> frameCaptor = ArgumentCaptor.forClass(QuicFrame.class);
         ArgumentCaptor<Consumer> captor = ArgumentCaptor.forClass(Consumer.class);
-        verify(sender, times(1)).send(packetCaptor.capture(), anyString(), captor.capture());
+        verify(sender, times(1)).send(frameCaptor.capture(), any(EncryptionLevel.class), captor.capture());
 
         clearInvocations(sender);
 
-        Consumer lostPacketCallback = captor.getValue();
-        lostPacketCallback.accept(packetCaptor.getValue());
+        Consumer lostFrameCallback = captor.getValue();
+        lostFrameCallback.accept(frameCaptor.getValue());
 
         // Then
-        ArgumentCaptor<QuicPacket> secondPacketCaptor = ArgumentCaptor.forClass(QuicPacket.class);
-        verify(sender, times(1)).send(secondPacketCaptor.capture(), anyString(), any(Consumer.class));
-        QuicPacket retransmitPacket = secondPacketCaptor.getValue();
-        assertThat(retransmitPacket.getFrames()).contains(new RetireConnectionIdFrame(Version.getDefault(), 0));
+        ArgumentCaptor<QuicFrame> secondFrameCaptor = ArgumentCaptor.forClass(QuicFrame.class);
+        verify(sender, times(1)).send(secondFrameCaptor.capture(), any(EncryptionLevel.class), any(Consumer.class));
+        assertThat(secondFrameCaptor.getValue()).isEqualTo(new RetireConnectionIdFrame(Version.getDefault(), 0));
     }
 
     @Test
@@ -554,9 +552,7 @@ class QuicConnectionImplTest {
         connection.registerNewDestinationConnectionId(new NewConnectionIdFrame(Version.getDefault(), 2, 0, new byte[]{ 0x02, 0x02, 0x02, 0x02 }));
 
         // Then
-        verify(sender).send(argThat(p ->
-                p.getFrames().contains(new RetireConnectionIdFrame(Version.getDefault(), 2))),
-                anyString(), any(Consumer.class));
+        verify(sender).send(eq(new RetireConnectionIdFrame(Version.getDefault(), 2)), any(EncryptionLevel.class), any(Consumer.class));
     }
 
     @Test
@@ -614,4 +610,28 @@ class QuicConnectionImplTest {
         ).isInstanceOf(InvalidPacketException.class);
     }
 
+    @Test
+    void datagramWithOnlyInvalidPacketsShouldNotCountAsProcessed() throws Exception {
+        assertThat(connection.parsePackets(1, Instant.now(), ByteBuffer.wrap(new byte[] { 0x00, 0x00, 0x00, 0x00 }))).isFalse();
+    }
+
+    @Test
+    void datagramWithUndecryptablePacketShouldNotCountAsProcessed() throws Exception {
+        // Short header packet, but there are no 1-RTT keys yet.
+        assertThat(connection.parsePackets(1, Instant.now(), ByteBuffer.wrap(new byte[] { 0x40, 0x00, 0x01, 0x02, 0x03, 0x04 }))).isFalse();
+    }
+
+    @Test
+    void idleTimeoutShouldBeMinimumOfBothIdleTimeouts() {
+        assertThat(QuicConnectionImpl.effectiveIdleTimeout(60_000, 30_000)).isEqualTo(30_000);
+        assertThat(QuicConnectionImpl.effectiveIdleTimeout(10_000, 30_000)).isEqualTo(10_000);
+    }
+
+    @Test
+    void idleTimeoutShouldBeDisabledOnlyWhenBothIdleTimeoutsAreZero() {
+        assertThat(QuicConnectionImpl.effectiveIdleTimeout(0, 30_000)).isEqualTo(30_000);
+        assertThat(QuicConnectionImpl.effectiveIdleTimeout(60_000, 0)).isEqualTo(60_000);
+        assertThat(QuicConnectionImpl.effectiveIdleTimeout(0, 0)).isEqualTo(0);
+    }
+
 }
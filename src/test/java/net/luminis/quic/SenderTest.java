@@ -18,6 +18,8 @@
  */
 package net.luminis.quic;
 
+import net.luminis.quic.concurrent.EventLoop;
+import net.luminis.quic.concurrent.HashedWheelTimer;
 import net.luminis.quic.frame.*;
 import net.luminis.quic.log.Logger;
 import net.luminis.quic.log.SysOutLogger;
@@ -31,9 +33,6 @@ import org.mockito.internal.util.reflection.FieldReader;
 import org.mockito.internal.util.reflection.FieldSetter;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 
@@ -44,7 +43,7 @@ class SenderTest {
 
     private static Logger logger;
     private Sender sender;
-    private DatagramSocket socket;
+    private Transport transport;
     private QuicConnectionImpl connection;
 
     // Arbitrary Instant value, used by tests to indicate the value does not matter for the test
@@ -60,10 +59,10 @@ class SenderTest {
 
     @BeforeEach
     void initSenderUnderTest() throws Exception {
-        socket = mock(DatagramSocket.class);
+        transport = mock(Transport.class);
         Logger logger = mock(Logger.class);
         connection = mock(QuicConnectionImpl.class);
-        sender = new Sender(socket, 1500, logger, InetAddress.getLoopbackAddress(), 443, connection, null);
+        sender = new Sender(transport, 1500, logger, connection, null);
 
         // Set RttEstimator with short initial rtt, both on Sender and RecoveryManager
         RttEstimator rttEstimator = new RttEstimator(logger, 100);
@@ -84,7 +83,7 @@ class SenderTest {
         sender.send(new MockPacket(0, 1240, "packet 1"), "packet 1", p -> {});
         waitForSender();
 
-        verify(socket, times(1)).send(any(DatagramPacket.class));
+        verify(transport, times(1)).send(any(ByteBuffer.class));
     }
 
     @Test
@@ -96,14 +95,55 @@ class SenderTest {
 
         waitForSender();
         // Because of congestion control, only first packet should have been sent.
-        verify(socket, times(1)).send(any(DatagramPacket.class));
+        verify(transport, times(1)).send(any(ByteBuffer.class));
 
         // An ack on first packet
         sender.process(new AckFrame(Version.getDefault(), 0), PnSpace.App, Instant.now());
 
         waitForSender();
         // Because congestion window is decreased, second packet should now have been sent too.
-        verify(socket, times(2)).send(any(DatagramPacket.class));
+        verify(transport, times(2)).send(any(ByteBuffer.class));
+    }
+
+    @Test
+    void senderOnEventLoopShouldSendQueuedPacketsAndContinueWhenCongestionWindowAllows() throws Exception {
+        EventLoop eventLoop = new EventLoop("test-loop");
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer");
+        try {
+            sender = new Sender(transport, 1500, mock(Logger.class), connection, 100, eventLoop, timer);
+            setCongestionWindowSize(1250);
+            sender.send(new MockPacket(0, 1240, "packet 1"), "packet 1", p -> {});
+            sender.send(new MockPacket(1, 1240, "packet 2"), "packet 2", p -> {});
+            sender.start(mock(ConnectionSecrets.class));
+
+            waitForSender();
+            verify(transport, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
+
+            sender.process(new AckFrame(Version.getDefault(), 0), PnSpace.App, Instant.now());
+
+            waitForSender();
+            verify(transport, times(2)).send(any(ByteBuffer.class));
+        }
+        finally {
+            eventLoop.shutdown();
+            timer.shutdown();
+        }
+    }
+
+    @Test
+    void whenPacingIsEnabledPacketsExceedingBurstAreSentLater() throws Exception {
+        // With a long RTT, the pacing rate is low: 1.25 * 12000 bytes / 2 s = 7500 bytes/s
+        FieldSetter.setField(sender, sender.getClass().getDeclaredField("rttEstimater"), new RttEstimator(mock(Logger.class), 2000));
+        sender.setPacing(true, 2400);
+        sender.start(mock(ConnectionSecrets.class));
+        for (int i = 0; i < 4; i++) {
+            sender.send(new MockPacket(i, 1200, "packet " + i), "packet " + i, p -> {});
+        }
+
+        Thread.sleep(50);
+        verify(transport, times(2)).send(any(ByteBuffer.class));
+
+        verify(transport, timeout(2000).times(4)).send(any(ByteBuffer.class));
     }
 
     @Test
@@ -113,11 +153,11 @@ class SenderTest {
 
         sender.send(new MockPacket(0, 1240, EncryptionLevel.App, new PingFrame(), "packet 1"), "packet 1", p -> { /* retransmit function not needed, probe will be send */ });
         waitForSender();
-        verify(socket, times(1)).send(argThat(new PacketMatcher(0, EncryptionLevel.App)));
-        clearInvocations(socket);
+        verify(transport, times(1)).send(argThat(new PacketMatcher(0, EncryptionLevel.App)));
+        clearInvocations(transport);
 
         Thread.sleep(300);
-        verify(socket, atLeast(1)).send(any(DatagramPacket.class));  // At least one probe will be sent, maybe multiple
+        verify(transport, atLeast(1)).send(any(ByteBuffer.class));  // At least one probe will be sent, maybe multiple
     }
 
     @Test
@@ -129,15 +169,15 @@ class SenderTest {
         sender.send(new MockPacket(0, 120, EncryptionLevel.App, new PingFrame(), "packet 0"), "packet 0", p -> {});
         waitForSender();
         sender.process(new AckFrame(0), PnSpace.App, Instant.now());
-        clearInvocations(socket);
+        clearInvocations(transport);
 
         sender.send(new MockPacket(1, 1240, EncryptionLevel.App, new AckFrame(0), "packet 1"), "packet 1", p -> { /* retransmit function not needed, probe would be send */ });
         waitForSender();
-        verify(socket, times(1)).send(argThat(new PacketMatcher(1, EncryptionLevel.App)));
-        clearInvocations(socket);
+        verify(transport, times(1)).send(argThat(new PacketMatcher(1, EncryptionLevel.App)));
+        clearInvocations(transport);
 
         Thread.sleep(500);
-        verify(socket, never()).send(any(DatagramPacket.class));
+        verify(transport, never()).send(any(ByteBuffer.class));
     }
 
     @Test
@@ -151,7 +191,7 @@ class SenderTest {
 
         waitForSender();
 
-        verify(socket, times(1)).send(any(DatagramPacket.class));  // TODO: would be nice to check send packet actually contains an ack frame...
+        verify(transport, times(1)).send(any(ByteBuffer.class));  // TODO: would be nice to check send packet actually contains an ack frame...
     }
 
     @Test
@@ -165,7 +205,7 @@ class SenderTest {
 
         waitForSender();
 
-        verify(socket, never()).send(any(DatagramPacket.class));
+        verify(transport, never()).send(any(ByteBuffer.class));
     }
 
     @Test
@@ -178,22 +218,22 @@ class SenderTest {
         MockPacket firstPacket = new MockPacket(0, 1200, EncryptionLevel.App, new PingFrame(), "first packet");
         sender.send(firstPacket, "first packet", p -> {});
         waitForSender();
-        verify(socket, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
-        clearInvocations(socket);
+        verify(transport, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
+        clearInvocations(transport);
 
         // Send second packet and third packet, which will both be queued because of cwnd
         sender.send(new MockPacket(1, 1200, EncryptionLevel.App, new PingFrame(), "large packet"), "large packet", p -> {});
         waitForSender();
         sender.send(new MockPacket(2, 120, EncryptionLevel.App, new PingFrame(), "third packet"), "third packet", p -> {});
         waitForSender();
-        clearInvocations(socket);
+        clearInvocations(transport);
 
         // Simulate incoming packet; sender will be interrupted because maybe an ack must be sent.
         sender.packetProcessed(EncryptionLevel.App);
 
         waitForSender();
 
-        verify(socket, never()).send(any(DatagramPacket.class));
+        verify(transport, never()).send(any(ByteBuffer.class));
     }
 
     @Test
@@ -208,13 +248,13 @@ class SenderTest {
         MockPacket firstPacket = new MockPacket(0, 1200, EncryptionLevel.App, new Padding(), "first packet");
         sender.send(firstPacket, "first packet", p -> {});
         waitForSender();
-        verify(socket, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
-        clearInvocations(socket);
+        verify(transport, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
+        clearInvocations(transport);
 
         sender.sendProbe();
         waitForSender();
 
-        verify(socket, times(1)).send(argThat(matchesPacket(1, EncryptionLevel.App)));
+        verify(transport, times(1)).send(argThat(matchesPacket(1, EncryptionLevel.App)));
     }
 
     @Test
@@ -232,14 +272,32 @@ class SenderTest {
         MockPacket secondPacket = new MockPacket(1, 1200, EncryptionLevel.App, new Padding(), "second packet");
         sender.send(secondPacket, "second packet", p -> {});
         waitForSender();
-        verify(socket, never()).send(any(DatagramPacket.class));
-        reset(socket);
+        verify(transport, never()).send(any(ByteBuffer.class));
+        reset(transport);
 
         sender.sendProbe();
         waitForSender();
 
         // Whether a special probe or waiting data is sent does not matter, as long as a packet is sent.
-        verify(socket, times(1)).send(any(DatagramPacket.class));
+        verify(transport, times(1)).send(any(ByteBuffer.class));
+    }
+
+    @Test
+    void whenTwoProbesAreSentInQuickSuccessionBothShouldNotBeBlocked() throws Exception {
+        disableRecoveryManager();
+
+        when(connection.createPacket(any(EncryptionLevel.class), any(QuicFrame.class))).thenAnswer(invocation -> new MockPacket(2, 12, EncryptionLevel.App, new PingFrame(), "ping packet"));
+        setCongestionWindowSize(1212);
+        sender.start(mock(ConnectionSecrets.class));
+
+        // Fill up cwnd
+        sender.getCongestionController().registerInFlight(new MockPacket(0, 1212, EncryptionLevel.App, new Padding(), "first packet"));
+
+        sender.sendProbe();
+        sender.sendProbe();
+        waitForSender();
+
+        verify(transport, times(2)).send(any(ByteBuffer.class));
     }
 
     @Test
@@ -252,14 +310,14 @@ class SenderTest {
         MockPacket firstPacket = new MockPacket(0, 1210, EncryptionLevel.App, new PingFrame(), "first packet");
         sender.send(firstPacket, "first packet", p -> {});
         waitForSender();
-        verify(socket, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
-        clearInvocations(socket);
+        verify(transport, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
+        clearInvocations(transport);
 
         sender.processPacketReceived(new MockPacket(19, 200, EncryptionLevel.App, new MaxDataFrame(1_000_000), "stream frame"));
         sender.packetProcessed(EncryptionLevel.App);
         waitForSender();
 
-        verify(socket, times(1)).send(argThat(matchesPacket(1, EncryptionLevel.App)));
+        verify(transport, times(1)).send(argThat(matchesPacket(1, EncryptionLevel.App)));
     }
 
     @Test
@@ -272,11 +330,100 @@ class SenderTest {
         sender.packetProcessed(EncryptionLevel.App);
         waitForSender();
 
-        verify(socket, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
+        verify(transport, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.App)));
         assertThat(sender.getCongestionController().getBytesInFlight()).isEqualTo(0);
     }
 
 
+    @Test
+    void queuedFramesShouldBeCombinedInOnePacket() throws Exception {
+        MockPacket packet = new MockPacket(0, 30, EncryptionLevel.App, "assembled packet");
+        when(connection.createPacket(any(EncryptionLevel.class), any())).thenReturn(packet);
+        when(connection.getMaxPacketSize()).thenReturn(1232);
+
+        sender.send(new MaxDataFrame(1_000_000), EncryptionLevel.App, f -> {});
+        sender.send(new StreamFrame(0, new byte[500], false), EncryptionLevel.App, f -> {});
+        sender.send(new StreamFrame(4, new byte[500], false), EncryptionLevel.App, f -> {});
+        sender.start(mock(ConnectionSecrets.class));
+        waitForSender();
+
+        verify(transport, times(1)).send(any(ByteBuffer.class));
+        assertThat(packet.getFrames()).hasSize(3);
+    }
+
+    @Test
+    void framesThatDoNotFitInOnePacketShouldBeSentInMultiplePackets() throws Exception {
+        when(connection.createPacket(any(EncryptionLevel.class), any())).thenAnswer(invocation -> new MockPacket(0, 30, EncryptionLevel.App, "assembled packet"));
+        when(connection.getMaxPacketSize()).thenReturn(1232);
+
+        sender.send(new StreamFrame(0, new byte[1000], false), EncryptionLevel.App, f -> {});
+        sender.send(new StreamFrame(4, new byte[1000], false), EncryptionLevel.App, f -> {});
+        sender.start(mock(ConnectionSecrets.class));
+        waitForSender();
+
+        verify(transport, times(2)).send(any(ByteBuffer.class));
+    }
+
+
+    @Test
+    void controlFramesShouldBeSentBeforeQueuedData() throws Exception {
+        MockPacket controlPacket = new MockPacket(-1, 30, EncryptionLevel.App, "control packet");
+        when(connection.createPacket(any(EncryptionLevel.class), any())).thenReturn(controlPacket);
+        when(connection.getMaxPacketSize()).thenReturn(1232);
+
+        sender.send(new MockPacket(-1, 1000, EncryptionLevel.App, new PingFrame(), "data packet"), "data packet", p -> {});
+        sender.send(new MaxDataFrame(1_000_000), EncryptionLevel.App, f -> {});
+        sender.start(mock(ConnectionSecrets.class));
+        waitForSender();
+
+        verify(transport, times(2)).send(any(ByteBuffer.class));
+        assertThat(controlPacket.getPacketNumber()).isEqualTo(0);
+        assertThat(sender.getStats().getControlFramesSent()).isEqualTo(1);
+    }
+
+    @Test
+    void controlFramesShouldBeCongestionControlled() throws Exception {
+        when(connection.createPacket(any(EncryptionLevel.class), any())).thenAnswer(invocation -> new MockPacket(-1, 30, EncryptionLevel.App, "control packet"));
+        setCongestionWindowSize(1212);
+        sender.getCongestionController().registerInFlight(new MockPacket(0, 1212, EncryptionLevel.App, new Padding(), "first packet"));
+
+        sender.send(new MaxDataFrame(1_000_000), EncryptionLevel.App, f -> {});
+        sender.start(mock(ConnectionSecrets.class));
+        waitForSender();
+
+        verify(transport, never()).send(any(ByteBuffer.class));
+    }
+
+    @Test
+    void datagramWithInitialPacketShouldBePaddedToAtLeast1200Bytes() throws Exception {
+        sender.start(mock(ConnectionSecrets.class));
+        MockPacket initialPacket = new MockPacket(0, 300, EncryptionLevel.Initial, new CryptoFrame(), "initial");
+
+        sender.send(initialPacket, "initial", p -> {});
+        waitForSender();
+
+        verify(transport, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.Initial)));
+        assertThat(initialPacket.getFrames()).anyMatch(frame -> frame instanceof Padding);
+    }
+
+    @Test
+    void pendingAckForOtherLevelShouldBeCoalescedInSameDatagram() throws Exception {
+        ConnectionSecrets connectionSecrets = mock(ConnectionSecrets.class);
+        when(connectionSecrets.getClientSecrets(any(EncryptionLevel.class))).thenReturn(mock(Keys.class));
+        when(connection.createPacket(any(EncryptionLevel.class), any(QuicFrame.class))).thenAnswer(invocation -> new MockPacket(-1, 20, invocation.getArgument(0), invocation.getArgument(1), "ack"));
+        when(connection.getMaxPacketSize()).thenReturn(1232);
+
+        sender.processPacketReceived(new MockPacket(0, 1000, EncryptionLevel.Initial, new CryptoFrame()));
+        sender.send(new MockPacket(0, 300, EncryptionLevel.Handshake, new CryptoFrame(), "handshake"), "handshake", p -> {});
+        sender.start(connectionSecrets);
+        waitForSender();
+
+        // Initial packet must come first and both packets are sent in one datagram
+        verify(transport, times(1)).send(argThat(matchesPacket(0, EncryptionLevel.Initial)));
+        verify(transport, times(1)).send(argThat(datagram -> datagram.limit() == 20 + 300));
+    }
+
+
     private PacketMatcher matchesPacket(int packetNumber, EncryptionLevel encryptionLevel ) {
         return new PacketMatcher(packetNumber, encryptionLevel);
     }
@@ -300,7 +447,7 @@ class SenderTest {
         FieldSetter.setField(sender, sender.getClass().getDeclaredField("recoveryManager"), recoveryManager);
     }
     
-    static class PacketMatcher implements ArgumentMatcher<DatagramPacket> {
+    static class PacketMatcher implements ArgumentMatcher<ByteBuffer> {
         private final long packetNumber;
         private final EncryptionLevel encryptionLevel;
 
@@ -310,10 +457,9 @@ class SenderTest {
         }
 
         @Override
-        public boolean matches(DatagramPacket datagramPacket) {
-            ByteBuffer buffer = ByteBuffer.wrap(datagramPacket.getData());
-            long sentPn = buffer.getLong();
-            int sentLevel = buffer.getInt();
+        public boolean matches(ByteBuffer datagram) {
+            long sentPn = datagram.getLong(0);
+            int sentLevel = datagram.getInt(8);
             return sentPn == packetNumber && sentLevel == encryptionLevel.ordinal();
         }
     }
@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic;
+
+import net.luminis.quic.frame.MaxDataFrame;
+import net.luminis.quic.frame.QuicFrame;
+import net.luminis.quic.frame.StreamFrame;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+
+class StreamSchedulerTest {
+
+    private StreamScheduler scheduler;
+
+    @Test
+    void framesThatAreNotStreamFramesShouldBeSentFirst() {
+        scheduler = new StreamScheduler();
+        queueFrames(0, 2);
+        scheduler.addRequest(new MaxDataFrame(100_000), f -> {});
+
+        assertThat(scheduler.next(1500).get().getFrame()).isInstanceOf(MaxDataFrame.class);
+    }
+
+    @Test
+    void withRoundRobinStreamsShouldTakeTurns() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.RoundRobin);
+        queueFrames(0, 10);
+        queueFrames(4, 3);
+        queueFrames(8, 3);
+
+        assertThat(nextStreamIds(9)).containsExactly(0, 4, 8, 0, 4, 8, 0, 4, 8);
+        assertThat(nextStreamIds(3)).containsExactly(0, 0, 0);
+    }
+
+    @Test
+    void streamStartingToSendShouldNotWaitForLargeUploadQueuedEarlier() {
+        scheduler = new StreamScheduler();
+        queueFrames(0, 1000);
+        nextStreamIds(10);
+        queueFrames(4, 1);
+
+        assertThat(nextStreamIds(2)).contains(4);
+    }
+
+    @Test
+    void withWeightedFairBandwidthShouldBeSharedByWeight() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.WeightedFair);
+        scheduler.setPriority(0, StreamScheduler.DEFAULT_URGENCY, false, 32);
+        scheduler.setPriority(4, StreamScheduler.DEFAULT_URGENCY, false, 16);
+        scheduler.setPriority(8, StreamScheduler.DEFAULT_URGENCY, false, 16);
+        queueFrames(0, 1000);
+        queueFrames(4, 1000);
+        queueFrames(8, 1000);
+
+        Map<Integer, Long> count = nextStreamIds(400).stream().collect(Collectors.groupingBy(id -> id, Collectors.counting()));
+
+        assertThat(count.get(0)).isBetween(195L, 205L);
+        assertThat(count.get(4)).isBetween(95L, 105L);
+        assertThat(count.get(8)).isBetween(95L, 105L);
+    }
+
+    @Test
+    void withPriorityLowestUrgencyShouldBeServedFirst() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.Priority);
+        scheduler.setPriority(4, 1, false, StreamScheduler.DEFAULT_WEIGHT);
+        queueFrames(0, 3);
+        queueFrames(4, 3);
+
+        assertThat(nextStreamIds(6)).containsExactly(4, 4, 4, 0, 0, 0);
+    }
+
+    @Test
+    void withPriorityNonIncrementalStreamsShouldBeServedInOrderOfStreamId() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.Priority);
+        queueFrames(8, 2);
+        queueFrames(4, 2);
+        queueFrames(0, 2);
+
+        assertThat(nextStreamIds(6)).containsExactly(0, 0, 4, 4, 8, 8);
+    }
+
+    @Test
+    void withPriorityIncrementalStreamsShouldTakeTurns() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.Priority);
+        scheduler.setPriority(0, 3, true, StreamScheduler.DEFAULT_WEIGHT);
+        scheduler.setPriority(4, 3, true, StreamScheduler.DEFAULT_WEIGHT);
+        queueFrames(0, 3);
+        queueFrames(4, 3);
+
+        assertThat(nextStreamIds(6)).containsExactly(0, 4, 0, 4, 0, 4);
+    }
+
+    @Test
+    void priorityChangeShouldApplyToQueuedData() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.Priority);
+        queueFrames(0, 3);
+        queueFrames(4, 3);
+        assertThat(nextStreamIds(1)).containsExactly(0);
+
+        scheduler.setPriority(4, 0, false, StreamScheduler.DEFAULT_WEIGHT);
+
+        assertThat(nextStreamIds(5)).containsExactly(4, 4, 4, 0, 0);
+    }
+
+    @Test
+    void removedStreamShouldKeepPriorityForQueuedDataOnly() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.Priority);
+        scheduler.setPriority(4, 0, false, StreamScheduler.DEFAULT_WEIGHT);
+        queueFrames(0, 2);
+        queueFrames(4, 2);
+
+        scheduler.removeStream(4);
+        assertThat(nextStreamIds(3)).containsExactly(4, 4, 0);
+
+        queueFrames(4, 1);
+        assertThat(nextStreamIds(2)).containsExactly(0, 4);
+    }
+
+    @Test
+    void whenFrameOfSelectedStreamDoesNotFitOtherStreamShouldBeSelected() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.Priority);
+        scheduler.addRequest(new StreamFrame(0, new byte[1000], false), f -> {});
+        scheduler.addRequest(new StreamFrame(4, new byte[100], false), f -> {});
+
+        assertThat(((StreamFrame) scheduler.next(500).get().getFrame()).getStreamId()).isEqualTo(4);
+        assertThat(scheduler.next(500)).isEmpty();
+        assertThat(scheduler.hasRequests()).isTrue();
+    }
+
+    @Test
+    void peekSizeShouldReturnSizeOfNextFrame() {
+        scheduler = new StreamScheduler(StreamScheduler.Policy.Priority);
+        scheduler.setPriority(4, 0, false, StreamScheduler.DEFAULT_WEIGHT);
+        scheduler.addRequest(new StreamFrame(0, new byte[1000], false), f -> {});
+        scheduler.addRequest(new StreamFrame(4, new byte[100], false), f -> {});
+
+        assertThat(scheduler.peekSize()).isEqualTo(scheduler.next(1500).get().getEstimatedSize());
+        assertThat(scheduler.peekSize()).isGreaterThan(1000);
+    }
+
+    @Test
+    void invalidPriorityShouldBeRejected() {
+        scheduler = new StreamScheduler();
+        assertThatThrownBy(() -> scheduler.setPriority(0, 8, false, 16)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> scheduler.setPriority(0, 3, false, 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private void queueFrames(int streamId, int count) {
+        for (int i = 0; i < count; i++) {
+            scheduler.addRequest(new StreamFrame(streamId, i * 1000, new byte[1000], false), f -> {});
+        }
+    }
+
+    private List<Integer> nextStreamIds(int count) {
+        List<Integer> streamIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            QuicFrame frame = scheduler.next(1500).get().getFrame();
+            streamIds.add(((StreamFrame) frame).getStreamId());
+        }
+        return streamIds;
+    }
+}
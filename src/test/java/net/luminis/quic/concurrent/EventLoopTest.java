@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.concurrent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+class EventLoopTest {
+
+    private EventLoop eventLoop;
+
+    @BeforeEach
+    void startEventLoop() throws Exception {
+        eventLoop = new EventLoop("test-loop");
+    }
+
+    @AfterEach
+    void stopEventLoop() {
+        eventLoop.shutdown();
+    }
+
+    @Test
+    void tasksShouldBeExecutedInOrderOnEventLoopThread() throws Exception {
+        List<Integer> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        List<Boolean> onEventLoop = new CopyOnWriteArrayList<>();
+
+        eventLoop.execute(() -> executed.add(1));
+        eventLoop.execute(() -> executed.add(2));
+        eventLoop.execute(() -> {
+            onEventLoop.add(eventLoop.inEventLoop());
+            done.countDown();
+        });
+
+        assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(executed).containsExactly(1, 2);
+        assertThat(onEventLoop).containsExactly(true);
+        assertThat(eventLoop.inEventLoop()).isFalse();
+    }
+
+    @Test
+    void failingTaskShouldNotStopEventLoop() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, error) -> {});
+        try {
+            eventLoop.execute(() -> { throw new RuntimeException("task failed"); });
+            eventLoop.execute(() -> done.countDown());
+
+            assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+        }
+        finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+    }
+
+    @Test
+    void readHandlerShouldBeCalledWhenChannelIsReadable() throws Exception {
+        try (DatagramChannel receiver = DatagramChannel.open(); DatagramChannel sender = DatagramChannel.open()) {
+            receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receiver.configureBlocking(false);
+            CountDownLatch received = new CountDownLatch(1);
+            eventLoop.registerForRead(receiver, () -> {
+                try {
+                    if (receiver.receive(ByteBuffer.allocate(1500)) != null) {
+                        received.countDown();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            sender.send(ByteBuffer.wrap(new byte[] { 0x01 }), receiver.getLocalAddress());
+
+            assertThat(received.await(1, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    void writeHandlerShouldBeCalledOnceWhenChannelIsWritable() throws Exception {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.configureBlocking(false);
+            AtomicInteger count = new AtomicInteger();
+            CountDownLatch called = new CountDownLatch(1);
+            eventLoop.registerForWrite(channel, () -> {
+                count.incrementAndGet();
+                called.countDown();
+            });
+
+            assertThat(called.await(1, TimeUnit.SECONDS)).isTrue();
+            Thread.sleep(50);
+            assertThat(count.get()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void registrationForWriteShouldNotEndRegistrationForRead() throws Exception {
+        try (DatagramChannel receiver = DatagramChannel.open(); DatagramChannel sender = DatagramChannel.open()) {
+            receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receiver.configureBlocking(false);
+            CountDownLatch received = new CountDownLatch(1);
+            CountDownLatch writable = new CountDownLatch(1);
+            eventLoop.registerForRead(receiver, () -> {
+                try {
+                    if (receiver.receive(ByteBuffer.allocate(1500)) != null) {
+                        received.countDown();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            eventLoop.registerForWrite(receiver, () -> writable.countDown());
+            assertThat(writable.await(1, TimeUnit.SECONDS)).isTrue();
+
+            sender.send(ByteBuffer.wrap(new byte[] { 0x01 }), receiver.getLocalAddress());
+
+            assertThat(received.await(1, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.concurrent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @BeforeEach
+    void startTimer() {
+        timer = new HashedWheelTimer("test-timer");
+    }
+
+    @AfterEach
+    void stopTimer() {
+        timer.shutdown();
+    }
+
+    @Test
+    void timeoutShouldNotExpireBeforeDeadline() throws Exception {
+        AtomicLong expired = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> {
+            expired.set(System.nanoTime());
+            done.countDown();
+        });
+
+        long scheduled = System.nanoTime();
+        timeout.schedule(30);
+
+        assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(expired.get() - scheduled).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(30));
+        assertThat(timeout.isScheduled()).isFalse();
+    }
+
+    @Test
+    void cancelledTimeoutShouldNotExpire() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> count.incrementAndGet());
+
+        timeout.schedule(10);
+        timeout.cancel();
+        Thread.sleep(50);
+
+        assertThat(count.get()).isEqualTo(0);
+        assertThat(timer.pending()).isEqualTo(0);
+    }
+
+    @Test
+    void reschedulingShouldReplacePreviousDeadline() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> count.incrementAndGet());
+
+        timeout.schedule(10);
+        timeout.schedule(100);
+        Thread.sleep(50);
+        assertThat(count.get()).isEqualTo(0);
+
+        Thread.sleep(100);
+        assertThat(count.get()).isEqualTo(1);
+        assertThat(timer.pending()).isEqualTo(0);
+    }
+
+    @Test
+    void timeoutBeyondOneRevolutionShouldNotExpireEarly() throws Exception {
+        timer.shutdown();
+        timer = new HashedWheelTimer("test-timer", 1, 8, Runnable::run);
+        AtomicInteger count = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> count.incrementAndGet());
+
+        timeout.schedule(50);
+        Thread.sleep(25);
+        assertThat(count.get()).isEqualTo(0);
+
+        Thread.sleep(100);
+        assertThat(count.get()).isEqualTo(1);
+    }
+
+    @Test
+    void timeoutScheduledBeforeAwaitedTickShouldWakeUpTimer() throws Exception {
+        timer.newTimeout(() -> {}).schedule(400);
+        Thread.sleep(10);
+
+        CountDownLatch done = new CountDownLatch(1);
+        long scheduled = System.nanoTime();
+        timer.newTimeout(() -> done.countDown()).schedule(20);
+
+        assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(System.nanoTime() - scheduled).isLessThan(TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    void timerShouldNotWakeUpEveryTickWhileTimeoutsArePending() throws Exception {
+        timer.newTimeout(() -> {}).schedule(5000);
+        Thread.sleep(10);
+        long wakeups = timer.wakeups();
+
+        Thread.sleep(200);
+
+        // With a wheel of 512 ticks of 1 ms, the only non-empty bucket is visited at most once in 200 ms.
+        assertThat(timer.wakeups() - wakeups).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    void expiredTaskShouldRunWithGivenExecutor() throws Exception {
+        EventLoop eventLoop = new EventLoop("test-loop");
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            AtomicInteger onEventLoop = new AtomicInteger();
+            timer.newTimeout(() -> {
+                if (eventLoop.inEventLoop()) {
+                    onEventLoop.incrementAndGet();
+                }
+                done.countDown();
+            }, eventLoop).schedule(5);
+
+            assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(onEventLoop.get()).isEqualTo(1);
+        }
+        finally {
+            eventLoop.shutdown();
+        }
+    }
+}
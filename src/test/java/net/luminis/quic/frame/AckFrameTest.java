@@ -18,6 +18,7 @@
  */
 package net.luminis.quic.frame;
 
+import net.luminis.quic.Version;
 import net.luminis.quic.log.Logger;
 import org.junit.jupiter.api.Test;
 
@@ -138,4 +139,79 @@ class AckFrameTest {
         assertThat(ackFrame.getBytes()).isEqualTo(binaryFrame);
         assertThat(ackFrame.toString()).contains("[5-4,2-0|");
     }
-}
\ No newline at end of file
+
+    @Test
+    void parsedAckFrameShouldProvideRanges() throws Exception {
+        //                         ackframe   largest  delay ack-block-count #acked-below largest gap (size) #acked-below gap (size) #acked-below
+        byte[] data = new byte[] { 0x0d,      0x0a,    0x00, 0x02,           0x02,                0x01,      0x01,        0x00,      0x02 };
+
+        AckFrame ack = new AckFrame().parse(ByteBuffer.wrap(data), mock(Logger.class));
+
+        assertThat(ack.getAckRangeCount()).isEqualTo(3);
+        assertThat(ack.getAckRangeLargest(0)).isEqualTo(10);
+        assertThat(ack.getAckRangeSmallest(0)).isEqualTo(8);
+        assertThat(ack.getAckRangeLargest(1)).isEqualTo(5);
+        assertThat(ack.getAckRangeSmallest(1)).isEqualTo(4);
+        assertThat(ack.getAckRangeLargest(2)).isEqualTo(2);
+        assertThat(ack.getAckRangeSmallest(2)).isEqualTo(0);
+        assertThat(ack.getSmallestAcknowledged()).isEqualTo(0);
+    }
+
+    @Test
+    void acknowledgesShouldOnlyMatchPacketNumbersInRanges() throws Exception {
+        AckFrame ack = new AckFrame(List.of(0L, 1L, 2L, 4L, 5L, 9L));
+
+        assertThat(List.of(0L, 1L, 2L, 4L, 5L, 9L)).allMatch(ack::acknowledges);
+        assertThat(List.of(3L, 6L, 7L, 8L, 10L, -1L)).noneMatch(ack::acknowledges);
+    }
+
+    @Test
+    void largeRangeShouldNotBeExpandedWhenParsed() throws Exception {
+        //                         ackframe   largest                  delay #blocks #acked-below (4 bytes: 999999)
+        byte[] data = new byte[] { 0x02,      (byte) 0x80, 0x0f, 0x42, 0x40, 0x00, 0x00, (byte) 0x80, 0x0f, 0x42, 0x3f };
+
+        AckFrame ack = new AckFrame().parse(ByteBuffer.wrap(data), mock(Logger.class));
+
+        assertThat(ack.getLargestAcknowledged()).isEqualTo(1_000_000);
+        assertThat(ack.getAckRangeCount()).isEqualTo(1);
+        assertThat(ack.getAckRangeSmallest(0)).isEqualTo(1);
+        assertThat(ack.acknowledges(500_000)).isTrue();
+        assertThat(ack.toString()).contains("[1000000-1|");
+    }
+
+    @Test
+    void duplicatePacketNumbersShouldBeIgnored() throws Exception {
+        AckFrame ackFrame = new AckFrame(List.of(1L, 0L, 1L, 4L, 4L));
+
+        assertThat(ackFrame.getAckedPacketNumbers()).containsExactly(4L, 1L, 0L);
+        assertThat(ackFrame.toString()).contains("[4,1-0|");
+    }
+
+    @Test
+    void whenRangesDoNotFitInFrameSmallestRangesShouldBeLeftOut() throws Exception {
+        long[] ranges = new long[2 * 1000];
+        for (int i = 0; i < 1000; i++) {
+            ranges[2 * i] = 10_000 - 2 * i;
+            ranges[2 * i + 1] = 10_000 - 2 * i;
+        }
+
+        AckFrame ackFrame = new AckFrame(Version.getDefault(), ranges);
+
+        assertThat(ackFrame.getBytes().length).isLessThanOrEqualTo(AckFrame.MAX_FRAME_SIZE);
+        assertThat(ackFrame.getAckRangeCount()).isLessThan(1000);
+        assertThat(ackFrame.getLargestAcknowledged()).isEqualTo(10_000);
+        AckFrame parsed = new AckFrame().parse(ByteBuffer.wrap(ackFrame.getBytes()), mock(Logger.class));
+        assertThat(parsed.getAckRangeCount()).isEqualTo(ackFrame.getAckRangeCount());
+        assertThat(parsed.getSmallestAcknowledged()).isEqualTo(ackFrame.getSmallestAcknowledged());
+    }
+
+    @Test
+    void ackDelayShouldSurviveEncodeParseRoundTrip() throws Exception {
+        AckFrame ackFrame = new AckFrame(Version.getDefault(), new long[] { 10, 3 }, 40_000);
+
+        AckFrame parsed = new AckFrame().parse(ByteBuffer.wrap(ackFrame.getBytes()), mock(Logger.class));
+
+        assertThat(ackFrame.getAckDelay()).isEqualTo(40);
+        assertThat(parsed.getAckDelay()).isEqualTo(40);
+    }
+}
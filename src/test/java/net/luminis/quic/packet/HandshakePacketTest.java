@@ -19,6 +19,7 @@
 package net.luminis.quic.packet;
 
 import net.luminis.quic.*;
+import net.luminis.quic.frame.CryptoFrame;
 import net.luminis.quic.frame.Padding;
 import net.luminis.quic.frame.PingFrame;
 import net.luminis.quic.log.Logger;
@@ -146,6 +147,48 @@ class HandshakePacketTest {
         ).isInstanceOf(InvalidPacketException.class);
     }
 
+    @Test
+    void packetGeneratedIntoBufferCanBeParsed() throws Exception {
+        HandshakePacket handshakePacket = new HandshakePacket(Version.getDefault(), new byte[]{ 0x0e, 0x0e, 0x0e, 0x0e }, new byte[]{ 0x0d, 0x0d, 0x0d, 0x0d }, new CryptoFrame(Version.getDefault(), new byte[39]));
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        buffer.position(7);
+
+        int length = handshakePacket.generatePacketBytes(1, keys, buffer);
+
+        assertThat(buffer.position()).isEqualTo(7 + length);
+        buffer.flip();
+        buffer.position(7);
+        HandshakePacket parsedPacket = new HandshakePacket(Version.getDefault());
+        parsedPacket.parse(buffer.slice(), keys, 0, mock(Logger.class), 4);
+        assertThat(parsedPacket.getPacketNumber()).isEqualTo(1);
+        assertThat(parsedPacket.getFrames()).hasOnlyElementsOfType(CryptoFrame.class);
+        // Packet number 2 to avoid reusing the nonce
+        assertThat(handshakePacket.generatePacketBytes(2, keys)).hasSize(length);
+    }
+
+    @Test
+    void packetGeneratedIntoDirectBufferCanBeParsed() throws Exception {
+        HandshakePacket handshakePacket = new HandshakePacket(Version.getDefault(), new byte[]{ 0x0e, 0x0e, 0x0e, 0x0e }, new byte[]{ 0x0d, 0x0d, 0x0d, 0x0d }, new CryptoFrame(Version.getDefault(), new byte[300]));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1500);
+
+        handshakePacket.generatePacketBytes(1, keys, buffer);
+
+        buffer.flip();
+        HandshakePacket parsedPacket = new HandshakePacket(Version.getDefault());
+        parsedPacket.parse(buffer, keys, 0, mock(Logger.class), 4);
+        assertThat(((CryptoFrame) parsedPacket.getFrames().get(0)).getCryptoData()).hasSize(300);
+    }
+
+    @Test
+    void packetWithSmallPayloadShouldBePaddedToEnableHeaderProtectionSampling() throws Exception {
+        HandshakePacket handshakePacket = new HandshakePacket(Version.getDefault(), new byte[]{ 0x0e, 0x0e, 0x0e, 0x0e }, new byte[]{ 0x0d, 0x0d, 0x0d, 0x0d }, new PingFrame());
+
+        byte[] bytes = handshakePacket.generatePacketBytes(1, keys);
+
+        HandshakePacket parsedPacket = new HandshakePacket(Version.getDefault());
+        parsedPacket.parse(ByteBuffer.wrap(bytes), keys, 0, mock(Logger.class), 4);
+        assertThat(parsedPacket.getFrames()).hasAtLeastOneElementOfType(PingFrame.class);
+    }
 
     // Utility method to generate an encrypted and protected Handshake packet
     void generateHandshakePacket() {
@@ -32,8 +32,11 @@ import org.mockito.internal.util.reflection.FieldSetter;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
@@ -71,7 +74,7 @@ class LossDetectorTest extends RecoveryTests {
         lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L)));
         lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L)));
 
-        verify(congestionController, times(2)).registerAcked(any(List.class));
+        verify(congestionController, times(2)).registerAcked(any(List.class), any());
     }
 
     @Test
@@ -80,7 +83,7 @@ class LossDetectorTest extends RecoveryTests {
         lossDetector.packetSent(packet, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket));
         lossDetector.onAckReceived(new AckFrame(1));
 
-        verify(congestionController, times(1)).registerAcked(argThat(MoreArgumentMatchers.emptyList()));
+        verify(congestionController, times(1)).registerAcked(argThat(MoreArgumentMatchers.emptyList()), any());
     }
 
     @Test
@@ -129,6 +132,102 @@ class LossDetectorTest extends RecoveryTests {
         verify(lostPacketHandler, times(1)).process(argThat(new PacketMatcherByPacketNumber(1)));
     }
 
+    @Test
+    void ackForPacketDeclaredLostIsRegisteredAsSpuriousLoss() {
+        List<QuicPacket> packets = createPackets(1, 2, 3, 4);
+        packets.forEach(p ->
+                lossDetector.packetSent(p, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket)));
+        lossDetector.onAckReceived(new AckFrame(List.of(2L, 3L, 4L)));
+        verify(lostPacketHandler, times(1)).process(argThat(new PacketMatcherByPacketNumber(1)));
+
+        lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L, 3L, 4L)));
+
+        verify(congestionController, times(1)).registerSpuriousLoss(argThat(l -> containsPackets(l, 1)));
+        assertThat(lossDetector.getSpuriouslyLost()).isEqualTo(1);
+        assertThat(lossDetector.getLost()).isEqualTo(1);
+    }
+
+    @Test
+    void spuriousLossIsOnlyRegisteredOnce() {
+        List<QuicPacket> packets = createPackets(1, 2, 3, 4);
+        packets.forEach(p ->
+                lossDetector.packetSent(p, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket)));
+        lossDetector.onAckReceived(new AckFrame(List.of(2L, 3L, 4L)));
+
+        lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L, 3L, 4L)));
+        lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L, 3L, 4L)));
+
+        verify(congestionController, times(1)).registerSpuriousLoss(anyList());
+        assertThat(lossDetector.getSpuriouslyLost()).isEqualTo(1);
+    }
+
+    @Test
+    void spuriousLossWidensReorderingThresholds() {
+        List<QuicPacket> packets = createPackets(1, 2, 3, 4, 5);
+        packets.forEach(p ->
+                lossDetector.packetSent(p, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket)));
+        lossDetector.onAckReceived(new AckFrame(List.of(2L, 3L, 4L, 5L)));
+        verify(lostPacketHandler, times(1)).process(argThat(new PacketMatcherByPacketNumber(1)));
+
+        lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L, 3L, 4L, 5L)));
+
+        assertThat(lossDetector.getPacketThreshold()).isEqualTo(5);
+        assertThat(lossDetector.getTimeThreshold()).isEqualTo(10f/8f);
+    }
+
+    @Test
+    void withWidenedPacketThresholdReorderedPacketIsNotDeclaredLost() {
+        List<QuicPacket> packets = createPackets(1, 2, 3, 4, 5);
+        packets.forEach(p ->
+                lossDetector.packetSent(p, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket)));
+        lossDetector.onAckReceived(new AckFrame(List.of(2L, 3L, 4L, 5L)));
+        lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L, 3L, 4L, 5L)));
+        clearInvocations(lostPacketHandler);
+
+        createPackets(6, 7, 8, 9, 10).forEach(p ->
+                lossDetector.packetSent(p, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket)));
+        lossDetector.onAckReceived(new AckFrame(List.of(7L, 8L, 9L, 10L)));
+
+        verify(lostPacketHandler, never()).process(any(QuicPacket.class));
+    }
+
+    @Test
+    void packetThresholdIsLimited() {
+        List<QuicPacket> packets = createPackets(IntStream.rangeClosed(1, 40).toArray());
+        packets.forEach(p ->
+                lossDetector.packetSent(p, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket)));
+        lossDetector.onAckReceived(new AckFrame(LongStream.rangeClosed(2, 40).boxed().collect(Collectors.toList())));
+        lossDetector.onAckReceived(new AckFrame(LongStream.rangeClosed(1, 40).boxed().collect(Collectors.toList())));
+
+        assertThat(lossDetector.getPacketThreshold()).isEqualTo(LossDetector.MAX_PACKET_THRESHOLD);
+    }
+
+    @Test
+    void reorderingThresholdsDecayAfterLossEventsWithoutSpuriousLoss() {
+        List<QuicPacket> packets = createPackets(1, 2, 3, 4, 5);
+        packets.forEach(p ->
+                lossDetector.packetSent(p, Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket)));
+        lossDetector.onAckReceived(new AckFrame(List.of(2L, 3L, 4L, 5L)));
+        lossDetector.onAckReceived(new AckFrame(List.of(1L, 2L, 3L, 4L, 5L)));
+        assertThat(lossDetector.getPacketThreshold()).isEqualTo(5);
+
+        // Each round, one packet is lost for real
+        int pn = 6;
+        for (int i = 0; i < LossDetector.REORDERING_THRESHOLD_PERSIST; i++) {
+            assertThat(lossDetector.getPacketThreshold()).isEqualTo(5);
+            List<Long> acked = new ArrayList<>();
+            lossDetector.packetSent(createPacket(pn++), Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket));
+            for (int j = 0; j < 5; j++) {
+                lossDetector.packetSent(createPacket(pn), Instant.now(), lostPacket -> lostPacketHandler.process(lostPacket));
+                acked.add((long) pn++);
+            }
+            lossDetector.onAckReceived(new AckFrame(acked));
+        }
+
+        assertThat(lossDetector.getPacketThreshold()).isEqualTo(LossDetector.DEFAULT_PACKET_THRESHOLD);
+        assertThat(lossDetector.getTimeThreshold()).isEqualTo(LossDetector.DEFAULT_TIME_THRESHOLD);
+    }
+
     @Test
     void ackOnlyPacketCannotBeDeclaredLost() {
         QuicPacket ackOnlyPacket = createPacket(1, new AckFrame());
@@ -364,7 +463,7 @@ class LossDetectorTest extends RecoveryTests {
         lossDetector.packetSent(createPacket(0, new ConnectionCloseFrame(Version.getDefault())), Instant.now(), p -> {});
         lossDetector.onAckReceived(new AckFrame(0));
 
-        verify(congestionController, never()).registerAcked(argThat(l -> ! l.isEmpty()));   // It's okay when it is called with an empty list
+        verify(congestionController, never()).registerAcked(argThat(l -> ! l.isEmpty()), any());   // It's okay when it is called with an empty list
     }
 
     @Test
@@ -299,6 +299,34 @@ class RecoveryManagerTest extends RecoveryTests {
         assertThat(framesToRetransmit).hasAtLeastOneElementOfType(CryptoFrame.class);
     }
 
+    @Test
+    void probeShouldContainFramesOfMultipleUnackedPackets() throws Exception {
+        recoveryManager.packetSent(createPacket(0, new StreamFrame(0, new byte[100], false)), Instant.now(), p -> {});
+        recoveryManager.packetSent(createPacket(1, new StreamFrame(4, new byte[100], false)), Instant.now(), p -> {});
+        recoveryManager.packetSent(createPacket(2, new PingFrame()), Instant.now(), p -> {});
+        recoveryManager.packetSent(createPacket(3, new StreamFrame(8, new byte[100], false)), Instant.now(), p -> {});
+
+        List<List<QuicFrame>> probes = recoveryManager.getProbeFrames(PnSpace.App, 2);
+
+        assertThat(probes).hasSize(1);
+        assertThat(probes.get(0)).hasSize(3);
+        assertThat(probes.get(0)).allMatch(frame -> frame instanceof StreamFrame);
+        assertThat(((StreamFrame) probes.get(0).get(0)).getStreamId()).isEqualTo(0);
+    }
+
+    @Test
+    void probeFramesShouldBeSpreadOverMultipleProbesWhenTheyDoNotFitInOne() throws Exception {
+        recoveryManager.packetSent(createHandshakePacket(0, new CryptoFrame(Version.getDefault(), new byte[500])), Instant.now(), p -> {});
+        recoveryManager.packetSent(createHandshakePacket(1, new CryptoFrame(Version.getDefault(), 500, new byte[500])), Instant.now(), p -> {});
+        recoveryManager.packetSent(createHandshakePacket(2, new CryptoFrame(Version.getDefault(), 1000, new byte[500])), Instant.now(), p -> {});
+
+        List<List<QuicFrame>> probes = recoveryManager.getProbeFrames(PnSpace.Handshake, 2);
+
+        assertThat(probes).hasSize(2);
+        assertThat(probes.get(0)).hasSize(2);
+        assertThat(probes.get(1)).hasSize(1);
+    }
+
     private void mockSendingProbe(int... packetNumbers) {
         doAnswer(new Answer<Void>() {
             private int count;
@@ -75,6 +75,8 @@ public abstract class RecoveryTests {
     void setPacketNumber(QuicPacket packet, int packetNumber) {
         try {
             FieldSetter.setField(packet, QuicPacket.class.getDeclaredField("packetNumber"), packetNumber);
+            // Packets are always registered after they are sent, so they have a size
+            FieldSetter.setField(packet, QuicPacket.class.getDeclaredField("packetSize"), 1200);
         } catch (NoSuchFieldException e) {
             throw new RuntimeException(e);
         }
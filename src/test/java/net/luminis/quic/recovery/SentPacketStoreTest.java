@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.recovery;
+
+import net.luminis.quic.frame.AckFrame;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+class SentPacketStoreTest extends RecoveryTests {
+
+    private SentPacketStore store;
+
+    @BeforeEach
+    void initObjectUnderTest() {
+        store = new SentPacketStore();
+    }
+
+    @Test
+    void storedPacketShouldBeFoundByPacketNumber() {
+        store.add(packetStatus(0));
+        store.add(packetStatus(1));
+
+        assertThat(store.get(1).packet().getPacketNumber()).isEqualTo(1);
+        assertThat(store.get(2)).isNull();
+        assertThat(store.size()).isEqualTo(2);
+    }
+
+    @Test
+    void removingSmallestShouldShrinkWindow() {
+        store.add(packetStatus(3));
+        store.add(packetStatus(4));
+        store.add(packetStatus(6));
+
+        store.remove(4);
+        assertThat(store.getSmallest()).isEqualTo(3);
+
+        store.remove(3);
+        assertThat(store.getSmallest()).isEqualTo(6);
+        assertThat(store.getLargest()).isEqualTo(6);
+        assertThat(store.size()).isEqualTo(1);
+    }
+
+    @Test
+    void whenAllPacketsAreRemovedStoreShouldBeEmpty() {
+        store.add(packetStatus(0));
+        store.add(packetStatus(1));
+
+        store.remove(1);
+        store.remove(0);
+
+        assertThat(store.size()).isEqualTo(0);
+        assertThat(store.getSmallest()).isEqualTo(-1);
+        assertThat(store.getAll()).isEmpty();
+        assertThat(store.hasAckEliciting()).isFalse();
+    }
+
+    @Test
+    void storeShouldGrowWhenWindowExceedsCapacity() {
+        for (int pn = 0; pn < 1000; pn++) {
+            store.add(packetStatus(pn));
+        }
+        for (int pn = 0; pn < 1000; pn += 2) {
+            store.remove(pn);
+        }
+
+        assertThat(store.size()).isEqualTo(500);
+        assertThat(store.get(999).packet().getPacketNumber()).isEqualTo(999);
+        assertThat(store.getAll()).extracting(p -> p.packet().getPacketNumber()).startsWith(1L, 3L, 5L);
+    }
+
+    @Test
+    void packetWithSmallerPacketNumberCanBeAddedLater() {
+        store.add(packetStatus(5));
+        store.add(packetStatus(2));
+
+        assertThat(store.getSmallest()).isEqualTo(2);
+        assertThat(store.getAll()).extracting(p -> p.packet().getPacketNumber()).containsExactly(2L, 5L);
+    }
+
+    @Test
+    void ackOnlyPacketIsNotAckEliciting() {
+        store.add(new PacketStatus(Instant.now(), createPacket(0, new AckFrame(0)), p -> {}));
+
+        assertThat(store.hasAckEliciting()).isFalse();
+
+        store.add(packetStatus(1));
+        assertThat(store.hasAckEliciting()).isTrue();
+
+        store.remove(1);
+        assertThat(store.hasAckEliciting()).isFalse();
+    }
+
+    @Test
+    void clearShouldReturnAllPackets() {
+        store.add(packetStatus(0));
+        store.add(packetStatus(7));
+
+        assertThat(store.clear()).hasSize(2);
+        assertThat(store.size()).isEqualTo(0);
+        assertThat(store.get(7)).isNull();
+    }
+
+    private PacketStatus packetStatus(int packetNumber) {
+        return new PacketStatus(Instant.now(), createPacket(packetNumber), p -> {});
+    }
+}
@@ -20,6 +20,7 @@ package net.luminis.quic.stream;
 
 import net.luminis.quic.QuicConnectionImpl;
 import net.luminis.quic.Version;
+import net.luminis.quic.concurrent.HashedWheelTimer;
 import net.luminis.quic.frame.QuicFrame;
 import net.luminis.quic.frame.StreamFrame;
 import net.luminis.quic.log.Logger;
@@ -47,6 +48,7 @@ class EarlyDataStreamTest {
         connection = mock(QuicConnectionImpl.class);
         when(connection.getMaxPacketSize()).thenReturn(1232);
         when(connection.getMaxShortHeaderPacketOverhead()).thenReturn(29);
+        when(connection.newTimeout(any(Runnable.class))).thenAnswer(invocation -> HashedWheelTimer.shared().newTimeout(invocation.getArgument(0)));
         int maxData = 5000;
         FlowControl flowController = new FlowControl(maxData, maxData, maxData, maxData);
         logger = new NullLogger();
@@ -33,6 +33,7 @@ import java.time.Instant;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -376,4 +377,32 @@ class FlowControlTest {
     private void executeAsyncWithDelay(Runnable task, int delay) {
         executor.schedule(task, delay, TimeUnit.MILLISECONDS);
     }
-}
\ No newline at end of file
+
+    @Test
+    void callbackShouldBeCalledWhenCreditsBecomeAvailable() {
+        FlowControl fc = new FlowControl(100_000, 9999, 100, 9999);
+        QuicStream stream = new QuicStream(0, conn, null);
+        fc.increaseFlowControlLimit(stream, 100);
+
+        AtomicInteger called = new AtomicInteger();
+        fc.whenCreditsAvailable(stream, called::incrementAndGet);
+        assertThat(called.get()).isEqualTo(0);
+
+        fc.process(new MaxStreamDataFrame(0, 200), PnSpace.App, Instant.now());
+        assertThat(called.get()).isEqualTo(1);
+
+        // Callback is only called once
+        fc.process(new MaxStreamDataFrame(0, 300), PnSpace.App, Instant.now());
+        assertThat(called.get()).isEqualTo(1);
+    }
+
+    @Test
+    void callbackShouldBeCalledImmediatelyWhenCreditsAreAvailable() {
+        FlowControl fc = new FlowControl(100_000, 9999, 100, 9999);
+        QuicStream stream = new QuicStream(0, conn, null);
+
+        AtomicInteger called = new AtomicInteger();
+        fc.whenCreditsAvailable(stream, called::incrementAndGet);
+        assertThat(called.get()).isEqualTo(1);
+    }
+}
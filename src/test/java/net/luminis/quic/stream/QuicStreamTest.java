@@ -20,7 +20,9 @@ package net.luminis.quic.stream;
 
 import net.luminis.quic.InvalidIntegerEncodingException;
 import net.luminis.quic.InvalidPacketException;
+import net.luminis.quic.PnSpace;
 import net.luminis.quic.QuicConnectionImpl;
+import net.luminis.quic.concurrent.HashedWheelTimer;
 import net.luminis.quic.frame.MaxStreamDataFrame;
 import net.luminis.quic.frame.QuicFrame;
 import net.luminis.quic.frame.StreamFrame;
@@ -38,13 +40,21 @@ import org.mockito.Mockito;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.*;
@@ -72,6 +82,7 @@ class QuicStreamTest {
     void createDefaultMocksAndObjectUnderTest() {
         connection = Mockito.mock(QuicConnectionImpl.class);
         when(connection.getMaxPacketSize()).thenReturn(1232);
+        when(connection.newTimeout(any(Runnable.class))).thenAnswer(invocation -> HashedWheelTimer.shared().newTimeout(invocation.getArgument(0)));
         logger = Mockito.mock(Logger.class);
 
         quicStream = new QuicStream(0, connection, new FlowControl(9999, 9999, 9999, 9999), logger);
@@ -192,6 +203,16 @@ class QuicStreamTest {
         assertThat(quicStream.getInputStream().readAllBytes()).isEqualTo("first-second-third-forth-final".getBytes());
     }
 
+    @Test
+    void testAddOverlappingFramesWithDifferentBoundaries() throws IOException {
+        quicStream.add(resurrect(new StreamFrame(0, "first-".getBytes(), false)));
+        quicStream.add(resurrect(new StreamFrame(0, 13, "third-final".getBytes(), true)));
+        // Retransmitted data, split at different boundaries than original frames
+        quicStream.add(resurrect(new StreamFrame(0, 3, "st-second-th".getBytes(), false)));
+
+        assertThat(quicStream.getInputStream().readAllBytes()).isEqualTo("first-second-third-final".getBytes());
+    }
+
     @Test
     void testReadBlocksTillContiguousFrameIsAvailalble() throws IOException {
         quicStream.add(resurrect(new StreamFrame(0, "first-".getBytes(), false)));
@@ -243,6 +264,7 @@ class QuicStreamTest {
     @Test
     void testStreamOutputWithByteArray() throws IOException {
         quicStream.getOutputStream().write("hello world".getBytes());
+        quicStream.getOutputStream().flush();
 
         verify(connection, times(1)).send(argThat(new StreamFrameMatcher("hello world".getBytes())), any(Consumer.class));
     }
@@ -250,6 +272,7 @@ class QuicStreamTest {
     @Test
     void testStreamOutputWithByteArrayFragment() throws IOException {
         quicStream.getOutputStream().write(">> hello world <<".getBytes(), 3, 11);
+        quicStream.getOutputStream().flush();
 
         verify(connection, times(1)).send(argThat(new StreamFrameMatcher("hello world".getBytes())), any(Consumer.class));
     }
@@ -257,6 +280,7 @@ class QuicStreamTest {
     @Test
     void testStreamOutputWithSingleByte() throws IOException {
         quicStream.getOutputStream().write(0x23);  // ASCII 23 == '#'
+        quicStream.getOutputStream().flush();
 
         verify(connection, times(1)).send(argThat(new StreamFrameMatcher("#".getBytes())), any(Consumer.class));
     }
@@ -264,7 +288,9 @@ class QuicStreamTest {
     @Test
     void testStreamOutputMultipleFrames() throws IOException {
         quicStream.getOutputStream().write("hello ".getBytes());
+        quicStream.getOutputStream().flush();
         quicStream.getOutputStream().write("world".getBytes());
+        quicStream.getOutputStream().flush();
 
         verify(connection, times(1)).send(argThat(new StreamFrameMatcher("hello ".getBytes())), any(Consumer.class));
         verify(connection, times(1)).send(argThat(new StreamFrameMatcher("world".getBytes(), 6)), any(Consumer.class));
@@ -282,6 +308,7 @@ class QuicStreamTest {
     void testOutputWithByteArrayLargerThanMaxPacketSizeIsSplitOverMultiplePackets() throws IOException {
         byte[] data = generateByteArray(1400);
         quicStream.getOutputStream().write(data);
+        quicStream.getOutputStream().flush();
 
         ArgumentCaptor<StreamFrame> captor = ArgumentCaptor.forClass(StreamFrame.class);
         verify(connection, times(2)).send(captor.capture(), any(Consumer.class));
@@ -327,8 +354,61 @@ class QuicStreamTest {
         inputStream.read(new byte[2]);
         verify(connection, times(2)).send(any(MaxStreamDataFrame.class), any(Consumer.class));
 
+        // Credit is granted once per read call, so one large read leads to one update
         inputStream.read(new byte[(int) (initialWindow * factor * 3.1)]);
-        verify(connection, times(5)).send(any(MaxStreamDataFrame.class), any(Consumer.class));
+        verify(connection, times(3)).send(any(MaxStreamDataFrame.class), any(Consumer.class));
+    }
+
+    @Test
+    void bulkReadShouldGrantFlowControlCreditOncePerRead() throws IOException {
+        quicStream.add(resurrect(new StreamFrame(0, new byte[1000], false)));
+        quicStream.add(resurrect(new StreamFrame(0, 1000, new byte[1000], true)));
+
+        int bytesRead = quicStream.getInputStream().read(new byte[1500]);
+
+        assertThat(bytesRead).isEqualTo(1500);
+        verify(connection, times(1)).slideFlowControlWindow(1500);
+        verify(connection, times(1)).slideFlowControlWindow(anyInt());
+    }
+
+    @Test
+    void bulkReadShouldCopyDataFromMultipleFrames() throws IOException {
+        quicStream.add(resurrect(new StreamFrame(0, "first-".getBytes(), false)));
+        quicStream.add(resurrect(new StreamFrame(0, 6, "second-".getBytes(), false)));
+        quicStream.add(resurrect(new StreamFrame(0, 13, "third".getBytes(), true)));
+
+        byte[] buffer = new byte[20];
+        int bytesRead = quicStream.getInputStream().read(buffer, 2, 15);
+
+        assertThat(bytesRead).isEqualTo(15);
+        assertThat(Arrays.copyOfRange(buffer, 2, 17)).isEqualTo("first-second-th".getBytes());
+        assertThat(quicStream.getInputStream().read(buffer)).isEqualTo(3);
+        assertThat(quicStream.getInputStream().read(buffer)).isEqualTo(-1);
+    }
+
+    @Test
+    void readIntoByteBufferShouldCopyAvailableData() throws IOException {
+        quicStream.add(resurrect(new StreamFrame(0, "first-".getBytes(), false)));
+        quicStream.add(resurrect(new StreamFrame(0, 6, "second".getBytes(), true)));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+        assertThat(quicStream.read(buffer)).isEqualTo(12);
+        assertThat(quicStream.read(buffer)).isEqualTo(-1);
+
+        buffer.flip();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        assertThat(data).isEqualTo("first-second".getBytes());
+    }
+
+    @Test
+    void readIntoByteBufferShouldNotExceedBufferCapacity() throws IOException {
+        quicStream.add(resurrect(new StreamFrame(0, "first-second".getBytes(), true)));
+
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        assertThat(quicStream.read(buffer)).isEqualTo(5);
+        assertThat(buffer.array()).isEqualTo("first".getBytes());
+        assertThat(quicStream.read(buffer)).isEqualTo(0);
     }
 
     @Test
@@ -337,6 +417,7 @@ class QuicStreamTest {
         ArgumentCaptor<QuicFrame> sendFrameCaptor = ArgumentCaptor.forClass(QuicFrame.class);
 
         quicStream.getOutputStream().write("this frame might get lost".getBytes());
+        quicStream.getOutputStream().flush();
         verify(connection, times(1)).send(sendFrameCaptor.capture(), lostFrameCallbackCaptor.capture());
 
         QuicFrame lostFrame = sendFrameCaptor.getValue();
@@ -390,6 +471,7 @@ class QuicStreamTest {
     @Test
     void lostFinalFrameShouldBeRetransmitted() throws IOException {
         quicStream.getOutputStream().write("just a stream frame".getBytes());
+        quicStream.getOutputStream().flush();
         verify(connection, times(1)).send(any(QuicFrame.class), any(Consumer.class));
 
         quicStream.getOutputStream().close();  // Close will send an empty final frame.
@@ -415,6 +497,39 @@ class QuicStreamTest {
         assertThat(((StreamFrame) retransmittedFrame).isFinal()).isTrue();
     }
 
+    @Test
+    void priorityAndWeightShouldBePassedToConnection() {
+        quicStream.setPriority(1, true);
+        verify(connection).setStreamPriority(0, 1, true, 16);
+
+        quicStream.setWeight(64);
+        verify(connection).setStreamPriority(0, 1, true, 64);
+        assertThat(quicStream.getUrgency()).isEqualTo(1);
+        assertThat(quicStream.isIncremental()).isTrue();
+        assertThat(quicStream.getWeight()).isEqualTo(64);
+    }
+
+    @Test
+    void priorityShouldBeRemovedFromConnectionWhenStreamIsClosed() throws Exception {
+        quicStream.setPriority(1, true);
+        quicStream.getOutputStream().write(new byte[10]);
+        verify(connection, never()).removeStreamPriority(anyInt());
+
+        quicStream.getOutputStream().close();
+        verify(connection).removeStreamPriority(0);
+
+        quicStream.setWeight(64);
+        verify(connection, never()).setStreamPriority(0, 1, true, 64);
+    }
+
+    @Test
+    void priorityShouldBeRemovedFromConnectionWhenStreamIsAborted() {
+        quicStream.setPriority(1, false);
+
+        quicStream.abort();
+        verify(connection).removeStreamPriority(0);
+    }
+
     @Test
     void isUnidirectional() {
         QuicStream clientInitiatedStream = new QuicStream(2, mock(QuicConnectionImpl.class), null);
@@ -444,6 +559,7 @@ class QuicStreamTest {
 
         QuicStream stream = new QuicStream(1, connection, flowController);
         stream.getOutputStream().write(new byte[100]);
+        stream.getOutputStream().flush();
 
         verify(connection).send(argThat(new StreamFrameDataLengthMatcher(100)), any());
         verify(flowController, never()).waitForFlowControlCredits(any(QuicStream.class));
@@ -458,6 +574,7 @@ class QuicStreamTest {
 
         QuicStream stream = new QuicStream(1, connection, flowController);
         stream.getOutputStream().write(new byte[500], 0, 500);
+        stream.getOutputStream().flush();
 
         verify(flowController, times(1)).waitForFlowControlCredits(any(QuicStream.class));
         verify(flowController, times(2)).increaseFlowControlLimit(any(QuicStream.class), anyLong());
@@ -479,8 +596,11 @@ class QuicStreamTest {
                 .thenReturn(60L);
 
         QuicStream stream = new QuicStream(1, connection, flowController);
+        // Prevent the flush timer from sending the data before the explicit flush
+        stream.setFlushDelay(10_000);
         byte[] data = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".getBytes();
         stream.getOutputStream().write(data);
+        stream.getOutputStream().flush();
 
         verify(flowController, times(5)).waitForFlowControlCredits(any(QuicStream.class));
         verify(flowController, times(6)).increaseFlowControlLimit(any(QuicStream.class), anyLong());
@@ -495,6 +615,254 @@ class QuicStreamTest {
         assertThat(sentData).isEqualTo("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ");
     }
 
+    @Test
+    void smallWritesShouldBeCoalesced() throws IOException {
+        quicStream.setFlushDelay(10_000);
+        quicStream.getOutputStream().write("hello ".getBytes());
+        quicStream.getOutputStream().write('w');
+        quicStream.getOutputStream().write("orld".getBytes());
+        verify(connection, never()).send(any(QuicFrame.class), any(Consumer.class));
+
+        quicStream.getOutputStream().flush();
+        verify(connection, times(1)).send(argThat(new StreamFrameMatcher("hello world".getBytes())), any(Consumer.class));
+    }
+
+    @Test
+    void frameWorthOfDataShouldBeSentWithoutFlush() throws IOException {
+        quicStream.setFlushDelay(10_000);
+        quicStream.getOutputStream().write(generateByteArray(1400));
+
+        ArgumentCaptor<StreamFrame> captor = ArgumentCaptor.forClass(StreamFrame.class);
+        verify(connection, times(1)).send(captor.capture(), any(Consumer.class));
+        assertThat(captor.getValue().getLength()).isGreaterThan(1000);
+    }
+
+    @Test
+    void bufferedDataShouldBeSentWhenFlushDelayExpires() throws IOException {
+        quicStream.getOutputStream().write("hello world".getBytes());
+
+        verify(connection, timeout(1000).times(1)).send(argThat(new StreamFrameMatcher("hello world".getBytes())), any(Consumer.class));
+    }
+
+    @Test
+    void flushTimerShouldBeCreatedByConnection() {
+        verify(connection).newTimeout(any(Runnable.class));
+    }
+
+    @Test
+    void writerShouldBlockWhenSendBufferIsFull() throws Exception {
+        FlowControl flowController = new FlowControl(100_000, 100, 100, 100);
+        QuicStream stream = new QuicStream(0, connection, flowController);
+        stream.setSendBuffer(1000, 1000, 500);
+
+        Thread writer = new Thread(() -> {
+            try {
+                stream.getOutputStream().write(new byte[2000]);
+            }
+            catch (IOException e) {}
+        });
+        writer.start();
+        writer.join(100);
+        assertThat(writer.isAlive()).isTrue();
+
+        flowController.process(new MaxStreamDataFrame(0, 10_000), PnSpace.App, Instant.now());
+        writer.join(1000);
+        assertThat(writer.isAlive()).isFalse();
+
+        stream.getOutputStream().flush();
+        ArgumentCaptor<StreamFrame> captor = ArgumentCaptor.forClass(StreamFrame.class);
+        verify(connection, atLeastOnce()).send(captor.capture(), any(Consumer.class));
+        assertThat(captor.getAllValues().stream().mapToInt(StreamFrame::getLength).sum()).isEqualTo(2000);
+    }
+
+    @Test
+    void dataBlockedByFlowControlShouldBeSentWhenCreditsBecomeAvailable() throws Exception {
+        FlowControl flowController = new FlowControl(100_000, 50, 50, 50);
+        QuicStream stream = new QuicStream(0, connection, flowController);
+
+        stream.getOutputStream().write(new byte[100]);
+        verify(connection, timeout(1000).times(1)).send(argThat(new StreamFrameDataLengthMatcher(50)), any(Consumer.class));
+
+        flowController.process(new MaxStreamDataFrame(0, 10_000), PnSpace.App, Instant.now());
+        verify(connection, timeout(1000).times(2)).send(argThat(new StreamFrameDataLengthMatcher(50)), any(Consumer.class));
+    }
+
+    @Test
+    void invalidSendBufferConfigurationShouldBeRejected() {
+        assertThatThrownBy(() -> quicStream.setSendBuffer(1000, 2000, 500)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> quicStream.setSendBuffer(1000, 500, 500)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void publisherShouldDeliverReceivedDataOnDemand() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber();
+        quicStream.getPublisher().subscribe(subscriber);
+        quicStream.add(resurrect(new StreamFrame(0, "first-".getBytes(), false)));
+        assertThat(subscriber.received).isEmpty();
+
+        subscriber.subscription.request(1);
+        assertThat(subscriber.receivedData()).isEqualTo("first-");
+
+        quicStream.add(resurrect(new StreamFrame(0, 6, "second".getBytes(), true)));
+        assertThat(subscriber.receivedData()).isEqualTo("first-");
+        assertThat(subscriber.completed).isFalse();
+
+        subscriber.subscription.request(1);
+        assertThat(subscriber.receivedData()).isEqualTo("first-second");
+        assertThat(subscriber.completed).isTrue();
+    }
+
+    @Test
+    void publisherShouldOnlyGrantFlowControlCreditForDeliveredData() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber();
+        quicStream.getPublisher().subscribe(subscriber);
+        quicStream.add(resurrect(new StreamFrame(0, new byte[1000], false)));
+        verify(connection, never()).slideFlowControlWindow(anyInt());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        verify(connection).slideFlowControlWindow(1000);
+    }
+
+    @Test
+    void publisherShouldAcceptOneSubscriberOnly() throws Exception {
+        quicStream.getPublisher().subscribe(new TestSubscriber());
+        TestSubscriber second = new TestSubscriber();
+        quicStream.getPublisher().subscribe(second);
+
+        assertThat(second.error).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void publisherShouldNotSignalBeforeOnSubscribeReturns() throws Exception {
+        quicStream.add(resurrect(new StreamFrame(0, "data".getBytes(), true)));
+        List<String> signals = new ArrayList<>();
+        quicStream.getPublisher().subscribe(new TestSubscriber() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(1);
+                signals.add("onSubscribe");
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                signals.add("onNext");
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add("onComplete");
+            }
+        });
+
+        assertThat(signals).containsExactly("onSubscribe", "onNext", "onComplete");
+    }
+
+    @Test
+    void publisherShouldSignalErrorOnNonPositiveRequest() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber();
+        quicStream.getPublisher().subscribe(subscriber);
+        quicStream.add(resurrect(new StreamFrame(0, "data".getBytes(), true)));
+
+        subscriber.subscription.request(0);
+        subscriber.subscription.request(1);
+
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+        assertThat(subscriber.received).isEmpty();
+        assertThat(subscriber.completed).isFalse();
+    }
+
+    @Test
+    void publisherShouldSignalErrorWhenAborted() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber();
+        quicStream.getPublisher().subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        quicStream.abort();
+
+        assertThat(subscriber.error).isNotNull();
+    }
+
+    @Test
+    void asyncWriteShouldCompleteWhenDataIsBuffered() throws Exception {
+        quicStream.setFlushDelay(10_000);
+        CompletableFuture<Void> result = quicStream.writeAsync(ByteBuffer.wrap("hello world".getBytes()), false);
+
+        assertThat(result).isCompleted();
+        verify(connection, never()).send(any(QuicFrame.class), any(Consumer.class));
+    }
+
+    @Test
+    void asyncWriteWithFinShouldSendDataAndFinalFrame() throws Exception {
+        CompletableFuture<Void> result = quicStream.writeAsync(ByteBuffer.wrap("hello world".getBytes()), true);
+
+        assertThat(result).isCompleted();
+        InOrder inOrder = inOrder(connection);
+        inOrder.verify(connection).send(argThat(new StreamFrameMatcher("hello world".getBytes())), any(Consumer.class));
+        inOrder.verify(connection).send(argThat(new StreamFrameMatcher(new byte[0], 11, true)), any(Consumer.class));
+    }
+
+    @Test
+    void asyncWriteShouldCompleteWhenBlockedDataIsAcceptedAfterCreditsBecomeAvailable() throws Exception {
+        FlowControl flowController = new FlowControl(100_000, 100, 100, 100);
+        QuicStream stream = new QuicStream(0, connection, flowController);
+        stream.setSendBuffer(1000, 1000, 500);
+
+        CompletableFuture<Void> first = stream.writeAsync(ByteBuffer.wrap(new byte[1000]), false);
+        CompletableFuture<Void> second = stream.writeAsync(ByteBuffer.wrap(new byte[500]), true);
+        assertThat(first).isCompleted();
+        assertThat(second).isNotDone();
+
+        flowController.process(new MaxStreamDataFrame(0, 10_000), PnSpace.App, Instant.now());
+        second.get(1, TimeUnit.SECONDS);
+
+        ArgumentCaptor<StreamFrame> captor = ArgumentCaptor.forClass(StreamFrame.class);
+        verify(connection, atLeastOnce()).send(captor.capture(), any(Consumer.class));
+        assertThat(captor.getAllValues().stream().mapToInt(StreamFrame::getLength).sum()).isEqualTo(1500);
+        assertThat(captor.getValue().isFinal()).isTrue();
+    }
+
+    @Test
+    void abortShouldFailPendingAsyncWrites() throws Exception {
+        FlowControl flowController = new FlowControl(100_000, 100, 100, 100);
+        QuicStream stream = new QuicStream(0, connection, flowController);
+        stream.setSendBuffer(1000, 1000, 500);
+
+        CompletableFuture<Void> first = stream.writeAsync(ByteBuffer.wrap(new byte[1000]), false);
+        CompletableFuture<Void> second = stream.writeAsync(ByteBuffer.wrap(new byte[500]), true);
+        assertThat(first).isCompleted();
+        assertThat(second).isNotDone();
+
+        stream.abort();
+
+        assertThat(second).isCompletedExceptionally();
+        assertThatThrownBy(() -> second.get()).hasCauseInstanceOf(ProtocolException.class);
+    }
+
+    @Test
+    void abortShouldFailAsyncWriteWaitingForFinalFrame() throws Exception {
+        FlowControl flowController = new FlowControl(100_000, 100, 100, 100);
+        QuicStream stream = new QuicStream(0, connection, flowController);
+
+        // All data fits in the buffer, but flow control blocks sending it, so the final frame is pending.
+        CompletableFuture<Void> result = stream.writeAsync(ByteBuffer.wrap(new byte[1000]), true);
+        assertThat(result).isNotDone();
+
+        stream.abort();
+
+        assertThat(result).isCompletedExceptionally();
+    }
+
+    @Test
+    void asyncWriteAfterAbortShouldFail() throws Exception {
+        quicStream.abort();
+
+        CompletableFuture<Void> result = quicStream.writeAsync(ByteBuffer.wrap("hello world".getBytes()), false);
+
+        assertThat(result).isCompletedExceptionally();
+        assertThatThrownBy(() -> result.get()).hasCauseInstanceOf(ProtocolException.class);
+        verify(connection, never()).send(any(QuicFrame.class), any(Consumer.class));
+    }
+
 
     private byte[] generateByteArray(int size) {
         byte[] data = new byte[size];
@@ -573,4 +941,36 @@ class QuicStreamTest {
         }
     }
 
-}
\ No newline at end of file
+    private static class TestSubscriber implements Flow.Subscriber<ByteBuffer> {
+        Flow.Subscription subscription;
+        List<ByteBuffer> received = new ArrayList<>();
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+        String receivedData() {
+            return received.stream()
+                    .map(buffer -> new String(buffer.array(), buffer.position(), buffer.remaining()))
+                    .collect(Collectors.joining());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2020 Peter Doornbosch
+ *
+ * This file is part of Kwik, a QUIC client Java library
+ *
+ * Kwik is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Kwik is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.luminis.quic.stream;
+
+import net.luminis.quic.frame.StreamFrame;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+class ReceiveBufferTest {
+
+    private ReceiveBuffer receiveBuffer;
+
+    @BeforeEach
+    void initObjectUnderTest() {
+        receiveBuffer = new ReceiveBuffer();
+    }
+
+    @Test
+    void contiguousFramesShouldBeAvailable() {
+        receiveBuffer.add(new StreamFrame(0, 0, "first-".getBytes(), false));
+        receiveBuffer.add(new StreamFrame(0, 6, "second".getBytes(), true));
+
+        assertThat(receiveBuffer.bytesAvailable()).isEqualTo(12);
+        assertThat(readAll()).isEqualTo("first-second".getBytes());
+        assertThat(receiveBuffer.allRead()).isTrue();
+    }
+
+    @Test
+    void nonContiguousDataShouldNotBeAvailable() {
+        receiveBuffer.add(new StreamFrame(0, 6, "second".getBytes(), true));
+
+        assertThat(receiveBuffer.bytesAvailable()).isEqualTo(0);
+        assertThat(receiveBuffer.bufferedBytes()).isEqualTo(6);
+        assertThat(receiveBuffer.allRead()).isFalse();
+    }
+
+    @Test
+    void duplicateFrameShouldNotAddData() {
+        assertThat(receiveBuffer.add(new StreamFrame(0, 6, "second".getBytes(), false))).isTrue();
+        assertThat(receiveBuffer.add(new StreamFrame(0, 6, "second".getBytes(), false))).isFalse();
+
+        assertThat(receiveBuffer.bufferedBytes()).isEqualTo(6);
+        assertThat(receiveBuffer.segmentCount()).isEqualTo(1);
+    }
+
+    @Test
+    void frameOverlappingWithReadDataShouldBeTrimmed() {
+        receiveBuffer.add(new StreamFrame(0, 0, "first-".getBytes(), false));
+        readAll();
+
+        receiveBuffer.add(new StreamFrame(0, 3, "st-second".getBytes(), true));
+
+        assertThat(receiveBuffer.bytesAvailable()).isEqualTo(6);
+        assertThat(readAll()).isEqualTo("second".getBytes());
+    }
+
+    @Test
+    void frameOverlappingWithBufferedDataShouldOnlyAddMissingParts() {
+        receiveBuffer.add(new StreamFrame(0, 4, "4567".getBytes(), false));
+        receiveBuffer.add(new StreamFrame(0, 10, "ab".getBytes(), false));
+
+        receiveBuffer.add(new StreamFrame(0, 2, "23456789abcd".getBytes(), true));
+
+        assertThat(receiveBuffer.bufferedBytes()).isEqualTo(12);
+        receiveBuffer.add(new StreamFrame(0, 0, "01".getBytes(), false));
+        assertThat(readAll()).isEqualTo("0123456789abcd".getBytes());
+        assertThat(receiveBuffer.allRead()).isTrue();
+    }
+
+    @Test
+    void frameSplitAtDifferentBoundariesShouldBeMerged() {
+        receiveBuffer.add(new StreamFrame(0, 10, "abcdef".getBytes(), true));
+        receiveBuffer.add(new StreamFrame(0, 0, "0123".getBytes(), false));
+        // Retransmission with different boundaries
+        receiveBuffer.add(new StreamFrame(0, 2, "234567".getBytes(), false));
+        receiveBuffer.add(new StreamFrame(0, 8, "89ab".getBytes(), false));
+
+        assertThat(receiveBuffer.bytesAvailable()).isEqualTo(16);
+        assertThat(readAll()).isEqualTo("0123456789abcdef".getBytes());
+    }
+
+    @Test
+    void readDataShouldBeReleased() {
+        receiveBuffer.add(new StreamFrame(0, 0, new byte[1000], false));
+        receiveBuffer.add(new StreamFrame(0, 1000, new byte[1000], false));
+        receiveBuffer.add(new StreamFrame(0, 3000, new byte[1000], false));
+
+        receiveBuffer.read(1500, (data, offset, length) -> {});
+        assertThat(receiveBuffer.segmentCount()).isEqualTo(2);
+        assertThat(receiveBuffer.bufferedBytes()).isEqualTo(2000);
+
+        receiveBuffer.read(1500, (data, offset, length) -> {});
+        assertThat(receiveBuffer.segmentCount()).isEqualTo(1);
+        assertThat(receiveBuffer.bufferedBytes()).isEqualTo(1000);
+    }
+
+    @Test
+    void emptyFinalFrameShouldEndStream() {
+        receiveBuffer.add(new StreamFrame(0, 0, "data".getBytes(), false));
+        receiveBuffer.add(new StreamFrame(0, 4, new byte[0], true));
+
+        readAll();
+        assertThat(receiveBuffer.allRead()).isTrue();
+    }
+
+    @Test
+    void finalFrameCoveredByEarlierDataShouldStillEndStream() {
+        receiveBuffer.add(new StreamFrame(0, 0, "0123456789".getBytes(), false));
+        receiveBuffer.add(new StreamFrame(0, 5, "56789".getBytes(), true));
+
+        assertThat(readAll()).isEqualTo("0123456789".getBytes());
+        assertThat(receiveBuffer.allRead()).isTrue();
+    }
+
+    @Test
+    void heavilyReorderedAndResplitFramesShouldBeReassembled() {
+        int streamSize = 4_000_000;
+        byte[] content = new byte[streamSize];
+        Random random = new Random(3);
+        random.nextBytes(content);
+
+        List<StreamFrame> frames = new ArrayList<>();
+        // Original transmission, with frames of 1000 bytes, and retransmission of about half of the data with other boundaries.
+        addFrames(frames, content, 0, 1000);
+        addFrames(frames, content, 333, 1200);
+        frames.removeIf(frame -> frame.getOffset() > 0 && random.nextInt(4) == 0);
+        Collections.shuffle(frames, random);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(streamSize);
+        int maxSegments = 0;
+        int highestReceived = 0;
+        for (StreamFrame frame: frames) {
+            receiveBuffer.add(frame);
+            highestReceived = Math.max(highestReceived, frame.getOffset() + frame.getLength());
+            maxSegments = Math.max(maxSegments, receiveBuffer.segmentCount());
+            // Overlapping data is never stored twice
+            assertThat(receiveBuffer.bufferedBytes()).isLessThanOrEqualTo(highestReceived - receiveBuffer.readOffset());
+            receiveBuffer.read(Integer.MAX_VALUE, output::write);
+        }
+        // Trimming overlapping frames must not fragment the buffer into more segments than frames received
+        assertThat(maxSegments).isLessThan(frames.size());
+
+        if (!receiveBuffer.allRead()) {
+            // Not all data was (re)transmitted; fill the gaps with a final retransmission of the whole stream.
+            receiveBuffer.add(new StreamFrame(0, 0, content, true));
+            receiveBuffer.read(Integer.MAX_VALUE, output::write);
+        }
+        assertThat(output.toByteArray()).isEqualTo(content);
+        assertThat(receiveBuffer.allRead()).isTrue();
+        assertThat(receiveBuffer.segmentCount()).isEqualTo(0);
+        assertThat(receiveBuffer.bufferedBytes()).isEqualTo(0);
+    }
+
+    private void addFrames(List<StreamFrame> frames, byte[] content, int start, int frameSize) {
+        for (int offset = start; offset < content.length; offset += frameSize) {
+            int length = Math.min(frameSize, content.length - offset);
+            frames.add(new StreamFrame(0, offset, Arrays.copyOfRange(content, offset, offset + length), offset + length == content.length));
+        }
+    }
+
+    private byte[] readAll() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        receiveBuffer.read(Integer.MAX_VALUE, output::write);
+        return output.toByteArray();
+    }
+}